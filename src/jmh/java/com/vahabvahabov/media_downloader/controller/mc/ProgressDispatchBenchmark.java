@@ -0,0 +1,63 @@
+package com.vahabvahabov.media_downloader.controller.mc;
+
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.converter.ByteArrayMessageConverter;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.StringMessageConverter;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of handing a progress update to STOMP: user destination resolution, header creation and payload
+ * conversion in {@link SimpMessagingTemplate}, with the same converters the broker template uses. The
+ * channel only keeps the last message, so the broker's own delivery is not part of the score.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgressDispatchBenchmark {
+
+    private DownloadProgressController controller;
+    private ProgressEvent event;
+    private volatile Message<?> lastMessage;
+
+    @Setup
+    public void setup() {
+        SimpMessagingTemplate template = new SimpMessagingTemplate((message, timeout) -> {
+            lastMessage = message;
+            return true;
+        });
+        template.setMessageConverter(new CompositeMessageConverter(List.of(
+                new StringMessageConverter(), new ByteArrayMessageConverter(), new MappingJackson2MessageConverter())));
+        controller = new DownloadProgressController(template);
+
+        event = new ProgressEvent();
+        event.setStage("downloading");
+        event.setPercent(42.7);
+        event.setDownloadedBytes(35_819_622L);
+        event.setTotalBytes(83_886_080L);
+        event.setSpeed(4_194_304.0);
+        event.setEta(11L);
+        event.setItem(3);
+    }
+
+    @Benchmark
+    public Message<?> sendTextMessage() {
+        controller.sendMessage("2c9f1e7a-5b0d-4f4e-9a57-1f0c3d8b6e21", "Progress: Downloading 7 item(s), up to 3 at a time");
+        return lastMessage;
+    }
+
+    @Benchmark
+    public Message<?> sendProgressEvent() {
+        controller.sendProgress("2c9f1e7a-5b0d-4f4e-9a57-1f0c3d8b6e21", event);
+        return lastMessage;
+    }
+}
@@ -0,0 +1,47 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a failed download's yt-dlp output, warnings and all, into the message shown to the user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ErrorMessageBenchmark {
+
+    @Param({"extractor", "geo", "instagram", "unsupported"})
+    public String error;
+
+    private String rawError;
+
+    @Setup
+    public void setup() {
+        StringBuilder noise = new StringBuilder();
+        noise.append("[youtube] Extracting URL: https://www.youtube.com/watch?v=dQw4w9WgXcQ\n");
+        noise.append("[youtube] dQw4w9WgXcQ: Downloading webpage\n");
+        noise.append("[youtube] dQw4w9WgXcQ: Downloading tv client config\n");
+        noise.append("[youtube] dQw4w9WgXcQ: Downloading ios player API JSON\n");
+        for (int i = 0; i < 30; i++) {
+            noise.append("WARNING: [youtube] dQw4w9WgXcQ: nsig extraction failed: You may experience throttling for some formats\n");
+        }
+        rawError = noise + switch (error) {
+            case "geo" -> "ERROR: [youtube] dQw4w9WgXcQ: This video is not available in your country";
+            case "instagram" -> "ERROR: [Instagram] C3xYz: Requested content is not available, rate-limit reached or login required. "
+                    + "Use --cookies, --cookies-from-browser, --username and --password, --netrc-cmd, or --netrc (instagram) to provide account credentials";
+            case "unsupported" -> "ERROR: Unsupported URL: https://example.com/watch/123";
+            default -> "ERROR: [youtube] dQw4w9WgXcQ: Unable to extract initial player response; please report this issue on "
+                    + " https://github.com/yt-dlp/yt-dlp/issues?q= , filling out the appropriate issue template";
+        };
+    }
+
+    @Benchmark
+    public String friendlyErrorMessage() {
+        return VideoServiceImpl.friendlyMessage(ErrorCategory.classify(rawError), rawError, "YouTube");
+    }
+}
@@ -0,0 +1,86 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vahabvahabov.media_downloader.model.MediaMetadata;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the {@code -J} info JSON behind {@code getMediaInfo}. A YouTube document is mostly the
+ * {@code formats} array, so the generated file carries a realistic number of formats with their fragment
+ * lists. The tree-model parse is kept as the baseline the streaming reader replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx512m")
+public class InfoJsonBenchmark {
+
+    @Param({"40"})
+    public int formats;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder json = new StringBuilder(1 << 20);
+        json.append("{\"id\":\"dQw4w9WgXcQ\",\"title\":\"Rick Astley - Never Gonna Give You Up (Official Music Video)\",");
+        json.append("\"formats\":[");
+        for (int i = 0; i < formats; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"format_id\":\"").append(100 + i).append("\",\"ext\":\"mp4\",\"vcodec\":\"avc1.640028\",")
+                    .append("\"acodec\":\"none\",\"height\":").append(144 * (1 + i % 8)).append(",\"tbr\":").append(1234.5 + i)
+                    .append(",\"url\":\"https://rr3---sn-4g5e6nzz.googlevideo.com/videoplayback?expire=1700000000&id=o-")
+                    .append("A".repeat(300)).append("\",\"http_headers\":{\"User-Agent\":\"Mozilla/5.0\",\"Accept\":\"*/*\"},")
+                    .append("\"fragments\":[");
+            for (int f = 0; f < 60; f++) {
+                if (f > 0) json.append(',');
+                json.append("{\"url\":\"https://example.googlevideo.com/sq/").append(f).append("\",\"duration\":5.0}");
+            }
+            json.append("]}");
+        }
+        json.append("],\"thumbnails\":[");
+        for (int i = 0; i < 40; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"url\":\"https://i.ytimg.com/vi/dQw4w9WgXcQ/").append(i).append(".jpg\",\"preference\":").append(-i).append('}');
+        }
+        json.append("],\"thumbnail\":\"https://i.ytimg.com/vi/dQw4w9WgXcQ/maxresdefault.jpg\",");
+        json.append("\"description\":\"").append("The official video for \\u201cNever Gonna Give You Up\\u201d by Rick Astley. ".repeat(40)).append("\",");
+        json.append("\"uploader\":\"Rick Astley\",\"duration\":213,\"view_count\":1600000000,\"upload_date\":\"20091025\",");
+        json.append("\"automatic_captions\":{");
+        for (int i = 0; i < 100; i++) {
+            if (i > 0) json.append(',');
+            json.append("\"l").append(i).append("\":[{\"ext\":\"vtt\",\"url\":\"https://www.youtube.com/api/timedtext?lang=l")
+                    .append(i).append("\"}]");
+        }
+        json.append("}}");
+        file = Files.createTempFile("info-benchmark-", ".json");
+        Files.writeString(file, json);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public MediaMetadata streamingReader() throws IOException {
+        return InfoJsonReader.read(file);
+    }
+
+    @Benchmark
+    public String treeModel() throws IOException {
+        JsonNode root = objectMapper.readTree(file.toFile());
+        return root.path("title").asText() + root.path("uploader").asText() + root.path("duration").asLong()
+                + root.path("view_count").asLong() + root.path("upload_date").asText() + root.path("thumbnail").asText()
+                + root.path("description").asText().length();
+    }
+}
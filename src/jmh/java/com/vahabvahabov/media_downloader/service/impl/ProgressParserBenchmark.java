@@ -0,0 +1,79 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-line work of the download reader loop: every output line goes through
+ * {@link ProgressParser#isRelevant}, and the relevant ones are parsed into a {@link ProgressEvent}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgressParserBenchmark {
+
+    // Lines in the simulated yt-dlp output below, so scores are per line
+    static final int OUTPUT_LINES = 452;
+
+    private String[] lines;
+    private String progressLine;
+    private String noiseLine;
+
+    @Setup
+    public void setup() {
+        List<String> output = new ArrayList<>();
+        output.add("[youtube] Extracting URL: https://www.youtube.com/watch?v=dQw4w9WgXcQ");
+        output.add("[youtube] dQw4w9WgXcQ: Downloading webpage");
+        output.add("[youtube] dQw4w9WgXcQ: Downloading ios player API JSON");
+        output.add("[youtube] dQw4w9WgXcQ: Downloading m3u8 information");
+        output.add("[info] dQw4w9WgXcQ: Downloading 1 format(s): 137+140");
+        output.add("[download] Destination: downloaded_videos/3f2a.f137.mp4");
+        long total = 83_886_080L;
+        for (int i = 0; i <= 400; i++) {
+            long downloaded = total * i / 400;
+            output.add(ProgressParser.PROGRESS_PREFIX + (i == 400 ? "finished" : "downloading") + "|" + downloaded
+                    + "|" + total + "|NA|" + (4_194_304.0 + i * 17.25) + "|" + (400 - i) / 8);
+        }
+        output.add("[download] Destination: downloaded_videos/3f2a.f140.m4a");
+        for (int i = 0; i <= 40; i++) {
+            output.add(ProgressParser.PROGRESS_PREFIX + "downloading|" + i * 81_920 + "|NA|3276800|NA|NA");
+        }
+        output.add("[Merger] Merging formats into \"downloaded_videos/3f2a.mp4\"");
+        output.add("Deleting original file downloaded_videos/3f2a.f137.mp4 (pass -k to keep)");
+        output.add("Deleting original file downloaded_videos/3f2a.f140.m4a (pass -k to keep)");
+        if (output.size() != OUTPUT_LINES) {
+            throw new IllegalStateException("Expected " + OUTPUT_LINES + " lines, got " + output.size());
+        }
+        lines = output.toArray(new String[0]);
+        progressLine = lines[200];
+        noiseLine = lines[1];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OUTPUT_LINES)
+    public void filterAndParseDownloadOutput(Blackhole blackhole) {
+        for (String line : lines) {
+            if (ProgressParser.isRelevant(line)) {
+                blackhole.consume(ProgressParser.parse(line));
+            }
+        }
+    }
+
+    @Benchmark
+    public ProgressEvent parseProgressLine() {
+        return ProgressParser.parse(progressLine);
+    }
+
+    @Benchmark
+    public boolean filterNoiseLine() {
+        return ProgressParser.isRelevant(noiseLine);
+    }
+}
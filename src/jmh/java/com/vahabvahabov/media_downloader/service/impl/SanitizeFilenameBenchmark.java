@@ -0,0 +1,35 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sanitizing a media title into a download file name, for an ordinary title and a long one full of
+ * characters that have to be replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SanitizeFilenameBenchmark {
+
+    @Param({"plain", "reserved"})
+    public String title;
+
+    private String rawTitle;
+
+    @Setup
+    public void setup() {
+        rawTitle = "reserved".equals(title)
+                ? "Live: \"Q&A\" | Part 1/3 — What's <new>? * Behind the scenes: dev/ops \\ tooling (4K HDR) ".repeat(3)
+                : "Rick Astley - Never Gonna Give You Up (Official Music Video)";
+    }
+
+    @Benchmark
+    public String sanitizeFilename() {
+        return VideoServiceImpl.sanitizeFilename(rawTitle);
+    }
+}
@@ -1,10 +1,12 @@
 package com.vahabvahabov.media_downloader.config;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
 import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.messaging.simp.config.StompBrokerRelayRegistration;
 import org.springframework.messaging.simp.stomp.StompCommand;
 import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.messaging.support.ChannelInterceptor;
@@ -20,9 +22,50 @@ import java.util.List;
 @EnableWebSocketMessageBroker
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
 
+    @Value("${stomp.relay.enabled:false}")
+    private boolean relayEnabled;
+
+    @Value("${stomp.relay.host:localhost}")
+    private String relayHost;
+
+    @Value("${stomp.relay.port:61613}")
+    private int relayPort;
+
+    @Value("${stomp.relay.client-login:guest}")
+    private String relayClientLogin;
+
+    @Value("${stomp.relay.client-passcode:guest}")
+    private String relayClientPasscode;
+
+    @Value("${stomp.relay.system-login:guest}")
+    private String relaySystemLogin;
+
+    @Value("${stomp.relay.system-passcode:guest}")
+    private String relaySystemPasscode;
+
+    @Value("${stomp.relay.virtual-host:}")
+    private String relayVirtualHost;
+
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
-        config.enableSimpleBroker("/topic", "/queue");
+        if (relayEnabled) {
+            // An external broker (RabbitMQ's STOMP plugin, ActiveMQ, ...) lets progress reach clients connected to
+            // any node; user sessions are shared between nodes through the registry broadcast
+            StompBrokerRelayRegistration relay = config.enableStompBrokerRelay("/topic", "/queue")
+                    .setRelayHost(relayHost)
+                    .setRelayPort(relayPort)
+                    .setClientLogin(relayClientLogin)
+                    .setClientPasscode(relayClientPasscode)
+                    .setSystemLogin(relaySystemLogin)
+                    .setSystemPasscode(relaySystemPasscode)
+                    .setUserDestinationBroadcast("/topic/unresolved-user-destination")
+                    .setUserRegistryBroadcast("/topic/simp-user-registry");
+            if (!relayVirtualHost.isBlank()) {
+                relay.setVirtualHost(relayVirtualHost);
+            }
+        } else {
+            config.enableSimpleBroker("/topic", "/queue");
+        }
         config.setApplicationDestinationPrefixes("/app");
         config.setUserDestinationPrefix("/user");
     }
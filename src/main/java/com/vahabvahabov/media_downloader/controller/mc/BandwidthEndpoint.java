@@ -0,0 +1,45 @@
+package com.vahabvahabov.media_downloader.controller.mc;
+
+import com.vahabvahabov.media_downloader.service.impl.BandwidthManager;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.boot.actuate.endpoint.web.annotation.WebEndpoint;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Operator control over the shared bandwidth budget: {@code POST /actuator/bandwidth/{sessionId}} with
+ * {@code {"weight": 2}} changes a session's share. Weights decide how the budget is split between users, so this is
+ * an actuator endpoint, not part of the public API, and it is only reachable once it is added to
+ * {@code management.endpoints.web.exposure.include} (ideally with {@code management.server.port} on a private
+ * interface).
+ */
+@Component
+@WebEndpoint(id = "bandwidth")
+public class BandwidthEndpoint {
+    private final BandwidthManager bandwidthManager;
+
+    public BandwidthEndpoint(BandwidthManager bandwidthManager) {
+        this.bandwidthManager = bandwidthManager;
+    }
+
+    @ReadOperation
+    public Map<String, Object> bandwidth() {
+        return bandwidthManager.getStats();
+    }
+
+    @WriteOperation
+    public WebEndpointResponse<String> setSessionWeight(@Selector String sessionId, double weight) {
+        try {
+            bandwidthManager.setSessionWeight(sessionId, weight);
+            return new WebEndpointResponse<>(WebEndpointResponse.STATUS_NO_CONTENT);
+        } catch (IllegalArgumentException e) {
+            return new WebEndpointResponse<>(e.getMessage(), WebEndpointResponse.STATUS_BAD_REQUEST);
+        } catch (IllegalStateException e) {
+            return new WebEndpointResponse<>(e.getMessage(), WebEndpointResponse.STATUS_SERVICE_UNAVAILABLE);
+        }
+    }
+}
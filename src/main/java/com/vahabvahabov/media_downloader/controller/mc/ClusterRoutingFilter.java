@@ -0,0 +1,230 @@
+package com.vahabvahabov.media_downloader.controller.mc;
+
+import com.vahabvahabov.media_downloader.model.ClusterNode;
+import com.vahabvahabov.media_downloader.service.impl.ClusterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * In cluster mode, sends requests that belong to another node there: cancels go to the node running the
+ * session's download, job status queries and event streams to the node that ran the job, file fetches, cleanups
+ * and downloaded-media info to the node holding the file, and new downloads and batches to a less busy node when
+ * this one has no free slot. The response is streamed back unchanged. Forwarded requests carry the cluster secret
+ * in {@value #FORWARDED_HEADER} and are always handled where they land; a client that sends the header without the
+ * secret has it removed and is routed like any other request.
+ */
+@Component
+public class ClusterRoutingFilter extends OncePerRequestFilter {
+    private static final Logger logger = LoggerFactory.getLogger(ClusterRoutingFilter.class);
+    static final String FORWARDED_HEADER = "X-Cluster-Forwarded";
+    private static final String PREFIX = "/api/videos/";
+    private static final String JOBS_PREFIX = "/api/jobs/";
+    private static final Set<String> UNFORWARDED_HEADERS = Set.of("connection", "keep-alive", "transfer-encoding", "te",
+            "trailer", "upgrade", "host", "content-length", "expect", "proxy-authorization", "proxy-authenticate",
+            FORWARDED_HEADER.toLowerCase(Locale.ROOT));
+
+    private final ClusterRegistry clusterRegistry;
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+
+    public ClusterRoutingFilter(ClusterRegistry clusterRegistry) {
+        this.clusterRegistry = clusterRegistry;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !clusterRegistry.isEnabled() || (request.getHeader(FORWARDED_HEADER) == null && !isRoutable(request));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String forwardedBy = request.getHeader(FORWARDED_HEADER);
+        if (forwardedBy != null) {
+            if (clusterRegistry.isSecret(forwardedBy)) {
+                chain.doFilter(request, response);
+                return;
+            }
+            logger.debug("Ignoring {} without the cluster secret from: {}", FORWARDED_HEADER, request.getRemoteAddr());
+            request = new WithoutForwardedHeader(request);
+        }
+
+        Optional<ClusterNode> target = isRoutable(request) ? route(request) : Optional.empty();
+        if (target.isEmpty()) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        // The body is small JSON at most; keep it so the request can still be served here if the node is unreachable
+        byte[] body = request.getInputStream().readAllBytes();
+        ClusterNode node = target.get();
+        HttpResponse<InputStream> forwarded;
+        try {
+            forwarded = httpClient.send(forwardRequest(node, request, body), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (IOException e) {
+            logger.warn("Node: {} unreachable for {} {}, handling locally: {}", node.getId(), request.getMethod(),
+                    request.getRequestURI(), e.getMessage());
+            chain.doFilter(new CachedBodyRequest(request, body), response);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while forwarding to node: " + node.getId(), e);
+        }
+
+        logger.debug("Forwarded {} {} to node: {} ({})", request.getMethod(), request.getRequestURI(), node.getId(),
+                forwarded.statusCode());
+        response.setStatus(forwarded.statusCode());
+        forwarded.headers().map().forEach((name, values) -> {
+            if (!UNFORWARDED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                values.forEach(value -> response.addHeader(name, value));
+            }
+        });
+        forwarded.headers().firstValueAsLong("Content-Length").ifPresent(response::setContentLengthLong);
+        boolean eventStream = forwarded.headers().firstValue("Content-Type")
+                .filter(type -> type.startsWith("text/event-stream")).isPresent();
+        try (InputStream in = forwarded.body()) {
+            if (!eventStream) {
+                in.transferTo(response.getOutputStream());
+                return;
+            }
+            // Each status event has to reach the client as it arrives, not when a buffer fills up
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                response.getOutputStream().write(buffer, 0, read);
+                response.flushBuffer();
+            }
+        }
+    }
+
+    private static boolean isRoutable(HttpServletRequest request) {
+        return request.getRequestURI().startsWith(PREFIX) || request.getRequestURI().startsWith(JOBS_PREFIX);
+    }
+
+    private Optional<ClusterNode> route(HttpServletRequest request) {
+        String method = request.getMethod();
+        if (request.getRequestURI().startsWith(JOBS_PREFIX)) {
+            String jobId = request.getRequestURI().substring(JOBS_PREFIX.length()).split("/", 2)[0];
+            return "GET".equals(method) ? clusterRegistry.remoteOwnerOfJob(jobId) : Optional.empty();
+        }
+        String path = request.getRequestURI().substring(PREFIX.length());
+        String sessionId = request.getHeader("X-Session-ID");
+        if ("POST".equals(method) && (path.equals("download") || path.equals("batch"))) {
+            // A session with a download on another node gets its answer (usually a conflict) from there
+            Optional<ClusterNode> owner = clusterRegistry.remoteOwnerOfSession(sessionId);
+            return owner.isPresent() ? owner : clusterRegistry.lessBusyNode();
+        }
+        if ("POST".equals(method) && path.equals("cancel")) {
+            return clusterRegistry.remoteOwnerOfSession(sessionId);
+        }
+        if (("GET".equals(method) || "HEAD".equals(method)) && path.startsWith("download/")) {
+            return clusterRegistry.remoteOwnerOfFile(path.substring("download/".length()));
+        }
+        if ("DELETE".equals(method) && path.startsWith("cleanup/")) {
+            return clusterRegistry.remoteOwnerOfFile(path.substring("cleanup/".length()));
+        }
+        if ("GET".equals(method) && path.equals("info") && request.getParameter("fileName") != null) {
+            return clusterRegistry.remoteOwnerOfFile(request.getParameter("fileName"));
+        }
+        return Optional.empty();
+    }
+
+    private HttpRequest forwardRequest(ClusterNode node, HttpServletRequest request, byte[] body) {
+        String query = request.getQueryString();
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(node.getUrl() + request.getRequestURI()
+                        + (query != null ? "?" + query : "")))
+                .method(request.getMethod(), body.length == 0
+                        ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofByteArray(body));
+        for (String name : Collections.list(request.getHeaderNames())) {
+            if (!UNFORWARDED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                Collections.list(request.getHeaders(name)).forEach(value -> builder.header(name, value));
+            }
+        }
+        return builder.header(FORWARDED_HEADER, clusterRegistry.getSecret()).build();
+    }
+
+    private static final class WithoutForwardedHeader extends HttpServletRequestWrapper {
+        private WithoutForwardedHeader(HttpServletRequest request) {
+            super(request);
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return FORWARDED_HEADER.equalsIgnoreCase(name) ? null : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            return FORWARDED_HEADER.equalsIgnoreCase(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames() {
+            List<String> names = Collections.list(super.getHeaderNames());
+            names.removeIf(FORWARDED_HEADER::equalsIgnoreCase);
+            return Collections.enumeration(names);
+        }
+    }
+
+    private static final class CachedBodyRequest extends HttpServletRequestWrapper {
+        private final byte[] body;
+
+        private CachedBodyRequest(HttpServletRequest request, byte[] body) {
+            super(request);
+            this.body = body;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            ByteArrayInputStream in = new ByteArrayInputStream(body);
+            return new ServletInputStream() {
+                @Override
+                public int read() {
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return in.read(b, off, len);
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return in.available() == 0;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setReadListener(ReadListener readListener) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
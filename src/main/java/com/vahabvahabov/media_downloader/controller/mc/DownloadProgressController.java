@@ -1,5 +1,6 @@
 package com.vahabvahabov.media_downloader.controller.mc;
 
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Controller;
@@ -17,4 +18,8 @@ public class DownloadProgressController {
     public void sendMessage(String sessionId, String message) {
         messagingTemplate.convertAndSendToUser(sessionId, "/topic/progress", message);
     }
+
+    public void sendProgress(String sessionId, ProgressEvent event) {
+        messagingTemplate.convertAndSendToUser(sessionId, "/topic/progress", event);
+    }
 }
\ No newline at end of file
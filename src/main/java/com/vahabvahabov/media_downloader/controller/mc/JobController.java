@@ -0,0 +1,103 @@
+package com.vahabvahabov.media_downloader.controller.mc;
+
+import com.vahabvahabov.media_downloader.model.JobStatus;
+import com.vahabvahabov.media_downloader.service.impl.JobStatusRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Job status for clients that missed STOMP messages or do not use STOMP at all. The ID comes from the
+ * {@code X-Job-ID} header of the download response. The event stream sends the current snapshot first and then
+ * every newer one (a reader that falls behind gets the latest, not a backlog), and ends once the job is done;
+ * EventSource clients that reconnect with {@code Last-Event-ID} only get what changed since.
+ */
+@RestController
+@RequestMapping("/api/jobs")
+public class JobController {
+    private static final Logger logger = LoggerFactory.getLogger(JobController.class);
+
+    private final JobStatusRegistry jobStatuses;
+    private final Duration heartbeat;
+
+    @Autowired
+    public JobController(JobStatusRegistry jobStatuses,
+                         @Value("${jobs.events.heartbeat-seconds:15}") long heartbeatSeconds) {
+        this.jobStatuses = jobStatuses;
+        this.heartbeat = Duration.ofSeconds(heartbeatSeconds);
+    }
+
+    @GetMapping("/{jobId}")
+    public ResponseEntity<JobStatus> getStatus(@PathVariable String jobId) {
+        JobStatus status = jobStatuses.get(jobId);
+        if (status == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(status);
+    }
+
+    @GetMapping(path = "/{jobId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamStatus(
+            @PathVariable String jobId,
+            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        JobStatus current = jobStatuses.get(jobId);
+        if (current == null) {
+            return ResponseEntity.notFound().build();
+        }
+        long seen = parseVersion(lastEventId);
+        if (JobStatusRegistry.isDone(current) && seen >= current.getVersion()) {
+            // EventSource reconnects whenever a stream ends; 204 tells it there is nothing more to follow
+            return ResponseEntity.noContent().build();
+        }
+        SseEmitter emitter = new SseEmitter();
+        Thread.ofVirtual().name("job-events-" + jobId).start(() -> follow(jobId, seen, emitter));
+        return ResponseEntity.ok(emitter);
+    }
+
+    private void follow(String jobId, long seenVersion, SseEmitter emitter) {
+        long seen = seenVersion;
+        try {
+            while (true) {
+                JobStatus status = jobStatuses.await(jobId, seen, heartbeat);
+                if (status == null) {
+                    break;
+                }
+                if (status.getVersion() > seen) {
+                    seen = status.getVersion();
+                    emitter.send(SseEmitter.event().id(String.valueOf(seen)).name("status").data(status));
+                } else if (!JobStatusRegistry.isDone(status)) {
+                    // Keeps proxies from closing an idle stream and notices a client that went away
+                    emitter.send(SseEmitter.event().comment("keep-alive"));
+                }
+                if (JobStatusRegistry.isDone(status)) {
+                    break;
+                }
+            }
+            emitter.complete();
+        } catch (IOException | IllegalStateException e) {
+            // The client disconnected or the request timed out; EventSource reconnects on its own
+            logger.debug("Event stream for job: {} closed: {}", jobId, e.getMessage());
+        } catch (InterruptedException e) {
+            emitter.complete();
+        }
+    }
+
+    private static long parseVersion(String lastEventId) {
+        if (lastEventId == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(lastEventId.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
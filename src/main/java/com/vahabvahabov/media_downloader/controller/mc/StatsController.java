@@ -0,0 +1,72 @@
+package com.vahabvahabov.media_downloader.controller.mc;
+
+import com.vahabvahabov.media_downloader.service.impl.BandwidthManager;
+import com.vahabvahabov.media_downloader.service.impl.DownloadScheduler;
+import com.vahabvahabov.media_downloader.service.impl.ExtractorPool;
+import com.vahabvahabov.media_downloader.service.impl.MetadataCache;
+import com.vahabvahabov.media_downloader.service.impl.PostProcessor;
+import com.vahabvahabov.media_downloader.service.impl.ResultCache;
+import com.vahabvahabov.media_downloader.service.impl.ThumbnailCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/stats")
+public class StatsController {
+    private final MetadataCache metadataCache;
+    private final DownloadScheduler downloadScheduler;
+    private final ResultCache resultCache;
+    private final BandwidthManager bandwidthManager;
+    private final PostProcessor postProcessor;
+    private final ExtractorPool extractorPool;
+    private final ThumbnailCache thumbnailCache;
+
+    @Autowired
+    public StatsController(MetadataCache metadataCache, DownloadScheduler downloadScheduler, ResultCache resultCache,
+                           BandwidthManager bandwidthManager, PostProcessor postProcessor, ExtractorPool extractorPool,
+                           ThumbnailCache thumbnailCache) {
+        this.metadataCache = metadataCache;
+        this.downloadScheduler = downloadScheduler;
+        this.resultCache = resultCache;
+        this.bandwidthManager = bandwidthManager;
+        this.postProcessor = postProcessor;
+        this.extractorPool = extractorPool;
+        this.thumbnailCache = thumbnailCache;
+    }
+
+    @GetMapping
+    public ResponseEntity<Map<String, Object>> getStats() {
+        Map<String, Object> scheduler = new LinkedHashMap<>();
+        scheduler.put("running", downloadScheduler.getRunningCount());
+        scheduler.put("queued", downloadScheduler.getQueuedCount());
+
+        Map<String, Object> postProcessing = new LinkedHashMap<>();
+        postProcessing.put("running", postProcessor.getRunningCount());
+        postProcessing.put("queued", postProcessor.getQueuedCount());
+        postProcessing.put("workers", postProcessor.getMaxConcurrent());
+
+        Map<String, Object> extractors = new LinkedHashMap<>();
+        extractors.put("enabled", extractorPool.isEnabled());
+        extractors.put("workers", extractorPool.getWorkerCount());
+        extractors.put("idle", extractorPool.getIdleCount());
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("scheduler", scheduler);
+        stats.put("postProcessing", postProcessing);
+        stats.put("extractorPool", extractors);
+        stats.put("metadataCache", metadataCache.getStats());
+        stats.put("resultCache", resultCache.getStats());
+        stats.put("thumbnails", thumbnailCache.getStats());
+        stats.put("bandwidth", bandwidthManager.getStats());
+        return ResponseEntity.ok(stats);
+    }
+
+    @GetMapping("/bandwidth")
+    public ResponseEntity<Map<String, Object>> getBandwidth() {
+        return ResponseEntity.ok(bandwidthManager.getStats());
+    }
+}
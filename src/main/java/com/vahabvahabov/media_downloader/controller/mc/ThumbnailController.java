@@ -0,0 +1,67 @@
+package com.vahabvahabov.media_downloader.controller.mc;
+
+import com.vahabvahabov.media_downloader.service.impl.ThumbnailCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.*;
+import org.springframework.web.bind.annotation.*;
+
+import java.net.URI;
+import java.time.Duration;
+
+/**
+ * Serves the local thumbnail variants from {@link ThumbnailCache}: WebP to clients that accept it, JPEG otherwise,
+ * at the configured width closest to {@code ?w=}. Variants are immutable, so browsers keep them for a year and
+ * revalidate with {@code If-None-Match} at most. A thumbnail that could not be cached redirects to its original URL.
+ */
+@RestController
+@RequestMapping("/api/thumbnails")
+public class ThumbnailController {
+    private static final MediaType IMAGE_WEBP = MediaType.parseMediaType("image/webp");
+
+    private final ThumbnailCache thumbnailCache;
+
+    @Autowired
+    public ThumbnailController(ThumbnailCache thumbnailCache) {
+        this.thumbnailCache = thumbnailCache;
+    }
+
+    @GetMapping("/{key}")
+    public ResponseEntity<byte[]> getThumbnail(
+            @PathVariable String key,
+            @RequestParam(value = "w", required = false) Integer width,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        boolean webp = accept != null && accept.contains(IMAGE_WEBP.toString());
+        ThumbnailCache.Variant variant;
+        try {
+            variant = thumbnailCache.get(key, width, webp ? ThumbnailCache.WEBP : ThumbnailCache.JPEG);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        if (variant == null) {
+            String source = thumbnailCache.sourceOf(key);
+            if (source == null) {
+                return ResponseEntity.notFound().build();
+            }
+            return ResponseEntity.status(HttpStatus.FOUND)
+                    .location(URI.create(source))
+                    .cacheControl(CacheControl.noStore())
+                    .build();
+        }
+
+        String etag = variant.etag();
+        boolean notModified = ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"));
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(notModified ? HttpStatus.NOT_MODIFIED : HttpStatus.OK)
+                .eTag(etag)
+                .cacheControl(CacheControl.maxAge(Duration.ofDays(365)).cachePublic().immutable())
+                .varyBy(HttpHeaders.ACCEPT);
+        if (notModified) {
+            return response.build();
+        }
+        return response
+                .contentType(ThumbnailCache.WEBP.equals(variant.format()) ? IMAGE_WEBP : MediaType.IMAGE_JPEG)
+                .contentLength(variant.bytes().length)
+                .body(variant.bytes());
+    }
+}
@@ -1,26 +1,44 @@
 package com.vahabvahabov.media_downloader.controller.mc;
 
+import com.vahabvahabov.media_downloader.model.BatchRequest;
 import com.vahabvahabov.media_downloader.model.VideoRequest;
+import com.vahabvahabov.media_downloader.service.DownloadHandle;
+import com.vahabvahabov.media_downloader.service.MediaStream;
 import com.vahabvahabov.media_downloader.service.VideoService;
+import com.vahabvahabov.media_downloader.service.impl.ClusterRegistry;
+import com.vahabvahabov.media_downloader.service.impl.DownloadMetrics;
+import io.micrometer.core.instrument.Timer;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.Resource;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import java.io.IOException;
 import java.util.Map;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/api/videos")
 public class VideoController {
+    static final String JOB_ID_HEADER = "X-Job-ID";
+
     private final VideoService videoService;
+    private final MediaFileSender mediaFileSender;
+    private final DownloadMetrics downloadMetrics;
+    private final ClusterRegistry clusterRegistry;
     private final Logger logger = LoggerFactory.getLogger(VideoController.class);
 
     @Autowired
-    public VideoController(VideoService videoService) {
+    public VideoController(VideoService videoService, MediaFileSender mediaFileSender, DownloadMetrics downloadMetrics,
+                           ClusterRegistry clusterRegistry) {
         this.videoService = videoService;
+        this.mediaFileSender = mediaFileSender;
+        this.downloadMetrics = downloadMetrics;
+        this.clusterRegistry = clusterRegistry;
     }
 
     @PostMapping("/download")
@@ -31,41 +49,153 @@ public class VideoController {
         logger.info("Received download request for URL: {}, Platform: {}, Quality: {}, Session: {}",
                 videoRequest.getUrl(), videoRequest.getPlatform(), videoRequest.getQuality(), sessionId);
 
+        // Claimed before the job starts so a cancel arriving at another node is routed here
+        clusterRegistry.claimSession(sessionId);
         try {
-            CompletableFuture<String> future = videoService.downloadVideoAsync(videoRequest, sessionId)
-                    .whenComplete((filename, ex) -> {
-                        if (ex != null) {
-                            logger.error("Download failed for session: {} with error: {}", sessionId, ex.getMessage(), ex);
-                        } else {
-                            logger.info("Download completed for session: {} with filename: {}", sessionId, filename);
-                        }
-                    });
-
-            return ResponseEntity.ok("Download started. Check progress via WebSocket.");
+            DownloadHandle download = videoService.downloadVideoAsync(videoRequest, sessionId);
+            clusterRegistry.claimJob(download.getJobId());
+            download.getFuture().whenComplete((filename, ex) -> {
+                clusterRegistry.releaseSession(sessionId);
+                if (filename != null) {
+                    clusterRegistry.claimFile(filename);
+                }
+                if (ex != null) {
+                    logger.error("Download failed for session: {} with error: {}", sessionId, ex.getMessage(), ex);
+                } else {
+                    logger.info("Download completed for session: {} with filename: {}", sessionId, filename);
+                }
+            });
+
+            return ResponseEntity.ok()
+                    .header(JOB_ID_HEADER, download.getJobId())
+                    .body("Download started. Check progress via WebSocket or /api/jobs/" + download.getJobId() + ".");
+        } catch (IllegalArgumentException e) {
+            clusterRegistry.releaseSession(sessionId);
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (RejectedExecutionException e) {
+            logger.warn("Download rejected for session: {}: {}", sessionId, e.getMessage());
+            clusterRegistry.releaseSession(sessionId);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(e.getMessage());
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
         } catch (Exception e) {
+            clusterRegistry.releaseSession(sessionId);
             logger.error("Failed to start download for session: {}", sessionId, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body("Failed to start download: " + e.getMessage());
         }
     }
 
+    @PostMapping("/batch")
+    public ResponseEntity<String> startBatch(
+            @RequestBody BatchRequest batchRequest,
+            @RequestHeader("X-Session-ID") String sessionId) {
+
+        int size = batchRequest.getUrls() == null ? 0 : batchRequest.getUrls().size();
+        logger.info("Received batch request for {} URL(s), playlist: {}, Quality: {}, Session: {}",
+                size, batchRequest.getUrl(), batchRequest.getQuality(), sessionId);
+
+        try {
+            String archiveName = videoService.startBatch(batchRequest, sessionId);
+            clusterRegistry.claimSession(sessionId);
+            clusterRegistry.claimFile(archiveName);
+            return ResponseEntity.ok("Batch started. Check progress via WebSocket; the archive streams from /api/videos/download/"
+                    + archiveName + " as items finish.");
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (RejectedExecutionException e) {
+            logger.warn("Batch rejected for session: {}: {}", sessionId, e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(e.getMessage());
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+        }
+    }
+
     @GetMapping("/download/{fileName}")
-    public ResponseEntity<Resource> downloadFile(@PathVariable String fileName) {
+    public void downloadFile(@PathVariable String fileName, HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
+        Timer.Sample sample = downloadMetrics.start();
+        String outcome = "failure";
         try {
-            Resource resource = videoService.getDownloadedVideo(fileName);
-            return ResponseEntity.ok()
-                    .header(HttpHeaders.CONTENT_DISPOSITION,
-                            "attachment; filename=\"" + videoService.getDisplayName(fileName) + "\"")
-                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .body(resource);
-        } catch (IOException e) {
-            return ResponseEntity.notFound().build();
+            MediaStream archive = videoService.openArchive(fileName);
+            if (archive != null) {
+                response.setContentType("application/zip");
+                response.setHeader(HttpHeaders.CONTENT_DISPOSITION, MediaFileSender.attachment(archive.getDisplayName()).toString());
+                if (!"HEAD".equalsIgnoreCase(request.getMethod())) {
+                    archive.writeTo(response.getOutputStream());
+                }
+                outcome = "success";
+                return;
+            }
+
+            Resource resource;
+            try {
+                resource = videoService.getDownloadedVideo(fileName);
+            } catch (IOException e) {
+                outcome = "not_found";
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            // With sendfile the bytes go out after this returns, so the timing then covers only the setup
+            mediaFileSender.send(resource.getFile().toPath(), videoService.getDisplayName(fileName), request, response);
+            outcome = "success";
+        } finally {
+            downloadMetrics.record(sample, DownloadMetrics.STAGE_SERVE, null, outcome);
         }
     }
 
+    @GetMapping("/stream")
+    public ResponseEntity<StreamingResponseBody> streamVideo(
+            @RequestParam String url,
+            @RequestParam(required = false) String platform,
+            @RequestParam(required = false) String quality,
+            @RequestParam(required = false) String outputFormat,
+            @RequestHeader(value = "X-Session-ID", required = false) String sessionId,
+            HttpServletResponse response) {
+
+        VideoRequest videoRequest = new VideoRequest();
+        videoRequest.setUrl(url);
+        videoRequest.setPlatform(platform);
+        videoRequest.setQuality(quality);
+        videoRequest.setOutputFormat(outputFormat);
+        logger.info("Received stream request for URL: {}, Platform: {}, Quality: {}, Output: {}, Session: {}",
+                url, platform, quality, outputFormat, sessionId);
+
+        MediaStream stream;
+        try {
+            stream = videoService.openStream(videoRequest, sessionId);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            logger.error("Failed to open stream for URL: {}", url, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+
+        StreamingResponseBody body = out -> {
+            try {
+                stream.writeTo(out);
+            } catch (IOException e) {
+                if (e.getCause() instanceof RejectedExecutionException && !response.isCommitted()) {
+                    logger.warn("Download queue full, stream for URL: {} rejected", url);
+                    response.reset();
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+                    return;
+                }
+                logger.info("Stream for URL: {} ended early: {}", url, e.getMessage());
+                throw e;
+            }
+        };
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, MediaFileSender.attachment(stream.getDisplayName()).toString())
+                .contentType(MediaTypeFactory.getMediaType(stream.getDisplayName()).orElse(MediaType.parseMediaType("video/mp4")))
+                .body(body);
+    }
+
     @DeleteMapping("/cleanup/{fileName}")
-    public ResponseEntity<Void> cleanupFile(@PathVariable String fileName) {
-        videoService.deleteDownloadedVideo(fileName);
+    public ResponseEntity<Void> cleanupFile(
+            @PathVariable String fileName,
+            @RequestHeader("X-Session-ID") String sessionId) {
+        videoService.deleteDownloadedVideo(fileName, sessionId);
         return ResponseEntity.noContent().build();
     }
 
@@ -80,4 +210,13 @@ public class VideoController {
         Map<String, Object> info = videoService.getMediaInfo(videoRequest.getUrl(), videoRequest.getPlatform());
         return ResponseEntity.ok(info);
     }
+
+    @GetMapping("/info")
+    public ResponseEntity<Map<String, Object>> getDownloadedInfo(@RequestParam String fileName) {
+        Map<String, Object> info = videoService.getDownloadedMediaInfo(fileName);
+        if (info == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(info);
+    }
 }
\ No newline at end of file
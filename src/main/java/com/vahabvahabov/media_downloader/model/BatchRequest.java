@@ -0,0 +1,15 @@
+package com.vahabvahabov.media_downloader.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class BatchRequest {
+    private List<String> urls;
+    private String url;
+    private String quality;
+    private String platform;
+    private String cookies;
+    private String outputFormat;
+}
@@ -0,0 +1,17 @@
+package com.vahabvahabov.media_downloader.model;
+
+import lombok.Data;
+
+@Data
+public class CachedResult {
+    private String key;
+    private String fileName;
+    private long size;
+    private String sha256;
+    private String displayName;
+    private String title;
+    private String thumbnail;
+    private long createdAt;
+    private long lastAccessAt;
+    private long hits;
+}
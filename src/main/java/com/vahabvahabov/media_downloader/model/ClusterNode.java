@@ -0,0 +1,16 @@
+package com.vahabvahabov.media_downloader.model;
+
+import lombok.Data;
+
+@Data
+public class ClusterNode {
+    private String id;
+    private String url;
+    private int running;
+    private int queued;
+    private int capacity;
+
+    public double load() {
+        return capacity <= 0 ? Double.MAX_VALUE : (double) (running + queued) / capacity;
+    }
+}
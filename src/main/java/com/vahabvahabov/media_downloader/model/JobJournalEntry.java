@@ -0,0 +1,28 @@
+package com.vahabvahabov.media_downloader.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+public class JobJournalEntry {
+    private String event;
+    private String jobId;
+    private long at;
+    private String key;
+    private String url;
+    private String platform;
+    private String quality;
+    private String format;
+    private String outputFormat;
+    private List<String> sessions = new ArrayList<>();
+    private String sessionId;
+    private Integer attempts;
+    private String fileName;
+    private String displayName;
+    private String title;
+    private String thumbnail;
+}
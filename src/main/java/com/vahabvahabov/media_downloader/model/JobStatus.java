@@ -0,0 +1,20 @@
+package com.vahabvahabov.media_downloader.model;
+
+import lombok.Data;
+
+@Data
+public class JobStatus {
+    private String jobId;
+    private long version;
+    private String state;
+    private String stage;
+    private Double percent;
+    private Long downloadedBytes;
+    private Long totalBytes;
+    private Double speed;
+    private Long eta;
+    private String message;
+    private String fileName;
+    private String error;
+    private long updatedAt;
+}
@@ -0,0 +1,14 @@
+package com.vahabvahabov.media_downloader.model;
+
+import lombok.Data;
+
+@Data
+public class MediaMetadata {
+    private String title;
+    private String description;
+    private String uploader;
+    private Number duration;
+    private Number viewCount;
+    private String uploadDate;
+    private String thumbnail;
+}
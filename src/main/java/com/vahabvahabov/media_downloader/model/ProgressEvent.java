@@ -0,0 +1,15 @@
+package com.vahabvahabov.media_downloader.model;
+
+import lombok.Data;
+
+@Data
+public class ProgressEvent {
+    private String type = "progress";
+    private String stage;
+    private Double percent;
+    private Long downloadedBytes;
+    private Long totalBytes;
+    private Double speed;
+    private Long eta;
+    private Integer item;
+}
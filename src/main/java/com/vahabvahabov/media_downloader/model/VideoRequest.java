@@ -8,4 +8,5 @@ public class VideoRequest {
     private String quality;
     private String platform;
     private String cookies;
+    private String outputFormat;
 }
\ No newline at end of file
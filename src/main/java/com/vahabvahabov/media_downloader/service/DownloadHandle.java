@@ -0,0 +1,25 @@
+package com.vahabvahabov.media_downloader.service;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A download a session started, joined or got from an earlier one: the job whose status can be followed under
+ * {@code /api/jobs/{jobId}}, and the name of the file it completes with.
+ */
+public final class DownloadHandle {
+    private final String jobId;
+    private final CompletableFuture<String> future;
+
+    public DownloadHandle(String jobId, CompletableFuture<String> future) {
+        this.jobId = jobId;
+        this.future = future;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public CompletableFuture<String> getFuture() {
+        return future;
+    }
+}
@@ -0,0 +1,9 @@
+package com.vahabvahabov.media_downloader.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public interface MediaStream {
+    String getDisplayName();
+    void writeTo(OutputStream out) throws IOException;
+}
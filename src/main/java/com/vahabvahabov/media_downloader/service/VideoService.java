@@ -1,17 +1,22 @@
 package com.vahabvahabov.media_downloader.service;
 
+import com.vahabvahabov.media_downloader.model.BatchRequest;
 import com.vahabvahabov.media_downloader.model.VideoRequest;
 import org.springframework.core.io.Resource;
 
 import java.io.IOException;
 import java.util.Map;
-import java.util.concurrent.CompletableFuture;
 
 public interface VideoService {
-    CompletableFuture<String> downloadVideoAsync(VideoRequest request, String sessionId);
+    DownloadHandle downloadVideoAsync(VideoRequest request, String sessionId);
+    String startBatch(BatchRequest request, String sessionId);
+    MediaStream openArchive(String fileName);
     Resource getDownloadedVideo(String fileName) throws IOException;
-    void deleteDownloadedVideo(String fileName);
+    void deleteDownloadedVideo(String fileName, String sessionId);
+    boolean expireDownloadedVideo(String fileName);
     String getDisplayName(String fileName);
     void cancelDownload(String sessionId);
     public Map<String, Object> getMediaInfo(String url, String platform);
+    Map<String, Object> getDownloadedMediaInfo(String fileName);
+    MediaStream openStream(VideoRequest request, String sessionId) throws Exception;
 }
\ No newline at end of file
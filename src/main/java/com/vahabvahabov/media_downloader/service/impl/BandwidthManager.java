@@ -0,0 +1,339 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Splits {@code bandwidth.total-bytes-per-second} across the yt-dlp processes that are downloading. Each session
+ * gets an equal share (scaled by its weight, and divided between its jobs), shares that a job cannot use because
+ * its source is slower are handed to the others, and the split is recomputed as jobs start and finish. yt-dlp
+ * only reads {@code --limit-rate} at startup, so a process whose share changed by more than
+ * {@code bandwidth.rebalance-threshold-percent} is stopped and restarted with {@code --continue}, at most once per
+ * {@code bandwidth.min-restart-interval-seconds} and never while it is merging or about to finish. Downloads run
+ * by {@link RangeDownloader} pick up a new share at once. With no total budget every process keeps the fixed
+ * {@code bandwidth.job-bytes-per-second} limit.
+ */
+@Component
+public class BandwidthManager {
+    private static final Logger logger = LoggerFactory.getLogger(BandwidthManager.class);
+    private static final int MAX_SESSION_WEIGHTS = 10_000;
+    private static final long NEARLY_DONE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final DownloadMetrics metrics;
+    private final long totalRate;
+    private final long jobRate;
+    private final long minJobRate;
+    private final long fragmentRate;
+    private final int maxFragments;
+    private final double threshold;
+    private final long minRestartIntervalNanos;
+    private final Map<String, Lease> leases = new LinkedHashMap<>();
+    private final Map<String, Double> sessionWeights = new HashMap<>();
+
+    public BandwidthManager(DownloadMetrics metrics,
+                            @Value("${bandwidth.total-bytes-per-second:0}") long totalRate,
+                            @Value("${bandwidth.job-bytes-per-second:10485760}") long jobRate,
+                            @Value("${bandwidth.min-job-bytes-per-second:262144}") long minJobRate,
+                            @Value("${bandwidth.fragment-bytes-per-second:1048576}") long fragmentRate,
+                            @Value("${bandwidth.max-concurrent-fragments:5}") int maxFragments,
+                            @Value("${bandwidth.rebalance-threshold-percent:25}") int thresholdPercent,
+                            @Value("${bandwidth.min-restart-interval-seconds:20}") long minRestartIntervalSeconds) {
+        this.metrics = metrics;
+        this.totalRate = Math.max(0, totalRate);
+        this.jobRate = jobRate;
+        this.minJobRate = Math.max(1, minJobRate);
+        this.fragmentRate = Math.max(1, fragmentRate);
+        this.maxFragments = Math.max(1, maxFragments);
+        this.threshold = thresholdPercent / 100.0;
+        this.minRestartIntervalNanos = TimeUnit.SECONDS.toNanos(minRestartIntervalSeconds);
+    }
+
+    @PostConstruct
+    void init() {
+        metrics.registerBandwidth(this::getAllocatedRate, this::getObservedRate);
+        if (totalRate > 0) {
+            logger.info("Bandwidth budget: {} bytes/s shared by all downloads (at least {} bytes/s each)", totalRate, minJobRate);
+        }
+    }
+
+    public boolean isBudgeted() {
+        return totalRate > 0;
+    }
+
+    /**
+     * Registers a job that is about to start downloading for {@code sessions} and gives it its share. Other jobs
+     * are rebalanced to make room. A job that is not {@code restartable} keeps its first limit until it finishes.
+     */
+    public synchronized Lease open(String jobId, Supplier<List<String>> sessions, boolean restartable) {
+        Lease lease = new Lease(jobId, sessions, restartable, totalRate > 0 ? totalRate : jobRate);
+        leases.put(jobId, lease);
+        rebalance();
+        return lease;
+    }
+
+    public synchronized void close(Lease lease) {
+        if (leases.remove(lease.jobId, lease)) {
+            if (lease.downloadedBytes > 0 && lease.observedRate > 0) {
+                metrics.jobThroughput(lease.observedRate);
+            }
+            Set<String> remaining = new HashSet<>();
+            leases.values().forEach(other -> remaining.addAll(other.sessions.get()));
+            sessionWeights.keySet().removeIf(sessionId -> lease.sessions.get().contains(sessionId) && !remaining.contains(sessionId));
+            rebalance();
+        }
+    }
+
+    /**
+     * Weights a session's share of the budget relative to the default of 1, from 0.1 to 10. Applies to the
+     * session's running jobs at the next rebalance and to the jobs it starts later.
+     */
+    public synchronized void setSessionWeight(String sessionId, double weight) {
+        if (!(weight >= 0.1 && weight <= 10)) {
+            throw new IllegalArgumentException("Weight must be between 0.1 and 10.");
+        }
+        if (!sessionWeights.containsKey(sessionId) && sessionWeights.size() >= MAX_SESSION_WEIGHTS) {
+            throw new IllegalStateException("Too many session weights are set.");
+        }
+        sessionWeights.put(sessionId, weight);
+        rebalance();
+    }
+
+    @Scheduled(fixedDelayString = "${bandwidth.rebalance-seconds:5}", timeUnit = TimeUnit.SECONDS)
+    public synchronized void rebalance() {
+        if (totalRate <= 0 || leases.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        Map<Lease, Long> targets = allocate(now);
+        for (Map.Entry<Lease, Long> entry : targets.entrySet()) {
+            Lease lease = entry.getKey();
+            long target = entry.getValue();
+            lease.target = target;
+            if (lease.process == null) {
+                // Not started yet, between restarts or downloading in the JVM: the new share applies as it is
+                lease.limit = target;
+            } else if (shouldRestart(lease, target, now)) {
+                logger.info("Restarting download job: {} to change its rate limit from {} to {} bytes/s",
+                        lease.jobId, lease.limit, target);
+                lease.limit = target;
+                lease.restartPending = true;
+                lease.restarts++;
+                metrics.bandwidthRestart();
+                lease.process.destroy();
+            }
+        }
+    }
+
+    public synchronized long getAllocatedRate() {
+        return leases.values().stream().filter(lease -> lease.process != null || lease.live).mapToLong(lease -> lease.limit).sum();
+    }
+
+    public synchronized double getObservedRate() {
+        return leases.values().stream().mapToDouble(lease -> lease.observedRate).sum();
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        List<Map<String, Object>> jobs = new ArrayList<>();
+        for (Lease lease : leases.values()) {
+            Map<String, Object> job = new LinkedHashMap<>();
+            job.put("jobId", lease.jobId);
+            job.put("sessions", lease.sessions.get().size());
+            job.put("weight", Math.round(lease.weight * 100) / 100.0);
+            job.put("limitBytesPerSecond", lease.limit);
+            job.put("targetBytesPerSecond", lease.target);
+            job.put("observedBytesPerSecond", Math.round(lease.observedRate));
+            job.put("downloadedBytes", lease.downloadedBytes);
+            job.put("restarts", lease.restarts);
+            jobs.add(job);
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("budgetBytesPerSecond", totalRate);
+        stats.put("allocatedBytesPerSecond", getAllocatedRate());
+        stats.put("observedBytesPerSecond", Math.round(getObservedRate()));
+        stats.put("jobs", jobs);
+        return stats;
+    }
+
+    /**
+     * Max-min fair split: jobs whose source cannot use their weighted share are given what they use, and the
+     * rest is divided again among the others by weight.
+     */
+    private Map<Lease, Long> allocate(long now) {
+        Map<String, Integer> jobsPerSession = new HashMap<>();
+        for (Lease lease : leases.values()) {
+            lease.sessions.get().forEach(sessionId -> jobsPerSession.merge(sessionId, 1, Integer::sum));
+        }
+        for (Lease lease : leases.values()) {
+            double weight = 0;
+            for (String sessionId : lease.sessions.get()) {
+                weight += sessionWeights.getOrDefault(sessionId, 1.0) / jobsPerSession.get(sessionId);
+            }
+            lease.weight = weight > 0 ? weight : 1.0;
+            updateDemand(lease, now);
+        }
+
+        Map<Lease, Long> targets = new LinkedHashMap<>();
+        List<Lease> open = new ArrayList<>();
+        double remaining = totalRate;
+        for (Lease lease : leases.values()) {
+            if (!lease.restartable && lease.process != null) {
+                // Its limit cannot change any more, so it is taken off the top
+                targets.put(lease, lease.limit);
+                remaining -= lease.limit;
+            } else {
+                open.add(lease);
+            }
+        }
+        boolean capped = true;
+        while (capped && !open.isEmpty()) {
+            capped = false;
+            double weights = open.stream().mapToDouble(lease -> lease.weight).sum();
+            double perWeight = remaining / weights;
+            for (Iterator<Lease> it = open.iterator(); it.hasNext(); ) {
+                Lease lease = it.next();
+                if (lease.demand < perWeight * lease.weight) {
+                    targets.put(lease, lease.demand);
+                    remaining -= lease.demand;
+                    it.remove();
+                    capped = true;
+                }
+            }
+        }
+        if (!open.isEmpty()) {
+            double perWeight = Math.max(0, remaining) / open.stream().mapToDouble(lease -> lease.weight).sum();
+            open.forEach(lease -> targets.put(lease, (long) (perWeight * lease.weight)));
+        }
+        targets.replaceAll((lease, target) -> Math.max(minJobRate, Math.min(totalRate, target)));
+        return targets;
+    }
+
+    private void updateDemand(Lease lease, long now) {
+        if ((lease.process == null && !lease.live) || now - lease.startedAt < minRestartIntervalNanos || lease.observedRate <= 0) {
+            return;
+        }
+        if (lease.observedRate >= lease.limit * 0.9) {
+            // Pressing against its limit: it could use more
+            lease.demand = Long.MAX_VALUE;
+        } else if (lease.demand != Long.MAX_VALUE || lease.observedRate < lease.limit * 0.5) {
+            // Held back by its source, not by us; stays capped until it catches up with the limit
+            lease.demand = Math.max(minJobRate, (long) (lease.observedRate * 1.5));
+        }
+    }
+
+    private boolean shouldRestart(Lease lease, long target, long now) {
+        return lease.restartable
+                && lease.downloading
+                && lease.process.isAlive()
+                && !lease.restartPending
+                && now - lease.startedAt >= minRestartIntervalNanos
+                && Math.abs(target - lease.limit) > lease.limit * threshold
+                // A restart drops in-flight fragments, which is not worth it for a job that is nearly done
+                && (lease.eta == null || TimeUnit.SECONDS.toNanos(lease.eta) > Math.max(minRestartIntervalNanos, NEARLY_DONE_NANOS));
+    }
+
+    /** One job's share of the budget, held from its first download process until it finishes. */
+    public final class Lease {
+        private final String jobId;
+        private final Supplier<List<String>> sessions;
+        private final boolean restartable;
+        private long limit;
+        private long target;
+        private long demand = Long.MAX_VALUE;
+        private double weight = 1.0;
+        private Process process;
+        private boolean live;
+        private long startedAt;
+        private boolean downloading;
+        private boolean restartPending;
+        private int restarts;
+        private double observedRate;
+        private long downloadedBytes;
+        private Long eta;
+
+        private Lease(String jobId, Supplier<List<String>> sessions, boolean restartable, long limit) {
+            this.jobId = jobId;
+            this.sessions = sessions;
+            this.restartable = restartable;
+            this.limit = limit;
+            this.target = limit;
+        }
+
+        /** The {@code --limit-rate} for the next process, in bytes per second. */
+        public long getRateLimit() {
+            synchronized (BandwidthManager.this) {
+                return limit;
+            }
+        }
+
+        /** Fewer parallel fragment connections for small shares, where they only add overhead. */
+        public int getConcurrentFragments() {
+            long rate = getRateLimit();
+            return (int) Math.max(1, Math.min(maxFragments, (rate + fragmentRate - 1) / fragmentRate));
+        }
+
+        public void attach(Process process) {
+            synchronized (BandwidthManager.this) {
+                this.process = process;
+                live = false;
+                startedAt = System.nanoTime();
+                downloading = false;
+                restartPending = false;
+                eta = null;
+            }
+        }
+
+        /** Marks the job as downloading inside the JVM, which reads {@link #getRateLimit()} as it goes. */
+        public void startLive() {
+            synchronized (BandwidthManager.this) {
+                live = true;
+                startedAt = System.nanoTime();
+                eta = null;
+            }
+        }
+
+        /** True while the attached process is being stopped to change its rate limit. */
+        public boolean isRestarting() {
+            synchronized (BandwidthManager.this) {
+                return restartPending;
+            }
+        }
+
+        /**
+         * Called once the attached process has exited: true if it was stopped to change its rate limit and should be
+         * started again.
+         */
+        public boolean detach() {
+            synchronized (BandwidthManager.this) {
+                process = null;
+                boolean restart = restartPending;
+                restartPending = false;
+                return restart;
+            }
+        }
+
+        public void observe(ProgressEvent event) {
+            synchronized (BandwidthManager.this) {
+                downloading = ProgressParser.STAGE_DOWNLOADING.equals(event.getStage());
+                if (!downloading) {
+                    return;
+                }
+                if (event.getSpeed() != null) {
+                    observedRate = observedRate == 0 ? event.getSpeed() : observedRate * 0.8 + event.getSpeed() * 0.2;
+                }
+                if (event.getDownloadedBytes() != null) {
+                    downloadedBytes = event.getDownloadedBytes();
+                }
+                eta = event.getEta();
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.VideoRequest;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A list of URLs (or an expanded playlist) downloaded for one session, a few items at a time, into its own
+ * directory. Finished items become archive entries that readers can stream while the rest are still running.
+ * Item bookkeeping is synchronized on the batch itself; archive readers wait on a lock condition instead of
+ * the monitor so they do not pin their virtual thread's carrier.
+ */
+public class BatchJob {
+    private final String id;
+    private final String sessionId;
+    private final Path directory;
+    private final CompletableFuture<String> future = new CompletableFuture<>();
+    private final Map<Integer, DownloadJob> running = new HashMap<>();
+    private final List<Entry> entries = new ArrayList<>();
+    private final ReentrantLock entryLock = new ReentrantLock();
+    private final Condition entryAdded = entryLock.newCondition();
+    private boolean complete;
+    private List<VideoRequest> items = List.of();
+    private String title;
+    private int nextItem;
+    private int finishedItems;
+    private int succeededItems;
+    private volatile boolean canceled;
+
+    public BatchJob(String id, String sessionId, Path directory) {
+        this.id = id;
+        this.sessionId = sessionId;
+        this.directory = directory;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public CompletableFuture<String> getFuture() {
+        return future;
+    }
+
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    void cancel() {
+        canceled = true;
+        signalReaders();
+    }
+
+    synchronized void setItems(String title, List<VideoRequest> items) {
+        this.title = title;
+        this.items = List.copyOf(items);
+    }
+
+    synchronized String getTitle() {
+        return title;
+    }
+
+    synchronized int size() {
+        return items.size();
+    }
+
+    /** Returns the index of the next item to start, or -1 if none should start. */
+    synchronized int claimNextItem() {
+        if (canceled || nextItem >= items.size()) {
+            return -1;
+        }
+        return nextItem++;
+    }
+
+    synchronized VideoRequest getItem(int index) {
+        return items.get(index);
+    }
+
+    synchronized void itemStarted(int index, DownloadJob job) {
+        running.put(index, job);
+    }
+
+    /** Records a finished item and returns true once the batch has nothing left running or to start. */
+    synchronized boolean itemFinished(int index, boolean succeeded) {
+        running.remove(index);
+        finishedItems++;
+        if (succeeded) {
+            succeededItems++;
+        }
+        return running.isEmpty() && (canceled || finishedItems == items.size());
+    }
+
+    synchronized int getSucceededItems() {
+        return succeededItems;
+    }
+
+    synchronized List<DownloadJob> getRunningJobs() {
+        return new ArrayList<>(running.values());
+    }
+
+    void addEntry(Entry entry) {
+        entryLock.lock();
+        try {
+            entries.add(entry);
+            entryAdded.signalAll();
+        } finally {
+            entryLock.unlock();
+        }
+    }
+
+    void markComplete() {
+        entryLock.lock();
+        try {
+            complete = true;
+            entryAdded.signalAll();
+        } finally {
+            entryLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until archive entry {@code index} exists and returns it, or returns null once the batch has
+     * completed (or been canceled) without producing it.
+     */
+    Entry awaitEntry(int index) throws InterruptedException {
+        entryLock.lock();
+        try {
+            while (index >= entries.size() && !complete && !canceled) {
+                entryAdded.await();
+            }
+            return index < entries.size() ? entries.get(index) : null;
+        } finally {
+            entryLock.unlock();
+        }
+    }
+
+    private void signalReaders() {
+        entryLock.lock();
+        try {
+            entryAdded.signalAll();
+        } finally {
+            entryLock.unlock();
+        }
+    }
+
+    public static final class Entry {
+        private final String name;
+        private final Path file;
+        private final long size;
+        private final long crc;
+
+        public Entry(String name, Path file, long size, long crc) {
+            this.name = name;
+            this.file = file;
+            this.size = size;
+            this.crc = crc;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+    }
+}
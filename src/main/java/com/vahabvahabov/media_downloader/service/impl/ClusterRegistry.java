@@ -0,0 +1,330 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vahabvahabov.media_downloader.model.ClusterNode;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Shared record of which node owns what when several instances run behind a load balancer. Every node writes a
+ * heartbeat with its URL and load to {@code <cluster.registry-dir>/nodes}, and claims the sessions it is
+ * downloading for ({@code sessions/<id>}), the jobs whose status it keeps ({@code jobs/<id>}) and the files it
+ * holds ({@code files/<name>}), so any node can route a cancel, status query or file fetch to the owner and hand
+ * new jobs to a less busy node. The directory must be shared by all
+ * nodes (an NFS or other network mount); records are single small files replaced by an atomic rename. Nodes
+ * that stop heartbeating are treated as gone, and their records are dropped.
+ * <p>
+ * Requests one node forwards to another carry the cluster secret, {@code cluster.secret} or, when that is not set,
+ * a random one the first node writes to {@code <cluster.registry-dir>/secret}.
+ */
+@Component
+public class ClusterRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(ClusterRegistry.class);
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]{0,127}");
+
+    private final DownloadScheduler downloadScheduler;
+    private final JobStatusRegistry jobStatuses;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Path registryDir;
+    private final Path downloadDir;
+    private final long nodeTimeoutMillis;
+    private final ClusterNode self = new ClusterNode();
+    private final String configuredSecret;
+    private byte[] secret;
+    private boolean enabled;
+
+    public ClusterRegistry(DownloadScheduler downloadScheduler, JobStatusRegistry jobStatuses,
+                           @Value("${cluster.enabled:false}") boolean enabled,
+                           @Value("${cluster.registry-dir:cluster}") String registryDir,
+                           @Value("${cluster.node-id:}") String nodeId,
+                           @Value("${cluster.node-url:}") String nodeUrl,
+                           @Value("${cluster.node-timeout-seconds:20}") long nodeTimeoutSeconds,
+                           @Value("${cluster.secret:}") String secret,
+                           @Value("${server.port:8080}") int serverPort,
+                           @Value("${download.dir:downloaded_videos}") String downloadDir) {
+        this.downloadScheduler = downloadScheduler;
+        this.jobStatuses = jobStatuses;
+        this.enabled = enabled;
+        this.registryDir = Paths.get(registryDir);
+        this.downloadDir = Paths.get(downloadDir);
+        this.nodeTimeoutMillis = TimeUnit.SECONDS.toMillis(nodeTimeoutSeconds);
+        this.configuredSecret = secret;
+        String host = hostName();
+        self.setId(nodeId.isBlank() ? host + "-" + serverPort : nodeId);
+        self.setUrl(nodeUrl.isBlank() ? "http://" + host + ":" + serverPort : nodeUrl.replaceAll("/+$", ""));
+    }
+
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            for (String dir : List.of("nodes", "sessions", "jobs", "files")) {
+                Files.createDirectories(registryDir.resolve(dir));
+            }
+            secret = (configuredSecret.isBlank() ? sharedSecret() : configuredSecret).getBytes(StandardCharsets.UTF_8);
+            heartbeat();
+            logger.info("Joined cluster as node: {} ({}), registry: {}", self.getId(), self.getUrl(), registryDir);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to open cluster registry in: {}, running standalone", registryDir, e);
+            enabled = false;
+        }
+    }
+
+    @PreDestroy
+    void leave() {
+        if (enabled) {
+            deleteQuietly(registryDir.resolve("nodes").resolve(self.getId() + ".json"));
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getNodeId() {
+        return self.getId();
+    }
+
+    /** The value a forwarding node sends to prove the request comes from inside the cluster. */
+    public String getSecret() {
+        return enabled ? new String(secret, StandardCharsets.UTF_8) : null;
+    }
+
+    /** True when {@code value} is the cluster secret, compared in constant time. */
+    public boolean isSecret(String value) {
+        return enabled && value != null && MessageDigest.isEqual(secret, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Scheduled(fixedDelayString = "${cluster.heartbeat-seconds:5}", timeUnit = TimeUnit.SECONDS)
+    public void heartbeat() {
+        if (!enabled) {
+            return;
+        }
+        self.setRunning(downloadScheduler.getRunningCount());
+        self.setQueued(downloadScheduler.getQueuedCount());
+        self.setCapacity(downloadScheduler.getMaxConcurrent());
+        try {
+            write(registryDir.resolve("nodes").resolve(self.getId() + ".json"), objectMapper.writeValueAsString(self));
+        } catch (IOException e) {
+            logger.warn("Failed to write cluster heartbeat: {}", e.getMessage());
+            return;
+        }
+        pruneRecords();
+    }
+
+    public void claimSession(String sessionId) {
+        claim("sessions", sessionId);
+    }
+
+    public void releaseSession(String sessionId) {
+        release("sessions", sessionId);
+    }
+
+    public void claimJob(String jobId) {
+        claim("jobs", jobId);
+    }
+
+    public void claimFile(String fileName) {
+        claim("files", fileName);
+    }
+
+    /** The live node other than this one that owns {@code sessionId}, if any. */
+    public Optional<ClusterNode> remoteOwnerOfSession(String sessionId) {
+        return remoteOwner("sessions", sessionId);
+    }
+
+    /** The live node other than this one that keeps the status of {@code jobId}, if any. */
+    public Optional<ClusterNode> remoteOwnerOfJob(String jobId) {
+        return remoteOwner("jobs", jobId);
+    }
+
+    /** The live node other than this one that holds {@code fileName}, if any. */
+    public Optional<ClusterNode> remoteOwnerOfFile(String fileName) {
+        return remoteOwner("files", fileName);
+    }
+
+    /**
+     * A less busy live node to hand a new job to, or empty when this node still has a free download slot or is
+     * no busier than the rest.
+     */
+    public Optional<ClusterNode> lessBusyNode() {
+        if (!enabled || downloadScheduler.getRunningCount() + downloadScheduler.getQueuedCount() < downloadScheduler.getMaxConcurrent()) {
+            return Optional.empty();
+        }
+        double ownLoad = (double) (downloadScheduler.getRunningCount() + downloadScheduler.getQueuedCount())
+                / Math.max(1, downloadScheduler.getMaxConcurrent());
+        return liveNodes().values().stream()
+                .filter(node -> !node.getId().equals(self.getId()) && node.load() < ownLoad)
+                .min(Comparator.comparingDouble(ClusterNode::load));
+    }
+
+    Map<String, ClusterNode> liveNodes() {
+        Map<String, ClusterNode> nodes = new HashMap<>();
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(registryDir.resolve("nodes"), "*.json")) {
+            for (Path file : files) {
+                try {
+                    if (now - Files.getLastModifiedTime(file).toMillis() > nodeTimeoutMillis) {
+                        continue;
+                    }
+                    ClusterNode node = objectMapper.readValue(file.toFile(), ClusterNode.class);
+                    nodes.put(node.getId(), node);
+                } catch (IOException e) {
+                    logger.debug("Skipping unreadable node record: {}", file);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to list cluster nodes: {}", e.getMessage());
+        }
+        return nodes;
+    }
+
+    private Optional<ClusterNode> remoteOwner(String kind, String name) {
+        if (!enabled || name == null || !NAME.matcher(name).matches()) {
+            return Optional.empty();
+        }
+        String owner;
+        try {
+            owner = Files.readString(registryDir.resolve(kind).resolve(name), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+        if (owner.equals(self.getId())) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(liveNodes().get(owner));
+    }
+
+    private void claim(String kind, String name) {
+        if (!enabled || name == null || !NAME.matcher(name).matches()) {
+            return;
+        }
+        try {
+            write(registryDir.resolve(kind).resolve(name), self.getId());
+        } catch (IOException e) {
+            logger.warn("Failed to record {} {} in the cluster registry: {}", kind, name, e.getMessage());
+        }
+    }
+
+    private void release(String kind, String name) {
+        if (!enabled || name == null || !NAME.matcher(name).matches()) {
+            return;
+        }
+        Path record = registryDir.resolve(kind).resolve(name);
+        try {
+            if (self.getId().equals(Files.readString(record, StandardCharsets.UTF_8).trim())) {
+                Files.deleteIfExists(record);
+            }
+        } catch (IOException ignored) {
+            // Never claimed or already released
+        }
+    }
+
+    private void pruneRecords() {
+        Set<String> live = liveNodes().keySet();
+        for (String kind : List.of("sessions", "jobs", "files")) {
+            try (DirectoryStream<Path> records = Files.newDirectoryStream(registryDir.resolve(kind))) {
+                for (Path record : records) {
+                    if (record.getFileName().toString().startsWith(".")) {
+                        continue;
+                    }
+                    String owner;
+                    long age;
+                    try {
+                        owner = Files.readString(record, StandardCharsets.UTF_8).trim();
+                        age = System.currentTimeMillis() - Files.getLastModifiedTime(record).toMillis();
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    boolean mine = owner.equals(self.getId());
+                    // Files this node no longer has were cleaned up or expired (a batch archive's directory only
+                    // appears once its playlist is expanded, hence the grace period), jobs it no longer tracks were
+                    // forgotten; vanished nodes' records are stale
+                    String name = record.getFileName().toString();
+                    if ((mine && kind.equals("files") && age > nodeTimeoutMillis && !holdsFile(name))
+                            || (mine && kind.equals("jobs") && age > nodeTimeoutMillis && !jobStatuses.contains(name))
+                            || (!mine && !live.contains(owner))) {
+                        deleteQuietly(record);
+                    }
+                }
+            } catch (IOException e) {
+                logger.debug("Failed to prune cluster {} records: {}", kind, e.getMessage());
+            }
+        }
+    }
+
+    private String sharedSecret() throws IOException {
+        Path file = registryDir.resolve("secret");
+        if (Files.notExists(file)) {
+            byte[] random = new byte[32];
+            new SecureRandom().nextBytes(random);
+            Path temp = registryDir.resolve(".secret." + UUID.randomUUID() + ".tmp");
+            Files.writeString(temp, HexFormat.of().formatHex(random), StandardCharsets.UTF_8);
+            try {
+                // A link, unlike a rename, fails when the target exists: the first node to get here sets the secret
+                Files.createLink(file, temp);
+                logger.info("Generated cluster secret in: {}", file);
+            } catch (FileAlreadyExistsException e) {
+                // Another node was first
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        String value = Files.readString(file, StandardCharsets.UTF_8).trim();
+        if (value.isEmpty()) {
+            throw new IOException("Cluster secret file is empty: " + file);
+        }
+        return value;
+    }
+
+    private boolean holdsFile(String fileName) {
+        if (fileName.endsWith(".zip") && Files.isDirectory(downloadDir.resolve(fileName.substring(0, fileName.length() - 4)))) {
+            return true;
+        }
+        return Files.exists(downloadDir.resolve(fileName));
+    }
+
+    private static void write(Path target, String content) throws IOException {
+        Path temp = target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        Files.writeString(temp, content, StandardCharsets.UTF_8);
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+            // Another node got there first
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "localhost";
+        }
+    }
+}
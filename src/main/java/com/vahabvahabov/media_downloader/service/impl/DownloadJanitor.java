@@ -0,0 +1,199 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.service.VideoService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Periodically reclaims storage under {@code download.dir}: empties the trash, expires finished files and batch
+ * archives nobody fetched or cleaned up within {@code janitor.artifact-ttl-minutes}, removes work directories
+ * that have been idle for {@code janitor.work-dir-ttl-minutes}, and evicts the oldest artifacts while the volume
+ * is above {@code janitor.high-water-percent}. Only names this application creates are touched, since
+ * {@code download.dir} may be shared (it defaults to {@code /tmp}).
+ */
+@Component
+public class DownloadJanitor {
+    private static final Logger logger = LoggerFactory.getLogger(DownloadJanitor.class);
+    private static final Pattern ARTIFACT_FILE = Pattern.compile("(stream-)?" + DownloadStorage.UUID + "\\..+");
+
+    private final DownloadStorage storage;
+    private final VideoService videoService;
+    private final DownloadMetrics metrics;
+    private final boolean enabled;
+    private final long artifactTtlMillis;
+    private final long workDirTtlMillis;
+    // Materialized cache hits are hard links that keep the cached file's old mtime, so age counts from first sight too
+    private final Map<String, Long> firstSeen = new HashMap<>();
+
+    public DownloadJanitor(DownloadStorage storage, VideoService videoService, DownloadMetrics metrics,
+                           @Value("${janitor.enabled:true}") boolean enabled,
+                           @Value("${janitor.artifact-ttl-minutes:60}") long artifactTtlMinutes,
+                           @Value("${janitor.work-dir-ttl-minutes:180}") long workDirTtlMinutes) {
+        this.storage = storage;
+        this.videoService = videoService;
+        this.metrics = metrics;
+        this.enabled = enabled;
+        this.artifactTtlMillis = TimeUnit.MINUTES.toMillis(artifactTtlMinutes);
+        this.workDirTtlMillis = TimeUnit.MINUTES.toMillis(workDirTtlMinutes);
+    }
+
+    @Scheduled(initialDelayString = "${janitor.interval-seconds:60}", fixedDelayString = "${janitor.interval-seconds:60}",
+            timeUnit = TimeUnit.SECONDS)
+    public void sweep() {
+        if (!enabled || !Files.isDirectory(storage.getRoot())) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long trash = storage.emptyTrash();
+        long orphaned = sweepWorkDirectories(now);
+
+        List<Artifact> artifacts = listArtifacts(now);
+        long expired = 0;
+        Iterator<Artifact> it = artifacts.iterator();
+        while (it.hasNext()) {
+            Artifact artifact = it.next();
+            if (now - artifact.since >= artifactTtlMillis && videoService.expireDownloadedVideo(artifact.fileName)) {
+                expired += artifact.size;
+                it.remove();
+            }
+        }
+
+        long evicted = 0;
+        long excess = storage.bytesAboveHighWater();
+        if (excess > 0) {
+            artifacts.sort(Comparator.comparingLong(artifact -> artifact.since));
+            it = artifacts.iterator();
+            while (evicted < excess && it.hasNext()) {
+                Artifact artifact = it.next();
+                if (videoService.expireDownloadedVideo(artifact.fileName)) {
+                    evicted += artifact.size;
+                    it.remove();
+                }
+            }
+            if (evicted < excess) {
+                logger.warn("Disk is above its high-water mark and {} bytes could not be reclaimed", excess - evicted);
+            }
+        }
+
+        metrics.reclaimed("trash", trash);
+        metrics.reclaimed("orphaned", orphaned);
+        metrics.reclaimed("expired", expired);
+        metrics.reclaimed("evicted", evicted);
+        storage.setManagedBytes(artifacts.stream().mapToLong(artifact -> artifact.size).sum() + sizeOf(storage.getWorkRoot()));
+
+        long reclaimed = trash + orphaned + expired + evicted;
+        if (reclaimed > 0) {
+            logger.info("Janitor reclaimed {} bytes (trash: {}, orphaned work: {}, expired: {}, evicted: {}), {} bytes in use",
+                    reclaimed, trash, orphaned, expired, evicted, storage.getManagedBytes());
+        } else {
+            logger.debug("Janitor found nothing to reclaim, {} bytes in use", storage.getManagedBytes());
+        }
+    }
+
+    private long sweepWorkDirectories(long now) {
+        if (!Files.isDirectory(storage.getWorkRoot())) {
+            return 0;
+        }
+        long reclaimed = 0;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(storage.getWorkRoot())) {
+            for (Path dir : dirs) {
+                // Running jobs keep touching their part files and logs; a directory gone quiet was left behind
+                if (now - lastModified(dir) >= workDirTtlMillis) {
+                    logger.info("Removing abandoned work directory: {}", dir);
+                    reclaimed += storage.delete(dir);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to list work directories in: {}", storage.getWorkRoot(), e);
+        }
+        return reclaimed;
+    }
+
+    private List<Artifact> listArtifacts(long now) {
+        List<Artifact> artifacts = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(storage.getRoot())) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                String fileName;
+                long size;
+                long modified;
+                if (ARTIFACT_FILE.matcher(name).matches() && Files.isRegularFile(entry)) {
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    fileName = name;
+                    size = attributes.size();
+                    modified = attributes.lastModifiedTime().toMillis();
+                } else if (DownloadStorage.BATCH_DIR.matcher(name).matches() && Files.isDirectory(entry)) {
+                    fileName = name + ".zip";
+                    size = sizeOf(entry);
+                    modified = lastModified(entry);
+                } else {
+                    continue;
+                }
+                seen.add(fileName);
+                long since = Math.max(modified, firstSeen.computeIfAbsent(fileName, k -> now));
+                artifacts.add(new Artifact(fileName, size, since));
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to list artifacts in: {}", storage.getRoot(), e);
+        }
+        firstSeen.keySet().retainAll(seen);
+        return artifacts;
+    }
+
+    private static long sizeOf(Path dir) {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> {
+                try {
+                    return Files.size(file);
+                } catch (IOException e) {
+                    return 0;
+                }
+            }).sum();
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static long lastModified(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.mapToLong(file -> {
+                try {
+                    return Files.getLastModifiedTime(file).toMillis();
+                } catch (IOException e) {
+                    return 0;
+                }
+            }).max().orElse(0);
+        } catch (IOException | RuntimeException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static final class Artifact {
+        private final String fileName;
+        private final long size;
+        private final long since;
+
+        private Artifact(String fileName, long size, long since) {
+            this.fileName = fileName;
+            this.size = size;
+            this.since = since;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.controller.mc.DownloadProgressController;
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
+import com.vahabvahabov.media_downloader.model.VideoRequest;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One yt-dlp download, possibly shared by several sessions that asked for the same URL and format. Messages and
+ * (coalesced) progress go to every subscribed session and into the job's status snapshot.
+ * Subscriber bookkeeping is synchronized on the job itself.
+ */
+public class DownloadJob {
+    private final String id;
+    private final String key;
+    private final VideoRequest request;
+    private final String format;
+    private final boolean shared;
+    private final Set<String> subscribers = new LinkedHashSet<>();
+    private final CompletableFuture<String> future = new CompletableFuture<>();
+    private final DownloadProgressController progressController;
+    private final JobStatusRegistry jobStatuses;
+    private final ProgressCoalescer progressCoalescer;
+    private volatile Integer itemIndex;
+    private volatile int resumeAttempts;
+    private volatile boolean canceled;
+    private boolean finished;
+
+    public DownloadJob(String id, String key, VideoRequest request, String format, boolean shared,
+                       DownloadProgressController progressController, JobStatusRegistry jobStatuses,
+                       int maxProgressEventsPerSecond) {
+        this.id = id;
+        this.key = key;
+        this.request = request;
+        this.format = format;
+        this.shared = shared;
+        this.progressController = progressController;
+        this.jobStatuses = jobStatuses;
+        this.progressCoalescer = new ProgressCoalescer(maxProgressEventsPerSecond, this::sendProgress);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public VideoRequest getRequest() {
+        return request;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    public CompletableFuture<String> getFuture() {
+        return future;
+    }
+
+    public Integer getItemIndex() {
+        return itemIndex;
+    }
+
+    void setItemIndex(Integer itemIndex) {
+        this.itemIndex = itemIndex;
+    }
+
+    public int getResumeAttempts() {
+        return resumeAttempts;
+    }
+
+    void setResumeAttempts(int resumeAttempts) {
+        this.resumeAttempts = resumeAttempts;
+    }
+
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    void cancel() {
+        canceled = true;
+    }
+
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    synchronized void markFinished() {
+        finished = true;
+    }
+
+    synchronized void addSubscriber(String sessionId) {
+        subscribers.add(sessionId);
+    }
+
+    synchronized boolean removeSubscriber(String sessionId) {
+        subscribers.remove(sessionId);
+        return subscribers.isEmpty();
+    }
+
+    synchronized List<String> getSubscribers() {
+        return new ArrayList<>(subscribers);
+    }
+
+    public void broadcast(String message) {
+        jobStatuses.message(id, message);
+        for (String sessionId : getSubscribers()) {
+            progressController.sendMessage(sessionId, message);
+        }
+    }
+
+    public void publish(ProgressEvent event) {
+        event.setItem(itemIndex);
+        progressCoalescer.offer(event);
+    }
+
+    public void flushProgress() {
+        progressCoalescer.flush();
+    }
+
+    private void sendProgress(ProgressEvent event) {
+        jobStatuses.progress(id, event);
+        for (String sessionId : getSubscribers()) {
+            progressController.sendProgress(sessionId, event);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Micrometer instrumentation for the download pipeline: stage latencies (metadata extraction, download, merge,
+ * post-processing and the wait for it, file serving), job throughput, pipeline, post-processing, extractor pool,
+ * disk and bandwidth gauges, and byte, failure, cancellation, timeout, refusal, reclaimed-storage, rate-limit
+ * restart, native-engine and extractor-pool fallback and extractor recycling counters.
+ * Everything is published under the {@code media.} prefix and scraped from {@code /actuator/prometheus}.
+ */
+@Component
+public class DownloadMetrics {
+    public static final String STAGE_EXTRACT = "extract";
+    public static final String STAGE_DOWNLOAD = "download";
+    public static final String STAGE_MERGE = "merge";
+    public static final String STAGE_POSTPROCESS = "postprocess";
+    public static final String STAGE_POSTPROCESS_QUEUE = "postprocess_queue";
+    public static final String STAGE_SERVE = "serve";
+
+    private final MeterRegistry registry;
+    private final Counter bytesDownloaded;
+    private final Counter bytesServed;
+    private final Counter cancellations;
+
+    public DownloadMetrics(MeterRegistry registry, DownloadScheduler downloadScheduler, DownloadStorage downloadStorage) {
+        this.registry = registry;
+
+        bytesDownloaded = Counter.builder("media.bytes.downloaded")
+                .description("Bytes of media produced by finished downloads and streams")
+                .baseUnit("bytes")
+                .register(registry);
+        bytesServed = Counter.builder("media.bytes.served")
+                .description("Bytes of media sent to clients")
+                .baseUnit("bytes")
+                .register(registry);
+        cancellations = Counter.builder("media.cancellations")
+                .description("Downloads canceled by users")
+                .register(registry);
+
+        Gauge.builder("media.jobs.queued", downloadScheduler, DownloadScheduler::getQueuedCount)
+                .description("Download jobs waiting for a slot")
+                .register(registry);
+        Gauge.builder("media.jobs.running", downloadScheduler, DownloadScheduler::getRunningCount)
+                .description("Download jobs holding a slot")
+                .register(registry);
+        // Measured by the janitor as it sweeps, so scrapes never walk download.dir themselves
+        Gauge.builder("media.disk.used", downloadStorage, DownloadStorage::getManagedBytes)
+                .description("Bytes used by finished downloads and work directories under download.dir")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("media.disk.free", downloadStorage, DownloadStorage::usableBytes)
+                .description("Usable bytes left on the volume holding download.dir")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    public void registerActiveProcesses(Supplier<Number> activeProcesses) {
+        Gauge.builder("media.processes.active", activeProcesses)
+                .description("yt-dlp processes currently running")
+                .register(registry);
+    }
+
+    public void registerPostProcessing(Supplier<Number> queued, Supplier<Number> running) {
+        Gauge.builder("media.postprocess.queued", queued)
+                .description("Merges and conversions waiting for an ffmpeg worker")
+                .register(registry);
+        Gauge.builder("media.postprocess.running", running)
+                .description("ffmpeg merges and conversions currently running")
+                .register(registry);
+    }
+
+    public void registerBandwidth(Supplier<Number> allocated, Supplier<Number> observed) {
+        Gauge.builder("media.bandwidth.allocated", allocated)
+                .description("Sum of the rate limits of running download processes")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("media.bandwidth.observed", observed)
+                .description("Sum of the throughput reported by running download processes")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    public void registerExtractorPool(Supplier<Number> idle, Supplier<Number> workers) {
+        Gauge.builder("media.extractor.idle", idle)
+                .description("Warm extractor workers waiting for a request")
+                .register(registry);
+        Gauge.builder("media.extractor.workers", workers)
+                .description("Warm extractor workers running")
+                .register(registry);
+    }
+
+    public Timer.Sample start() {
+        return Timer.start(registry);
+    }
+
+    public void record(Timer.Sample sample, String stage, String platform, String outcome) {
+        sample.stop(stageTimer(stage, platform, outcome));
+    }
+
+    public void record(String stage, String platform, String outcome, long nanos) {
+        stageTimer(stage, platform, outcome).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void bytesDownloaded(long bytes) {
+        bytesDownloaded.increment(bytes);
+    }
+
+    public void bytesServed(long bytes) {
+        bytesServed.increment(bytes);
+    }
+
+    public void failure(ErrorCategory category) {
+        registry.counter("media.failures", "category", category.tag()).increment();
+    }
+
+    public void timeout(String stage) {
+        registry.counter("media.timeouts", "stage", stage).increment();
+    }
+
+    public void cancellation() {
+        cancellations.increment();
+    }
+
+    public void refusal(String reason) {
+        registry.counter("media.refusals", "reason", reason).increment();
+    }
+
+    public void reclaimed(String reason, long bytes) {
+        Counter.builder("media.janitor.reclaimed")
+                .description("Bytes freed by the storage janitor")
+                .baseUnit("bytes")
+                .tag("reason", reason)
+                .register(registry)
+                .increment(bytes);
+    }
+
+    public void nativeFallback() {
+        registry.counter("media.native.fallbacks").increment();
+    }
+
+    public void extractorFallback(String reason) {
+        registry.counter("media.extractor.fallbacks", "reason", reason).increment();
+    }
+
+    public void extractorRecycled(String reason) {
+        registry.counter("media.extractor.recycled", "reason", reason).increment();
+    }
+
+    public void bandwidthRestart() {
+        registry.counter("media.bandwidth.restarts").increment();
+    }
+
+    public void jobThroughput(double bytesPerSecond) {
+        DistributionSummary.builder("media.job.throughput")
+                .description("Average download throughput of finished jobs")
+                .baseUnit("bytes")
+                .register(registry)
+                .record(bytesPerSecond);
+    }
+
+    private Timer stageTimer(String stage, String platform, String outcome) {
+        return Timer.builder("media.stage.duration")
+                .description("Time spent in each pipeline stage")
+                .tag("stage", stage)
+                .tag("platform", Platform.of(platform).tag())
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+}
@@ -0,0 +1,205 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Admission control for download jobs. At most {@code maxConcurrent} jobs run at once (and at most the
+ * per-platform limit for each platform); everything else waits in a bounded FIFO queue and is told its
+ * position and estimated wait over the progress channel.
+ */
+@Component
+public class DownloadScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(DownloadScheduler.class);
+
+    private final int maxConcurrent;
+    private final int maxYoutube;
+    private final int maxInstagram;
+    private final int maxTiktok;
+    private final int queueCapacity;
+
+    private final Deque<ScheduledJob<?>> waiting = new ArrayDeque<>();
+    private final Map<Platform, Integer> runningByPlatform = new EnumMap<>(Platform.class);
+    private int running;
+    private double averageJobSeconds = 30.0;
+
+    private ExecutorService executorService;
+
+    public DownloadScheduler(@Value("${download.scheduler.max-concurrent:4}") int maxConcurrent,
+                             @Value("${download.scheduler.max-youtube:3}") int maxYoutube,
+                             @Value("${download.scheduler.max-instagram:2}") int maxInstagram,
+                             @Value("${download.scheduler.max-tiktok:2}") int maxTiktok,
+                             @Value("${download.scheduler.queue-capacity:50}") int queueCapacity) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxYoutube = maxYoutube;
+        this.maxInstagram = maxInstagram;
+        this.maxTiktok = maxTiktok;
+        this.queueCapacity = queueCapacity;
+    }
+
+    @PostConstruct
+    void init() {
+        // Jobs spend nearly all their time waiting on yt-dlp, so each one gets a cheap virtual thread;
+        // the limits above, not the executor, bound how many run at once
+        executorService = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("download-", 0).factory());
+        logger.info("Download scheduler started (max concurrent: {}, youtube: {}, instagram: {}, tiktok: {}, queue capacity: {})",
+                maxConcurrent, maxYoutube, maxInstagram, maxTiktok, queueCapacity);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executorService.shutdownNow();
+    }
+
+    public <T> CompletableFuture<T> submit(String jobId, String platform, Consumer<String> statusListener, Supplier<T> task) {
+        ScheduledJob<T> job = new ScheduledJob<>(jobId, Platform.of(platform), statusListener, task);
+        List<ScheduledJob<?>> started;
+        synchronized (this) {
+            waiting.addLast(job);
+            started = takeStartableJobs();
+            if (!started.contains(job) && waiting.size() > queueCapacity) {
+                waiting.removeLast();
+                logger.warn("Download queue is full ({} waiting), rejecting job: {}", queueCapacity, jobId);
+                throw new RejectedExecutionException("The server is busy and the download queue is full. Please try again in a few minutes.");
+            }
+        }
+        started.forEach(this::start);
+        sendQueuePositions();
+        return job.future;
+    }
+
+    public boolean cancel(String jobId) {
+        ScheduledJob<?> removed = null;
+        synchronized (this) {
+            Iterator<ScheduledJob<?>> iterator = waiting.iterator();
+            while (iterator.hasNext()) {
+                ScheduledJob<?> job = iterator.next();
+                if (job.jobId.equals(jobId)) {
+                    iterator.remove();
+                    removed = job;
+                    break;
+                }
+            }
+        }
+        if (removed == null) {
+            return false;
+        }
+        logger.info("Removed queued download job: {}", jobId);
+        removed.future.completeExceptionally(new CancellationException("Download canceled while queued"));
+        sendQueuePositions();
+        return true;
+    }
+
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    public synchronized int getQueuedCount() {
+        return waiting.size();
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    private List<ScheduledJob<?>> takeStartableJobs() {
+        List<ScheduledJob<?>> started = new ArrayList<>();
+        Iterator<ScheduledJob<?>> iterator = waiting.iterator();
+        while (running < maxConcurrent && iterator.hasNext()) {
+            ScheduledJob<?> job = iterator.next();
+            int platformRunning = runningByPlatform.getOrDefault(job.platform, 0);
+            if (platformRunning >= platformLimit(job.platform)) {
+                continue;
+            }
+            iterator.remove();
+            running++;
+            runningByPlatform.put(job.platform, platformRunning + 1);
+            started.add(job);
+        }
+        return started;
+    }
+
+    private void start(ScheduledJob<?> job) {
+        logger.info("Starting scheduled download job: {} (platform: {})", job.jobId, job.platform.tag());
+        executorService.execute(() -> run(job));
+    }
+
+    private <T> void run(ScheduledJob<T> job) {
+        long startedAt = System.nanoTime();
+        try {
+            job.future.complete(job.task.get());
+        } catch (CompletionException e) {
+            job.future.completeExceptionally(e);
+        } catch (Throwable t) {
+            job.future.completeExceptionally(new CompletionException(t));
+        } finally {
+            finish(job, (System.nanoTime() - startedAt) / 1_000_000_000.0);
+        }
+    }
+
+    private void finish(ScheduledJob<?> job, double seconds) {
+        List<ScheduledJob<?>> started;
+        synchronized (this) {
+            running--;
+            runningByPlatform.computeIfPresent(job.platform, (platform, count) -> count > 1 ? count - 1 : null);
+            averageJobSeconds = averageJobSeconds * 0.8 + seconds * 0.2;
+            started = takeStartableJobs();
+        }
+        started.forEach(this::start);
+        sendQueuePositions();
+    }
+
+    private void sendQueuePositions() {
+        Map<ScheduledJob<?>, String> updates = new LinkedHashMap<>();
+        synchronized (this) {
+            int total = waiting.size();
+            int position = 0;
+            for (ScheduledJob<?> job : waiting) {
+                position++;
+                if (job.reportedPosition == position && job.reportedTotal == total) {
+                    continue;
+                }
+                job.reportedPosition = position;
+                job.reportedTotal = total;
+                long etaSeconds = Math.round(Math.ceil((double) position / maxConcurrent) * averageJobSeconds);
+                updates.put(job, "Queued: position " + position + " of " + total + ", estimated wait ~" + etaSeconds + "s");
+            }
+        }
+        updates.forEach((job, message) -> job.statusListener.accept(message));
+    }
+
+    private int platformLimit(Platform platform) {
+        return switch (platform) {
+            case YOUTUBE -> maxYoutube;
+            case INSTAGRAM -> maxInstagram;
+            case TIKTOK -> maxTiktok;
+            case OTHER -> maxConcurrent;
+        };
+    }
+
+    private static final class ScheduledJob<T> {
+        private final String jobId;
+        private final Platform platform;
+        private final Consumer<String> statusListener;
+        private final Supplier<T> task;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private int reportedPosition;
+        private int reportedTotal;
+
+        private ScheduledJob(String jobId, Platform platform, Consumer<String> statusListener, Supplier<T> task) {
+            this.jobId = jobId;
+            this.platform = platform;
+            this.statusListener = statusListener;
+            this.task = task;
+        }
+    }
+}
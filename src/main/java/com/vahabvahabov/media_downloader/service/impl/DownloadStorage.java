@@ -0,0 +1,196 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Owns the layout of {@code download.dir}. Every job and stream works in its own {@code work/<id>} directory, so
+ * cleaning up after a cancel or failure is one rename into {@code .trash} instead of a scan of the whole
+ * download directory (which defaults to {@code /tmp}); the renamed tree is deleted on a virtual thread and
+ * anything left there is swept by {@link DownloadJanitor}. Also answers whether the disk has room for new jobs.
+ */
+@Component
+public class DownloadStorage {
+    private static final Logger logger = LoggerFactory.getLogger(DownloadStorage.class);
+    static final String WORK_DIR = "work";
+    static final String TRASH_DIR = ".trash";
+    static final String UUID = "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}";
+    static final Pattern BATCH_DIR = Pattern.compile("batch-" + UUID);
+
+    private final Path root;
+    private final Path workRoot;
+    private final Path trashRoot;
+    private final long minFreeBytes;
+    private final double highWaterPercent;
+    private volatile long managedBytes;
+
+    public DownloadStorage(@Value("${download.dir:downloaded_videos}") String downloadDir,
+                           @Value("${janitor.min-free-bytes:1073741824}") long minFreeBytes,
+                           @Value("${janitor.high-water-percent:90}") double highWaterPercent) {
+        this.root = Paths.get(downloadDir);
+        this.workRoot = root.resolve(WORK_DIR);
+        this.trashRoot = root.resolve(TRASH_DIR);
+        this.minFreeBytes = minFreeBytes;
+        this.highWaterPercent = highWaterPercent;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public Path getWorkRoot() {
+        return workRoot;
+    }
+
+    /**
+     * {@code fileName} resolved directly under the download directory, or null when it names anything else
+     * ({@code ..}, a nested path, the directory itself).
+     */
+    public Path artifactPath(String fileName) {
+        Path dir = root.toAbsolutePath().normalize();
+        Path path = dir.resolve(fileName).normalize();
+        return dir.equals(path.getParent()) ? path : null;
+    }
+
+    public Path workDirectory(String id) {
+        return workRoot.resolve(id);
+    }
+
+    public Path createWorkDirectory(String id) throws IOException {
+        return Files.createDirectories(workDirectory(id));
+    }
+
+    /**
+     * Moves {@code path} out of the way in one rename and deletes it in the background. Falls back to deleting
+     * in place when the rename is not possible.
+     */
+    public void discard(Path path) {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        Path target;
+        try {
+            Files.createDirectories(trashRoot);
+            target = Files.move(path, trashRoot.resolve(path.getFileName() + "-" + System.nanoTime()),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.debug("Could not move {} to the trash, deleting in place: {}", path, e.getMessage());
+            target = path;
+        }
+        Path doomed = target;
+        Thread.ofVirtual().name("discard-" + path.getFileName()).start(() -> delete(doomed));
+    }
+
+    /** Deletes whatever is left in the trash and returns the bytes reclaimed. */
+    public long emptyTrash() {
+        if (!Files.isDirectory(trashRoot)) {
+            return 0;
+        }
+        long reclaimed = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(trashRoot)) {
+            for (Path entry : entries) {
+                reclaimed += delete(entry);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to empty trash: {}", trashRoot, e);
+        }
+        return reclaimed;
+    }
+
+    /** Deletes {@code path} recursively and returns the bytes reclaimed. */
+    public long delete(Path path) {
+        AtomicLong reclaimed = new AtomicLong();
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.deleteIfExists(file);
+                    reclaimed.addAndGet(attrs.size());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    Files.deleteIfExists(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (NoSuchFileException ignored) {
+            // Already gone
+        } catch (IOException e) {
+            logger.error("Failed to delete: {}", path, e);
+        }
+        return reclaimed.get();
+    }
+
+    /** False when free space on the download volume has dropped below {@code janitor.min-free-bytes}. */
+    public boolean hasRoom() {
+        FileStore store = fileStore();
+        if (store == null) {
+            return true;
+        }
+        try {
+            return store.getUsableSpace() >= minFreeBytes;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /** How many bytes must be freed to bring the download volume back under {@code janitor.high-water-percent}. */
+    public long bytesAboveHighWater() {
+        FileStore store = fileStore();
+        if (store == null) {
+            return 0;
+        }
+        try {
+            long total = store.getTotalSpace();
+            long used = total - store.getUsableSpace();
+            return Math.max(0, used - (long) (total * highWaterPercent / 100));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public long usableBytes() {
+        FileStore store = fileStore();
+        if (store == null) {
+            return 0;
+        }
+        try {
+            return store.getUsableSpace();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /** Bytes held by finished downloads and work directories, as of the janitor's last run. */
+    public long getManagedBytes() {
+        return managedBytes;
+    }
+
+    void setManagedBytes(long managedBytes) {
+        this.managedBytes = managedBytes;
+    }
+
+    private FileStore fileStore() {
+        try {
+            return Files.getFileStore(Files.isDirectory(root) ? root : root.toAbsolutePath().getParent());
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Failed to read file store of {}: {}", root, e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import java.util.Locale;
+
+/**
+ * Coarse classes of yt-dlp failures, matching the cases {@code getFriendlyErrorMessage} explains to users.
+ */
+public enum ErrorCategory {
+    PRIVATE_CONTENT,
+    UNAVAILABLE,
+    GEO_RESTRICTED,
+    AGE_RESTRICTED,
+    UNSUPPORTED_URL,
+    EXTRACTOR_ERROR,
+    UNKNOWN;
+
+    public static ErrorCategory classify(String rawError) {
+        String lowerError = rawError.toLowerCase(Locale.ROOT);
+        if (lowerError.contains("instagram") && (lowerError.contains("cookies") || lowerError.contains("login") || lowerError.contains("granting access"))) {
+            return PRIVATE_CONTENT;
+        } else if (lowerError.contains("video unavailable") || lowerError.contains("does not exist") || lowerError.contains("no video formats")) {
+            return UNAVAILABLE;
+        } else if (lowerError.contains("geo-restricted") || lowerError.contains("not available in your country")) {
+            return GEO_RESTRICTED;
+        } else if (lowerError.contains("age-restricted")) {
+            return AGE_RESTRICTED;
+        } else if (lowerError.contains("unsupported url")) {
+            return UNSUPPORTED_URL;
+        } else if (rawError.isEmpty()) {
+            return UNKNOWN;
+        }
+        return EXTRACTOR_ERROR;
+    }
+
+    public String tag() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,311 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-lived yt-dlp processes for metadata extraction. Each worker runs {@code extractor_worker.py}, which imports
+ * yt_dlp and its extractors once and then takes one JSON-line request at a time carrying the same options the CLI
+ * would get, so a lookup is a round trip to a warm interpreter instead of a cold start. A worker is replaced after
+ * {@code extractor.pool.max-jobs} requests, once its peak RSS passes {@code extractor.pool.max-rss-mb}, when a
+ * request times out, and when it fails the idle health check. Callers fall back to the one-shot CLI whenever no
+ * worker is free, and for good when the pool is disabled or cannot start (no Python, or no importable yt_dlp).
+ */
+@Component
+public class ExtractorPool {
+    private static final Logger logger = LoggerFactory.getLogger(ExtractorPool.class);
+    private static final String BUNDLED_WORKER = "/extractor/extractor_worker.py";
+
+    private final DownloadMetrics metrics;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final String ytDlpPath;
+    private final String python;
+    private final String workerScript;
+    private final int size;
+    private final int maxJobs;
+    private final long maxRssKb;
+    private final Duration startupTimeout;
+    private final Duration healthCheckTimeout;
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+    private final Set<Worker> workers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger workerIds = new AtomicInteger();
+    private ScheduledExecutorService watchdog;
+    private Path script;
+    private volatile boolean enabled;
+
+    public ExtractorPool(DownloadMetrics metrics,
+                         @Value("${yt.dlp.path}") String ytDlpPath,
+                         @Value("${extractor.pool.enabled:false}") boolean enabled,
+                         @Value("${extractor.pool.python:python3}") String python,
+                         @Value("${extractor.pool.worker-script:}") String workerScript,
+                         @Value("${extractor.pool.size:2}") int size,
+                         @Value("${extractor.pool.max-jobs:200}") int maxJobs,
+                         @Value("${extractor.pool.max-rss-mb:512}") long maxRssMb,
+                         @Value("${extractor.pool.startup-timeout-seconds:30}") long startupTimeoutSeconds,
+                         @Value("${extractor.pool.health-check-timeout-seconds:5}") long healthCheckTimeoutSeconds) {
+        this.metrics = metrics;
+        this.ytDlpPath = ytDlpPath;
+        this.enabled = enabled;
+        this.python = python;
+        this.workerScript = workerScript;
+        this.size = Math.max(1, size);
+        this.maxJobs = Math.max(1, maxJobs);
+        this.maxRssKb = maxRssMb * 1024;
+        this.startupTimeout = Duration.ofSeconds(startupTimeoutSeconds);
+        this.healthCheckTimeout = Duration.ofSeconds(healthCheckTimeoutSeconds);
+    }
+
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            return;
+        }
+        watchdog = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("extractor-watchdog").daemon().factory());
+        metrics.registerExtractorPool(idle::size, workers::size);
+        // Interpreters take a moment to import yt_dlp; requests use the CLI until the first one is ready
+        Thread.ofVirtual().name("extractor-pool-start").start(() -> {
+            try {
+                script = resolveScript();
+                idle.add(spawn());
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Extractor pool disabled, using the yt-dlp CLI for every extraction: {}", e.getMessage());
+                enabled = false;
+                return;
+            }
+            topUp();
+            logger.info("Extractor pool started (workers: {}, max jobs per worker: {})", workers.size(), maxJobs);
+        });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        enabled = false;
+        new ArrayList<>(workers).forEach(worker -> retire(worker, null));
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getWorkerCount() {
+        return workers.size();
+    }
+
+    /**
+     * Runs a metadata-only yt-dlp invocation ({@code options} as they would follow the executable, then the URL) in
+     * an idle worker, which writes the info JSON to {@code output}. Returns null when no worker is free or the
+     * worker died without answering, in which case the caller runs the CLI instead.
+     */
+    public ProcessRunner.ProcessResult extract(List<String> options, String url, Path output, Duration timeout) {
+        Worker worker = enabled ? idle.poll() : null;
+        if (worker == null) {
+            if (enabled) {
+                metrics.extractorFallback("busy");
+            }
+            return null;
+        }
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("op", "extract");
+        request.put("args", options);
+        request.put("url", url);
+        request.put("output", output.toAbsolutePath().toString());
+        Reply reply = worker.call(request, timeout);
+        if (reply.timedOut) {
+            retire(worker, "timeout");
+            replaceAsync();
+            return new ProcessRunner.ProcessResult(-1, true, "");
+        }
+        if (reply.body == null) {
+            logger.warn("Extractor worker: {} died during a request", worker.name);
+            retire(worker, "crashed");
+            replaceAsync();
+            metrics.extractorFallback("crashed");
+            return null;
+        }
+
+        worker.jobs++;
+        release(worker, reply);
+        return reply.body.path("ok").asBoolean()
+                ? new ProcessRunner.ProcessResult(0, false, "")
+                : new ProcessRunner.ProcessResult(1, false, reply.body.path("error").asText());
+    }
+
+    /** Pings idle workers, replaces the ones that do not answer and restarts any that were lost. */
+    @Scheduled(fixedDelayString = "${extractor.pool.health-check-seconds:30}", timeUnit = TimeUnit.SECONDS)
+    public void healthCheck() {
+        if (!enabled || script == null) {
+            return;
+        }
+        for (int i = idle.size(); i > 0; i--) {
+            Worker worker = idle.poll();
+            if (worker == null) {
+                break;
+            }
+            Reply reply = worker.call(Map.of("op", "ping"), healthCheckTimeout);
+            if (reply.body != null && reply.body.path("ok").asBoolean()) {
+                release(worker, reply);
+            } else {
+                logger.warn("Extractor worker: {} failed its health check", worker.name);
+                retire(worker, "unhealthy");
+            }
+        }
+        topUp();
+    }
+
+    private void release(Worker worker, Reply reply) {
+        long rss = reply.body.path("rss").asLong();
+        if (worker.jobs >= maxJobs) {
+            retire(worker, "max_jobs");
+            replaceAsync();
+        } else if (maxRssKb > 0 && rss > maxRssKb) {
+            logger.info("Extractor worker: {} grew to {} KiB after {} request(s), recycling it", worker.name, rss, worker.jobs);
+            retire(worker, "memory");
+            replaceAsync();
+        } else if (enabled) {
+            idle.offer(worker);
+        } else {
+            retire(worker, null);
+        }
+    }
+
+    private void topUp() {
+        while (enabled && workers.size() < size) {
+            try {
+                idle.add(spawn());
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Failed to start an extractor worker: {}", e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void replaceAsync() {
+        Thread.ofVirtual().name("extractor-pool-replace").start(this::topUp);
+    }
+
+    private Worker spawn() throws IOException {
+        String name = "extractor-" + workerIds.incrementAndGet();
+        Process process = new ProcessBuilder(python, script.toString(), ytDlpPath)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        Worker worker = new Worker(name, process);
+        workers.add(worker);
+        Reply hello = worker.read(startupTimeout);
+        if (hello.body == null || !hello.body.path("ready").asBoolean()) {
+            retire(worker, null);
+            throw new IOException(hello.timedOut ? name + " did not start within " + startupTimeout
+                    : hello.body != null ? hello.body.path("error").asText() : name + " exited during startup");
+        }
+        logger.debug("Extractor worker: {} ready (PID: {}, yt-dlp {})", name, process.pid(), hello.body.path("version").asText());
+        return worker;
+    }
+
+    private void retire(Worker worker, String reason) {
+        workers.remove(worker);
+        idle.remove(worker);
+        if (reason != null) {
+            metrics.extractorRecycled(reason);
+        }
+        try {
+            worker.stdin.close();
+        } catch (IOException ignored) {
+            // Already gone
+        }
+        worker.process.destroy();
+        watchdog.schedule(worker.process::destroyForcibly, 5, TimeUnit.SECONDS);
+    }
+
+    private Path resolveScript() throws IOException {
+        if (!workerScript.isBlank()) {
+            return Path.of(workerScript);
+        }
+        Path extracted = Files.createTempFile("extractor_worker", ".py");
+        extracted.toFile().deleteOnExit();
+        try (InputStream in = ExtractorPool.class.getResourceAsStream(BUNDLED_WORKER)) {
+            if (in == null) {
+                throw new IOException("Missing " + BUNDLED_WORKER);
+            }
+            Files.copy(in, extracted, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return extracted;
+    }
+
+    private static final class Reply {
+        private final JsonNode body;
+        private final boolean timedOut;
+
+        private Reply(JsonNode body, boolean timedOut) {
+            this.body = body;
+            this.timedOut = timedOut;
+        }
+    }
+
+    private final class Worker {
+        private final String name;
+        private final Process process;
+        private final BufferedWriter stdin;
+        private final BufferedReader stdout;
+        private int jobs;
+
+        private Worker(String name, Process process) {
+            this.name = name;
+            this.process = process;
+            this.stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            this.stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        private Reply call(Map<String, ?> request, Duration timeout) {
+            try {
+                stdin.write(objectMapper.writeValueAsString(request));
+                stdin.write('\n');
+                stdin.flush();
+            } catch (IOException e) {
+                return new Reply(null, false);
+            }
+            return read(timeout);
+        }
+
+        /** Reads one reply; the process is killed if none arrives in time, which ends the blocked read. */
+        private Reply read(Duration timeout) {
+            AtomicBoolean timedOut = new AtomicBoolean();
+            ScheduledFuture<?> deadline = watchdog.schedule(() -> {
+                timedOut.set(true);
+                process.destroyForcibly();
+            }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+            try {
+                String line = stdout.readLine();
+                return new Reply(line != null && !timedOut.get() ? objectMapper.readTree(line) : null, timedOut.get());
+            } catch (IOException e) {
+                return new Reply(null, timedOut.get());
+            } finally {
+                deadline.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.vahabvahabov.media_downloader.model.MediaMetadata;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pulls the few top-level fields we use out of a yt-dlp info JSON with Jackson's streaming parser. Everything
+ * else, including the {@code formats} and playlist {@code entries} arrays, is skipped token by token, so
+ * memory use does not depend on the size of the document.
+ */
+public final class InfoJsonReader {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private InfoJsonReader() {
+    }
+
+    public static MediaMetadata read(Path file) throws IOException {
+        MediaMetadata metadata = new MediaMetadata();
+        try (JsonParser parser = JSON_FACTORY.createParser(file.toFile())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Media information is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "title" -> metadata.setTitle(text(parser, value));
+                    case "description" -> metadata.setDescription(text(parser, value));
+                    case "uploader" -> metadata.setUploader(text(parser, value));
+                    case "duration" -> metadata.setDuration(number(parser, value));
+                    case "view_count" -> metadata.setViewCount(number(parser, value));
+                    case "upload_date" -> metadata.setUploadDate(text(parser, value));
+                    case "thumbnail" -> metadata.setThumbnail(text(parser, value));
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Reads the title and up to {@code maxEntries} entry URLs from a {@code --flat-playlist} info JSON. A
+     * document without {@code entries} is a single video and yields an empty list.
+     */
+    public static Playlist readPlaylist(Path file, int maxEntries) throws IOException {
+        String title = null;
+        List<String> urls = new ArrayList<>();
+        try (JsonParser parser = JSON_FACTORY.createParser(file.toFile())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Playlist information is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("title".equals(field)) {
+                    title = text(parser, value);
+                } else if ("entries".equals(field) && value == JsonToken.START_ARRAY) {
+                    JsonToken entry;
+                    while ((entry = parser.nextToken()) != JsonToken.END_ARRAY && entry != null) {
+                        if (entry != JsonToken.START_OBJECT) {
+                            parser.skipChildren();
+                            continue;
+                        }
+                        String url = entryUrl(parser);
+                        if (url != null && urls.size() < maxEntries) {
+                            urls.add(url);
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return new Playlist(title, urls);
+    }
+
+    /**
+     * The single file yt-dlp selected for the info JSON's format, when it can be fetched with plain HTTP requests:
+     * null for merged formats ({@code requested_formats}), fragmented ones (HLS, DASH) and anything not on
+     * http(s). Only meaningful when the info JSON was extracted with {@code -f}.
+     */
+    public static DirectMedia readDirectMedia(Path file) throws IOException {
+        String url = null;
+        String protocol = null;
+        Long size = null;
+        Map<String, String> headers = new LinkedHashMap<>();
+        boolean direct = true;
+        try (JsonParser parser = JSON_FACTORY.createParser(file.toFile())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Media information is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "url" -> url = text(parser, value);
+                    case "protocol" -> protocol = text(parser, value);
+                    case "filesize" -> {
+                        Number filesize = number(parser, value);
+                        size = filesize != null ? filesize.longValue() : size;
+                    }
+                    case "http_headers" -> {
+                        if (value == JsonToken.START_OBJECT) {
+                            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                String name = parser.currentName();
+                                String header = text(parser, parser.nextToken());
+                                if (header != null) {
+                                    headers.put(name, header);
+                                }
+                            }
+                        }
+                    }
+                    case "requested_formats", "fragments", "entries" -> {
+                        direct = false;
+                        parser.skipChildren();
+                    }
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+        if (!direct || url == null || !url.startsWith("http")
+                || (protocol != null && !"http".equals(protocol) && !"https".equals(protocol))) {
+            return null;
+        }
+        return new DirectMedia(url, headers, size);
+    }
+
+    /**
+     * The streams yt-dlp selected for the info JSON's format: the {@code requested_formats} of a format that needs
+     * a merge, otherwise the single selected format. Empty when the document does not say which format was picked.
+     * Only meaningful when the info JSON was extracted with {@code -f}.
+     */
+    public static List<StreamFormat> readStreams(Path file) throws IOException {
+        StreamFormat selected = new StreamFormat();
+        List<StreamFormat> requested = new ArrayList<>();
+        try (JsonParser parser = JSON_FACTORY.createParser(file.toFile())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Media information is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("requested_formats".equals(field) && value == JsonToken.START_ARRAY) {
+                    JsonToken entry;
+                    while ((entry = parser.nextToken()) != JsonToken.END_ARRAY && entry != null) {
+                        if (entry != JsonToken.START_OBJECT) {
+                            parser.skipChildren();
+                            continue;
+                        }
+                        StreamFormat format = new StreamFormat();
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            readStreamField(parser, format);
+                        }
+                        requested.add(format);
+                    }
+                } else {
+                    readStreamField(parser, selected, field, value);
+                }
+            }
+        }
+        if (!requested.isEmpty()) {
+            return requested.stream().allMatch(StreamFormat::isComplete) ? requested : List.of();
+        }
+        return selected.isComplete() ? List.of(selected) : List.of();
+    }
+
+    private static void readStreamField(JsonParser parser, StreamFormat format) throws IOException {
+        String field = parser.currentName();
+        readStreamField(parser, format, field, parser.nextToken());
+    }
+
+    private static void readStreamField(JsonParser parser, StreamFormat format, String field, JsonToken value) throws IOException {
+        switch (field) {
+            case "format_id" -> format.formatId = text(parser, value);
+            case "ext" -> format.ext = text(parser, value);
+            default -> parser.skipChildren();
+        }
+    }
+
+    private static String entryUrl(JsonParser parser) throws IOException {
+        String url = null;
+        String webpageUrl = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("url".equals(field)) {
+                url = text(parser, value);
+            } else if ("webpage_url".equals(field)) {
+                webpageUrl = text(parser, value);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        // Flat entries of some extractors carry only an id in "url"; prefer the full page URL when present
+        if (webpageUrl != null) {
+            return webpageUrl;
+        }
+        return url != null && url.startsWith("http") ? url : null;
+    }
+
+    private static String text(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_STRING) {
+            return parser.getText();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    private static Number number(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_INT || value == JsonToken.VALUE_NUMBER_FLOAT) {
+            return parser.getNumberValue();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    public static final class DirectMedia {
+        private final String url;
+        private final Map<String, String> headers;
+        private final Long size;
+
+        DirectMedia(String url, Map<String, String> headers, Long size) {
+            this.url = url;
+            this.headers = headers;
+            this.size = size;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /** The request headers yt-dlp would send, such as its User-Agent and Referer. */
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        /** The size yt-dlp reported, if any; the server's answer takes precedence. */
+        public Long getSize() {
+            return size;
+        }
+    }
+
+    public static final class StreamFormat {
+        private String formatId;
+        private String ext;
+
+        private StreamFormat() {
+        }
+
+        public String getFormatId() {
+            return formatId;
+        }
+
+        public String getExt() {
+            return ext;
+        }
+
+        private boolean isComplete() {
+            // Both end up in a file name, so anything that could leave the work directory is treated as unknown
+            return formatId != null && ext != null && formatId.matches("[\\w.-]+") && ext.matches("\\w+");
+        }
+    }
+
+    public static final class Playlist {
+        private final String title;
+        private final List<String> urls;
+
+        private Playlist(String title, List<String> urls) {
+            this.title = title;
+            this.urls = urls;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public List<String> getUrls() {
+            return urls;
+        }
+    }
+}
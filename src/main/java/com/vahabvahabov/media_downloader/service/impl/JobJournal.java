@@ -0,0 +1,289 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vahabvahabov.media_downloader.model.JobJournalEntry;
+import com.vahabvahabov.media_downloader.model.VideoRequest;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Append-only journal of download jobs in {@code <download.dir>/jobs.journal}, one JSON record per line. It
+ * records each job's parameters and state transitions so that jobs interrupted by a crash or restart can be
+ * resumed, and finished files can still be served and cleaned up afterwards. The journal is folded into the
+ * latest state of each live job on startup and rewritten with just those, and again whenever enough records
+ * have been appended since. Jobs with cookies are never journaled, so no credentials reach the disk.
+ */
+@Component
+public class JobJournal {
+    private static final Logger logger = LoggerFactory.getLogger(JobJournal.class);
+    static final String JOURNAL_FILE = "jobs.journal";
+
+    public static final String STARTED = "started";
+    public static final String SUBSCRIBED = "subscribed";
+    public static final String UNSUBSCRIBED = "unsubscribed";
+    public static final String RESUMED = "resumed";
+    public static final String FINISHED = "finished";
+    public static final String FAILED = "failed";
+    public static final String CANCELED = "canceled";
+    public static final String DELETED = "deleted";
+
+    private final boolean enabled;
+    private final Path file;
+    private final int compactAfter;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<String, JobJournalEntry> jobs = new LinkedHashMap<>();
+    private FileChannel channel;
+    private int appended;
+
+    public JobJournal(@Value("${journal.enabled:true}") boolean enabled,
+                      @Value("${download.dir:downloaded_videos}") String downloadDir,
+                      @Value("${journal.compact-after:1000}") int compactAfter) {
+        this.enabled = enabled;
+        this.file = Paths.get(downloadDir, JOURNAL_FILE);
+        this.compactAfter = compactAfter;
+    }
+
+    @PostConstruct
+    synchronized void init() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            load();
+            compact();
+            logger.info("Job journal loaded from {}: {} unfinished or unclaimed job(s)", file, jobs.size());
+        } catch (IOException e) {
+            logger.error("Failed to open job journal: {}, jobs will not survive restarts", file, e);
+            closeQuietly();
+        }
+    }
+
+    @PreDestroy
+    synchronized void close() {
+        closeQuietly();
+    }
+
+    /** Latest state of every job that was not canceled, failed or deleted when the journal was last written. */
+    public synchronized List<JobJournalEntry> recover() {
+        return jobs.values().stream().map(JobJournal::copy).toList();
+    }
+
+    public void started(DownloadJob job) {
+        VideoRequest request = job.getRequest();
+        JobJournalEntry entry = new JobJournalEntry();
+        entry.setEvent(STARTED);
+        entry.setJobId(job.getId());
+        entry.setKey(job.getKey());
+        entry.setUrl(request.getUrl());
+        entry.setPlatform(request.getPlatform());
+        entry.setQuality(request.getQuality());
+        entry.setFormat(job.getFormat());
+        entry.setOutputFormat(request.getOutputFormat());
+        entry.setSessions(job.getSubscribers());
+        append(entry);
+    }
+
+    public void subscribed(String jobId, String sessionId) {
+        append(event(SUBSCRIBED, jobId, entry -> entry.setSessionId(sessionId)));
+    }
+
+    public void unsubscribed(String jobId, String sessionId) {
+        append(event(UNSUBSCRIBED, jobId, entry -> entry.setSessionId(sessionId)));
+    }
+
+    public void resumed(String jobId, int attempts) {
+        append(event(RESUMED, jobId, entry -> entry.setAttempts(attempts)));
+    }
+
+    public void finished(String jobId, List<String> sessions, String fileName, String displayName, String title,
+                         String thumbnail) {
+        append(event(FINISHED, jobId, entry -> {
+            entry.setSessions(sessions);
+            entry.setFileName(fileName);
+            entry.setDisplayName(displayName);
+            entry.setTitle(title);
+            entry.setThumbnail(thumbnail);
+        }));
+    }
+
+    public void failed(String jobId) {
+        append(event(FAILED, jobId, entry -> { }));
+    }
+
+    public void canceled(String jobId) {
+        append(event(CANCELED, jobId, entry -> { }));
+    }
+
+    public void deleted(String fileName) {
+        String jobId;
+        synchronized (this) {
+            jobId = jobs.values().stream()
+                    .filter(entry -> fileName.equals(entry.getFileName()))
+                    .map(JobJournalEntry::getJobId)
+                    .findFirst()
+                    .orElse(null);
+        }
+        if (jobId != null) {
+            append(event(DELETED, jobId, entry -> entry.setFileName(fileName)));
+        }
+    }
+
+    private static JobJournalEntry event(String event, String jobId, Consumer<JobJournalEntry> details) {
+        JobJournalEntry entry = new JobJournalEntry();
+        entry.setEvent(event);
+        entry.setJobId(jobId);
+        details.accept(entry);
+        return entry;
+    }
+
+    private synchronized void append(JobJournalEntry entry) {
+        if (channel == null || (!STARTED.equals(entry.getEvent()) && !jobs.containsKey(entry.getJobId()))) {
+            // Jobs that were never journaled (cookies, batch items, streams) have nothing to resume
+            return;
+        }
+        entry.setAt(System.currentTimeMillis());
+        apply(entry);
+        try {
+            write(channel, entry);
+            channel.force(false);
+            if (++appended >= compactAfter) {
+                compact();
+            }
+        } catch (IOException e) {
+            logger.error("Failed to append to job journal: {}, jobs will not survive restarts", file, e);
+            closeQuietly();
+        }
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    apply(objectMapper.readValue(line, JobJournalEntry.class));
+                } catch (IOException e) {
+                    // A crash in the middle of an append leaves a torn last line; anything before it is intact
+                    logger.warn("Skipping unreadable job journal record at line {}: {}", lineNumber, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void apply(JobJournalEntry entry) {
+        String jobId = entry.getJobId();
+        if (jobId == null || entry.getEvent() == null) {
+            return;
+        }
+        JobJournalEntry state = jobs.get(jobId);
+        switch (entry.getEvent()) {
+            case STARTED -> jobs.put(jobId, copy(entry));
+            case SUBSCRIBED -> {
+                if (state != null && !state.getSessions().contains(entry.getSessionId())) {
+                    state.getSessions().add(entry.getSessionId());
+                }
+            }
+            case UNSUBSCRIBED -> {
+                if (state != null) {
+                    state.getSessions().remove(entry.getSessionId());
+                }
+            }
+            case RESUMED -> {
+                if (state != null) {
+                    state.setAttempts(entry.getAttempts());
+                }
+            }
+            case FINISHED -> {
+                if (state == null) {
+                    // Written by a compaction, which keeps only the folded state
+                    jobs.put(jobId, copy(entry));
+                } else {
+                    state.setEvent(FINISHED);
+                    state.setSessions(new ArrayList<>(entry.getSessions()));
+                    state.setFileName(entry.getFileName());
+                    state.setDisplayName(entry.getDisplayName());
+                    state.setTitle(entry.getTitle());
+                    state.setThumbnail(entry.getThumbnail());
+                }
+            }
+            case FAILED, CANCELED, DELETED -> jobs.remove(jobId);
+            default -> logger.warn("Ignoring job journal record with unknown event: {}", entry.getEvent());
+        }
+    }
+
+    /** Rewrites the journal with one record per live job, then keeps appending to the new file. */
+    private void compact() throws IOException {
+        Path temp = file.resolveSibling(JOURNAL_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (JobJournalEntry entry : jobs.values()) {
+                write(out, entry);
+            }
+            out.force(true);
+        }
+        closeQuietly();
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        appended = 0;
+    }
+
+    private void write(FileChannel out, JobJournalEntry entry) throws IOException {
+        byte[] json = objectMapper.writeValueAsBytes(entry);
+        ByteBuffer buffer = ByteBuffer.allocate(json.length + 1).put(json).put((byte) '\n').flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private void closeQuietly() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close job journal: {}", e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    private static JobJournalEntry copy(JobJournalEntry entry) {
+        JobJournalEntry copy = new JobJournalEntry();
+        copy.setEvent(entry.getEvent());
+        copy.setJobId(entry.getJobId());
+        copy.setAt(entry.getAt());
+        copy.setKey(entry.getKey());
+        copy.setUrl(entry.getUrl());
+        copy.setPlatform(entry.getPlatform());
+        copy.setQuality(entry.getQuality());
+        copy.setFormat(entry.getFormat());
+        copy.setOutputFormat(entry.getOutputFormat());
+        copy.setSessions(new ArrayList<>(entry.getSessions()));
+        copy.setAttempts(entry.getAttempts());
+        copy.setFileName(entry.getFileName());
+        copy.setDisplayName(entry.getDisplayName());
+        copy.setTitle(entry.getTitle());
+        copy.setThumbnail(entry.getThumbnail());
+        return copy;
+    }
+}
@@ -0,0 +1,199 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.JobStatus;
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The latest state of every download job, for clients that poll {@code /api/jobs/{id}} or follow its event stream
+ * instead of (or after missing) the STOMP messages. A job is one snapshot that every update overwrites, so memory
+ * per job stays constant however long it runs, and a slow reader simply skips to the newest version. Finished jobs
+ * are forgotten {@code jobs.status.retention-minutes} after they end. Readers wait on a lock condition instead of
+ * the monitor so they do not pin their virtual thread's carrier.
+ */
+@Component
+public class JobStatusRegistry {
+    public static final String QUEUED = "queued";
+    public static final String RUNNING = "running";
+    public static final String FINISHED = "finished";
+    public static final String FAILED = "failed";
+    public static final String CANCELED = "canceled";
+
+    private final ConcurrentHashMap<String, Tracked> jobs = new ConcurrentHashMap<>();
+    private final long retentionMillis;
+
+    public JobStatusRegistry(@Value("${jobs.status.retention-minutes:60}") long retentionMinutes) {
+        this.retentionMillis = TimeUnit.MINUTES.toMillis(retentionMinutes);
+    }
+
+    public static boolean isDone(JobStatus status) {
+        return FINISHED.equals(status.getState()) || FAILED.equals(status.getState()) || CANCELED.equals(status.getState());
+    }
+
+    /** Starts tracking a job that is waiting for a download slot. */
+    public void queued(String jobId) {
+        jobs.computeIfAbsent(jobId, Tracked::new);
+    }
+
+    public void progress(String jobId, ProgressEvent event) {
+        update(jobId, status -> {
+            status.setState(RUNNING);
+            status.setStage(event.getStage());
+            status.setPercent(event.getPercent());
+            status.setDownloadedBytes(event.getDownloadedBytes());
+            status.setTotalBytes(event.getTotalBytes());
+            status.setSpeed(event.getSpeed());
+            status.setEta(event.getEta());
+        });
+    }
+
+    /** The last plain-text message sent to the job's sessions ("Queued: ...", "Progress: ..."). */
+    public void message(String jobId, String message) {
+        update(jobId, status -> status.setMessage(message));
+    }
+
+    /** Marks the job finished, tracking it first if it never ran (a reused or cached file). */
+    public void finished(String jobId, String fileName) {
+        jobs.computeIfAbsent(jobId, Tracked::new);
+        update(jobId, status -> {
+            status.setState(FINISHED);
+            status.setPercent(100.0);
+            status.setEta(null);
+            status.setSpeed(null);
+            status.setFileName(fileName);
+        });
+    }
+
+    public void failed(String jobId, String error) {
+        update(jobId, status -> {
+            status.setState(FAILED);
+            status.setError(error);
+        });
+    }
+
+    public void canceled(String jobId) {
+        update(jobId, status -> status.setState(CANCELED));
+    }
+
+    /** A copy of the job's current snapshot, or null when the job is unknown or long finished. */
+    public JobStatus get(String jobId) {
+        Tracked tracked = jobs.get(jobId);
+        return tracked != null ? tracked.snapshot() : null;
+    }
+
+    public boolean contains(String jobId) {
+        return jobs.containsKey(jobId);
+    }
+
+    public int size() {
+        return jobs.size();
+    }
+
+    /**
+     * Waits up to {@code timeout} for a snapshot newer than {@code seenVersion} and returns the current one either
+     * way (immediately once the job is done), or null when the job is unknown.
+     */
+    public JobStatus await(String jobId, long seenVersion, Duration timeout) throws InterruptedException {
+        Tracked tracked = jobs.get(jobId);
+        return tracked != null ? tracked.await(seenVersion, timeout) : null;
+    }
+
+    @Scheduled(fixedDelayString = "${jobs.status.prune-seconds:60}", timeUnit = TimeUnit.SECONDS)
+    public void prune() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        jobs.values().removeIf(tracked -> tracked.endedBefore(cutoff));
+    }
+
+    private void update(String jobId, Consumer<JobStatus> change) {
+        Tracked tracked = jobs.get(jobId);
+        if (tracked != null) {
+            tracked.update(change);
+        }
+    }
+
+    private static final class Tracked {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final JobStatus status = new JobStatus();
+
+        private Tracked(String jobId) {
+            status.setJobId(jobId);
+            status.setState(QUEUED);
+            status.setUpdatedAt(System.currentTimeMillis());
+        }
+
+        private void update(Consumer<JobStatus> change) {
+            lock.lock();
+            try {
+                // A late progress flush or message must not reopen a job that already ended
+                if (isDone(status)) {
+                    return;
+                }
+                change.accept(status);
+                status.setVersion(status.getVersion() + 1);
+                status.setUpdatedAt(System.currentTimeMillis());
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private JobStatus await(long seenVersion, Duration timeout) throws InterruptedException {
+            long remaining = timeout.toNanos();
+            lock.lock();
+            try {
+                while (status.getVersion() <= seenVersion && !isDone(status) && remaining > 0) {
+                    remaining = changed.awaitNanos(remaining);
+                }
+                return copy();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private JobStatus snapshot() {
+            lock.lock();
+            try {
+                return copy();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean endedBefore(long cutoff) {
+            lock.lock();
+            try {
+                return isDone(status) && status.getUpdatedAt() <= cutoff;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private JobStatus copy() {
+            JobStatus copy = new JobStatus();
+            copy.setJobId(status.getJobId());
+            copy.setVersion(status.getVersion());
+            copy.setState(status.getState());
+            copy.setStage(status.getStage());
+            copy.setPercent(status.getPercent());
+            copy.setDownloadedBytes(status.getDownloadedBytes());
+            copy.setTotalBytes(status.getTotalBytes());
+            copy.setSpeed(status.getSpeed());
+            copy.setEta(status.getEta());
+            copy.setMessage(status.getMessage());
+            copy.setFileName(status.getFileName());
+            copy.setError(status.getError());
+            copy.setUpdatedAt(status.getUpdatedAt());
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.MediaMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory metadata cache keyed by canonical URL. Entries expire after a TTL and the least recently used
+ * entry is evicted once the cache is full. Concurrent misses for the same URL share one extraction.
+ */
+@Component
+public class MetadataCache {
+    private static final Logger logger = LoggerFactory.getLogger(MetadataCache.class);
+
+    @Value("${metadata.cache.ttl-seconds:600}")
+    private long ttlSeconds;
+
+    @Value("${metadata.cache.max-entries:1000}")
+    private int maxEntries;
+
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentHashMap<String, CompletableFuture<MediaMetadata>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong collapsed = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    public MediaMetadata get(String url, Callable<MediaMetadata> loader) throws Exception {
+        String key = UrlCanonicalizer.canonicalize(url);
+        MediaMetadata cached = lookup(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        CompletableFuture<MediaMetadata> pending = new CompletableFuture<>();
+        CompletableFuture<MediaMetadata> existing = inFlight.putIfAbsent(key, pending);
+        if (existing != null) {
+            collapsed.incrementAndGet();
+            logger.debug("Joining in-flight metadata extraction for: {}", key);
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+
+        misses.incrementAndGet();
+        try {
+            MediaMetadata loaded = loader.call();
+            store(key, loaded);
+            pending.complete(loaded);
+            return loaded;
+        } catch (Exception e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, pending);
+        }
+    }
+
+    public void put(String url, MediaMetadata metadata) {
+        store(UrlCanonicalizer.canonicalize(url), metadata);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (entries) {
+            stats.put("size", entries.size());
+        }
+        stats.put("maxEntries", maxEntries);
+        stats.put("ttlSeconds", ttlSeconds);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("collapsed", collapsed.get());
+        stats.put("evictions", evictions.get());
+        stats.put("expirations", expirations.get());
+        return stats;
+    }
+
+    private MediaMetadata lookup(String key) {
+        synchronized (entries) {
+            CacheEntry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt < System.nanoTime()) {
+                entries.remove(key);
+                expirations.incrementAndGet();
+                return null;
+            }
+            return entry.metadata;
+        }
+    }
+
+    private void store(String key, MediaMetadata metadata) {
+        if (metadata == null) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(key, new CacheEntry(metadata, System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds)));
+            Iterator<CacheEntry> iterator = entries.values().iterator();
+            while (entries.size() > maxEntries && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static final class CacheEntry {
+        private final MediaMetadata metadata;
+        private final long expiresAt;
+
+        private CacheEntry(MediaMetadata metadata, long expiresAt) {
+            this.metadata = metadata;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
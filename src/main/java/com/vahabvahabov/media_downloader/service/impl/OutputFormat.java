@@ -0,0 +1,79 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The file types a download can be delivered as ({@code outputFormat} in the request). yt-dlp only fetches the raw
+ * streams; turning them into one of these is ffmpeg's job in the {@link PostProcessor}.
+ */
+public enum OutputFormat {
+    MP4("mp4", false, List.of("-c", "copy", "-strict", "-2", "-movflags", "+faststart")),
+    MKV("mkv", false, List.of("-c", "copy")),
+    M4A("m4a", true, List.of("-vn", "-c:a", "copy", "-strict", "-2", "-movflags", "+faststart")),
+    MP3("mp3", true, List.of("-vn", "-c:a", "libmp3lame", "-q:a", "2"));
+
+    private final String extension;
+    private final boolean audioOnly;
+    private final List<String> codecArguments;
+
+    OutputFormat(String extension, boolean audioOnly, List<String> codecArguments) {
+        this.extension = extension;
+        this.audioOnly = audioOnly;
+        this.codecArguments = codecArguments;
+    }
+
+    /** Null or blank means the default, MP4. Throws {@link IllegalArgumentException} for anything unknown. */
+    public static OutputFormat parse(String value) {
+        if (value == null || value.isBlank()) {
+            return MP4;
+        }
+        for (OutputFormat format : values()) {
+            if (format.extension.equalsIgnoreCase(value.trim())) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported output format: " + value + ". Use mp4, mkv, m4a or mp3.");
+    }
+
+    public String extension() {
+        return extension;
+    }
+
+    public boolean isAudioOnly() {
+        return audioOnly;
+    }
+
+    /** ffmpeg arguments between the inputs and the output file. */
+    public List<String> codecArguments() {
+        return codecArguments;
+    }
+
+    /**
+     * The yt-dlp format selector for a quality. Audio formats ignore the quality and prefer an m4a stream, which
+     * both audio outputs can use as it is (M4A) or encode from.
+     */
+    public String selector(String quality) {
+        if (audioOnly) {
+            return "bestaudio[ext=m4a]/bestaudio/best";
+        }
+        switch (quality == null ? "best" : quality) {
+            case "1080p":
+                return "bestvideo[height<=1080]+bestaudio/best";
+            case "720p":
+                return "bestvideo[height<=720]+bestaudio/best";
+            case "480p":
+                return "bestvideo[height<=480]+bestaudio/best";
+            case "360p":
+                return "bestvideo[height<=360]+bestaudio/best";
+            case "144p":
+                return "bestvideo[height<=144]+bestaudio/best";
+            default:
+                return "best";
+        }
+    }
+
+    public String tag() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
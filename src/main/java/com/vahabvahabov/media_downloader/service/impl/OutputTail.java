@@ -0,0 +1,34 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Ring buffer holding the last few lines of a process's output, with each line capped in length, so error
+ * reporting costs the same memory whether yt-dlp printed ten lines or ten million.
+ */
+public class OutputTail {
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private final int maxLines;
+    private final Deque<String> lines = new ArrayDeque<>();
+
+    public OutputTail(int maxLines) {
+        this.maxLines = Math.max(1, maxLines);
+    }
+
+    public synchronized void add(String line) {
+        if (line.length() > MAX_LINE_LENGTH) {
+            line = line.substring(0, MAX_LINE_LENGTH);
+        }
+        if (lines.size() == maxLines) {
+            lines.removeFirst();
+        }
+        lines.addLast(line);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.join("\n", lines);
+    }
+}
@@ -0,0 +1,29 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import java.util.Locale;
+
+/**
+ * The platforms the pipeline tells apart. The {@code platform} of a request is whatever the client sent, so it is
+ * mapped onto this fixed set before it becomes a metric tag or a map key; anything unrecognized is {@link #OTHER}.
+ */
+public enum Platform {
+    YOUTUBE, INSTAGRAM, TIKTOK, OTHER;
+
+    private final String tag = name().toLowerCase(Locale.ROOT);
+
+    public static Platform of(String value) {
+        if (value != null) {
+            for (Platform platform : values()) {
+                if (platform.tag.equalsIgnoreCase(value.trim())) {
+                    return platform;
+                }
+            }
+        }
+        return OTHER;
+    }
+
+    /** Lower-case name, as used in metric tags and logs. */
+    public String tag() {
+        return tag;
+    }
+}
@@ -0,0 +1,214 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * The CPU-bound stage of the pipeline: merging separately downloaded video and audio streams, extracting audio and
+ * remuxing into another container, all with ffmpeg. Jobs hand their raw streams over here once the transfer is done
+ * and give their download slot back, so conversions wait in their own bounded queue for one of
+ * {@code postprocess.max-concurrent} workers (one per core by default) instead of holding network slots.
+ */
+@Component
+public class PostProcessor {
+    private static final Logger logger = LoggerFactory.getLogger(PostProcessor.class);
+    private static final String OUT_TIME = "out_time_us=";
+
+    private final ProcessRunner processRunner;
+    private final DownloadMetrics metrics;
+    private final String ffmpegPath;
+    private final int maxConcurrent;
+    private final int queueCapacity;
+    private final Duration timeout;
+    private ThreadPoolExecutor executor;
+
+    public PostProcessor(ProcessRunner processRunner, DownloadMetrics metrics,
+                         @Value("${ffmpeg.path}") String ffmpegPath,
+                         @Value("${postprocess.max-concurrent:0}") int maxConcurrent,
+                         @Value("${postprocess.queue-capacity:100}") int queueCapacity,
+                         @Value("${postprocess.timeout-seconds:1800}") long timeoutSeconds) {
+        this.processRunner = processRunner;
+        this.metrics = metrics;
+        this.ffmpegPath = ffmpegPath;
+        this.maxConcurrent = maxConcurrent > 0 ? maxConcurrent : Runtime.getRuntime().availableProcessors();
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.timeout = Duration.ofSeconds(timeoutSeconds);
+    }
+
+    @PostConstruct
+    void init() {
+        executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueCapacity), Thread.ofPlatform().name("postprocess-", 0).factory());
+        metrics.registerPostProcessing(() -> executor.getQueue().size(), executor::getActiveCount);
+        logger.info("Post-processor started (workers: {}, queue capacity: {})", maxConcurrent, queueCapacity);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        // Jobs still waiting keep their raw streams and are converted when they resume after the restart, but their
+        // futures are settled now so nothing waits on a conversion that will never run
+        for (Runnable queued : executor.shutdownNow()) {
+            if (queued instanceof Conversion conversion) {
+                conversion.future.completeExceptionally(new CancellationException("Post-processing stopped by shutdown"));
+            }
+        }
+    }
+
+    /**
+     * Queues the conversion of {@code inputs} into {@code output}. The future fails with
+     * {@link CancellationException} once {@code canceled} returns true, and with {@link RejectedExecutionException}
+     * when the queue is full. Progress is reported when {@code durationSeconds} is known.
+     */
+    public CompletableFuture<Path> submit(String jobId, String platform, List<Path> inputs, OutputFormat format,
+                                          Path output, Number durationSeconds, BooleanSupplier canceled,
+                                          Consumer<ProgressEvent> progress) {
+        CompletableFuture<Path> future = new CompletableFuture<>();
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(new Conversion(future, () -> {
+                metrics.record(DownloadMetrics.STAGE_POSTPROCESS_QUEUE, platform, "success", System.nanoTime() - queuedAt);
+                return convert(jobId, platform, inputs, format, output, durationSeconds, canceled, progress);
+            }));
+        } catch (RejectedExecutionException e) {
+            logger.warn("Post-processing queue is full ({} waiting), rejecting job: {}", queueCapacity, jobId);
+            metrics.refusal("postprocess_queue_full");
+            future.completeExceptionally(new RejectedExecutionException(
+                    "The server is busy converting other downloads. Please try again in a few minutes."));
+        }
+        return future;
+    }
+
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    public int getRunningCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    private Path convert(String jobId, String platform, List<Path> inputs, OutputFormat format, Path output,
+                         Number durationSeconds, BooleanSupplier canceled, Consumer<ProgressEvent> progress)
+            throws IOException, InterruptedException {
+        if (canceled.getAsBoolean()) {
+            throw new CancellationException("Download canceled");
+        }
+        boolean merge = inputs.size() > 1 && !format.isAudioOnly();
+        String stage = merge ? DownloadMetrics.STAGE_MERGE : DownloadMetrics.STAGE_POSTPROCESS;
+        ProgressEvent started = ProgressParser.stageEvent(merge ? ProgressParser.STAGE_MERGING : ProgressParser.STAGE_POSTPROCESSING);
+        progress.accept(started);
+        double durationMicros = durationSeconds != null ? durationSeconds.doubleValue() * 1e6 : 0;
+
+        List<String> command = new ArrayList<>();
+        command.add(ffmpegPath);
+        command.add("-y");
+        command.add("-nostdin");
+        command.add("-hide_banner");
+        command.add("-loglevel");
+        command.add("error");
+        command.add("-nostats");
+        command.add("-progress");
+        command.add("pipe:1");
+        for (Path input : inputs) {
+            command.add("-i");
+            command.add(input.toString());
+        }
+        command.addAll(format.codecArguments());
+        command.add(output.toString());
+
+        Path logFile = output.resolveSibling(jobId + ".ffmpeg.log");
+        long startedAt = System.nanoTime();
+        String outcome = "failure";
+        Process process = null;
+        try {
+            process = processRunner.start(command, logFile, null);
+            Process running = process;
+            logger.info("Started {} to {} for job: {} (PID: {}, inputs: {})", merge ? "merge" : "conversion",
+                    format.extension(), jobId, process.pid(), inputs.size());
+            ProcessRunner.ProcessResult result = processRunner.follow(process, logFile, line -> {
+                if (line.startsWith(OUT_TIME) && durationMicros > 0) {
+                    ProgressEvent event = ProgressParser.stageEvent(started.getStage());
+                    try {
+                        double done = Long.parseLong(line.substring(OUT_TIME.length()).trim());
+                        event.setPercent(Math.min(100.0, Math.round(done * 1000 / durationMicros) / 10.0));
+                        progress.accept(event);
+                    } catch (NumberFormatException e) {
+                        // "N/A" until the first packet is written
+                    }
+                }
+            }, () -> {
+                // follow() waits for the exit once it stops reading, so a canceled conversion is killed first
+                if (canceled.getAsBoolean()) {
+                    running.destroyForcibly();
+                    return true;
+                }
+                return false;
+            }, timeout);
+
+            if (canceled.getAsBoolean()) {
+                outcome = "canceled";
+                throw new CancellationException("Download canceled");
+            }
+            if (result.isTimedOut()) {
+                outcome = "timeout";
+                metrics.timeout(stage);
+                throw new RuntimeException("Converting the download took too long and was stopped. Please try again later.");
+            }
+            if (result.getExitCode() != 0 || !Files.exists(output)) {
+                logger.warn("ffmpeg for job: {} exited with code: {}: {}", jobId, result.getExitCode(), result.getOutputTail().trim());
+                throw new RuntimeException("The download could not be converted to " + format.extension().toUpperCase(Locale.ROOT) + ".");
+            }
+            outcome = "success";
+            return output;
+        } finally {
+            // Canceled, interrupted by shutdown or failed: ffmpeg must not keep writing into the work directory
+            if (process != null && process.isAlive()) {
+                process.destroyForcibly();
+            }
+            metrics.record(stage, platform, outcome, System.nanoTime() - startedAt);
+            if (!"success".equals(outcome)) {
+                Files.deleteIfExists(output);
+            }
+            Files.deleteIfExists(logFile);
+        }
+    }
+
+    /** A queued conversion, kept as its own type so the tasks drained at shutdown can still fail their futures. */
+    private static final class Conversion implements Runnable {
+        private final CompletableFuture<Path> future;
+        private final Callable<Path> task;
+
+        private Conversion(CompletableFuture<Path> future, Callable<Path> task) {
+            this.future = future;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                future.complete(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+    }
+}
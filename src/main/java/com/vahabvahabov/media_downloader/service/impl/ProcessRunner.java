@@ -0,0 +1,202 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Starts and supervises yt-dlp processes from virtual threads. Child output is redirected to files, so
+ * stdout and stderr are drained concurrently by the kernel and a chatty stream can never fill a pipe and
+ * stall the child. Output is followed by polling, so no thread ever sits in a blocking pipe read, and exits
+ * are awaited through {@link Process#onExit()} rather than {@link Process#waitFor()}, which would pin the
+ * carrier thread. Timeouts are wall-clock deadlines covering the whole run, not just the final wait.
+ */
+@Component
+public class ProcessRunner {
+    private static final Logger logger = LoggerFactory.getLogger(ProcessRunner.class);
+
+    @Value("${process.output-poll-millis:100}")
+    private long outputPollMillis = 100;
+
+    @Value("${process.stderr-tail-lines:40}")
+    private int stderrTailLines = 40;
+
+    /**
+     * Starts the command with stdout redirected to {@code stdout} (or left as a pipe when null) and stderr
+     * redirected to {@code stderr} (or merged into stdout when null).
+     */
+    public Process start(List<String> command, Path stdout, Path stderr) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(command);
+        if (stdout != null) {
+            pb.redirectOutput(stdout.toFile());
+        }
+        if (stderr == null) {
+            pb.redirectErrorStream(true);
+        } else {
+            pb.redirectError(stderr.toFile());
+        }
+        return pb.start();
+    }
+
+    public Thread startVirtual(String name, Runnable task) {
+        return Thread.ofVirtual().name(name).start(task);
+    }
+
+    /**
+     * Runs the command to completion with stdout written to {@code stdout}, keeping only the tail of stderr.
+     */
+    public ProcessResult run(List<String> command, Path stdout, Duration timeout) throws IOException, InterruptedException {
+        Path stderr = Files.createTempFile("yt-dlp-", ".err");
+        try {
+            Process process = start(command, stdout, stderr);
+            boolean finished = awaitExit(process, timeout.toMillis(), TimeUnit.MILLISECONDS);
+            OutputTail tail = new OutputTail(stderrTailLines);
+            follow(process, stderr, tail::add, () -> false);
+            return new ProcessResult(finished ? process.exitValue() : -1, !finished, tail.toString());
+        } finally {
+            Files.deleteIfExists(stderr);
+        }
+    }
+
+    /**
+     * Feeds every line written to {@code output} to {@code lineConsumer} until the process exits (and the
+     * file is fully read) or {@code stop} returns true.
+     */
+    public void follow(Process process, Path output, Consumer<String> lineConsumer, BooleanSupplier stop)
+            throws IOException, InterruptedException {
+        follow(process, output, lineConsumer, stop, null);
+    }
+
+    /**
+     * Follows {@code output} like {@link #follow(Process, Path, Consumer, BooleanSupplier)}, then waits for
+     * the exit. The process is killed once {@code timeout} has passed, output reading included. The result
+     * carries the last lines of the output for error reporting.
+     */
+    public ProcessResult follow(Process process, Path output, Consumer<String> lineConsumer, BooleanSupplier stop,
+                                Duration timeout) throws IOException, InterruptedException {
+        long deadline = timeout == null ? Long.MAX_VALUE : System.nanoTime() + timeout.toNanos();
+        OutputTail tail = new OutputTail(stderrTailLines);
+        byte[] buffer = new byte[8192];
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        boolean timedOut = false;
+        try (InputStream in = Files.newInputStream(output)) {
+            while (!stop.getAsBoolean()) {
+                int read = in.read(buffer);
+                if (read > 0) {
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] == '\n') {
+                            emit(decodeLine(line), lineConsumer, tail);
+                            line.reset();
+                        } else {
+                            line.write(buffer[i]);
+                        }
+                    }
+                    continue;
+                }
+                if (!process.isAlive()) {
+                    // One more pass picks up anything written between the last read and the exit
+                    if (in.available() > 0) {
+                        continue;
+                    }
+                    break;
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    timedOut = true;
+                    logger.warn("Process {} exceeded its {} timeout, killing it", process.pid(), timeout);
+                    process.destroyForcibly();
+                    break;
+                }
+                Thread.sleep(outputPollMillis);
+            }
+        }
+        if (line.size() > 0) {
+            emit(decodeLine(line), lineConsumer, tail);
+        }
+        if (timeout == null) {
+            return new ProcessResult(process.isAlive() ? -1 : process.exitValue(), false, tail.toString());
+        }
+        long remaining = Math.max(0, deadline - System.nanoTime());
+        boolean finished = !timedOut && awaitExit(process, remaining, TimeUnit.NANOSECONDS);
+        return new ProcessResult(finished ? process.exitValue() : -1, !finished, tail.toString());
+    }
+
+    /**
+     * Waits for the process to exit. Returns false (after killing it) if it is still running when the
+     * timeout elapses.
+     */
+    public boolean awaitExit(Process process, long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            process.onExit().get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            logger.warn("Process {} did not exit within {} {}, killing it", process.pid(), timeout, unit);
+            process.destroyForcibly();
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Kills the process if it is still running after {@code timeout}, for callers that block on its stdout
+     * pipe and so cannot check a deadline themselves.
+     */
+    public void killAfter(Process process, Duration timeout) {
+        CompletableFuture.delayedExecutor(timeout.toMillis(), TimeUnit.MILLISECONDS).execute(() -> {
+            if (process.isAlive()) {
+                logger.warn("Process {} exceeded its {} timeout, killing it", process.pid(), timeout);
+                process.destroyForcibly();
+            }
+        });
+    }
+
+    private static void emit(String line, Consumer<String> lineConsumer, OutputTail tail) {
+        tail.add(line);
+        lineConsumer.accept(line);
+    }
+
+    private static String decodeLine(ByteArrayOutputStream line) {
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    public static final class ProcessResult {
+        private final int exitCode;
+        private final boolean timedOut;
+        private final String outputTail;
+
+        ProcessResult(int exitCode, boolean timedOut, String outputTail) {
+            this.exitCode = exitCode;
+            this.timedOut = timedOut;
+            this.outputTail = outputTail;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public String getOutputTail() {
+            return outputTail;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
+
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Rate-limits progress events for one job. Stage changes are always delivered, after the last suppressed event of
+ * the stage they end; events within a stage are delivered at most once per interval. The latest suppressed event
+ * goes out when the interval is over even if nothing follows it, or earlier with {@link #flush()}.
+ */
+public class ProgressCoalescer {
+    // One timer for every job: a trailing flush is only a few microseconds of work
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "progress-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long minIntervalNanos;
+    private final Consumer<ProgressEvent> sink;
+    private String lastStage;
+    private long lastEmitNanos;
+    private ProgressEvent pending;
+    private boolean flushScheduled;
+
+    public ProgressCoalescer(int maxEventsPerSecond, Consumer<ProgressEvent> sink) {
+        this.minIntervalNanos = maxEventsPerSecond > 0 ? 1_000_000_000L / maxEventsPerSecond : 0;
+        this.sink = sink;
+    }
+
+    public synchronized void offer(ProgressEvent event) {
+        long now = System.nanoTime();
+        boolean stageChanged = !Objects.equals(event.getStage(), lastStage);
+        if (stageChanged && pending != null) {
+            emit(pending, now);
+        }
+        if (stageChanged || now - lastEmitNanos >= minIntervalNanos) {
+            emit(event, now);
+        } else {
+            pending = event;
+            scheduleFlush(now);
+        }
+    }
+
+    public synchronized void flush() {
+        if (pending != null) {
+            emit(pending, System.nanoTime());
+        }
+    }
+
+    private void scheduleFlush(long now) {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            TIMER.schedule(this::flushIfDue, lastEmitNanos + minIntervalNanos - now, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private synchronized void flushIfDue() {
+        flushScheduled = false;
+        if (pending == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - lastEmitNanos >= minIntervalNanos) {
+            emit(pending, now);
+        } else {
+            // Something was emitted since this flush was scheduled; wait out the new interval
+            scheduleFlush(now);
+        }
+    }
+
+    private void emit(ProgressEvent event, long now) {
+        pending = null;
+        lastStage = event.getStage();
+        lastEmitNanos = now;
+        sink.accept(event);
+    }
+}
@@ -0,0 +1,92 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
+
+public final class ProgressParser {
+
+    public static final String PROGRESS_PREFIX = "[progress]|";
+
+    // status|downloaded_bytes|total_bytes|total_bytes_estimate|speed|eta
+    public static final String PROGRESS_TEMPLATE = "download:" + PROGRESS_PREFIX
+            + "%(progress.status)s|%(progress.downloaded_bytes)s|%(progress.total_bytes)s"
+            + "|%(progress.total_bytes_estimate)s|%(progress.speed)s|%(progress.eta)s";
+
+    public static final String STAGE_EXTRACTING = "extracting";
+    public static final String STAGE_DOWNLOADING = "downloading";
+    public static final String STAGE_MERGING = "merging";
+    public static final String STAGE_POSTPROCESSING = "postprocessing";
+
+    private ProgressParser() {
+    }
+
+    public static boolean isRelevant(String line) {
+        return line.startsWith(PROGRESS_PREFIX) || line.startsWith("[Merger]") || line.startsWith("[ExtractAudio]")
+                || line.startsWith("[VideoRemuxer]") || line.startsWith("[VideoConvertor]");
+    }
+
+    public static ProgressEvent parse(String line) {
+        if (line.startsWith(PROGRESS_PREFIX)) {
+            return parseProgress(line);
+        }
+        if (line.startsWith("[Merger]")) {
+            return stageEvent(STAGE_MERGING);
+        }
+        if (line.startsWith("[ExtractAudio]") || line.startsWith("[VideoRemuxer]") || line.startsWith("[VideoConvertor]")) {
+            return stageEvent(STAGE_POSTPROCESSING);
+        }
+        return null;
+    }
+
+    public static ProgressEvent stageEvent(String stage) {
+        ProgressEvent event = new ProgressEvent();
+        event.setStage(stage);
+        return event;
+    }
+
+    private static ProgressEvent parseProgress(String line) {
+        int start = PROGRESS_PREFIX.length();
+        String[] fields = new String[6];
+        for (int i = 0; i < fields.length; i++) {
+            int end = line.indexOf('|', start);
+            if (end < 0) {
+                end = line.length();
+            }
+            fields[i] = line.substring(start, end).trim();
+            start = Math.min(end + 1, line.length());
+        }
+
+        ProgressEvent event = new ProgressEvent();
+        event.setStage(STAGE_DOWNLOADING);
+        Long downloaded = parseLong(fields[1]);
+        Long total = parseLong(fields[2]);
+        if (total == null) {
+            total = parseLong(fields[3]);
+        }
+        event.setDownloadedBytes(downloaded);
+        event.setTotalBytes(total);
+        event.setSpeed(parseDouble(fields[4]));
+        event.setEta(parseLong(fields[5]));
+        if ("finished".equals(fields[0])) {
+            event.setPercent(100.0);
+        } else if (downloaded != null && total != null && total > 0) {
+            event.setPercent(Math.min(100.0, Math.round(downloaded * 1000.0 / total) / 10.0));
+        }
+        return event;
+    }
+
+    private static Long parseLong(String value) {
+        Double parsed = parseDouble(value);
+        return parsed == null ? null : parsed.longValue();
+    }
+
+    private static Double parseDouble(String value) {
+        if (value == null || value.isEmpty() || "NA".equals(value) || "None".equals(value)) {
+            return null;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads a single media file over plain HTTP inside the JVM, for formats where yt-dlp resolved a direct URL.
+ * The first request asks for the whole file as a range; if the server answers with a {@code Content-Range}, the
+ * file is preallocated and split into segments (one per {@code download.native.min-segment-bytes}, at most
+ * {@code download.native.max-segments}) that are fetched in parallel on virtual threads and written in place with
+ * positional {@link FileChannel} writes. A connection that finishes early takes over the second half of the
+ * segment with the most bytes left, so fast connections are not left idle behind a slow one. Each segment is
+ * retried on its own from where it stopped. Servers without range support are read in one sequential request.
+ */
+@Component
+public class RangeDownloader {
+    private static final Logger logger = LoggerFactory.getLogger(RangeDownloader.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long PROGRESS_INTERVAL_MILLIS = 250;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+    // Headers java.net.http sets itself and refuses to take from the caller
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("host", "connection", "content-length", "expect",
+            "upgrade", "accept-encoding", "range");
+
+    private final HttpClient httpClient;
+    private final int maxSegments;
+    private final long minSegmentBytes;
+    private final int maxRetries;
+    private final Duration requestTimeout;
+
+    public RangeDownloader(@Value("${download.native.max-segments:8}") int maxSegments,
+                           @Value("${download.native.min-segment-bytes:4194304}") long minSegmentBytes,
+                           @Value("${download.native.segment-retries:3}") int maxRetries,
+                           @Value("${download.native.request-timeout-seconds:30}") long requestTimeoutSeconds) {
+        this.maxSegments = Math.max(1, maxSegments);
+        // A split always leaves more than one buffer on both sides, so an in-flight write never crosses it
+        this.minSegmentBytes = Math.max(2L * BUFFER_SIZE, minSegmentBytes);
+        this.maxRetries = Math.max(0, maxRetries);
+        this.requestTimeout = Duration.ofSeconds(requestTimeoutSeconds);
+        this.httpClient = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(requestTimeout)
+                .build();
+    }
+
+    /**
+     * Downloads {@code media} to {@code target}, reporting progress to {@code progress} a few times a second, and
+     * returns the number of bytes written. {@code rateLimit} is read continuously, so a new limit applies at once
+     * (0 or less for none). Throws {@link CancellationException} once {@code canceled} returns true, and
+     * {@link TimeoutException} once {@code timeout} has passed.
+     */
+    public long download(InfoJsonReader.DirectMedia media, Path target, Consumer<ProgressEvent> progress,
+                         LongSupplier rateLimit, BooleanSupplier canceled, Duration timeout)
+            throws IOException, InterruptedException, TimeoutException {
+        return new Transfer(media, target, progress, rateLimit, canceled, System.nanoTime() + timeout.toNanos()).run();
+    }
+
+    private final class Transfer {
+        private final InfoJsonReader.DirectMedia media;
+        private final Path target;
+        private final Consumer<ProgressEvent> progress;
+        private final LongSupplier rateLimit;
+        private final BooleanSupplier canceled;
+        private final long deadline;
+        private final List<Segment> segments = new ArrayList<>();
+        private final AtomicLong downloaded = new AtomicLong();
+        // Closing a response stream does not wake a reader blocked on it, so the reading thread is kept to interrupt
+        private final Map<InputStream, Thread> openStreams = new ConcurrentHashMap<>();
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        private volatile boolean stopped;
+        private ExecutorService workers;
+        private long nextFreeNanos;
+        private FileChannel channel;
+        private long total = -1;
+
+        private Transfer(InfoJsonReader.DirectMedia media, Path target, Consumer<ProgressEvent> progress,
+                         LongSupplier rateLimit, BooleanSupplier canceled, long deadline) {
+            this.media = media;
+            this.target = target;
+            this.progress = progress;
+            this.rateLimit = rateLimit;
+            this.canceled = canceled;
+            this.deadline = deadline;
+        }
+
+        long run() throws IOException, InterruptedException, TimeoutException {
+            HttpResponse<InputStream> first = send(0, -1);
+            Segment firstSegment;
+            try (RandomAccessFile file = new RandomAccessFile(target.toFile(), "rw")) {
+                file.setLength(0);
+                channel = file.getChannel();
+                if (first.statusCode() == 206) {
+                    total = totalFromContentRange(first);
+                } else {
+                    total = first.headers().firstValueAsLong("Content-Length").orElse(-1);
+                }
+                boolean ranged = first.statusCode() == 206 && total > 0;
+                int count = ranged ? (int) Math.max(1, Math.min(maxSegments, total / minSegmentBytes)) : 1;
+                if (ranged) {
+                    file.setLength(total);
+                }
+                long end = ranged ? total : Long.MAX_VALUE;
+                for (int i = 0; i < count; i++) {
+                    segments.add(new Segment(end / count * i, i == count - 1 ? end : end / count * (i + 1), ranged));
+                }
+                firstSegment = segments.get(0);
+                logger.info("Native download of {} bytes to: {} in {} segment(s){}", total, target.getFileName(),
+                        count, ranged ? "" : " (no range support)");
+
+                try (ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+                    this.workers = workers;
+                    List<CompletableFuture<Void>> futures = new ArrayList<>();
+                    // Copied before any worker starts, since workers add segments when they split one
+                    for (Segment segment : List.copyOf(segments)) {
+                        InputStream body = segment == firstSegment ? first.body() : null;
+                        futures.add(CompletableFuture.runAsync(() -> work(segment, body), workers));
+                    }
+                    await(CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)));
+                }
+                if (total < 0) {
+                    total = downloaded.get();
+                }
+                if (downloaded.get() != total) {
+                    throw new IOException("Downloaded " + downloaded.get() + " of " + total + " bytes");
+                }
+                ProgressEvent finished = event(total, 0);
+                finished.setPercent(100.0);
+                progress.accept(finished);
+                return total;
+            } finally {
+                stopped = true;
+                first.body().close();
+            }
+        }
+
+        private void await(CompletableFuture<Void> all) throws IOException, InterruptedException, TimeoutException {
+            long lastBytes = 0;
+            long lastAt = System.nanoTime();
+            long lastProgressAt = lastAt;
+            double speed = 0;
+            while (true) {
+                try {
+                    all.get(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    long now = System.nanoTime();
+                    long bytes = downloaded.get();
+                    double sample = (bytes - lastBytes) * 1e9 / Math.max(1, now - lastAt);
+                    speed = speed == 0 ? sample : speed * 0.7 + sample * 0.3;
+                    if (bytes != lastBytes) {
+                        lastProgressAt = now;
+                    }
+                    lastBytes = bytes;
+                    lastAt = now;
+                    progress.accept(event(bytes, speed));
+                    if (canceled.getAsBoolean() || now - deadline > 0) {
+                        stop();
+                    } else if (now - lastProgressAt > requestTimeout.toNanos()) {
+                        logger.debug("Native download of {} stalled, reconnecting", target.getFileName());
+                        abortReads();
+                        lastProgressAt = now;
+                    }
+                } catch (ExecutionException e) {
+                    stop();
+                    Throwable cause = failure.get() != null ? failure.get() : e.getCause();
+                    Throwable error = cause instanceof CompletionException && cause.getCause() != null ? cause.getCause() : cause;
+                    if (error instanceof CancellationException canceledException) {
+                        throw canceledException;
+                    }
+                    if (error instanceof TimeoutException timeoutException) {
+                        throw timeoutException;
+                    }
+                    throw error instanceof IOException io ? io : new IOException(String.valueOf(error.getMessage()), error);
+                } catch (InterruptedException e) {
+                    stop();
+                    throw e;
+                }
+            }
+        }
+
+        private void stop() {
+            stopped = true;
+            abortReads();
+            workers.shutdownNow();
+        }
+
+        /** Drops every open connection; the workers reading them fail their read and retry from where they were. */
+        private void abortReads() {
+            openStreams.forEach((in, reader) -> {
+                closeQuietly(in);
+                reader.interrupt();
+            });
+        }
+
+        private ProgressEvent event(long bytes, double speed) {
+            ProgressEvent event = ProgressParser.stageEvent(ProgressParser.STAGE_DOWNLOADING);
+            event.setDownloadedBytes(bytes);
+            long size = total > 0 ? total : media.getSize() != null ? media.getSize() : -1;
+            if (size > 0) {
+                event.setTotalBytes(size);
+                event.setPercent(Math.min(100.0, Math.round(bytes * 1000.0 / size) / 10.0));
+                if (speed > 0) {
+                    event.setEta((long) ((size - bytes) / speed));
+                }
+            }
+            event.setSpeed(speed);
+            return event;
+        }
+
+        private void work(Segment segment, InputStream body) {
+            try {
+                int attempt = 0;
+                InputStream in = body;
+                while (segment != null) {
+                    checkRunning();
+                    try {
+                        if (!segment.isDone()) {
+                            if (in == null) {
+                                in = open(segment);
+                            }
+                            openStreams.put(in, Thread.currentThread());
+                            copy(segment, in);
+                        }
+                    } catch (IOException e) {
+                        checkRunning();
+                        // A stalled read aborted by await is retried like any dropped connection
+                        Thread.interrupted();
+                        if (++attempt > maxRetries || !segment.ranged) {
+                            throw new CompletionException(e);
+                        }
+                        logger.debug("Segment at {} of {} failed ({}), retry {} of {}", segment.position(),
+                                target.getFileName(), e.getMessage(), attempt, maxRetries);
+                        backoff(attempt);
+                        continue;
+                    } finally {
+                        if (in != null) {
+                            openStreams.remove(in);
+                            closeQuietly(in);
+                            in = null;
+                        }
+                    }
+                    attempt = 0;
+                    segment = segment.isDone() ? steal() : segment;
+                }
+            } catch (RuntimeException e) {
+                // The first failure is the one reported; the others are workers stopping because of it
+                failure.compareAndSet(null, e);
+                stop();
+                throw e;
+            }
+        }
+
+        private InputStream open(Segment segment) throws IOException {
+            HttpResponse<InputStream> response = send(segment.position(), segment.end());
+            if (response.statusCode() != 206) {
+                closeQuietly(response.body());
+                throw new IOException("Range request answered with HTTP " + response.statusCode());
+            }
+            return response.body();
+        }
+
+        private void copy(Segment segment, InputStream in) throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (true) {
+                checkRunning();
+                int read = in.read(buffer);
+                if (read < 0) {
+                    if (segment.end() == Long.MAX_VALUE) {
+                        segment.finish();
+                        return;
+                    }
+                    throw new IOException("Connection closed with " + (segment.end() - segment.position()) + " bytes left");
+                }
+                // The segment may have been split since the last read; anything past its new end is another's
+                long position = segment.position();
+                int length = (int) Math.min(read, segment.end() - position);
+                throttle(length);
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+                while (data.hasRemaining()) {
+                    channel.write(data, position + data.position());
+                }
+                segment.advance(length);
+                downloaded.addAndGet(length);
+                if (segment.isDone()) {
+                    return;
+                }
+            }
+        }
+
+        /** Splits the segment with the most bytes left and returns the second half, or null if none is worth it. */
+        private Segment steal() {
+            synchronized (segments) {
+                Segment largest = segments.stream()
+                        .filter(segment -> segment.ranged)
+                        .max(Comparator.comparingLong(Segment::remaining))
+                        .orElse(null);
+                if (largest == null || largest.remaining() < 2 * minSegmentBytes) {
+                    return null;
+                }
+                Segment stolen = largest.split();
+                segments.add(stolen);
+                return stolen;
+            }
+        }
+
+        private HttpResponse<InputStream> send(long from, long to) throws IOException {
+            HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(media.getUrl()))
+                    .timeout(requestTimeout)
+                    .header("Range", "bytes=" + from + "-" + (to == Long.MAX_VALUE || to < 0 ? "" : String.valueOf(to - 1)));
+            media.getHeaders().forEach((name, value) -> {
+                if (!RESTRICTED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                    request.header(name, value);
+                }
+            });
+            HttpResponse<InputStream> response;
+            try {
+                response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while requesting media", e);
+            }
+            if (response.statusCode() != 200 && response.statusCode() != 206) {
+                closeQuietly(response.body());
+                throw new IOException("Media request answered with HTTP " + response.statusCode());
+            }
+            return response;
+        }
+
+        private void throttle(int bytes) {
+            long rate = rateLimit.getAsLong();
+            if (rate <= 0) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                // Up to a quarter of a second of unused allowance carries over, so short stalls are made up
+                nextFreeNanos = Math.max(nextFreeNanos, now - TimeUnit.MILLISECONDS.toNanos(250));
+                wait = nextFreeNanos - now;
+                nextFreeNanos += (long) (bytes * 1e9 / rate);
+            }
+            if (wait > 0) {
+                sleep(wait);
+            }
+        }
+
+        private void backoff(int attempt) {
+            sleep(TimeUnit.MILLISECONDS.toNanos(500L * attempt));
+        }
+
+        private void sleep(long nanos) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Download interrupted");
+            }
+        }
+
+        private void checkRunning() {
+            if (canceled.getAsBoolean()) {
+                throw new CancellationException("Download canceled");
+            }
+            if (stopped) {
+                throw new CancellationException("Download stopped");
+            }
+            if (System.nanoTime() - deadline > 0) {
+                throw new CompletionException(new TimeoutException("The download took too long and was stopped. Please try again later."));
+            }
+        }
+    }
+
+    private static long totalFromContentRange(HttpResponse<?> response) {
+        Matcher matcher = CONTENT_RANGE.matcher(response.headers().firstValue("Content-Range").orElse(""));
+        if (!matcher.matches() || "*".equals(matcher.group(3)) || Long.parseLong(matcher.group(1)) != 0) {
+            return -1;
+        }
+        return Long.parseLong(matcher.group(3));
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException ignored) {
+            // Abandoned connection
+        }
+    }
+
+    /** A byte range of the target file. Its end moves down when another connection takes over part of it. */
+    private static final class Segment {
+        private final boolean ranged;
+        private long position;
+        private long end;
+        private boolean finished;
+
+        private Segment(long position, long end, boolean ranged) {
+            this.position = position;
+            this.end = end;
+            this.ranged = ranged;
+        }
+
+        synchronized long position() {
+            return position;
+        }
+
+        synchronized long end() {
+            return end;
+        }
+
+        synchronized long remaining() {
+            return end - position;
+        }
+
+        synchronized boolean isDone() {
+            return finished || position >= end;
+        }
+
+        synchronized void advance(long bytes) {
+            position += bytes;
+        }
+
+        synchronized void finish() {
+            finished = true;
+        }
+
+        synchronized Segment split() {
+            long middle = position + (end - position) / 2;
+            Segment second = new Segment(middle, end, ranged);
+            end = middle;
+            return second;
+        }
+    }
+}
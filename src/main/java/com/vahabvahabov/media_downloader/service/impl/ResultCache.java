@@ -0,0 +1,419 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vahabvahabov.media_downloader.model.CachedResult;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional on-disk cache of finished downloads, keyed by canonical URL + format. Files live in
+ * {@code <download.dir>/cache} next to a small JSON index, so cached results survive restarts. The cache is
+ * kept under a byte budget by evicting the least recently (or least frequently) used entries.
+ * <p>
+ * Every change to the cached files (replacing, evicting, dropping a corrupt one) and to the index happens on the
+ * single writer thread, so operations on the same key never interleave. Hits only update access statistics in
+ * memory; the index is rewritten for them at most once every {@value #INDEX_FLUSH_DELAY_SECONDS} seconds.
+ */
+@Component
+public class ResultCache {
+    private static final Logger logger = LoggerFactory.getLogger(ResultCache.class);
+    private static final String INDEX_FILE = "index.json";
+    private static final long INDEX_FLUSH_DELAY_SECONDS = 5;
+
+    private boolean enabled;
+    private final String downloadDir;
+    private final long maxBytes;
+    private final String evictionPolicy;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<String, CachedResult> entries = new HashMap<>();
+    private final Set<String> verified = new HashSet<>();
+    private final ScheduledThreadPoolExecutor writer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "result-cache-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Path cacheDir;
+    private long totalBytes;
+    private boolean indexDirty;
+    private boolean indexFlushScheduled;
+
+    public ResultCache(@Value("${result.cache.enabled:false}") boolean enabled,
+                       @Value("${download.dir:downloaded_videos}") String downloadDir,
+                       @Value("${result.cache.max-bytes:5368709120}") long maxBytes,
+                       @Value("${result.cache.eviction:lru}") String evictionPolicy) {
+        this.enabled = enabled;
+        this.downloadDir = downloadDir;
+        this.maxBytes = maxBytes;
+        this.evictionPolicy = evictionPolicy;
+        // A pending index flush is not worth waiting for at shutdown, which writes the index itself
+        writer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            return;
+        }
+        cacheDir = Paths.get(downloadDir, "cache");
+        try {
+            Files.createDirectories(cacheDir);
+            loadIndex();
+        } catch (IOException e) {
+            logger.error("Failed to initialize result cache in: {}, disabling it", cacheDir, e);
+            enabled = false;
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        // Pending moves, deletions and index writes are short; let them finish so the index matches the files
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Result cache writes still pending at shutdown, the index may be stale");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (enabled) {
+            flushIndex();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Lookup for request threads: only a size check, so an entry whose checksum has not been verified since startup
+     * is a miss here. The job started for that miss finds it with {@link #verifyAndLookup}.
+     */
+    public CachedResult lookup(String key) {
+        return lookup(key, false);
+    }
+
+    /**
+     * Lookup for download threads: the first hit on an entry after startup reads the whole file to check its
+     * SHA-256, later hits only check the size.
+     */
+    public CachedResult verifyAndLookup(String key) {
+        return lookup(key, true);
+    }
+
+    private CachedResult lookup(String key, boolean verify) {
+        if (!enabled) {
+            return null;
+        }
+        CachedResult entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null || (!verify && !verified.contains(key))) {
+                return null;
+            }
+        }
+        Path file = cacheDir.resolve(entry.getFileName());
+        if (!isIntact(entry, file)) {
+            logger.warn("Cached result for key: {} failed integrity check, dropping it", key);
+            remove(entry);
+            return null;
+        }
+        synchronized (this) {
+            entry.setLastAccessAt(System.currentTimeMillis());
+            entry.setHits(entry.getHits() + 1);
+        }
+        markIndexDirty();
+        return entry;
+    }
+
+    public void materialize(CachedResult entry, Path target) throws IOException {
+        Path source = cacheDir.resolve(entry.getFileName());
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public void store(String key, Path file, String displayName, String title, String thumbnail) {
+        if (!enabled) {
+            return;
+        }
+        String fileName = sha256Hex(key) + extensionOf(file);
+        Path cached = cacheDir.resolve(fileName);
+        // Linked right away, while the download is sure to exist, but under a name of its own: the cached file
+        // itself is only replaced on the writer thread
+        Path temp = cacheDir.resolve(fileName + "." + UUID.randomUUID() + ".tmp");
+        try {
+            if (Files.exists(cached) && Files.isSameFile(cached, file)) {
+                // Served from this cache in the first place
+                return;
+            }
+            try {
+                Files.createLink(temp, file);
+            } catch (UnsupportedOperationException | IOException e) {
+                Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to add {} to result cache: {}", file, e.getMessage());
+            deleteQuietly(temp);
+            return;
+        }
+
+        boolean queued = write(() -> {
+            try {
+                Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                // rename() leaves both names in place when they already are links to the same file
+                Files.deleteIfExists(temp);
+                CachedResult entry = new CachedResult();
+                entry.setKey(key);
+                entry.setFileName(fileName);
+                entry.setSize(Files.size(cached));
+                entry.setSha256(checksum(cached));
+                entry.setDisplayName(displayName);
+                entry.setTitle(title);
+                entry.setThumbnail(thumbnail);
+                entry.setCreatedAt(System.currentTimeMillis());
+                entry.setLastAccessAt(entry.getCreatedAt());
+                synchronized (this) {
+                    CachedResult previous = entries.put(key, entry);
+                    if (previous != null) {
+                        totalBytes -= previous.getSize();
+                    }
+                    totalBytes += entry.getSize();
+                    verified.add(key);
+                }
+                logger.info("Cached result for key: {} ({} bytes)", key, entry.getSize());
+                evictOverBudget();
+                writeIndex();
+            } catch (IOException e) {
+                logger.warn("Failed to index cached result: {}", cached, e);
+                deleteQuietly(temp);
+            }
+        });
+        if (!queued) {
+            deleteQuietly(temp);
+        }
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("entries", entries.size());
+        stats.put("bytes", totalBytes);
+        stats.put("maxBytes", maxBytes);
+        stats.put("eviction", evictionPolicy);
+        return stats;
+    }
+
+    private boolean isIntact(CachedResult entry, Path file) {
+        try {
+            if (!Files.exists(file) || Files.size(file) != entry.getSize()) {
+                return false;
+            }
+            synchronized (this) {
+                if (verified.contains(entry.getKey())) {
+                    return true;
+                }
+            }
+            // Full checksum only on the first hit after startup; later hits trust the size check
+            if (!checksum(file).equals(entry.getSha256())) {
+                return false;
+            }
+            synchronized (this) {
+                verified.add(entry.getKey());
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void evictOverBudget() {
+        List<CachedResult> evicted = new ArrayList<>();
+        synchronized (this) {
+            Comparator<CachedResult> order = "lfu".equalsIgnoreCase(evictionPolicy)
+                    ? Comparator.comparingLong(CachedResult::getHits).thenComparingLong(CachedResult::getLastAccessAt)
+                    : Comparator.comparingLong(CachedResult::getLastAccessAt);
+            PriorityQueue<CachedResult> candidates = new PriorityQueue<>(order);
+            candidates.addAll(entries.values());
+            while (totalBytes > maxBytes && !candidates.isEmpty()) {
+                CachedResult victim = candidates.poll();
+                entries.remove(victim.getKey());
+                verified.remove(victim.getKey());
+                totalBytes -= victim.getSize();
+                evicted.add(victim);
+            }
+        }
+        for (CachedResult victim : evicted) {
+            deleteQuietly(cacheDir.resolve(victim.getFileName()));
+            logger.info("Evicted cached result for key: {} ({} bytes)", victim.getKey(), victim.getSize());
+        }
+    }
+
+    private void remove(CachedResult entry) {
+        synchronized (this) {
+            if (entries.remove(entry.getKey(), entry)) {
+                totalBytes -= entry.getSize();
+                verified.remove(entry.getKey());
+            }
+        }
+        write(() -> {
+            synchronized (this) {
+                CachedResult current = entries.get(entry.getKey());
+                if (current != null && current.getFileName().equals(entry.getFileName())) {
+                    // Stored again since; the file now belongs to the new entry
+                    return;
+                }
+            }
+            deleteQuietly(cacheDir.resolve(entry.getFileName()));
+            writeIndex();
+        });
+    }
+
+    private void markIndexDirty() {
+        synchronized (this) {
+            indexDirty = true;
+            if (indexFlushScheduled) {
+                return;
+            }
+            indexFlushScheduled = true;
+        }
+        try {
+            writer.schedule(this::flushIndex, INDEX_FLUSH_DELAY_SECONDS, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down; the final flush in shutdown() picks the change up if it has not run yet
+            synchronized (this) {
+                indexFlushScheduled = false;
+            }
+        }
+    }
+
+    private void flushIndex() {
+        synchronized (this) {
+            indexFlushScheduled = false;
+            if (!indexDirty) {
+                return;
+            }
+        }
+        writeIndex();
+    }
+
+    /** Queues a change for the writer thread; returns false once the cache is shutting down. */
+    private boolean write(Runnable change) {
+        try {
+            writer.execute(change);
+            return true;
+        } catch (RejectedExecutionException e) {
+            logger.debug("Result cache is shutting down, skipping a write");
+            return false;
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        Path index = cacheDir.resolve(INDEX_FILE);
+        List<CachedResult> loaded = new ArrayList<>();
+        if (Files.exists(index)) {
+            try {
+                loaded = objectMapper.readValue(index.toFile(), new TypeReference<List<CachedResult>>() {});
+            } catch (IOException e) {
+                logger.warn("Result cache index is unreadable, starting empty: {}", e.getMessage());
+            }
+        }
+
+        Set<String> known = new HashSet<>();
+        synchronized (this) {
+            for (CachedResult entry : loaded) {
+                Path file = cacheDir.resolve(entry.getFileName());
+                if (Files.exists(file) && Files.size(file) == entry.getSize()) {
+                    entries.put(entry.getKey(), entry);
+                    totalBytes += entry.getSize();
+                    known.add(entry.getFileName());
+                }
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheDir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!name.equals(INDEX_FILE) && !known.contains(name)) {
+                    deleteQuietly(file);
+                }
+            }
+        }
+        logger.info("Result cache loaded: {} entries, {} bytes", entries.size(), totalBytes);
+        evictOverBudget();
+        writeIndex();
+    }
+
+    private void writeIndex() {
+        Path index = cacheDir.resolve(INDEX_FILE);
+        Path temp = cacheDir.resolve(INDEX_FILE + ".tmp");
+        try {
+            byte[] snapshot;
+            synchronized (this) {
+                snapshot = objectMapper.writeValueAsBytes(new ArrayList<>(entries.values()));
+                indexDirty = false;
+            }
+            Files.write(temp, snapshot);
+            Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Failed to write result cache index: {}", index, e);
+        }
+    }
+
+    private static String checksum(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static String sha256Hex(String value) {
+        return HexFormat.of().formatHex(sha256().digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String extensionOf(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 ? name.substring(dot) : "";
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Failed to delete cached file: {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a ZIP archive of STORED (uncompressed) entries straight to an output stream. Media files are already
+ * compressed, so entries are copied with {@link FileChannel#transferTo} instead of being run through a
+ * deflater, and nothing is buffered on disk. Each entry's CRC must be known up front (see {@link #crc32}),
+ * which lets the local headers carry exact sizes and keeps the archive readable by streaming unzip tools.
+ * ZIP64 records are written when an entry, an offset or the entry count outgrows the classic format.
+ */
+public class StoredZipWriter {
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRY_LIMIT = 0xFFFF;
+    private static final int UTF8_FLAG = 1 << 11;
+
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+    private final List<CentralEntry> written = new ArrayList<>();
+    private long offset;
+
+    public StoredZipWriter(OutputStream out) {
+        this.out = out;
+        this.channel = Channels.newChannel(out);
+    }
+
+    public static long crc32(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    public void addEntry(String name, Path file, long size, long crc) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int dosTime = dosTime(Files.getLastModifiedTime(file).toMillis());
+        boolean zip64 = size >= ZIP64_LIMIT;
+
+        ByteBuffer header = buffer(30 + nameBytes.length + (zip64 ? 20 : 0));
+        header.putInt(0x04034b50);
+        header.putShort((short) (zip64 ? 45 : 20));
+        header.putShort((short) UTF8_FLAG);
+        header.putShort((short) 0);
+        header.putInt(dosTime);
+        header.putInt((int) crc);
+        header.putInt((int) (zip64 ? ZIP64_LIMIT : size));
+        header.putInt((int) (zip64 ? ZIP64_LIMIT : size));
+        header.putShort((short) nameBytes.length);
+        header.putShort((short) (zip64 ? 20 : 0));
+        header.put(nameBytes);
+        if (zip64) {
+            header.putShort((short) 0x0001);
+            header.putShort((short) 16);
+            header.putLong(size);
+            header.putLong(size);
+        }
+        written.add(new CentralEntry(nameBytes, dosTime, crc, size, offset));
+        write(header);
+
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < size) {
+                long sent = in.transferTo(position, size - position, channel);
+                if (sent <= 0) {
+                    throw new IOException("File shrank while archiving: " + file);
+                }
+                position += sent;
+            }
+        }
+        offset += size;
+        out.flush();
+    }
+
+    public void finish() throws IOException {
+        long centralStart = offset;
+        for (CentralEntry entry : written) {
+            boolean sizeZip64 = entry.size >= ZIP64_LIMIT;
+            boolean offsetZip64 = entry.offset >= ZIP64_LIMIT;
+            int extraLength = (sizeZip64 || offsetZip64) ? 4 + (sizeZip64 ? 16 : 0) + (offsetZip64 ? 8 : 0) : 0;
+
+            ByteBuffer header = buffer(46 + entry.name.length + extraLength);
+            header.putInt(0x02014b50);
+            header.putShort((short) 45);
+            header.putShort((short) (extraLength > 0 ? 45 : 20));
+            header.putShort((short) UTF8_FLAG);
+            header.putShort((short) 0);
+            header.putInt(entry.dosTime);
+            header.putInt((int) entry.crc);
+            header.putInt((int) (sizeZip64 ? ZIP64_LIMIT : entry.size));
+            header.putInt((int) (sizeZip64 ? ZIP64_LIMIT : entry.size));
+            header.putShort((short) entry.name.length);
+            header.putShort((short) extraLength);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putInt(0);
+            header.putInt((int) (offsetZip64 ? ZIP64_LIMIT : entry.offset));
+            header.put(entry.name);
+            if (extraLength > 0) {
+                header.putShort((short) 0x0001);
+                header.putShort((short) (extraLength - 4));
+                if (sizeZip64) {
+                    header.putLong(entry.size);
+                    header.putLong(entry.size);
+                }
+                if (offsetZip64) {
+                    header.putLong(entry.offset);
+                }
+            }
+            write(header);
+        }
+        long centralSize = offset - centralStart;
+
+        boolean zip64 = written.size() >= ZIP64_ENTRY_LIMIT || centralStart >= ZIP64_LIMIT || centralSize >= ZIP64_LIMIT;
+        if (zip64) {
+            long zip64EndOffset = offset;
+            ByteBuffer end64 = buffer(56 + 20);
+            end64.putInt(0x06064b50);
+            end64.putLong(44);
+            end64.putShort((short) 45);
+            end64.putShort((short) 45);
+            end64.putInt(0);
+            end64.putInt(0);
+            end64.putLong(written.size());
+            end64.putLong(written.size());
+            end64.putLong(centralSize);
+            end64.putLong(centralStart);
+            end64.putInt(0x07064b50);
+            end64.putInt(0);
+            end64.putLong(zip64EndOffset);
+            end64.putInt(1);
+            write(end64);
+        }
+
+        ByteBuffer end = buffer(22);
+        end.putInt(0x06054b50);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) Math.min(written.size(), ZIP64_ENTRY_LIMIT));
+        end.putShort((short) Math.min(written.size(), ZIP64_ENTRY_LIMIT));
+        end.putInt((int) Math.min(centralSize, ZIP64_LIMIT));
+        end.putInt((int) Math.min(centralStart, ZIP64_LIMIT));
+        end.putShort((short) 0);
+        write(end);
+        out.flush();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        offset += buffer.remaining();
+        out.write(buffer.array(), 0, buffer.remaining());
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int dosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25
+                | time.getMonthValue() << 21
+                | time.getDayOfMonth() << 16
+                | time.getHour() << 11
+                | time.getMinute() << 5
+                | time.getSecond() >> 1;
+    }
+
+    private static final class CentralEntry {
+        private final byte[] name;
+        private final int dosTime;
+        private final long crc;
+        private final long size;
+        private final long offset;
+
+        private CentralEntry(byte[] name, int dosTime, long crc, long size, long offset) {
+            this.name = name;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+}
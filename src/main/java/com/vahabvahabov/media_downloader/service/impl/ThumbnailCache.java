@@ -0,0 +1,530 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Local copies of media thumbnails. The thumbnail URL from the info JSON is fetched once, right after extraction,
+ * and ffmpeg writes resized variants ({@code thumbnails.widths}, never upscaled) as WebP and JPEG into
+ * {@code <download.dir>/thumbnails/<key>}, where the key is a hash of the source URL. The directories are kept
+ * under {@code thumbnails.max-bytes} by evicting the least recently served ones, and the most recently served
+ * variants are also held in memory up to {@code thumbnails.memory-max-bytes}. A variant never changes once
+ * written, so it is served with a strong ETag and as immutable.
+ */
+@Component
+public class ThumbnailCache {
+    private static final Logger logger = LoggerFactory.getLogger(ThumbnailCache.class);
+    private static final String SOURCE_FILE = "source.url";
+    private static final int MAX_REMEMBERED_SOURCES = 10_000;
+    private static final long RETRY_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final String USER_AGENT =
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.124 Safari/537.36";
+
+    public static final String WEBP = "webp";
+    public static final String JPEG = "jpg";
+
+    private final ProcessRunner processRunner;
+    private final String ffmpegPath;
+    private final Path cacheDir;
+    private final List<Integer> widths;
+    private final long maxBytes;
+    private final long memoryMaxBytes;
+    private final long maxSourceBytes;
+    private final Duration timeout;
+    private final Semaphore permits;
+    private final HttpClient httpClient;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    // Sources seen since startup, for redirecting to the original when a fetch failed, and when those failures were
+    private final LinkedHashMap<String, String> sources = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentHashMap<String, Long> failedAt = new ConcurrentHashMap<>();
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile boolean enabled;
+    private volatile boolean webpUnsupported;
+    private long totalBytes;
+    private long memoryBytes;
+
+    public ThumbnailCache(ProcessRunner processRunner,
+                          @Value("${ffmpeg.path}") String ffmpegPath,
+                          @Value("${download.dir:downloaded_videos}") String downloadDir,
+                          @Value("${thumbnails.enabled:true}") boolean enabled,
+                          @Value("${thumbnails.widths:320,640}") List<Integer> widths,
+                          @Value("${thumbnails.max-bytes:268435456}") long maxBytes,
+                          @Value("${thumbnails.memory-max-bytes:16777216}") long memoryMaxBytes,
+                          @Value("${thumbnails.max-source-bytes:10485760}") long maxSourceBytes,
+                          @Value("${thumbnails.max-concurrent:2}") int maxConcurrent,
+                          @Value("${thumbnails.timeout-seconds:20}") long timeoutSeconds) {
+        this.processRunner = processRunner;
+        this.ffmpegPath = ffmpegPath;
+        this.cacheDir = Paths.get(downloadDir, "thumbnails");
+        this.enabled = enabled;
+        this.widths = widths.stream().filter(width -> width > 0).sorted().distinct().toList();
+        this.maxBytes = maxBytes;
+        this.memoryMaxBytes = memoryMaxBytes;
+        this.maxSourceBytes = maxSourceBytes;
+        this.timeout = Duration.ofSeconds(timeoutSeconds);
+        this.permits = new Semaphore(Math.max(1, maxConcurrent));
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            return;
+        }
+        if (widths.isEmpty()) {
+            logger.warn("No thumbnail widths configured, thumbnails are served from their original URLs");
+            enabled = false;
+            return;
+        }
+        try {
+            Files.createDirectories(cacheDir);
+            load();
+        } catch (IOException e) {
+            logger.error("Failed to initialize thumbnail cache in: {}, disabling it", cacheDir, e);
+            enabled = false;
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        enabled = false;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The URL the UI should load for {@code sourceUrl}: the local endpoint when the cache is on, the original
+     * otherwise. Starts fetching it if that has not happened yet.
+     */
+    public String localUrl(String sourceUrl) {
+        if (!enabled || !isHttp(sourceUrl)) {
+            return sourceUrl;
+        }
+        String key = keyOf(sourceUrl);
+        prefetch(key, sourceUrl);
+        return "/api/thumbnails/" + key;
+    }
+
+    /** Fetches and resizes {@code sourceUrl} in the background, once; later calls for the same URL are no-ops. */
+    public void prefetch(String sourceUrl) {
+        if (enabled && isHttp(sourceUrl)) {
+            prefetch(keyOf(sourceUrl), sourceUrl);
+        }
+    }
+
+    /**
+     * The variant of {@code key} closest to {@code width} (the smallest one at least that wide, the largest when
+     * none is, or the largest when {@code width} is null) in {@code format}, or in JPEG when that format could not
+     * be produced. Waits for a fetch that is still running. Returns null when there is nothing to serve.
+     */
+    public Variant get(String key, Integer width, String format) throws InterruptedException {
+        if (!enabled || !isKey(key)) {
+            return null;
+        }
+        CompletableFuture<Boolean> pending = inFlight.get(key);
+        if (pending != null) {
+            try {
+                pending.get(timeout.toMillis() * 2, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                return null;
+            }
+        }
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            entry.lastAccess = System.currentTimeMillis();
+        }
+
+        int chosen = chooseWidth(width);
+        for (String candidate : format.equals(JPEG) ? List.of(JPEG) : List.of(format, JPEG)) {
+            String name = variantName(chosen, candidate);
+            byte[] bytes = fromMemory(key + "/" + name);
+            if (bytes != null) {
+                memoryHits.incrementAndGet();
+                return new Variant(key, name, candidate, bytes);
+            }
+            Path file = cacheDir.resolve(key).resolve(name);
+            try {
+                bytes = Files.readAllBytes(file);
+            } catch (NoSuchFileException e) {
+                continue;
+            } catch (IOException e) {
+                logger.warn("Failed to read thumbnail: {}", file, e);
+                continue;
+            }
+            touch(cacheDir.resolve(key));
+            toMemory(key + "/" + name, bytes);
+            diskHits.incrementAndGet();
+            return new Variant(key, name, candidate, bytes);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /** The original URL of {@code key}, for redirecting clients when no variant could be made. */
+    public String sourceOf(String key) {
+        if (!isKey(key)) {
+            return null;
+        }
+        synchronized (this) {
+            String source = sources.get(key);
+            if (source != null) {
+                return source;
+            }
+        }
+        try {
+            String source = Files.readString(cacheDir.resolve(key).resolve(SOURCE_FILE), StandardCharsets.UTF_8).trim();
+            return isHttp(source) ? source : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        synchronized (this) {
+            stats.put("entries", entries.size());
+            stats.put("bytes", totalBytes);
+            stats.put("maxBytes", maxBytes);
+            stats.put("memoryBytes", memoryBytes);
+            stats.put("memoryMaxBytes", memoryMaxBytes);
+        }
+        stats.put("memoryHits", memoryHits.get());
+        stats.put("diskHits", diskHits.get());
+        stats.put("misses", misses.get());
+        stats.put("fetches", fetches.get());
+        stats.put("failures", failures.get());
+        return stats;
+    }
+
+    private void prefetch(String key, String sourceUrl) {
+        synchronized (this) {
+            sources.put(key, sourceUrl);
+            if (sources.size() > MAX_REMEMBERED_SOURCES) {
+                sources.remove(sources.keySet().iterator().next());
+            }
+            if (entries.containsKey(key)) {
+                return;
+            }
+        }
+        Long failed = failedAt.get(key);
+        if (failed != null && System.currentTimeMillis() - failed < RETRY_AFTER_MILLIS) {
+            return;
+        }
+        CompletableFuture<Boolean> pending = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(key, pending) != null) {
+            return;
+        }
+        Thread.ofVirtual().name("thumbnail-" + key).start(() -> {
+            boolean fetched = false;
+            try {
+                fetched = fetch(key, sourceUrl);
+            } catch (InterruptedException e) {
+                // Shutting down
+            } finally {
+                if (fetched) {
+                    failedAt.remove(key);
+                } else {
+                    if (failedAt.size() > MAX_REMEMBERED_SOURCES) {
+                        failedAt.clear();
+                    }
+                    failedAt.put(key, System.currentTimeMillis());
+                }
+                pending.complete(fetched);
+                inFlight.remove(key, pending);
+            }
+        });
+    }
+
+    private boolean fetch(String key, String sourceUrl) throws InterruptedException {
+        Path dir = cacheDir.resolve(key);
+        Path original = null;
+        boolean cached = false;
+        permits.acquire();
+        try {
+            fetches.incrementAndGet();
+            Files.createDirectories(dir);
+            Files.writeString(dir.resolve(SOURCE_FILE), sourceUrl, StandardCharsets.UTF_8);
+            original = download(sourceUrl, dir);
+            String error = resize(original, dir, JPEG);
+            if (error != null) {
+                throw new IOException("ffmpeg: " + error);
+            }
+            if (!webpUnsupported) {
+                error = resize(original, dir, WEBP);
+                if (error != null) {
+                    // The same image made a JPEG, so this ffmpeg has no WebP encoder
+                    webpUnsupported = true;
+                    logger.warn("ffmpeg could not write WebP thumbnails, serving JPEG only: {}", error);
+                }
+            }
+            add(key, sizeOf(dir));
+            cached = true;
+            logger.debug("Cached thumbnail: {} from {}", key, sourceUrl);
+            return true;
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            logger.warn("Failed to cache thumbnail: {}: {}", sourceUrl, e.getMessage());
+            return false;
+        } finally {
+            permits.release();
+            if (original != null) {
+                deleteQuietly(original);
+            }
+            if (!cached) {
+                deleteDirectory(dir);
+            }
+        }
+    }
+
+    private Path download(String sourceUrl, Path dir) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(sourceUrl))
+                .timeout(timeout)
+                .header("User-Agent", USER_AGENT)
+                .build();
+        HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        Path original = dir.resolve("original.part");
+        try (InputStream in = response.body(); OutputStream out = Files.newOutputStream(original)) {
+            if (response.statusCode() != 200) {
+                throw new IOException("HTTP " + response.statusCode());
+            }
+            byte[] buffer = new byte[16 * 1024];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+                if (total > maxSourceBytes) {
+                    throw new IOException("larger than " + maxSourceBytes + " bytes");
+                }
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            deleteQuietly(original);
+            throw e;
+        }
+        return original;
+    }
+
+    /** One ffmpeg run writes every width in {@code format}; returns why it failed, or null. */
+    private String resize(Path original, Path dir, String format) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(ffmpegPath, "-y", "-nostdin", "-hide_banner", "-loglevel", "error",
+                "-i", original.toString()));
+        for (int width : widths) {
+            command.addAll(List.of("-map", "0:v:0", "-frames:v", "1", "-vf", "scale='min(" + width + ",iw)':-2"));
+            command.addAll(format.equals(WEBP)
+                    ? List.of("-c:v", "libwebp", "-quality", "80")
+                    : List.of("-c:v", "mjpeg", "-q:v", "4"));
+            command.add(dir.resolve(variantName(width, "part." + format)).toString());
+        }
+
+        Path log = dir.resolve("ffmpeg-" + format + ".log");
+        try {
+            ProcessRunner.ProcessResult result = processRunner.run(command, log, timeout);
+            if (result.getExitCode() != 0) {
+                return result.isTimedOut() ? "timed out" : result.getOutputTail().trim();
+            }
+            for (int width : widths) {
+                Files.move(dir.resolve(variantName(width, "part." + format)), dir.resolve(variantName(width, format)),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return null;
+        } finally {
+            deleteQuietly(log);
+            for (int width : widths) {
+                deleteQuietly(dir.resolve(variantName(width, "part." + format)));
+            }
+        }
+    }
+
+    private void add(String key, long size) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Entry previous = entries.put(key, new Entry(size, System.currentTimeMillis()));
+            totalBytes += size - (previous != null ? previous.size : 0);
+            if (totalBytes > maxBytes) {
+                List<Map.Entry<String, Entry>> candidates = new ArrayList<>(entries.entrySet());
+                candidates.sort(Comparator.comparingLong(candidate -> candidate.getValue().lastAccess));
+                for (Map.Entry<String, Entry> candidate : candidates) {
+                    if (totalBytes <= maxBytes || candidate.getKey().equals(key)) {
+                        break;
+                    }
+                    entries.remove(candidate.getKey());
+                    totalBytes -= candidate.getValue().size;
+                    evicted.add(candidate.getKey());
+                }
+            }
+            if (!evicted.isEmpty()) {
+                memory.keySet().removeIf(name -> evicted.contains(name.substring(0, name.indexOf('/'))));
+                memoryBytes = memory.values().stream().mapToLong(bytes -> bytes.length).sum();
+            }
+        }
+        for (String victim : evicted) {
+            deleteDirectory(cacheDir.resolve(victim));
+            logger.debug("Evicted thumbnail: {}", victim);
+        }
+    }
+
+    private void load() throws IOException {
+        long loaded = 0;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(cacheDir)) {
+            for (Path dir : dirs) {
+                String key = dir.getFileName().toString();
+                boolean complete = isKey(key) && Files.isDirectory(dir)
+                        && widths.stream().allMatch(width -> Files.exists(dir.resolve(variantName(width, JPEG))));
+                if (!complete) {
+                    // Interrupted fetches, and variants for widths that are no longer configured
+                    deleteDirectory(dir);
+                    continue;
+                }
+                long lastAccess = Files.getLastModifiedTime(dir).toMillis();
+                synchronized (this) {
+                    entries.put(key, new Entry(sizeOf(dir), lastAccess));
+                    totalBytes += entries.get(key).size;
+                }
+                loaded++;
+            }
+        }
+        logger.info("Thumbnail cache loaded: {} thumbnail(s), {} bytes", loaded, totalBytes);
+    }
+
+    private byte[] fromMemory(String name) {
+        synchronized (this) {
+            return memory.get(name);
+        }
+    }
+
+    private void toMemory(String name, byte[] bytes) {
+        if (bytes.length > memoryMaxBytes) {
+            return;
+        }
+        synchronized (this) {
+            byte[] previous = memory.put(name, bytes);
+            memoryBytes += bytes.length - (previous != null ? previous.length : 0);
+            Iterator<byte[]> iterator = memory.values().iterator();
+            while (memoryBytes > memoryMaxBytes && iterator.hasNext()) {
+                memoryBytes -= iterator.next().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private int chooseWidth(Integer width) {
+        if (width != null) {
+            for (int candidate : widths) {
+                if (candidate >= width) {
+                    return candidate;
+                }
+            }
+        }
+        return widths.get(widths.size() - 1);
+    }
+
+    private static String variantName(int width, String extension) {
+        return "w" + width + "." + extension;
+    }
+
+    static String keyOf(String sourceUrl) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(sourceUrl.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isKey(String key) {
+        return key != null && key.matches("[0-9a-f]{32}");
+    }
+
+    private static boolean isHttp(String url) {
+        return url != null && (url.startsWith("https://") || url.startsWith("http://"));
+    }
+
+    private static long sizeOf(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            long size = 0;
+            for (Path file : (Iterable<Path>) files::iterator) {
+                size += Files.size(file);
+            }
+            return size;
+        }
+    }
+
+    private static void touch(Path dir) {
+        try {
+            Files.setLastModifiedTime(dir, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+            // Only used to order evictions after a restart
+        }
+    }
+
+    private static void deleteDirectory(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(ThumbnailCache::deleteQuietly);
+        } catch (IOException e) {
+            logger.warn("Failed to delete thumbnail directory: {}", dir, e);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Failed to delete thumbnail file: {}", file, e);
+        }
+    }
+
+    /** One resized image, ready to send. */
+    public record Variant(String key, String name, String format, byte[] bytes) {
+        public String etag() {
+            return "\"" + key + "-" + name + "\"";
+        }
+    }
+
+    private static final class Entry {
+        private final long size;
+        private long lastAccess;
+
+        private Entry(long size, long lastAccess) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public final class UrlCanonicalizer {
+
+    private static final Pattern YOUTUBE_ID_PATH = Pattern.compile("^/(?:shorts|embed|live|v)/([\\w-]{6,})");
+    private static final Set<String> TRACKING_PARAMS = Set.of(
+            "si", "feature", "pp", "igsh", "igshid", "fbclid", "gclid", "ref", "ref_src", "is_from_webapp",
+            "sender_device", "share_app_id", "_r", "_t");
+
+    private UrlCanonicalizer() {
+    }
+
+    public static String canonicalize(String url) {
+        if (url == null) {
+            return null;
+        }
+        String trimmed = url.trim();
+        try {
+            URI uri = new URI(trimmed.contains("://") ? trimmed : "https://" + trimmed);
+            String host = uri.getHost();
+            if (host == null) {
+                return trimmed;
+            }
+            host = host.toLowerCase(Locale.ROOT);
+            if (host.startsWith("www.") || host.startsWith("m.")) {
+                host = host.substring(host.indexOf('.') + 1);
+            }
+            if (host.equals("instagr.am")) {
+                host = "instagram.com";
+            }
+            String path = uri.getRawPath() == null ? "" : uri.getRawPath();
+            Map<String, String> params = parseQuery(uri.getRawQuery());
+
+            if (host.equals("youtu.be")) {
+                return youtubeWatchUrl(path.length() > 1 ? path.substring(1) : "");
+            }
+            if (host.equals("youtube.com") || host.equals("music.youtube.com")) {
+                Matcher matcher = YOUTUBE_ID_PATH.matcher(path);
+                if (matcher.find()) {
+                    return youtubeWatchUrl(matcher.group(1));
+                }
+                if (path.equals("/watch") && params.containsKey("v")) {
+                    return youtubeWatchUrl(params.get("v"));
+                }
+                if (path.equals("/playlist") && params.containsKey("list")) {
+                    return "https://youtube.com/playlist?list=" + params.get("list");
+                }
+            }
+            if (host.endsWith("instagram.com") || host.endsWith("tiktok.com")) {
+                // Query strings on these platforms are share/tracking data only
+                params.clear();
+            }
+
+            params.keySet().removeIf(name -> name.startsWith("utm_") || TRACKING_PARAMS.contains(name));
+            if (path.length() > 1 && path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+
+            StringBuilder canonical = new StringBuilder("https://").append(host).append(path);
+            if (!params.isEmpty()) {
+                StringJoiner query = new StringJoiner("&", "?", "");
+                new TreeMap<>(params).forEach((name, value) -> query.add(value.isEmpty() ? name : name + "=" + value));
+                canonical.append(query);
+            }
+            return canonical.toString();
+        } catch (URISyntaxException e) {
+            return trimmed;
+        }
+    }
+
+    private static String youtubeWatchUrl(String videoId) {
+        int end = videoId.indexOf('/');
+        return "https://youtube.com/watch?v=" + (end >= 0 ? videoId.substring(0, end) : videoId);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new LinkedHashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String name = eq >= 0 ? pair.substring(0, eq) : pair;
+            String value = eq >= 0 ? pair.substring(eq + 1) : "";
+            params.putIfAbsent(name, value);
+        }
+        return params;
+    }
+}
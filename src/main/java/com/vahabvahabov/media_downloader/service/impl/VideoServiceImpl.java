@@ -1,24 +1,38 @@
 package com.vahabvahabov.media_downloader.service.impl;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.vahabvahabov.media_downloader.controller.mc.DownloadProgressController;
+import com.vahabvahabov.media_downloader.model.BatchRequest;
+import com.vahabvahabov.media_downloader.model.CachedResult;
+import com.vahabvahabov.media_downloader.model.JobJournalEntry;
+import com.vahabvahabov.media_downloader.model.MediaMetadata;
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
 import com.vahabvahabov.media_downloader.model.VideoRequest;
+import com.vahabvahabov.media_downloader.service.DownloadHandle;
+import com.vahabvahabov.media_downloader.service.MediaStream;
 import com.vahabvahabov.media_downloader.service.VideoService;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.*;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 @Service
 public class VideoServiceImpl implements VideoService {
@@ -33,210 +47,1183 @@ public class VideoServiceImpl implements VideoService {
     @Value("${ffmpeg.path}")
     private String ffmpegPath;
 
+    @Value("${progress.max-events-per-second:4}")
+    private int maxProgressEventsPerSecond;
+
+    @Value("${process.info-timeout-seconds:30}")
+    private long infoTimeoutSeconds;
+
+    @Value("${process.download-timeout-seconds:3600}")
+    private long downloadTimeoutSeconds;
+
+    @Value("${batch.max-parallel:3}")
+    private int batchMaxParallel;
+
+    @Value("${batch.max-items:50}")
+    private int batchMaxItems;
+
+    @Value("${batch.expand-timeout-seconds:120}")
+    private long batchExpandTimeoutSeconds;
+
+    @Value("${journal.max-resume-attempts:3}")
+    private int maxResumeAttempts;
+
+    @Value("${download.engine:yt-dlp}")
+    private String downloadEngine;
+
     @Autowired
     private DownloadProgressController progressController;
 
+    @Autowired
+    private JobStatusRegistry jobStatuses;
+
+    @Autowired
+    private DownloadScheduler downloadScheduler;
+
+    @Autowired
+    private MetadataCache metadataCache;
+
+    @Autowired
+    private ResultCache resultCache;
+
+    @Autowired
+    private ProcessRunner processRunner;
+
+    @Autowired
+    private ExtractorPool extractorPool;
+
+    @Autowired
+    private DownloadMetrics downloadMetrics;
+
+    @Autowired
+    private JobJournal jobJournal;
+
+    @Autowired
+    private DownloadStorage downloadStorage;
+
+    @Autowired
+    private BandwidthManager bandwidthManager;
+
+    @Autowired
+    private RangeDownloader rangeDownloader;
+
+    @Autowired
+    private PostProcessor postProcessor;
+
+    @Autowired
+    private ThumbnailCache thumbnailCache;
+
+    private final Object jobLock = new Object();
     private final ConcurrentHashMap<String, String> fileDisplayNames = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, MediaMetadata> fileMetadata = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, Process> activeProcesses = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, Boolean> activeSessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, DownloadJob> activeSessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, BatchJob> activeBatches = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, BatchJob> batchArchives = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, DownloadJob> jobsByKey = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> finishedArtifacts = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> artifactHolders = new HashMap<>();
+    private volatile boolean shuttingDown;
+
+    @PostConstruct
+    void init() {
+        downloadMetrics.registerActiveProcesses(activeProcesses::size);
+    }
 
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    @PreDestroy
+    void shutdown() {
+        // Journaled jobs stay "started", keep their part files and resume on the next start
+        shuttingDown = true;
+        Set<DownloadJob> running = new HashSet<>(jobsByKey.values());
+        running.addAll(activeSessions.values());
+        for (DownloadJob job : running) {
+            if (job.isShared()) {
+                job.broadcast("Progress: The server is restarting; this download will resume when it is back");
+            }
+        }
+        activeProcesses.values().forEach(Process::destroy);
+    }
+
+    /**
+     * Picks up the jobs the journal still knows about: finished files are made downloadable (and deletable) again,
+     * and interrupted downloads are resubmitted under their old job ID so yt-dlp continues their part files.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    void resumeJournaledJobs() {
+        for (JobJournalEntry entry : jobJournal.recover()) {
+            if (JobJournal.FINISHED.equals(entry.getEvent())) {
+                restoreFinishedJob(entry);
+            } else {
+                resumeJob(entry);
+            }
+        }
+    }
+
+    private void restoreFinishedJob(JobJournalEntry entry) {
+        String fileName = entry.getFileName();
+        if (!Files.exists(Paths.get(downloadDir, fileName))) {
+            jobJournal.deleted(fileName);
+            return;
+        }
+        if (entry.getDisplayName() != null) {
+            fileDisplayNames.put(fileName, entry.getDisplayName());
+        }
+        MediaMetadata metadata = new MediaMetadata();
+        metadata.setTitle(entry.getTitle());
+        metadata.setThumbnail(entry.getThumbnail());
+        fileMetadata.put(fileName, metadata);
+        synchronized (jobLock) {
+            artifactHolders.computeIfAbsent(fileName, k -> new LinkedHashSet<>()).addAll(entry.getSessions());
+            finishedArtifacts.put(entry.getKey(), fileName);
+        }
+        if (entry.getSessions().isEmpty()) {
+            discardArtifact(fileName);
+        } else {
+            logger.info("Restored finished download: {} for {} session(s)", fileName, entry.getSessions().size());
+        }
+    }
+
+    private void resumeJob(JobJournalEntry entry) {
+        int attempts = entry.getAttempts() == null ? 0 : entry.getAttempts();
+        if (entry.getSessions().isEmpty() || attempts >= maxResumeAttempts) {
+            logger.warn("Not resuming download job: {} ({} session(s), {} attempt(s))", entry.getJobId(),
+                    entry.getSessions().size(), attempts);
+            jobJournal.failed(entry.getJobId());
+            deletePartialFiles(entry.getJobId());
+            return;
+        }
+
+        VideoRequest request = new VideoRequest();
+        request.setUrl(entry.getUrl());
+        request.setPlatform(entry.getPlatform());
+        request.setQuality(entry.getQuality());
+        request.setOutputFormat(entry.getOutputFormat());
+        DownloadJob job = new DownloadJob(entry.getJobId(), entry.getKey(), request, entry.getFormat(), true,
+                progressController, jobStatuses, maxProgressEventsPerSecond);
+        job.setResumeAttempts(attempts + 1);
+        jobStatuses.queued(job.getId());
+        synchronized (jobLock) {
+            jobsByKey.put(job.getKey(), job);
+            for (String sessionId : entry.getSessions()) {
+                job.addSubscriber(sessionId);
+                activeSessions.putIfAbsent(sessionId, job);
+            }
+        }
+        jobJournal.resumed(job.getId(), job.getResumeAttempts());
+        logger.info("Resuming interrupted download job: {} for {} session(s), URL: {}", job.getId(),
+                entry.getSessions().size(), request.getUrl());
+        try {
+            schedule(job, job::broadcast).whenComplete((fileName, ex) -> completeJob(job, fileName, ex));
+        } catch (RejectedExecutionException e) {
+            logger.warn("Could not resume download job: {}: {}", job.getId(), e.getMessage());
+            jobStatuses.failed(job.getId(), e.getMessage());
+            unregisterJob(job, null);
+            jobJournal.failed(job.getId());
+            deletePartialFiles(job.getId());
+        }
+    }
 
     @Override
-    public CompletableFuture<String> downloadVideoAsync(VideoRequest request, String sessionId) {
+    public DownloadHandle downloadVideoAsync(VideoRequest request, String sessionId) {
         logger.info("Entering downloadVideoAsync for session: {}", sessionId);
-        return CompletableFuture.supplyAsync(() -> {
-            logger.info("Starting async download for session: {}, URL: {}", sessionId, request.getUrl());
-            if (activeSessions.putIfAbsent(sessionId, true) != null) {
+        String format = resolveFormat(request);
+        boolean shareable = request.getCookies() == null || request.getCookies().isEmpty();
+        String key = jobKey(request, format);
+        String cachedFileName = shareable && !finishedArtifacts.containsKey(key) ? materializeCachedResult(key, false) : null;
+
+        DownloadJob job;
+        String finishedFileName = null;
+        boolean created = false;
+        synchronized (jobLock) {
+            if (activeSessions.containsKey(sessionId) || activeBatches.containsKey(sessionId)) {
                 logger.warn("Download already in progress for session: {}", sessionId);
                 progressController.sendMessage(sessionId, "Error: A download is already in progress.");
+                if (cachedFileName != null) {
+                    discardArtifact(cachedFileName);
+                }
                 throw new IllegalStateException("A download is already in progress for this session.");
             }
 
-            Path tempCookiesFile = null;
+            String existingFile = shareable ? finishedArtifacts.get(key) : null;
+            if (cachedFileName != null) {
+                artifactHolders.computeIfAbsent(cachedFileName, k -> new LinkedHashSet<>()).add(sessionId);
+                finishedArtifacts.put(key, cachedFileName);
+                finishedFileName = cachedFileName;
+                job = null;
+            } else if (existingFile != null && Files.exists(Paths.get(downloadDir, existingFile))) {
+                artifactHolders.computeIfAbsent(existingFile, k -> new LinkedHashSet<>()).add(sessionId);
+                finishedFileName = existingFile;
+                job = null;
+            } else {
+                job = shareable ? jobsByKey.get(key) : null;
+                if (job == null) {
+                    job = new DownloadJob(UUID.randomUUID().toString(), key, request, format, shareable,
+                            progressController, jobStatuses, maxProgressEventsPerSecond);
+                    // Tracked before anyone can join, so every session handed this ID finds its status
+                    jobStatuses.queued(job.getId());
+                    if (shareable) {
+                        jobsByKey.put(key, job);
+                    }
+                    created = true;
+                }
+                job.addSubscriber(sessionId);
+                activeSessions.put(sessionId, job);
+            }
+        }
+
+        if (finishedFileName != null) {
+            logger.info("Session: {} reusing finished artifact: {}", sessionId, finishedFileName);
+            String jobId = UUID.randomUUID().toString();
+            jobStatuses.finished(jobId, finishedFileName);
+            progressController.sendMessage(sessionId, "Download finished: " + finishedFileName);
+            return new DownloadHandle(jobId, CompletableFuture.completedFuture(finishedFileName));
+        }
+
+        if (!created) {
+            logger.info("Session: {} joined in-progress download job: {}", sessionId, job.getId());
+            jobJournal.subscribed(job.getId(), sessionId);
+            progressController.sendMessage(sessionId, "Progress: Joined an identical download that is already in progress");
+            return new DownloadHandle(job.getId(), job.getFuture());
+        }
+
+        DownloadJob newJob = job;
+        if (job.isShared()) {
+            jobJournal.started(job);
+        }
+        try {
+            requireFreeSpace();
+            schedule(newJob, job::broadcast).whenComplete((fileName, ex) -> completeJob(newJob, fileName, ex));
+        } catch (RejectedExecutionException e) {
+            job.broadcast("Error: " + e.getMessage());
+            jobStatuses.failed(job.getId(), e.getMessage());
+            unregisterJob(job, null);
+            jobJournal.failed(job.getId());
+            throw e;
+        }
+        return new DownloadHandle(job.getId(), job.getFuture());
+    }
+
+    @Override
+    public String startBatch(BatchRequest request, String sessionId) {
+        List<String> urls = request.getUrls() == null ? List.of() : request.getUrls().stream()
+                .filter(url -> url != null && !url.isBlank())
+                .map(String::trim)
+                .toList();
+        if (urls.isEmpty() && (request.getUrl() == null || request.getUrl().isBlank())) {
+            throw new IllegalArgumentException("Provide a playlist URL or a list of URLs.");
+        }
+        if (urls.size() > batchMaxItems) {
+            throw new IllegalArgumentException("A batch can contain at most " + batchMaxItems + " URLs.");
+        }
+        if (urls.stream().anyMatch(url -> url.length() > 200) || (request.getUrl() != null && request.getUrl().length() > 200)) {
+            throw new IllegalArgumentException("URL is too long. Max length is 200 characters.");
+        }
+        OutputFormat.parse(request.getOutputFormat());
+
+        requireFreeSpace();
+
+        String batchId = "batch-" + UUID.randomUUID();
+        BatchJob batch = new BatchJob(batchId, sessionId, Paths.get(downloadDir, batchId));
+        synchronized (jobLock) {
+            if (activeSessions.containsKey(sessionId) || activeBatches.containsKey(sessionId)) {
+                logger.warn("Download already in progress for session: {}", sessionId);
+                progressController.sendMessage(sessionId, "Error: A download is already in progress.");
+                throw new IllegalStateException("A download is already in progress for this session.");
+            }
+            activeBatches.put(sessionId, batch);
+        }
+        String archiveName = batchId + ".zip";
+        batchArchives.put(archiveName, batch);
+
+        // Playlist expansion can take a while, so it runs off the request thread like the downloads themselves
+        processRunner.startVirtual(batchId, () -> runBatch(batch, request, urls));
+        return archiveName;
+    }
+
+    private void runBatch(BatchJob batch, BatchRequest request, List<String> urls) {
+        try {
+            String title = null;
+            List<String> itemUrls = urls;
+            if (itemUrls.isEmpty()) {
+                progressController.sendMessage(batch.getSessionId(), "Progress: Expanding playlist...");
+                InfoJsonReader.Playlist playlist = expandPlaylist(request);
+                title = playlist.getTitle();
+                itemUrls = playlist.getUrls().isEmpty() ? List.of(request.getUrl()) : playlist.getUrls();
+            }
+
+            List<VideoRequest> items = new ArrayList<>();
+            for (String url : itemUrls) {
+                VideoRequest item = new VideoRequest();
+                item.setUrl(url);
+                item.setQuality(request.getQuality());
+                item.setPlatform(request.getPlatform());
+                item.setCookies(request.getCookies());
+                item.setOutputFormat(request.getOutputFormat());
+                items.add(item);
+            }
+            batch.setItems(title, items);
+            Files.createDirectories(batch.getDirectory());
+        } catch (Exception e) {
+            logger.error("Failed to prepare batch: {}", batch.getId(), e);
+            activeBatches.remove(batch.getSessionId(), batch);
+            batchArchives.remove(batch.getId() + ".zip", batch);
+            batch.markComplete();
+            progressController.sendMessage(batch.getSessionId(), "Error: " + e.getMessage());
+            batch.getFuture().completeExceptionally(e);
+            return;
+        }
+
+        logger.info("Batch: {} started with {} item(s) for session: {}", batch.getId(), batch.size(), batch.getSessionId());
+        progressController.sendMessage(batch.getSessionId(), "Progress: Downloading " + batch.size() + " item(s), up to "
+                + Math.min(batchMaxParallel, batch.size()) + " at a time");
+        if (batch.isCanceled()) {
+            finishBatch(batch);
+            return;
+        }
+        for (int i = 0; i < batchMaxParallel; i++) {
+            startNextBatchItem(batch);
+        }
+    }
+
+    private InfoJsonReader.Playlist expandPlaylist(BatchRequest request) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(ytDlpPath);
+        command.add("--no-cache-dir");
+        command.add("--flat-playlist");
+        command.add("-J");
+
+        Path cookiesFile = null;
+        Path jsonFile = Files.createTempFile("yt-dlp-playlist-", ".json");
+        try {
+            if (request.getCookies() != null && !request.getCookies().isEmpty()) {
+                cookiesFile = Files.createTempFile("yt-dlp-cookies", ".txt");
+                Files.writeString(cookiesFile, request.getCookies());
+                command.add("--cookies");
+                command.add(cookiesFile.toString());
+            }
+            command.add(request.getUrl());
+
+            ProcessRunner.ProcessResult result = runExtraction(command, jsonFile, Duration.ofSeconds(batchExpandTimeoutSeconds));
+            if (result.isTimedOut()) {
+                throw new RuntimeException("Timeout while expanding the playlist");
+            }
+            if (result.getExitCode() != 0) {
+                throw new RuntimeException(getFriendlyErrorMessage(result.getOutputTail().trim(), request.getPlatform()));
+            }
+            return InfoJsonReader.readPlaylist(jsonFile, batchMaxItems);
+        } finally {
+            Files.deleteIfExists(jsonFile);
+            if (cookiesFile != null) {
+                Files.deleteIfExists(cookiesFile);
+            }
+        }
+    }
+
+    private void startNextBatchItem(BatchJob batch) {
+        int index = batch.claimNextItem();
+        if (index < 0) {
+            return;
+        }
+        VideoRequest item = batch.getItem(index);
+        String label = "Item " + (index + 1) + "/" + batch.size();
+        // Items are followed through the batch and never tracked, so their status updates are dropped
+        DownloadJob job = new DownloadJob(UUID.randomUUID().toString(), batch.getId() + "#" + index, item,
+                resolveFormat(item), false, progressController, jobStatuses, maxProgressEventsPerSecond);
+        job.setItemIndex(index + 1);
+        job.addSubscriber(batch.getSessionId());
+        batch.itemStarted(index, job);
+        if (batch.isCanceled()) {
+            job.cancel();
+        }
+
+        try {
+            downloadScheduler.submit(job.getId(), item.getPlatform(), message -> { }, () -> {
+                job.broadcast("Progress: " + label + " started");
+                return runDownload(job);
+            }).thenCompose(downloaded -> postProcess(job, downloaded))
+                    .whenComplete((fileName, ex) -> finishBatchItem(batch, index, label, fileName, ex));
+        } catch (RejectedExecutionException e) {
+            finishBatchItem(batch, index, label, null, e);
+        }
+    }
 
+    private void finishBatchItem(BatchJob batch, int index, String label, String fileName, Throwable ex) {
+        boolean succeeded = false;
+        if (ex == null && !batch.isCanceled()) {
             try {
-                logger.info("Validating request for session: {}", sessionId);
-                if (request.getUrl().length() > 200) {
-                    throw new IllegalArgumentException("URL is too long. Max length is 200 characters.");
-                }
+                String displayName = fileDisplayNames.getOrDefault(fileName, fileName);
+                Path entryPath = Files.move(Paths.get(downloadDir, fileName), uniqueEntryPath(batch.getDirectory(), displayName));
+                // The CRC is taken once here so every archive reader can write STORED entries without re-reading
+                batch.addEntry(new BatchJob.Entry(entryPath.getFileName().toString(), entryPath,
+                        Files.size(entryPath), StoredZipWriter.crc32(entryPath)));
+                succeeded = true;
+                progressController.sendMessage(batch.getSessionId(), "Progress: " + label + " finished");
+            } catch (IOException e) {
+                logger.error("Failed to add {} to batch: {}", fileName, batch.getId(), e);
+                progressController.sendMessage(batch.getSessionId(), "Progress: " + label + " failed: could not be saved");
+            } finally {
+                fileDisplayNames.remove(fileName);
+                fileMetadata.remove(fileName);
+            }
+        } else if (ex == null) {
+            deleteQuietly(Paths.get(downloadDir, fileName));
+        } else if (!batch.isCanceled()) {
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            logger.warn("Batch: {} {} failed: {}", batch.getId(), label, cause.getMessage());
+            progressController.sendMessage(batch.getSessionId(), "Progress: " + label + " failed: " + cause.getMessage());
+        }
 
-                String platform = request.getPlatform();
-                String url = request.getUrl();
-                String cookies = request.getCookies(); // Yeni dəyişiklik: Cookies götürülür
-
-                if (cookies != null && !cookies.isEmpty()) {
-                    try {
-                        tempCookiesFile = Files.createTempFile("yt-dlp-cookies", ".txt");
-                        Files.writeString(tempCookiesFile, cookies);
-                        logger.info("Temporary cookies file created at: {}", tempCookiesFile);
-                    } catch (IOException e) {
-                        logger.error("Failed to create temporary cookies file", e);
-                        tempCookiesFile = null;
-                    }
-                }
+        if (batch.itemFinished(index, succeeded)) {
+            finishBatch(batch);
+        } else {
+            startNextBatchItem(batch);
+        }
+    }
 
-                logger.info("Fetching video name for session: {}, URL: {}", sessionId, url);
-                String title = getVideoName(url, platform, tempCookiesFile); // Yeni dəyişiklik: cookies faylı ötürülür
+    private void finishBatch(BatchJob batch) {
+        activeBatches.remove(batch.getSessionId(), batch);
+        batch.markComplete();
+        String archiveName = batch.getId() + ".zip";
+        if (batch.isCanceled()) {
+            logger.info("Batch: {} canceled", batch.getId());
+            batchArchives.remove(archiveName, batch);
+            downloadStorage.discard(batch.getDirectory());
+            batch.getFuture().completeExceptionally(new CancellationException("Batch canceled"));
+            return;
+        }
+        if (batch.getSucceededItems() == 0) {
+            batchArchives.remove(archiveName, batch);
+            downloadStorage.discard(batch.getDirectory());
+            String message = "None of the " + batch.size() + " item(s) could be downloaded.";
+            progressController.sendMessage(batch.getSessionId(), "Error: " + message);
+            batch.getFuture().completeExceptionally(new RuntimeException(message));
+            return;
+        }
 
-                File dir = new File(downloadDir);
-                if (!dir.exists()) dir.mkdirs();
-                logger.info("Download directory prepared: {}", downloadDir);
+        fileDisplayNames.put(archiveName, archiveDisplayName(batch));
+        synchronized (jobLock) {
+            artifactHolders.computeIfAbsent(archiveName, k -> new LinkedHashSet<>()).add(batch.getSessionId());
+        }
+        logger.info("Batch: {} finished, {} of {} item(s) archived", batch.getId(), batch.getSucceededItems(), batch.size());
+        progressController.sendMessage(batch.getSessionId(), "Download finished: " + archiveName);
+        batch.getFuture().complete(archiveName);
+    }
 
-                String format;
-                if ("instagram".equals(platform)) {
-                    format = "best";
-                } else {
-                    switch (request.getQuality() == null ? "best" : request.getQuality()) {
-                        case "1080p":
-                            format = "bestvideo[height<=1080]+bestaudio/best";
-                            break;
-                        case "720p":
-                            format = "bestvideo[height<=720]+bestaudio/best";
-                            break;
-                        case "480p":
-                            format = "bestvideo[height<=480]+bestaudio/best";
-                            break;
-                        case "360p":
-                            format = "bestvideo[height<=360]+bestaudio/best";
-                            break;
-                        case "144p":
-                            format = "bestvideo[height<=144]+bestaudio/best";
-                            break;
-                        default:
-                            format = "best";
-                            break;
+    @Override
+    public MediaStream openArchive(String fileName) {
+        BatchJob batch = batchArchives.get(fileName);
+        if (batch == null) {
+            return null;
+        }
+        return new MediaStream() {
+            @Override
+            public String getDisplayName() {
+                return fileDisplayNames.getOrDefault(fileName, archiveDisplayName(batch));
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                // Entries are written as items finish, so the client starts receiving bytes with the first one
+                StoredZipWriter zip = new StoredZipWriter(out);
+                try {
+                    BatchJob.Entry entry;
+                    for (int i = 0; (entry = batch.awaitEntry(i)) != null; i++) {
+                        zip.addEntry(entry.getName(), entry.getFile(), entry.getSize(), entry.getCrc());
+                        downloadMetrics.bytesServed(entry.getSize());
                     }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Archive streaming interrupted", e);
+                }
+                if (batch.isCanceled()) {
+                    throw new IOException("Batch was canceled");
                 }
+                zip.finish();
+            }
+        };
+    }
 
-                String finalFileName = sessionId + ".mp4";
-                String finalFilePath = downloadDir + "/" + finalFileName;
+    private String archiveDisplayName(BatchJob batch) {
+        String title = batch.getTitle() != null ? sanitizeFilename(batch.getTitle()) : "media-" + batch.getId().substring(6, 14);
+        return title + ".zip";
+    }
 
-                logger.info("Processing URL: {} for session: {}", url, sessionId);
-                if (!activeSessions.containsKey(sessionId)) {
-                    logger.warn("Download canceled for session: {} during processing", sessionId);
-                    throw new InterruptedException("Download canceled");
-                }
+    private static Path uniqueEntryPath(Path directory, String displayName) {
+        Path target = directory.resolve(displayName);
+        int dot = displayName.lastIndexOf('.');
+        String base = dot > 0 ? displayName.substring(0, dot) : displayName;
+        String extension = dot > 0 ? displayName.substring(dot) : "";
+        for (int copy = 2; Files.exists(target); copy++) {
+            target = directory.resolve(base + " (" + copy + ")" + extension);
+        }
+        return target;
+    }
 
-                int exitCode = executeDownload(format, finalFilePath, url, sessionId, tempCookiesFile); // Yeni dəyişiklik: cookies faylı ötürülür
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.error("Failed to delete: {}", path, e);
+        }
+    }
 
-                if (exitCode != 0) {
-                    throw new RuntimeException("Download failed with exit code: " + exitCode);
-                }
+    /**
+     * Links a cached result into the download directory. Request threads pass {@code verify = false} and only get
+     * entries whose checksum was already verified; the job started on a miss verifies the rest in its download slot.
+     */
+    private String materializeCachedResult(String key, boolean verify) {
+        CachedResult cached = verify ? resultCache.verifyAndLookup(key) : resultCache.lookup(key);
+        if (cached == null) {
+            return null;
+        }
+        String fileName = UUID.randomUUID() + cached.getFileName().substring(cached.getFileName().lastIndexOf('.'));
+        try {
+            File dir = new File(downloadDir);
+            if (!dir.exists()) dir.mkdirs();
+            resultCache.materialize(cached, Paths.get(downloadDir, fileName));
+        } catch (IOException e) {
+            logger.warn("Failed to serve cached result for key: {}, downloading again", key, e);
+            return null;
+        }
+        MediaMetadata metadata = new MediaMetadata();
+        metadata.setTitle(cached.getTitle());
+        metadata.setThumbnail(cached.getThumbnail());
+        fileDisplayNames.put(fileName, cached.getDisplayName());
+        fileMetadata.put(fileName, metadata);
+        logger.info("Result cache hit for key: {}, serving as: {}", key, fileName);
+        return fileName;
+    }
 
-                activeSessions.remove(sessionId);
-                activeProcesses.remove(sessionId);
-                logger.info("Download completed. Session and process cleaned up for session: {}", sessionId);
+    @Override
+    public MediaStream openStream(VideoRequest request, String sessionId) throws Exception {
+        if (request.getUrl() == null || request.getUrl().length() > 200) {
+            throw new IllegalArgumentException("URL is too long. Max length is 200 characters.");
+        }
+        String format = resolveFormat(request);
+        OutputFormat output = OutputFormat.parse(request.getOutputFormat());
+        if (format.contains("+") || output != OutputFormat.MP4) {
+            // Merges and conversions need the whole file, so they cannot be piped; use the file-based job instead
+            MediaMetadata metadata = metadataCache.get(request.getUrl(), () -> fetchMediaInfo(request.getUrl(), request.getPlatform()));
+            return new FileBackedMediaStream(request,
+                    sanitizeFilename(displayTitle(metadata, request.getPlatform())) + "." + output.extension());
+        }
 
-                Path downloadedFilePath = Paths.get(finalFilePath);
-                if (!Files.exists(downloadedFilePath)) {
-                    throw new RuntimeException("No downloaded file found. Please try again.");
+        String streamId = "stream-" + UUID.randomUUID();
+        Path workDir = downloadStorage.createWorkDirectory(streamId);
+        Path infoJsonFile = workDir.resolve(streamId + ".info.json");
+        Path cookiesFile = null;
+        try {
+            if (request.getCookies() != null && !request.getCookies().isEmpty()) {
+                cookiesFile = Files.createTempFile("yt-dlp-cookies", ".txt");
+                Files.writeString(cookiesFile, request.getCookies());
+            }
+            MediaMetadata metadata = extractMetadata(request.getUrl(), request.getPlatform(), null, cookiesFile, infoJsonFile);
+            if (cookiesFile == null) {
+                metadataCache.put(request.getUrl(), metadata);
+            }
+            String displayName = sanitizeFilename(displayTitle(metadata, request.getPlatform())) + ".mp4";
+            return new PipedMediaStream(streamId, request, format, infoJsonFile, cookiesFile, sessionId, displayName);
+        } catch (Exception e) {
+            downloadStorage.discard(workDir);
+            if (cookiesFile != null) {
+                Files.deleteIfExists(cookiesFile);
+            }
+            throw e;
+        }
+    }
+
+    private class PipedMediaStream implements MediaStream {
+        private final String streamId;
+        private final VideoRequest request;
+        private final String format;
+        private final Path infoJsonFile;
+        private final Path cookiesFile;
+        private final String sessionId;
+        private final String displayName;
+
+        private PipedMediaStream(String streamId, VideoRequest request, String format, Path infoJsonFile,
+                                 Path cookiesFile, String sessionId, String displayName) {
+            this.streamId = streamId;
+            this.request = request;
+            this.format = format;
+            this.infoJsonFile = infoJsonFile;
+            this.cookiesFile = cookiesFile;
+            this.sessionId = sessionId;
+            this.displayName = displayName;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try {
+                downloadScheduler.submit(streamId, request.getPlatform(), this::sendStatus, () -> {
+                    pipe(out);
+                    return null;
+                }).join();
+            } catch (RejectedExecutionException e) {
+                throw new IOException(e.getMessage(), e);
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+            } finally {
+                downloadStorage.discard(infoJsonFile.getParent());
+                if (cookiesFile != null) {
+                    Files.deleteIfExists(cookiesFile);
                 }
+            }
+        }
 
-                String displayName = sanitizeFilename(title) + ".mp4";
-                fileDisplayNames.put(finalFileName, displayName);
-                progressController.sendMessage(sessionId, "Download finished: " + finalFileName);
-                logger.info("Returning filename: {} for session: {}", finalFileName, sessionId);
-                return finalFileName;
-
-            } catch (Exception e) {
-                activeSessions.remove(sessionId);
-                activeProcesses.remove(sessionId);
-                logger.error("Download failed for session: {} with error: {}", sessionId, e.getMessage(), e);
-                progressController.sendMessage(sessionId, "Error: " + e.getMessage());
-                deletePartialFiles(sessionId);
+        private void pipe(OutputStream out) {
+            Process process = null;
+            Path logFile = infoJsonFile.resolveSibling(streamId + ".log");
+            // Bytes already sent cannot be fetched again, so a stream keeps the share it starts with
+            BandwidthManager.Lease lease = bandwidthManager.open(streamId, () -> List.of(sessionId != null ? sessionId : streamId), false);
+            try {
+                process = processRunner.start(buildDownloadCommand(format, "-", infoJsonFile, cookiesFile,
+                        lease.getRateLimit(), lease.getConcurrentFragments()), null, logFile);
+                activeProcesses.put(streamId, process);
+                lease.attach(process);
+                processRunner.killAfter(process, Duration.ofSeconds(downloadTimeoutSeconds));
+                logger.info("Started stream process: {} (PID: {}, URL: {})", streamId, process.pid(), request.getUrl());
+
+                Process started = process;
+                Thread logReader = processRunner.startVirtual(streamId + "-log", () -> readStreamLog(started, logFile, lease));
+
+                long bytes = process.getInputStream().transferTo(out);
+                out.flush();
+                processRunner.awaitExit(process, 30, TimeUnit.SECONDS);
+                logReader.join();
+                int exitCode = process.exitValue();
+                if (exitCode != 0) {
+                    throw new RuntimeException("Streaming failed with exit code: " + exitCode);
+                }
+                downloadMetrics.bytesDownloaded(bytes);
+                downloadMetrics.bytesServed(bytes);
+                logger.info("Stream: {} finished, {} bytes sent", streamId, bytes);
+            } catch (IOException e) {
+                logger.info("Stream: {} aborted: {}", streamId, e.getMessage());
+                throw new CompletionException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 throw new CompletionException(e);
             } finally {
-                // Müvəqqəti faylı silmək
-                if (tempCookiesFile != null) {
-                    try {
-                        Files.deleteIfExists(tempCookiesFile);
-                        logger.info("Temporary cookies file deleted: {}", tempCookiesFile);
-                    } catch (IOException e) {
-                        logger.error("Failed to delete temporary cookies file: {}", tempCookiesFile, e);
+                activeProcesses.remove(streamId);
+                bandwidthManager.close(lease);
+                if (process != null && process.isAlive()) {
+                    process.destroyForcibly();
+                }
+            }
+        }
+
+        private void readStreamLog(Process process, Path logFile, BandwidthManager.Lease lease) {
+            ProgressCoalescer coalescer = new ProgressCoalescer(maxProgressEventsPerSecond, this::sendProgress);
+            try {
+                processRunner.follow(process, logFile, line -> {
+                    if (ProgressParser.isRelevant(line)) {
+                        ProgressEvent event = ProgressParser.parse(line);
+                        if (event != null) {
+                            lease.observe(event);
+                            coalescer.offer(event);
+                        }
                     }
+                    logger.debug("Stream output: {}", line);
+                }, () -> false);
+            } catch (IOException e) {
+                logger.debug("Stream log for: {} closed", streamId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            coalescer.flush();
+        }
+
+        private void sendStatus(String message) {
+            if (sessionId != null) {
+                progressController.sendMessage(sessionId, message);
+            }
+        }
+
+        private void sendProgress(ProgressEvent event) {
+            if (sessionId != null) {
+                progressController.sendProgress(sessionId, event);
+            }
+        }
+    }
+
+    /** What the download stage leaves for the post-processing stage, or the finished file the result cache had. */
+    private static final class DownloadedStreams {
+        private final Path workDir;
+        private final List<Path> streams;
+        private final MediaMetadata metadata;
+        private final String title;
+        private final String cachedFileName;
+
+        private DownloadedStreams(Path workDir, List<Path> streams, MediaMetadata metadata, String title) {
+            this(workDir, streams, metadata, title, null);
+        }
+
+        private DownloadedStreams(Path workDir, List<Path> streams, MediaMetadata metadata, String title,
+                                  String cachedFileName) {
+            this.workDir = workDir;
+            this.streams = streams;
+            this.metadata = metadata;
+            this.title = title;
+            this.cachedFileName = cachedFileName;
+        }
+
+        private static DownloadedStreams cached(String fileName) {
+            return new DownloadedStreams(null, List.of(), null, null, fileName);
+        }
+    }
+
+    private class FileBackedMediaStream implements MediaStream {
+        private final VideoRequest request;
+        private final String displayName;
+
+        private FileBackedMediaStream(VideoRequest request, String displayName) {
+            this.request = request;
+            this.displayName = displayName;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            String holder = "stream-" + UUID.randomUUID();
+            String fileName;
+            try {
+                fileName = downloadVideoAsync(request, holder).getFuture().join();
+            } catch (RejectedExecutionException e) {
+                throw new IOException(e.getMessage(), e);
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                throw new IOException(cause.getMessage(), cause);
+            }
+            try (FileChannel channel = FileChannel.open(Paths.get(downloadDir, fileName), StandardOpenOption.READ)) {
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = 0;
+                long size = channel.size();
+                while (position < size) {
+                    position += channel.transferTo(position, size - position, target);
                 }
+                out.flush();
+            } finally {
+                deleteDownloadedVideo(fileName, holder);
             }
-        }, executorService);
+        }
     }
 
-    private int executeDownload(String format, String finalFilePath, String url, String sessionId, Path cookiesFile) { // Yeni dəyişiklik: cookiesFile qəbul edir
+    private String resolveFormat(VideoRequest request) {
+        OutputFormat output = OutputFormat.parse(request.getOutputFormat());
+        if ("instagram".equals(request.getPlatform()) && !output.isAudioOnly()) {
+            return "best";
+        }
+        return output.selector(request.getQuality());
+    }
+
+    private static String jobKey(VideoRequest request, String format) {
+        OutputFormat output = OutputFormat.parse(request.getOutputFormat());
+        // MP4 keeps the key it had before other outputs existed, so journaled and cached results still match
+        String key = UrlCanonicalizer.canonicalize(request.getUrl()) + "|" + format;
+        return output == OutputFormat.MP4 ? key : key + "|" + output.extension();
+    }
+
+    /**
+     * Runs the job's download in a scheduler slot, then hands the raw streams to the post-processing stage. A shared
+     * job first checks the result cache, whose first hit after a restart reads the whole file and so belongs here
+     * rather than on the request thread.
+     */
+    private CompletableFuture<String> schedule(DownloadJob job, Consumer<String> statusListener) {
+        return downloadScheduler.submit(job.getId(), job.getRequest().getPlatform(), statusListener, () -> {
+                    String cached = job.isShared() && !job.isCanceled() ? materializeCachedResult(job.getKey(), true) : null;
+                    return cached != null ? DownloadedStreams.cached(cached) : runDownload(job);
+                })
+                .thenCompose(downloaded -> downloaded.cachedFileName != null
+                        ? CompletableFuture.completedFuture(downloaded.cachedFileName)
+                        : postProcess(job, downloaded));
+    }
+
+    /**
+     * The network half of a job, run in a scheduler slot: extracts the media info and downloads the raw streams
+     * yt-dlp selected into the job's work directory, without merging or converting them.
+     */
+    private DownloadedStreams runDownload(DownloadJob job) {
+        VideoRequest request = job.getRequest();
+        logger.info("Starting async download job: {}, URL: {}", job.getId(), request.getUrl());
+        if (job.isCanceled()) {
+            logger.warn("Download job: {} canceled while queued", job.getId());
+            throw new CompletionException(new InterruptedException("Download canceled"));
+        }
+
+        Path tempCookiesFile = null;
+        BandwidthManager.Lease lease = null;
+        Path workDir = downloadStorage.workDirectory(job.getId());
+        Path infoJsonFile = workDir.resolve(job.getId() + ".info.json");
+
         try {
-            List<String> command = new ArrayList<>();
-            command.add(ytDlpPath);
-            command.add("--no-cache-dir");
-            command.add("--user-agent");
-            command.add("Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.124 Safari/537.36");
-            command.add("--force-ipv4");
-            command.add("--retries");
-            command.add("10");
-            command.add("--socket-timeout");
-            command.add("30");
-            command.add("--buffer-size");
-            command.add("16K");
-
-            command.add("--concurrent-fragments");
-            command.add("5");
-            command.add("--limit-rate");
-            command.add("10M");
-            command.add("--http-chunk-size");
-            command.add("10M");
+            logger.info("Validating request for job: {}", job.getId());
+            if (request.getUrl().length() > 200) {
+                throw new IllegalArgumentException("URL is too long. Max length is 200 characters.");
+            }
 
-            command.add("-f");
-            command.add(format);
-            command.add("--ffmpeg-location");
-            command.add(ffmpegPath);
-            command.add("--merge-output-format");
-            command.add("mp4");
-            command.add("--postprocessor-args");
-            command.add("Merger:-strict -2");
-            command.add("-o");
-            command.add(finalFilePath);
+            String platform = request.getPlatform();
+            String url = request.getUrl();
+            String cookies = request.getCookies(); // Yeni dəyişiklik: Cookies götürülür
 
-            if (cookiesFile != null) {
-                command.add("--cookies");
-                command.add(cookiesFile.toString());
+            if (cookies != null && !cookies.isEmpty()) {
+                try {
+                    tempCookiesFile = Files.createTempFile("yt-dlp-cookies", ".txt");
+                    Files.writeString(tempCookiesFile, cookies);
+                    logger.info("Temporary cookies file created at: {}", tempCookiesFile);
+                } catch (IOException e) {
+                    logger.error("Failed to create temporary cookies file", e);
+                    tempCookiesFile = null;
+                }
             }
 
-            if (url.contains("youtube.com/shorts") || url.contains("youtube.com/playlist")) {
-                command.add("--no-playlist");
+            // Everything the job writes stays in its own directory until the finished file is moved out
+            Files.createDirectories(workDir);
+            logger.info("Work directory prepared: {}", workDir);
+
+            logger.info("Extracting media info for job: {}, URL: {}", job.getId(), url);
+            job.publish(ProgressParser.stageEvent(ProgressParser.STAGE_EXTRACTING));
+            // Extracted with the job's format, so the info JSON names the streams yt-dlp picked for it
+            MediaMetadata metadata = extractMetadata(url, platform, job.getFormat(), tempCookiesFile, infoJsonFile);
+            String title = displayTitle(metadata, platform);
+            if (job.isShared()) {
+                metadataCache.put(url, metadata);
+            }
+
+            // Each stream is downloaded on its own (-f 137,140 rather than 137+140); merging is the post-processor's job
+            List<InfoJsonReader.StreamFormat> formats = InfoJsonReader.readStreams(infoJsonFile);
+            List<Path> streams = new ArrayList<>();
+            String streamFormat;
+            String outputTemplate;
+            if (formats.isEmpty()) {
+                // yt-dlp did not say what it picked; let it select (and merge, if it has to) into a single file,
+                // whose extension is only known once it is written
+                streamFormat = job.getFormat();
+                outputTemplate = workDir.resolve(job.getId() + ".stream.%(ext)s").toString();
+            } else {
+                streamFormat = formats.stream().map(InfoJsonReader.StreamFormat::getFormatId).collect(Collectors.joining(","));
+                outputTemplate = workDir.resolve(job.getId() + ".f%(format_id)s.%(ext)s").toString();
+                formats.forEach(format -> streams.add(workDir.resolve(job.getId() + ".f" + format.getFormatId() + "." + format.getExt())));
             }
-            command.add(url);
+            boolean nativeEngine = "native".equals(downloadEngine) && tempCookiesFile == null && streams.size() == 1;
 
-            ProcessBuilder pb = new ProcessBuilder(command);
-            pb.redirectErrorStream(true);
-            Process process = pb.start();
-            activeProcesses.put(sessionId, process);
-            logger.info("Started download process for session: {} (PID: {}, URL: {})",
-                    sessionId, process.pid(), url);
+            logger.info("Processing URL: {} for job: {}", url, job.getId());
+            if (job.isCanceled()) {
+                logger.warn("Download job: {} canceled during processing", job.getId());
+                throw new InterruptedException("Download canceled");
+            }
 
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null && activeSessions.containsKey(sessionId)) {
-                    if (line.startsWith("[download]") || line.startsWith("[Merger]") || line.startsWith("[ExtractAudio]")) {
-                        progressController.sendMessage(sessionId, "Progress: " + line);
+            lease = bandwidthManager.open(job.getId(), job::getSubscribers, true);
+            if (!nativeEngine || !downloadNatively(job, lease, infoJsonFile, streams.get(0))) {
+                ProcessRunner.ProcessResult result = executeDownload(job, lease, streamFormat, outputTemplate, infoJsonFile,
+                        tempCookiesFile);
+                while (true) {
+                    if (lease.detach() && result.getExitCode() != 0 && !result.isTimedOut() && !job.isCanceled() && !shuttingDown) {
+                        // Stopped by the bandwidth manager to take a new rate limit; --continue picks up the part files
+                        logger.debug("Download job: {} continuing at {} bytes/s", job.getId(), lease.getRateLimit());
+                    } else if (diedMidDownload(job, result) && job.getResumeAttempts() < maxResumeAttempts) {
+                        // Killed from outside (OOM killer, kill -9): the part files are intact, so continue from them
+                        job.setResumeAttempts(job.getResumeAttempts() + 1);
+                        jobJournal.resumed(job.getId(), job.getResumeAttempts());
+                        logger.warn("Download process for job: {} was killed (exit code {}), resuming, attempt {} of {}",
+                                job.getId(), result.getExitCode(), job.getResumeAttempts(), maxResumeAttempts);
+                        job.broadcast("Progress: Download interrupted, resuming...");
+                    } else {
+                        break;
                     }
-                    logger.debug("Process output: {}", line);
+                    result = executeDownload(job, lease, streamFormat, outputTemplate, infoJsonFile, tempCookiesFile);
+                }
+
+                if (job.isCanceled()) {
+                    throw new InterruptedException("Download canceled");
                 }
+                if (result.isTimedOut()) {
+                    throw new RuntimeException("The download took too long and was stopped. Please try again later.");
+                }
+                if (result.getExitCode() != 0) {
+                    logger.warn("Download process for job: {} exited with code: {}", job.getId(), result.getExitCode());
+                    throw new RuntimeException(getFriendlyErrorMessage(errorLines(result.getOutputTail()), platform));
+                }
+
+                activeProcesses.remove(job.getId());
+                logger.info("Download completed. Process cleaned up for job: {}", job.getId());
             }
 
-            boolean finished = process.waitFor(300, TimeUnit.SECONDS); // 5 minutes timeout
-            if (finished) {
-                return process.exitValue();
-            } else {
-                process.destroyForcibly();
-                return -1;
+            if (streams.isEmpty()) {
+                findStream(workDir, job.getId()).ifPresent(streams::add);
             }
+            if (streams.isEmpty()) {
+                throw new RuntimeException("No downloaded file found. Please try again.");
+            }
+            for (Path stream : streams) {
+                if (!Files.exists(stream)) {
+                    throw new RuntimeException("No downloaded file found. Please try again.");
+                }
+                downloadMetrics.bytesDownloaded(Files.size(stream));
+            }
+            return new DownloadedStreams(workDir, streams, metadata, title);
 
         } catch (Exception e) {
-            logger.error("Error during download for session: {}", sessionId, e);
-            return -1;
+            activeProcesses.remove(job.getId());
+            if (shuttingDown) {
+                logger.info("Download job: {} interrupted by shutdown, keeping its part files", job.getId());
+                throw new CompletionException(e);
+            }
+            logger.error("Download failed for job: {} with error: {}", job.getId(), e.getMessage(), e);
+            deletePartialFiles(job.getId());
+            throw new CompletionException(e);
+        } finally {
+            if (lease != null) {
+                bandwidthManager.close(lease);
+            }
+            // Müvəqqəti faylı silmək
+            if (tempCookiesFile != null) {
+                try {
+                    Files.deleteIfExists(tempCookiesFile);
+                    logger.info("Temporary cookies file deleted: {}", tempCookiesFile);
+                } catch (IOException e) {
+                    logger.error("Failed to delete temporary cookies file: {}", tempCookiesFile, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The CPU half of a job: turns the raw streams into the requested output with the {@link PostProcessor}, off the
+     * download slot, then moves the finished file out of the work directory. A single stream that already is the
+     * requested MP4 is used as it is.
+     */
+    private CompletableFuture<String> postProcess(DownloadJob job, DownloadedStreams downloaded) {
+        OutputFormat output = OutputFormat.parse(job.getRequest().getOutputFormat());
+        Path workFile = downloaded.workDir.resolve(job.getId() + "." + output.extension());
+        CompletableFuture<Path> converted;
+        if (output == OutputFormat.MP4 && downloaded.streams.size() == 1
+                && downloaded.streams.get(0).getFileName().toString().endsWith("." + output.extension())) {
+            try {
+                converted = CompletableFuture.completedFuture(Files.move(downloaded.streams.get(0), workFile,
+                        StandardCopyOption.ATOMIC_MOVE));
+            } catch (IOException e) {
+                converted = CompletableFuture.failedFuture(e);
+            }
+        } else {
+            converted = postProcessor.submit(job.getId(), job.getRequest().getPlatform(), downloaded.streams, output,
+                    workFile, downloaded.metadata.getDuration(), () -> job.isCanceled() || shuttingDown, job::publish);
+        }
+        return converted.thenApply(file -> {
+            job.flushProgress();
+            try {
+                return publishDownload(job, downloaded, file);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }).whenComplete((fileName, ex) -> {
+            if (ex != null && !shuttingDown) {
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                if (!job.isCanceled()) {
+                    logger.error("Post-processing failed for job: {} with error: {}", job.getId(), cause.getMessage());
+                }
+                deletePartialFiles(job.getId());
+            }
+        });
+    }
+
+    private String publishDownload(DownloadJob job, DownloadedStreams downloaded, Path workFile) throws IOException {
+        String finalFileName = workFile.getFileName().toString();
+        Files.move(workFile, Paths.get(downloadDir, finalFileName), StandardCopyOption.ATOMIC_MOVE);
+        downloadStorage.discard(downloaded.workDir);
+
+        String extension = finalFileName.substring(finalFileName.lastIndexOf('.'));
+        fileDisplayNames.put(finalFileName, sanitizeFilename(downloaded.title) + extension);
+        fileMetadata.put(finalFileName, downloaded.metadata);
+        logger.info("Returning filename: {} for job: {}", finalFileName, job.getId());
+        return finalFileName;
+    }
+
+    private boolean diedMidDownload(DownloadJob job, ProcessRunner.ProcessResult result) {
+        // Exit codes above 128 mean the process was killed by a signal; yt-dlp's own failures exit with 1 or 2
+        return result.getExitCode() > 128 && !result.isTimedOut() && !job.isCanceled() && !shuttingDown;
+    }
+
+    /**
+     * The file yt-dlp wrote for the {@code <jobId>.stream.%(ext)s} template: exactly one extension after the prefix,
+     * so part files, fragments and the per-format files of a merge are never mistaken for it.
+     */
+    private static Optional<Path> findStream(Path workDir, String jobId) throws IOException {
+        String prefix = jobId + ".stream.";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(workDir, prefix + "*")) {
+            for (Path file : files) {
+                if (file.getFileName().toString().substring(prefix.length()).matches("[A-Za-z0-9]+")) {
+                    return Optional.of(file);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Downloads the job's file with {@link RangeDownloader} when yt-dlp resolved it to a single file on plain HTTP.
+     * Returns false, leaving the job to yt-dlp, when it did not or the transfer failed.
+     */
+    private boolean downloadNatively(DownloadJob job, BandwidthManager.Lease lease, Path infoJsonFile, Path target)
+            throws InterruptedException, IOException {
+        InfoJsonReader.DirectMedia media = InfoJsonReader.readDirectMedia(infoJsonFile);
+        if (media == null) {
+            logger.info("Download job: {} needs yt-dlp (merged, fragmented or non-HTTP format)", job.getId());
+            return false;
+        }
+
+        // Written under its own name: a half-done file with holes must never look like yt-dlp's output or part file
+        Path partFile = target.resolveSibling(target.getFileName() + ".native");
+        String platform = job.getRequest().getPlatform();
+        Timer.Sample sample = downloadMetrics.start();
+        lease.startLive();
+        try {
+            long bytes = rangeDownloader.download(media, partFile, event -> {
+                lease.observe(event);
+                job.publish(event);
+            }, lease::getRateLimit, () -> job.isCanceled() || shuttingDown, Duration.ofSeconds(downloadTimeoutSeconds));
+            job.flushProgress();
+            Files.move(partFile, target, StandardCopyOption.ATOMIC_MOVE);
+            downloadMetrics.record(sample, DownloadMetrics.STAGE_DOWNLOAD, platform, "success");
+            logger.info("Native download finished for job: {} ({} bytes)", job.getId(), bytes);
+            return true;
+        } catch (CancellationException e) {
+            downloadMetrics.record(sample, DownloadMetrics.STAGE_DOWNLOAD, platform, "canceled");
+            throw new InterruptedException("Download canceled");
+        } catch (TimeoutException e) {
+            downloadMetrics.record(sample, DownloadMetrics.STAGE_DOWNLOAD, platform, "timeout");
+            downloadMetrics.timeout(DownloadMetrics.STAGE_DOWNLOAD);
+            throw new RuntimeException(e.getMessage());
+        } catch (IOException e) {
+            downloadMetrics.record(sample, DownloadMetrics.STAGE_DOWNLOAD, platform, "failure");
+            downloadMetrics.nativeFallback();
+            logger.warn("Native download failed for job: {} ({}), falling back to yt-dlp", job.getId(), e.getMessage());
+            return false;
+        } finally {
+            deleteQuietly(partFile);
         }
     }
 
-    private String getVideoName(String url, String platform, Path cookiesFile) throws Exception { // Yeni dəyişiklik: cookiesFile qəbul edir
-        String printField = "instagram".equals(platform) ? "description" : "title";
+    private void completeJob(DownloadJob job, String fileName, Throwable ex) {
+        if (ex == null) {
+            // Journaled before the job is unregistered, which may already delete the file if nobody is left
+            MediaMetadata finished = fileMetadata.get(fileName);
+            jobJournal.finished(job.getId(), job.getSubscribers(), fileName, fileDisplayNames.get(fileName),
+                    finished != null ? finished.getTitle() : null, finished != null ? finished.getThumbnail() : null);
+        } else if (!job.isCanceled() && !shuttingDown) {
+            jobJournal.failed(job.getId());
+        }
+        List<String> sessions = unregisterJob(job, ex == null ? fileName : null);
+        if (ex == null) {
+            logger.info("Download job: {} finished for {} session(s)", job.getId(), sessions.size());
+            if (job.isShared() && !sessions.isEmpty()) {
+                MediaMetadata metadata = fileMetadata.get(fileName);
+                resultCache.store(job.getKey(), Paths.get(downloadDir, fileName), fileDisplayNames.get(fileName),
+                        metadata != null ? metadata.getTitle() : null, metadata != null ? metadata.getThumbnail() : null);
+            }
+            jobStatuses.finished(job.getId(), fileName);
+            sessions.forEach(sessionId -> progressController.sendMessage(sessionId, "Download finished: " + fileName));
+            job.getFuture().complete(fileName);
+        } else {
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            if (job.isCanceled()) {
+                jobStatuses.canceled(job.getId());
+            } else if (!shuttingDown) {
+                // A job interrupted by a restart stays as it was; it resumes under the same ID
+                jobStatuses.failed(job.getId(), cause.getMessage());
+                sessions.forEach(sessionId -> progressController.sendMessage(sessionId, "Error: " + cause.getMessage()));
+            }
+            job.getFuture().completeExceptionally(cause);
+        }
+    }
 
+    private List<String> unregisterJob(DownloadJob job, String fileName) {
+        List<String> sessions;
+        synchronized (jobLock) {
+            job.markFinished();
+            jobsByKey.remove(job.getKey(), job);
+            sessions = job.getSubscribers();
+            sessions.forEach(sessionId -> activeSessions.remove(sessionId, job));
+            if (fileName != null && !sessions.isEmpty()) {
+                artifactHolders.computeIfAbsent(fileName, k -> new LinkedHashSet<>()).addAll(sessions);
+                if (job.isShared()) {
+                    finishedArtifacts.put(job.getKey(), fileName);
+                }
+            }
+        }
+        if (fileName != null && sessions.isEmpty()) {
+            logger.info("Download job: {} finished with no remaining sessions, discarding: {}", job.getId(), fileName);
+            discardArtifact(fileName);
+        }
+        return sessions;
+    }
+
+    private ProcessRunner.ProcessResult executeDownload(DownloadJob job, BandwidthManager.Lease lease, String format,
+                                                        String output, Path infoJsonFile, Path cookiesFile)
+            throws IOException, InterruptedException {
+        Path logFile = infoJsonFile.resolveSibling(job.getId() + ".log");
+        try {
+            List<String> command = buildDownloadCommand(format, output, infoJsonFile, cookiesFile,
+                    lease.getRateLimit(), lease.getConcurrentFragments());
+
+            long startedAt = System.nanoTime();
+            long[] postProcessingAt = {0};
+            Process process = processRunner.start(command, logFile, null);
+            activeProcesses.put(job.getId(), process);
+            lease.attach(process);
+            logger.info("Started download process for job: {} (PID: {}, info JSON: {}, rate limit: {} bytes/s)",
+                    job.getId(), process.pid(), infoJsonFile, lease.getRateLimit());
+
+            ProcessRunner.ProcessResult result = processRunner.follow(process, logFile, line -> {
+                if (ProgressParser.isRelevant(line)) {
+                    ProgressEvent event = ProgressParser.parse(line);
+                    if (event != null) {
+                        lease.observe(event);
+                        if (postProcessingAt[0] == 0 && !ProgressParser.STAGE_DOWNLOADING.equals(event.getStage())) {
+                            postProcessingAt[0] = System.nanoTime();
+                        }
+                        job.publish(event);
+                    }
+                }
+                logger.debug("Process output: {}", line);
+            }, job::isCanceled, Duration.ofSeconds(downloadTimeoutSeconds));
+            job.flushProgress();
+
+            // Time before the first merge/post-processing line counts as download, the rest as merge
+            long endedAt = System.nanoTime();
+            String outcome = job.isCanceled() ? "canceled" : lease.isRestarting() ? "restarted"
+                    : result.isTimedOut() ? "timeout" : result.getExitCode() == 0 ? "success" : "failure";
+            String platform = job.getRequest().getPlatform();
+            long downloadEnd = postProcessingAt[0] != 0 ? postProcessingAt[0] : endedAt;
+            downloadMetrics.record(DownloadMetrics.STAGE_DOWNLOAD, platform, outcome, downloadEnd - startedAt);
+            if (postProcessingAt[0] != 0) {
+                downloadMetrics.record(DownloadMetrics.STAGE_MERGE, platform, outcome, endedAt - postProcessingAt[0]);
+            }
+            if (result.isTimedOut()) {
+                downloadMetrics.timeout(DownloadMetrics.STAGE_DOWNLOAD);
+            }
+            return result;
+        } finally {
+            try {
+                Files.deleteIfExists(logFile);
+            } catch (IOException e) {
+                logger.warn("Failed to delete process log: {}", logFile);
+            }
+        }
+    }
+
+    private List<String> buildDownloadCommand(String format, String output, Path infoJsonFile, Path cookiesFile,
+                                              long rateLimit, int concurrentFragments) {
         List<String> command = new ArrayList<>();
         command.add(ytDlpPath);
         command.add("--no-cache-dir");
@@ -244,57 +1231,130 @@ public class VideoServiceImpl implements VideoService {
         command.add("Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.124 Safari/537.36");
         command.add("--force-ipv4");
         command.add("--retries");
-        command.add("5");
+        command.add("10");
         command.add("--socket-timeout");
-        command.add("15");
-        command.add("--print");
-        command.add(printField);
-        command.add("--skip-download");
+        command.add("30");
+        command.add("--buffer-size");
+        command.add("16K");
+
+        command.add("--concurrent-fragments");
+        command.add(String.valueOf(concurrentFragments));
+        command.add("--limit-rate");
+        command.add(String.valueOf(rateLimit));
+        command.add("--http-chunk-size");
+        command.add("10M");
+        command.add("--continue");
+        command.add("--newline");
+        command.add("--progress-template");
+        command.add(ProgressParser.PROGRESS_TEMPLATE);
+
+        command.add("-f");
+        command.add(format);
+        command.add("--ffmpeg-location");
+        command.add(ffmpegPath);
+        command.add("-o");
+        command.add(output);
 
         if (cookiesFile != null) {
             command.add("--cookies");
             command.add(cookiesFile.toString());
         }
 
-        command.add(url);
+        command.add("--load-info-json");
+        command.add(infoJsonFile.toString());
+        return command;
+    }
 
-        ProcessBuilder pb = new ProcessBuilder(command);
-        Process process = pb.start();
+    /**
+     * Runs a metadata-only yt-dlp command (executable, options, then the URL) in a warm extractor worker when one
+     * is free, and as a one-shot process otherwise. Either way the info JSON ends up in {@code output}.
+     */
+    private ProcessRunner.ProcessResult runExtraction(List<String> command, Path output, Duration timeout)
+            throws IOException, InterruptedException {
+        ProcessRunner.ProcessResult result = extractorPool.extract(command.subList(1, command.size() - 1),
+                command.get(command.size() - 1), output, timeout);
+        return result != null ? result : processRunner.run(command, output, timeout);
+    }
 
-        StringBuilder output = new StringBuilder();
-        StringBuilder errorOutput = new StringBuilder();
+    private void recordExtraction(Timer.Sample sample, String platform, ProcessRunner.ProcessResult result) {
+        String outcome = result.isTimedOut() ? "timeout" : result.getExitCode() == 0 ? "success" : "failure";
+        downloadMetrics.record(sample, DownloadMetrics.STAGE_EXTRACT, platform, outcome);
+        if (result.isTimedOut()) {
+            downloadMetrics.timeout(DownloadMetrics.STAGE_EXTRACT);
+        }
+    }
 
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                output.append(line).append("\n");
-            }
+    private MediaMetadata extractMetadata(String url, String platform, String format, Path cookiesFile, Path infoJsonFile)
+            throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(ytDlpPath);
+        command.add("--no-cache-dir");
+        command.add("--user-agent");
+        command.add("Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.124 Safari/537.36");
+        command.add("--force-ipv4");
+        command.add("--retries");
+        command.add("5");
+        command.add("--socket-timeout");
+        command.add("15");
+        command.add("--dump-json");
+        command.add("--skip-download");
+        command.add("--no-playlist");
+        command.add("--playlist-items");
+        command.add("1");
+
+        if (format != null) {
+            command.add("-f");
+            command.add(format);
         }
 
-        try (BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
-            String line;
-            while ((line = errorReader.readLine()) != null) {
-                errorOutput.append(line).append("\n");
-            }
+        if (cookiesFile != null) {
+            command.add("--cookies");
+            command.add(cookiesFile.toString());
         }
 
-        boolean finished = process.waitFor(30, TimeUnit.SECONDS);
-        if (!finished) {
-            process.destroyForcibly();
+        command.add(url);
+
+        // The info JSON goes straight to disk so the download step can reuse it via --load-info-json
+        Timer.Sample sample = downloadMetrics.start();
+        ProcessRunner.ProcessResult result = runExtraction(command, infoJsonFile, Duration.ofSeconds(infoTimeoutSeconds));
+        recordExtraction(sample, platform, result);
+        if (result.isTimedOut()) {
             throw new RuntimeException("Timeout while fetching video information");
         }
-
-        int exitCode = process.exitValue();
-        if (exitCode != 0) {
-            String rawError = errorOutput.toString().trim();
-            String friendlyError = getFriendlyErrorMessage(rawError, platform);
+        if (result.getExitCode() != 0) {
+            String friendlyError = getFriendlyErrorMessage(result.getOutputTail().trim(), platform);
             throw new RuntimeException(friendlyError);
         }
 
-        String name = output.toString().trim();
-        if (name.isEmpty()) {
+        if (!Files.exists(infoJsonFile) || Files.size(infoJsonFile) == 0) {
+            throw new RuntimeException("Failed to retrieve video information");
+        }
+
+        MediaMetadata metadata = InfoJsonReader.read(infoJsonFile);
+        thumbnailCache.prefetch(metadata.getThumbnail());
+        return metadata;
+    }
+
+    private Map<String, Object> toInfoMap(MediaMetadata metadata) {
+        Map<String, Object> selectedInfo = new HashMap<>();
+        selectedInfo.put("title", metadata.getTitle());
+        selectedInfo.put("uploader", metadata.getUploader());
+        selectedInfo.put("duration", metadata.getDuration());
+        selectedInfo.put("view_count", metadata.getViewCount());
+        selectedInfo.put("upload_date", metadata.getUploadDate());
+        selectedInfo.put("thumbnail", thumbnailCache.localUrl(metadata.getThumbnail()));
+        return selectedInfo;
+    }
+
+    private String displayTitle(MediaMetadata metadata, String platform) {
+        String name = "instagram".equals(platform) ? metadata.getDescription() : metadata.getTitle();
+        if (name == null || name.isBlank()) {
+            name = metadata.getTitle();
+        }
+        if (name == null || name.isBlank()) {
             throw new RuntimeException("Failed to retrieve video title");
         }
+        name = name.trim();
 
         if ("instagram".equals(platform)) {
             String[] sentences = name.split("\\. ");
@@ -307,89 +1367,114 @@ public class VideoServiceImpl implements VideoService {
         return name.trim();
     }
 
-    private void zipDirectory(String sourceDirPath, String zipPath) throws IOException {
-        Path zipFile = Paths.get(zipPath);
-        try (ZipOutputStream zs = new ZipOutputStream(Files.newOutputStream(zipFile))) {
-            Path sourceDir = Paths.get(sourceDirPath);
-            Files.walk(sourceDir)
-                    .filter(path -> !Files.isDirectory(path))
-                    .forEach(path -> {
-                        ZipEntry zipEntry = new ZipEntry(sourceDir.relativize(path).toString());
-                        try {
-                            zs.putNextEntry(zipEntry);
-                            Files.copy(path, zs);
-                            zs.closeEntry();
-                        } catch (IOException e) {
-                            logger.error("Error zipping file: {}", path, e);
-                        }
-                    });
-        }
-    }
-
     @Override
     public void cancelDownload(String sessionId) {
-        activeSessions.remove(sessionId);
-        Process process = activeProcesses.remove(sessionId);
-        if (process != null && process.isAlive()) {
-            process.destroyForcibly();
-            logger.info("Download canceled for session: {} (Process PID: {})", sessionId, process.pid());
+        BatchJob batch = activeBatches.get(sessionId);
+        if (batch != null) {
+            batch.cancel();
+            for (DownloadJob itemJob : batch.getRunningJobs()) {
+                itemJob.cancel();
+                downloadScheduler.cancel(itemJob.getId());
+                Process process = activeProcesses.remove(itemJob.getId());
+                if (process != null && process.isAlive()) {
+                    process.destroyForcibly();
+                }
+            }
+            downloadMetrics.cancellation();
+            logger.info("Batch: {} canceled for session: {}", batch.getId(), sessionId);
+            progressController.sendMessage(sessionId, "Download canceled successfully");
+            return;
+        }
+
+        DownloadJob job;
+        boolean lastSubscriber = false;
+        synchronized (jobLock) {
+            job = activeSessions.remove(sessionId);
+            if (job != null) {
+                lastSubscriber = job.removeSubscriber(sessionId);
+                if (lastSubscriber) {
+                    job.cancel();
+                    jobJournal.canceled(job.getId());
+                } else {
+                    jobJournal.unsubscribed(job.getId(), sessionId);
+                }
+            }
+        }
+
+        if (job == null) {
+            logger.info("Download canceled for session: {} (no active download)", sessionId);
+        } else if (!lastSubscriber) {
+            logger.info("Session: {} detached from shared download job: {}, other sessions still need it", sessionId, job.getId());
         } else {
-            logger.info("Download canceled for session: {} (before process started or already completed)", sessionId);
+            downloadMetrics.cancellation();
+            downloadScheduler.cancel(job.getId());
+            Process process = activeProcesses.remove(job.getId());
+            if (process != null && process.isAlive()) {
+                process.destroyForcibly();
+                logger.info("Download canceled for session: {} (Process PID: {})", sessionId, process.pid());
+            } else {
+                logger.info("Download canceled for session: {} (before process started or already completed)", sessionId);
+            }
+            deletePartialFiles(job.getId());
         }
         progressController.sendMessage(sessionId, "Download canceled successfully");
-        deletePartialFiles(sessionId);
     }
 
-    private void deletePartialFiles(String sessionId) {
-        try {
-            Path dirPath = Paths.get(downloadDir);
-            if (Files.exists(dirPath)) {
-                Files.walk(dirPath)
-                        .filter(path -> {
-                            String name = path.getFileName().toString();
-                            return name.startsWith(sessionId + ".") || name.equals(sessionId);
-                        })
-                        .sorted(Comparator.reverseOrder())
-                        .forEach(path -> {
-                            try {
-                                Files.delete(path);
-                                logger.info("Deleted partial file: {}", path);
-                            } catch (IOException e) {
-                                logger.error("Failed to delete partial file: {}", path, e);
-                            }
-                        });
-            }
-        } catch (IOException e) {
-            logger.error("Error cleaning up partial files for session: {}", sessionId, e);
+    private void deletePartialFiles(String jobId) {
+        // Part files, fragments, logs and the info JSON all live in the job's work directory
+        Path workDir = downloadStorage.workDirectory(jobId);
+        if (Files.exists(workDir)) {
+            downloadStorage.discard(workDir);
+            logger.info("Discarded work directory: {}", workDir);
         }
     }
 
+    private void requireFreeSpace() {
+        if (!downloadStorage.hasRoom()) {
+            downloadMetrics.refusal("disk_full");
+            throw new RejectedExecutionException("The server is out of storage space. Please try again later.");
+        }
+    }
+
+    private static String errorLines(String output) {
+        // Download output interleaves progress with errors; only the error and warning lines are useful
+        return Arrays.stream(output.split("\n"))
+                .filter(line -> line.startsWith("ERROR:") || line.startsWith("WARNING:"))
+                .collect(Collectors.joining("\n"));
+    }
+
     private String getFriendlyErrorMessage(String rawError, String platform) {
-        String lowerError = rawError.toLowerCase();
-        if (lowerError.contains("instagram") && (lowerError.contains("cookies") || lowerError.contains("login") || lowerError.contains("granting access"))) {
-            return "This Instagram post appears to be private or restricted. We currently support only public posts. For private content, use yt-dlp directly with your browser cookies.";
-        } else if (lowerError.contains("video unavailable") || lowerError.contains("does not exist") || lowerError.contains("no video formats")) {
-            return "The media is unavailable or the URL is invalid. Please check and try again.";
-        } else if (lowerError.contains("geo-restricted") || lowerError.contains("not available in your country")) {
-            return "This content is geo-restricted and not available in the server's location.";
-        } else if (lowerError.contains("age-restricted")) {
-            return "This content is age-restricted. Consider using yt-dlp with cookies from a verified account.";
-        } else if (lowerError.contains("unsupported url")) {
-            return "Unsupported URL format. Ensure it's a valid " + platform + " link.";
-        } else if (rawError.isEmpty()) {
-            return "An unknown error occurred during download. Please try again later.";
-        } else {
-            String[] lines = rawError.split("\n");
-            for (String l : lines) {
-                if (l.startsWith("ERROR:")) {
-                    return l.substring(6).trim() + " Please check the URL or try updating yt-dlp.";
+        ErrorCategory category = ErrorCategory.classify(rawError);
+        downloadMetrics.failure(category);
+        return friendlyMessage(category, rawError, platform);
+    }
+
+    static String friendlyMessage(ErrorCategory category, String rawError, String platform) {
+        switch (category) {
+            case PRIVATE_CONTENT:
+                return "This Instagram post appears to be private or restricted. We currently support only public posts. For private content, use yt-dlp directly with your browser cookies.";
+            case UNAVAILABLE:
+                return "The media is unavailable or the URL is invalid. Please check and try again.";
+            case GEO_RESTRICTED:
+                return "This content is geo-restricted and not available in the server's location.";
+            case AGE_RESTRICTED:
+                return "This content is age-restricted. Consider using yt-dlp with cookies from a verified account.";
+            case UNSUPPORTED_URL:
+                return "Unsupported URL format. Ensure it's a valid " + platform + " link.";
+            case UNKNOWN:
+                return "An unknown error occurred during download. Please try again later.";
+            default:
+                String[] lines = rawError.split("\n");
+                for (String l : lines) {
+                    if (l.startsWith("ERROR:")) {
+                        return l.substring(6).trim() + " Please check the URL or try updating yt-dlp.";
+                    }
                 }
-            }
-            return "An error occurred: " + rawError.substring(0, Math.min(200, rawError.length())) + "... Please try again.";
+                return "An error occurred: " + rawError.substring(0, Math.min(200, rawError.length())) + "... Please try again.";
         }
     }
 
-    private String sanitizeFilename(String title) {
+    static String sanitizeFilename(String title) {
         String sanitized = title.replaceAll("[\\\\/:*?\"<>|]", "_").trim();
         if (sanitized.length() > 200) {
             sanitized = sanitized.substring(0, 200);
@@ -399,118 +1484,136 @@ public class VideoServiceImpl implements VideoService {
 
     @Override
     public Resource getDownloadedVideo(String fileName) throws IOException {
-        Path filePath = Paths.get(downloadDir, fileName);
-        if (!Files.exists(filePath)) {
+        Path dirPath = Paths.get(downloadDir).toAbsolutePath().normalize();
+        Path filePath = dirPath.resolve(fileName).normalize();
+        if (!filePath.getParent().equals(dirPath) || !Files.isRegularFile(filePath)) {
             throw new IOException("File not found: " + fileName);
         }
         return new FileSystemResource(filePath);
     }
 
     @Override
-    public void deleteDownloadedVideo(String fileName) {
+    public void deleteDownloadedVideo(String fileName, String sessionId) {
+        if (sessionId == null) {
+            throw new IllegalArgumentException("A session ID is required to release a file");
+        }
+        synchronized (jobLock) {
+            Set<String> holders = artifactHolders.get(fileName);
+            if (holders == null || !holders.remove(sessionId)) {
+                logger.warn("Session: {} does not hold file: {}, ignoring cleanup", sessionId, fileName);
+                return;
+            }
+            if (!holders.isEmpty()) {
+                logger.info("Released file: {}, still held by {} session(s)", fileName, holders.size());
+                return;
+            }
+        }
+        discardArtifact(fileName);
+    }
+
+    /** Deletes a finished file whatever sessions still hold it; for expiry, shutdown paths and orphaned results. */
+    private void discardArtifact(String fileName) {
+        Path filePath = downloadStorage.artifactPath(fileName);
+        if (filePath == null) {
+            logger.warn("Refusing to delete: {}, it is not a file in the download directory", fileName);
+            return;
+        }
+        synchronized (jobLock) {
+            artifactHolders.remove(fileName);
+            finishedArtifacts.values().remove(fileName);
+        }
         try {
-            Path filePath = Paths.get(downloadDir, fileName);
             Files.deleteIfExists(filePath);
             if (fileName.endsWith(".zip")) {
-                String sessionId = fileName.substring(0, fileName.length() - 4);
-                Path dirPath = Paths.get(downloadDir, sessionId);
-                if (Files.exists(dirPath)) {
-                    Files.walk(dirPath)
-                            .sorted(Comparator.reverseOrder())
-                            .forEach(path -> {
-                                try {
-                                    Files.delete(path);
-                                } catch (IOException e) {
-                                    logger.error("Failed to delete: {}", path, e);
-                                }
-                            });
+                batchArchives.remove(fileName);
+                String archiveId = fileName.substring(0, fileName.length() - 4);
+                if (DownloadStorage.BATCH_DIR.matcher(archiveId).matches()) {
+                    downloadStorage.discard(filePath.resolveSibling(archiveId));
                 }
             }
             fileDisplayNames.remove(fileName);
+            fileMetadata.remove(fileName);
+            jobJournal.deleted(fileName);
         } catch (IOException e) {
             logger.error("Failed to delete file: {}", fileName, e);
         }
     }
 
+    @Override
+    public boolean expireDownloadedVideo(String fileName) {
+        synchronized (jobLock) {
+            BatchJob batch = batchArchives.get(fileName);
+            if (batch != null && activeBatches.get(batch.getSessionId()) == batch) {
+                return false;
+            }
+            Set<String> holders = artifactHolders.get(fileName);
+            if (holders != null && !holders.isEmpty()) {
+                logger.info("Expiring file: {} still held by {} session(s)", fileName, holders.size());
+            }
+        }
+        discardArtifact(fileName);
+        return true;
+    }
+
     @Override
     public String getDisplayName(String fileName) {
         return fileDisplayNames.getOrDefault(fileName, fileName);
     }
 
+    @Override
+    public Map<String, Object> getDownloadedMediaInfo(String fileName) {
+        MediaMetadata metadata = fileMetadata.get(fileName);
+        if (metadata == null) {
+            return null;
+        }
+        Map<String, Object> info = new HashMap<>();
+        info.put("title", fileDisplayNames.getOrDefault(fileName, metadata.getTitle()));
+        info.put("thumbnailUrl", thumbnailCache.localUrl(metadata.getThumbnail()));
+        return info;
+    }
+
     @Override
     public Map<String, Object> getMediaInfo(String url, String platform) {
-        Path tempCookiesFile = null;
         try {
+            return toInfoMap(metadataCache.get(url, () -> fetchMediaInfo(url, platform)));
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to retrieve media info: " + e.getMessage());
+        }
+    }
 
-            StringBuilder jsonOutput = new StringBuilder();
-            StringBuilder errorOutput = new StringBuilder();
-
-            List<String> command = new ArrayList<>();
-            command.add(ytDlpPath);
-            command.add("--no-cache-dir");
-            command.add("--user-agent");
-            command.add("Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.124 Safari/537.36");
-            command.add("--force-ipv4");
-            command.add("--retries");
-            command.add("5");
-            command.add("--socket-timeout");
-            command.add("15");
-            command.add("-J");
-            command.add("--skip-download");
-            command.add(url);
-
-            ProcessBuilder pb = new ProcessBuilder(command);
-            Process process = pb.start();
-
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    jsonOutput.append(line).append("\n");
-                }
-            }
-
-            try (BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
-                String line;
-                while ((line = errorReader.readLine()) != null) {
-                    errorOutput.append(line).append("\n");
-                }
-            }
+    private MediaMetadata fetchMediaInfo(String url, String platform) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(ytDlpPath);
+        command.add("--no-cache-dir");
+        command.add("--user-agent");
+        command.add("Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.124 Safari/537.36");
+        command.add("--force-ipv4");
+        command.add("--retries");
+        command.add("5");
+        command.add("--socket-timeout");
+        command.add("15");
+        command.add("-J");
+        command.add("--skip-download");
+        command.add(url);
 
-            boolean finished = process.waitFor(30, TimeUnit.SECONDS);
-            if (!finished) {
-                process.destroyForcibly();
+        Path jsonFile = Files.createTempFile("yt-dlp-", ".json");
+        try {
+            Timer.Sample sample = downloadMetrics.start();
+            ProcessRunner.ProcessResult result = runExtraction(command, jsonFile, Duration.ofSeconds(infoTimeoutSeconds));
+            recordExtraction(sample, platform, result);
+            if (result.isTimedOut()) {
                 throw new RuntimeException("Timeout while fetching media information");
             }
-
-            int exitCode = process.exitValue();
-            if (exitCode != 0) {
-                String rawError = errorOutput.toString().trim();
-                String friendlyError = getFriendlyErrorMessage(rawError, platform);
+            if (result.getExitCode() != 0) {
+                String friendlyError = getFriendlyErrorMessage(result.getOutputTail().trim(), platform);
                 throw new RuntimeException(friendlyError);
             }
 
-            ObjectMapper objectMapper = new ObjectMapper();
-            Map<String, Object> info = objectMapper.readValue(jsonOutput.toString(), Map.class);
-            Map<String, Object> selectedInfo = new HashMap<>();
-            selectedInfo.put("title", info.get("title"));
-            selectedInfo.put("uploader", info.get("uploader"));
-            selectedInfo.put("duration", info.get("duration"));
-            selectedInfo.put("view_count", info.get("view_count"));
-            selectedInfo.put("upload_date", info.get("upload_date"));
-            selectedInfo.put("thumbnail", info.get("thumbnail"));
-            return selectedInfo;
-
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to retrieve media info: " + e.getMessage());
+            MediaMetadata metadata = InfoJsonReader.read(jsonFile);
+            thumbnailCache.prefetch(metadata.getThumbnail());
+            return metadata;
         } finally {
-            if (tempCookiesFile != null) {
-                try {
-                    Files.deleteIfExists(tempCookiesFile);
-                    logger.info("Temporary cookies file deleted: {}", tempCookiesFile);
-                } catch (IOException e) {
-                    logger.error("Failed to delete temporary cookies file: {}", tempCookiesFile, e);
-                }
-            }
+            Files.deleteIfExists(jsonFile);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,93 @@
+#!/usr/bin/env python3
+"""Long-lived yt-dlp extractor for ExtractorPool.
+
+Imports yt_dlp once and then answers JSON-line requests on stdin, one per line, on stdout:
+
+  {"op": "extract", "args": [...yt-dlp CLI options...], "url": "...", "output": "/path/info.json"}
+      -> {"ok": true, "rss": <max RSS in KiB>}  (the info JSON is written to "output", as --dump-json / -J would)
+      -> {"ok": false, "error": "ERROR: ...", "rss": ...}
+  {"op": "ping"} -> {"ok": true, "rss": ...}
+
+The options are the ones the one-shot CLI would get, parsed by yt-dlp itself, so both paths stay in sync. Usage:
+extractor_worker.py <yt-dlp executable>; when the yt_dlp package is not installed, the executable (a zipapp in
+the official release) is imported from instead. Startup ends with {"ready": true, "version": "..."} or
+{"ready": false, "error": "..."}.
+"""
+import json
+import os
+import resource
+import shutil
+import sys
+
+protocol = sys.stdout
+# yt-dlp and extractors print freely; only protocol lines may reach the real stdout
+sys.stdout = sys.stderr
+
+
+def send(message):
+    protocol.write(json.dumps(message) + "\n")
+    protocol.flush()
+
+
+def rss():
+    return resource.getrusage(resource.RUSAGE_SELF).ru_maxrss
+
+
+def load():
+    try:
+        import yt_dlp
+        return yt_dlp
+    except ImportError:
+        executable = shutil.which(sys.argv[1]) if len(sys.argv) > 1 else None
+        if not executable:
+            raise
+        sys.path.insert(0, os.path.realpath(executable))
+        import yt_dlp
+        return yt_dlp
+
+
+def extract(yt_dlp, request):
+    options = yt_dlp.parse_options(request.get("args", [])).ydl_opts
+    # Printing and downloading are the CLI's job; the worker only resolves and writes the info JSON
+    for key in ("forcejson", "dump_single_json", "forceprint", "print_to_file"):
+        options.pop(key, None)
+    options.update(quiet=True, noprogress=True, simulate=True, skip_download=True)
+    with yt_dlp.YoutubeDL(options) as ydl:
+        info = ydl.sanitize_info(ydl.extract_info(request["url"], download=False))
+    temp = request["output"] + ".part"
+    with open(temp, "w", encoding="utf-8") as out:
+        json.dump(info, out, ensure_ascii=False)
+    os.replace(temp, request["output"])
+
+
+def main():
+    try:
+        yt_dlp = load()
+        # Instantiating once imports the extractor classes, which is most of a cold start
+        yt_dlp.YoutubeDL({"quiet": True}).close()
+        version = yt_dlp.version.__version__
+    except Exception as e:
+        send({"ready": False, "error": "%s: %s" % (type(e).__name__, e)})
+        return 1
+    send({"ready": True, "version": version})
+
+    for line in sys.stdin:
+        line = line.strip()
+        if not line:
+            continue
+        try:
+            request = json.loads(line)
+            if request.get("op") == "extract":
+                extract(yt_dlp, request)
+            send({"ok": True, "rss": rss()})
+        except BaseException as e:
+            if isinstance(e, KeyboardInterrupt):
+                raise
+            # DownloadError messages already read like the CLI's "ERROR: ..." lines
+            message = str(e) if str(e).startswith("ERROR") else "ERROR: %s" % e
+            send({"ok": False, "error": message, "rss": rss()})
+    return 0
+
+
+if __name__ == "__main__":
+    sys.exit(main())
@@ -36,6 +36,7 @@ document.addEventListener('DOMContentLoaded', () => {
     }
 
     updateUI(currentPlatform);
+    cleanupPendingFile();
 
     platformButtons.forEach(button => {
         button.addEventListener('click', () => {
@@ -46,6 +47,7 @@ document.addEventListener('DOMContentLoaded', () => {
             videoUrlInput.placeholder = `Enter ${currentPlatform} URL...`;
             urlLabel.textContent = `Enter ${currentPlatform} URL:`;
             updateUI(currentPlatform);
+    cleanupPendingFile();
 
             if (currentPlatform === 'spotify') {
                 showComingSoonModal();
@@ -81,6 +83,7 @@ document.addEventListener('DOMContentLoaded', () => {
         isDownloading = true;
         downloadBtn.disabled = true;
         infoBtn.disabled = true;
+        cleanupPendingFile();
         showStatus('Connecting to server...', 'info');
         resetProgress();
 
@@ -95,7 +98,9 @@ document.addEventListener('DOMContentLoaded', () => {
             subscription = stompClient.subscribe(`/user/topic/progress`, (message) => {
                 const body = message.body;
 
-                if (body.startsWith('Progress:')) {
+                if (body.startsWith('{')) {
+                    handleProgressEvent(JSON.parse(body));
+                } else if (body.startsWith('Progress:')) {
                     const progressLine = body.substring(10).trim();
                     if (progressLine.startsWith('[download]')) {
                         const percentMatch = progressLine.match(/([0-9]+\.?[0-9]*)%/);
@@ -107,62 +112,12 @@ document.addEventListener('DOMContentLoaded', () => {
                         }
                     }
                     showStatus(`Processing: ${progressLine}`, 'info');
+                } else if (body.startsWith('Queued:')) {
+                    showStatus(`Waiting in queue: ${body.substring(7).trim()}`, 'info');
                 } else if (body.startsWith('Download finished:')) {
-                    const fileName = body.substring(18).trim();
-                    statusMessage.style.display = 'none';
-
-                    fetch(`/api/videos/info?fileName=${encodeURIComponent(fileName)}`)
-                        .then(response => {
-                            if (!response.ok) {
-                                throw new Error('Video info not found');
-                            }
-                            return response.json();
-                        })
-                        .then(data => {
-                            showSuccessModal(data.title, data.thumbnailUrl);
-                        })
-                        .catch(error => {
-                            console.error('Failed to get video info:', error);
-                        })
-                        .finally(() => {
-                            isDownloading = false;
-                            downloadBtn.disabled = false;
-                            infoBtn.disabled = false;
-                            resetProgress();
-                            disconnectStomp();
-                        });
-
-                    fetch(`/api/videos/download/${encodeURIComponent(fileName)}`)
-                        .then(response => {
-                            if (response.ok) return response.blob();
-                            throw new Error('Download failed');
-                        })
-                        .then(blob => {
-                            const url = window.URL.createObjectURL(blob);
-                            const a = document.createElement('a');
-                            a.href = url;
-                            a.download = fileName;
-                            document.body.appendChild(a);
-                            a.click();
-                            window.URL.revokeObjectURL(url);
-                            document.body.removeChild(a);
-
-                            fetch(`/api/videos/cleanup/${encodeURIComponent(fileName)}`, {
-                                method: 'DELETE'
-                            });
-                        })
-                        .catch(error => {
-                            showErrorModal(`Error triggering download: ${error.message}`);
-                        });
-
+                    finishDownload(body.substring(18).trim());
                 } else if (body.startsWith('Error:')) {
-                    const errorMsg = body.substring(6).trim();
-                    showErrorModal(errorMsg);
-                    isDownloading = false;
-                    downloadBtn.disabled = false;
-                    infoBtn.disabled = false;
-                    resetProgress();
-                    disconnectStomp();
+                    failDownload(body.substring(6).trim());
                 } else if (body === 'Download canceled') {
                     showStatus('Download canceled successfully.', 'info');
                     isDownloading = false;
@@ -184,12 +139,23 @@ document.addEventListener('DOMContentLoaded', () => {
                     quality: quality,
                     platform: currentPlatform
                 })
+            }).then(response => {
+                if (!response.ok) {
+                    return response.text().then(text => failDownload(text || 'Failed to start download'));
+                }
+                // The job may have finished (or failed) before the subscription above was in place
+                const jobId = response.headers.get('X-Job-ID');
+                return jobId && fetch(`/api/jobs/${encodeURIComponent(jobId)}`)
+                    .then(status => status.ok ? status.json() : null)
+                    .then(job => {
+                        if (job && job.state === 'finished') {
+                            finishDownload(job.fileName);
+                        } else if (job && job.state === 'failed') {
+                            failDownload(job.error);
+                        }
+                    });
             }).catch(error => {
-                showErrorModal('Failed to start download: ' + error.message);
-                isDownloading = false;
-                downloadBtn.disabled = false;
-                infoBtn.disabled = false;
-                resetProgress();
+                failDownload('Failed to start download: ' + error.message);
             });
         }, (error) => {
             showErrorModal('Connection error: ' + error);
@@ -235,6 +201,106 @@ document.addEventListener('DOMContentLoaded', () => {
         }
     });
 
+    function finishDownload(fileName) {
+        if (!isDownloading) {
+            return;
+        }
+        isDownloading = false;
+        statusMessage.style.display = 'none';
+
+        fetch(`/api/videos/info?fileName=${encodeURIComponent(fileName)}`)
+            .then(response => {
+                if (!response.ok) {
+                    throw new Error('Video info not found');
+                }
+                return response.json();
+            })
+            .then(data => {
+                showSuccessModal(data.title, data.thumbnailUrl);
+            })
+            .catch(error => {
+                console.error('Failed to get video info:', error);
+            })
+            .finally(() => {
+                downloadBtn.disabled = false;
+                infoBtn.disabled = false;
+                resetProgress();
+                disconnectStomp();
+            });
+
+        // Let the browser download the file itself so it can resume with Range requests;
+        // the server copy is released the next time this page starts a download or loads.
+        const a = document.createElement('a');
+        a.href = `/api/videos/download/${encodeURIComponent(fileName)}`;
+        a.download = '';
+        document.body.appendChild(a);
+        a.click();
+        document.body.removeChild(a);
+        localStorage.setItem('pendingCleanup', fileName);
+    }
+
+    function failDownload(message) {
+        if (!isDownloading) {
+            return;
+        }
+        showErrorModal(message);
+        isDownloading = false;
+        downloadBtn.disabled = false;
+        infoBtn.disabled = false;
+        resetProgress();
+        disconnectStomp();
+    }
+
+    function cleanupPendingFile() {
+        const pendingFile = localStorage.getItem('pendingCleanup');
+        if (!pendingFile) {
+            return;
+        }
+        localStorage.removeItem('pendingCleanup');
+        fetch(`/api/videos/cleanup/${encodeURIComponent(pendingFile)}`, {
+            method: 'DELETE',
+            headers: {
+                'X-Session-ID': sessionId
+            }
+        }).catch(error => {
+            console.error('Failed to clean up previous file:', error);
+        });
+    }
+
+    function handleProgressEvent(event) {
+        if (event.stage === 'extracting') {
+            showStatus('Fetching media info...', 'info');
+        } else if (event.stage === 'downloading') {
+            if (event.percent != null) {
+                updateProgress(event.percent);
+            }
+            let text = event.percent != null ? `Downloading: ${event.percent}%` : 'Downloading...';
+            if (event.speed) {
+                text += ` at ${formatBytes(event.speed)}/s`;
+            }
+            if (event.eta != null) {
+                text += `, ${event.eta}s left`;
+            }
+            showStatus(text, 'info');
+        } else if (event.stage === 'merging') {
+            updateProgress(100);
+            showStatus('Merging audio and video...', 'info');
+        } else if (event.stage === 'postprocessing') {
+            showStatus('Processing...', 'info');
+        }
+    }
+
+    function formatBytes(bytes) {
+        const units = ['B', 'KB', 'MB', 'GB'];
+        let value = bytes;
+        let unit = 0;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return `${value.toFixed(1)} ${units[unit]}`;
+    }
+
     function showErrorModal(message) {
         errorMessageText.textContent = message;
         errorModal.style.display = 'flex';
@@ -0,0 +1,267 @@
+package com.vahabvahabov.media_downloader;
+
+import org.apache.activemq.artemis.core.config.impl.ConfigurationImpl;
+import org.apache.activemq.artemis.core.server.embedded.EmbeddedActiveMQ;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.messaging.simp.stomp.*;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs two nodes that share a cluster registry directory and relay STOMP through an embedded Artemis broker,
+ * with clients connected to node B only: progress from jobs on node A must reach them, file fetches, cleanups and
+ * cancels sent to B must be served by A, and a job sent to a busy A must run on B.
+ *
+ * <p>Tagged {@code cluster} and excluded from the normal build; run with {@code mvn -Pcluster-test test}.
+ */
+@Tag("cluster")
+class ClusterModeTest {
+    private static final Logger logger = LoggerFactory.getLogger(ClusterModeTest.class);
+
+    @TempDir
+    static Path tempDir;
+
+    private static EmbeddedActiveMQ broker;
+    private static ConfigurableApplicationContext nodeA;
+    private static ConfigurableApplicationContext nodeB;
+    private static int portA;
+    private static int portB;
+
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+
+    @BeforeAll
+    static void startCluster() throws Exception {
+        int brokerPort = freePort();
+        broker = new EmbeddedActiveMQ().setConfiguration(new ConfigurationImpl()
+                .setPersistenceEnabled(false)
+                .setSecurityEnabled(false)
+                .addAcceptorConfiguration("stomp", "tcp://127.0.0.1:" + brokerPort
+                        + "?protocols=STOMP;anycastPrefix=/queue/;multicastPrefix=/topic/"));
+        broker.start();
+
+        portA = freePort();
+        portB = freePort();
+        // A has a single slot, so once it is busy new jobs go to B
+        nodeA = startNode("node-a", portA, brokerPort, 1);
+        nodeB = startNode("node-b", portB, brokerPort, 4);
+    }
+
+    @AfterAll
+    static void stopCluster() throws Exception {
+        if (nodeB != null) {
+            nodeB.close();
+        }
+        if (nodeA != null) {
+            nodeA.close();
+        }
+        if (broker != null) {
+            broker.stop();
+        }
+    }
+
+    @Test
+    void nodesShareProgressOwnershipAndLoad() throws Exception {
+        WebSocketStompClient stompClient = new WebSocketStompClient(new StandardWebSocketClient());
+        ThreadPoolTaskScheduler receiptScheduler = new ThreadPoolTaskScheduler();
+        receiptScheduler.initialize();
+        stompClient.setTaskScheduler(receiptScheduler);
+        try (Client first = Client.connect(stompClient, portB); Client second = Client.connect(stompClient, portB)) {
+            // A slow job on A: its progress has to cross the broker to reach the client on B
+            assertEquals(200, startDownload(portA, first, "cluster-1", 400_000, 100_000).statusCode());
+            awaitOwner("sessions", first.id, "node-a");
+
+            // A is now full, so this job is handed to B
+            assertEquals(200, startDownload(portA, second, "cluster-2", 1_000, 1_000_000).statusCode());
+            String secondFile = first(second, "Download finished: ");
+            awaitOwner("files", secondFile, "node-b");
+
+            String firstFile = first(first, "Download finished: ");
+            assertTrue(first.progressEvents.get() > 0, "No progress events crossed the broker");
+            assertTrue(Files.exists(downloadDir("node-a").resolve(firstFile)));
+            awaitOwner("files", firstFile, "node-a");
+
+            HttpResponse<byte[]> fetched = httpClient.send(HttpRequest.newBuilder(uri(portB, "/api/videos/download/" + firstFile)).build(),
+                    HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(200, fetched.statusCode());
+            assertEquals(400_000, fetched.body().length);
+            assertTrue(fetched.headers().firstValue("Content-Disposition").orElse("").contains("attachment"));
+
+            httpClient.send(HttpRequest.newBuilder(uri(portB, "/api/videos/cleanup/" + firstFile))
+                    .header("X-Session-ID", first.id)
+                    .DELETE()
+                    .build(), HttpResponse.BodyHandlers.discarding());
+            assertFalse(Files.exists(downloadDir("node-a").resolve(firstFile)));
+
+            // A cancel sent to B reaches the job running on A
+            assertEquals(200, startDownload(portA, first, "cluster-3", 2_000_000, 100_000).statusCode());
+            awaitOwner("sessions", first.id, "node-a");
+            assertEquals(200, httpClient.send(HttpRequest.newBuilder(uri(portB, "/api/videos/cancel"))
+                    .header("X-Session-ID", first.id)
+                    .POST(HttpRequest.BodyPublishers.noBody())
+                    .build(), HttpResponse.BodyHandlers.discarding()).statusCode());
+            first(first, "Download canceled successfully");
+        } finally {
+            stompClient.stop();
+            receiptScheduler.shutdown();
+        }
+    }
+
+    private HttpResponse<String> startDownload(int port, Client client, String video, long size, long rate) throws Exception {
+        String url = "https://stub.invalid/watch?v=" + video + "&size=" + size + "&rate=" + rate + "&latency=50";
+        return httpClient.send(HttpRequest.newBuilder(uri(port, "/api/videos/download"))
+                .header("Content-Type", "application/json")
+                .header("X-Session-ID", client.id)
+                .POST(HttpRequest.BodyPublishers.ofString("{\"url\":\"" + url + "\",\"platform\":\"youtube\",\"quality\":\"720p\"}"))
+                .build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static String first(Client client, String prefix) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        String message;
+        do {
+            message = client.messages.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            assertNotNull(message, "Timed out waiting for: " + prefix);
+            assertFalse(message.startsWith("Error: "), message);
+        } while (!message.startsWith(prefix));
+        return message.substring(prefix.length());
+    }
+
+    private static void awaitOwner(String kind, String name, String node) throws Exception {
+        Path record = tempDir.resolve("registry").resolve(kind).resolve(name);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!Files.exists(record) || !Files.readString(record).trim().equals(node)) {
+            assertTrue(System.nanoTime() < deadline, kind + "/" + name + " is not owned by " + node);
+            Thread.sleep(20);
+        }
+    }
+
+    private static ConfigurableApplicationContext startNode(String id, int port, int brokerPort, int slots) throws IOException {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("server.port", port);
+        properties.put("yt.dlp.path", stub("yt-dlp"));
+        properties.put("ffmpeg.path", stub("ffmpeg"));
+        properties.put("download.dir", Files.createDirectories(downloadDir(id)).toString());
+        properties.put("download.scheduler.max-concurrent", slots);
+        properties.put("logging.level.com.vahabvahabov", "INFO");
+        properties.put("cluster.enabled", true);
+        properties.put("cluster.registry-dir", tempDir.resolve("registry").toString());
+        properties.put("cluster.node-id", id);
+        properties.put("cluster.node-url", "http://localhost:" + port);
+        properties.put("cluster.heartbeat-seconds", 1);
+        properties.put("stomp.relay.enabled", true);
+        properties.put("stomp.relay.port", brokerPort);
+        logger.info("Starting cluster node: {} on port {}", id, port);
+        // As command-line arguments, so they override application.properties
+        String[] args = properties.entrySet().stream().map(entry -> "--" + entry.getKey() + "=" + entry.getValue()).toArray(String[]::new);
+        return new SpringApplicationBuilder(MediaDownloaderApplication.class).run(args);
+    }
+
+    private static Path downloadDir(String node) {
+        return tempDir.resolve(node);
+    }
+
+    private static URI uri(int port, String path) {
+        return URI.create("http://localhost:" + port + path);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static String stub(String name) {
+        try {
+            Path path = Paths.get(ClusterModeTest.class.getResource("/load-test/" + name).toURI());
+            path.toFile().setExecutable(true);
+            return path.toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** A browser tab connected to one node and subscribed to its user progress topic. */
+    private static final class Client extends StompSessionHandlerAdapter implements AutoCloseable {
+        private final String id = UUID.randomUUID().toString();
+        private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        private final AtomicInteger progressEvents = new AtomicInteger();
+        private StompSession stompSession;
+
+        static Client connect(WebSocketStompClient stompClient, int port) throws Exception {
+            Client client = new Client();
+            StompHeaders connectHeaders = new StompHeaders();
+            connectHeaders.add("X-Session-ID", client.id);
+            client.stompSession = stompClient.connectAsync("ws://localhost:" + port + "/ws/websocket", new WebSocketHttpHeaders(),
+                    connectHeaders, client).get(30, TimeUnit.SECONDS);
+
+            // Unlike the simple broker, the relayed broker acknowledges the subscription
+            client.stompSession.setAutoReceipt(true);
+            CompletableFuture<Void> receipt = new CompletableFuture<>();
+            StompSession.Receiptable subscription = client.stompSession.subscribe("/user/topic/progress", client);
+            subscription.addReceiptTask(() -> receipt.complete(null));
+            subscription.addReceiptLostTask(() -> receipt.completeExceptionally(new IllegalStateException("Receipt lost")));
+            receipt.get(30, TimeUnit.SECONDS);
+            return client;
+        }
+
+        @Override
+        public Type getPayloadType(StompHeaders headers) {
+            return byte[].class;
+        }
+
+        @Override
+        public void handleFrame(StompHeaders headers, Object payload) {
+            String message = new String((byte[]) payload, StandardCharsets.UTF_8);
+            if (message.startsWith("{")) {
+                progressEvents.incrementAndGet();
+            } else {
+                messages.add(message);
+            }
+        }
+
+        @Override
+        public void handleTransportError(StompSession session, Throwable exception) {
+            logger.warn("STOMP transport error for client {}: {}", id, exception.getMessage());
+        }
+
+        @Override
+        public void close() {
+            if (stompSession != null && stompSession.isConnected()) {
+                stompSession.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.vahabvahabov.media_downloader;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.messaging.simp.stomp.*;
+import org.springframework.messaging.simp.user.SimpUser;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives concurrent sessions through the whole pipeline against the stub yt-dlp and ffmpeg in
+ * {@code src/test/resources/load-test}: STOMP connect, {@code POST /download}, progress, {@code GET /download/{file}}
+ * and cleanup. Reports throughput, end-to-end latency percentiles and peak thread, file descriptor, child process
+ * and heap usage, and writes them to {@code target/load-test-<timestamp>.json}.
+ *
+ * <p>Tagged {@code load} and excluded from the normal build; run with {@code mvn -Pload-test test}. The load is
+ * shaped with system properties, for example {@code -Dload.sessions=100 -Dload.rate=1000000}. System properties
+ * also reach the application, so limits such as {@code -Ddownload.scheduler.max-concurrent=8} can be varied in the
+ * same run.
+ */
+@Tag("load")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = "logging.level.com.vahabvahabov=INFO")
+class DownloadLoadTest {
+    private static final Logger logger = LoggerFactory.getLogger(DownloadLoadTest.class);
+
+    private static final int SESSIONS = Integer.getInteger("load.sessions", 20);
+    private static final int JOBS_PER_SESSION = Integer.getInteger("load.jobs-per-session", 3);
+    private static final long SIZE = Long.getLong("load.size", 2 * 1024 * 1024);
+    private static final long RATE = Long.getLong("load.rate", 4 * 1024 * 1024);
+    private static final int LATENCY_MILLIS = Integer.getInteger("load.latency-ms", 200);
+    private static final double FAILURE_RATE = Double.parseDouble(System.getProperty("load.failure-rate", "0.1"));
+    private static final String FAILURE_MODE = System.getProperty("load.failure-mode", "download");
+    private static final String QUALITY = System.getProperty("load.quality", "720p");
+    private static final long JOB_TIMEOUT_SECONDS = Long.getLong("load.job-timeout-seconds", 120);
+
+    private static Path downloadDir;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private SimpUserRegistry userRegistry;
+
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+
+    @DynamicPropertySource
+    static void stubBinaries(DynamicPropertyRegistry registry) throws IOException {
+        downloadDir = Files.createTempDirectory("load-test-");
+        registry.add("yt.dlp.path", () -> stub("yt-dlp"));
+        registry.add("ffmpeg.path", () -> stub("ffmpeg"));
+        registry.add("download.dir", downloadDir::toString);
+    }
+
+    @AfterAll
+    static void deleteDownloadDir() throws IOException {
+        try (Stream<Path> paths = Files.walk(downloadDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void sessionsCompleteTheFullDownloadFlow() throws Exception {
+        WebSocketStompClient stompClient = new WebSocketStompClient(new StandardWebSocketClient());
+        ResourceSampler sampler = new ResourceSampler();
+        List<JobResult> results = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger jobCounter = new AtomicInteger();
+
+        logger.info("Load test: {} session(s) x {} job(s), {} bytes at {} B/s, {} ms extraction, failure rate {} ({})",
+                SESSIONS, JOBS_PER_SESSION, SIZE, RATE, LATENCY_MILLIS, FAILURE_RATE, FAILURE_MODE);
+        long startedAt = System.nanoTime();
+        try (ExecutorService sessions = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int s = 0; s < SESSIONS; s++) {
+                sessions.submit(() -> {
+                    try (Session session = Session.connect(stompClient, port, userRegistry)) {
+                        for (int j = 0; j < JOBS_PER_SESSION; j++) {
+                            results.add(runJob(session, jobCounter.getAndIncrement()));
+                        }
+                    } catch (Exception e) {
+                        logger.error("Session failed", e);
+                        results.add(new JobResult(Outcome.FAILED, 0, 0));
+                    }
+                    return null;
+                });
+            }
+        }
+        long elapsedNanos = System.nanoTime() - startedAt;
+        sampler.stop();
+        stompClient.stop();
+
+        Map<String, Object> report = report(results, elapsedNanos, sampler);
+        logger.info("Load test report:\n{}", new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValueAsString(report));
+        writeReport(report);
+
+        Map<Outcome, Long> outcomes = countOutcomes(results);
+        assertEquals(0, outcomes.getOrDefault(Outcome.TIMED_OUT, 0L), "Jobs never finished: " + outcomes);
+        assertEquals(0, outcomes.getOrDefault(Outcome.FAILED, 0L), "Jobs failed unexpectedly: " + outcomes);
+        assertTrue(outcomes.getOrDefault(Outcome.SUCCEEDED, 0L) > 0, "No job succeeded: " + outcomes);
+        assertTrue(awaitEmpty(downloadDir, Duration.ofSeconds(10)), "Files left behind in " + downloadDir);
+    }
+
+    private JobResult runJob(Session session, int index) throws Exception {
+        boolean scripted = Math.floor((index + 1) * FAILURE_RATE) > Math.floor(index * FAILURE_RATE);
+        String url = "https://stub.invalid/watch?v=load-" + index + "&size=" + SIZE + "&rate=" + RATE
+                + "&latency=" + LATENCY_MILLIS + (scripted ? "&fail=" + FAILURE_MODE : "");
+        session.messages.clear();
+        int progressBefore = session.progressEvents.get();
+        long startedAt = System.nanoTime();
+
+        HttpResponse<String> started = httpClient.send(HttpRequest.newBuilder(uri("/api/videos/download"))
+                .header("Content-Type", "application/json")
+                .header("X-Session-ID", session.id)
+                .POST(HttpRequest.BodyPublishers.ofString("{\"url\":\"" + url + "\",\"platform\":\"youtube\",\"quality\":\"" + QUALITY + "\"}"))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        if (started.statusCode() == 503) {
+            return new JobResult(Outcome.REJECTED, System.nanoTime() - startedAt, 0);
+        }
+        if (started.statusCode() != 200) {
+            logger.warn("Job {} was not started: {} {}", index, started.statusCode(), started.body());
+            return new JobResult(Outcome.FAILED, System.nanoTime() - startedAt, 0);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(JOB_TIMEOUT_SECONDS);
+        String message;
+        do {
+            message = session.messages.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } while (message != null && !message.startsWith("Download finished: ") && !message.startsWith("Error: "));
+        int progress = session.progressEvents.get() - progressBefore;
+        if (message == null) {
+            return new JobResult(Outcome.TIMED_OUT, System.nanoTime() - startedAt, progress);
+        }
+        if (message.startsWith("Error: ")) {
+            if (!scripted) {
+                logger.warn("Job {} failed: {}", index, message);
+            }
+            return new JobResult(scripted ? Outcome.SCRIPTED_FAILURE : Outcome.FAILED, System.nanoTime() - startedAt, progress);
+        }
+
+        String fileName = message.substring("Download finished: ".length());
+        HttpResponse<InputStream> file = httpClient.send(HttpRequest.newBuilder(uri("/api/videos/download/" + fileName)).build(),
+                HttpResponse.BodyHandlers.ofInputStream());
+        long received;
+        try (InputStream body = file.body()) {
+            received = body.transferTo(OutputStream.nullOutputStream());
+        }
+        long latency = System.nanoTime() - startedAt;
+        httpClient.send(HttpRequest.newBuilder(uri("/api/videos/cleanup/" + fileName))
+                .header("X-Session-ID", session.id)
+                .DELETE()
+                .build(), HttpResponse.BodyHandlers.discarding());
+
+        if (file.statusCode() != 200 || received != SIZE || scripted) {
+            logger.warn("Job {} served {} with {} of {} bytes (scripted failure: {})", index, file.statusCode(), received, SIZE, scripted);
+            return new JobResult(Outcome.FAILED, latency, progress);
+        }
+        return new JobResult(Outcome.SUCCEEDED, latency, progress);
+    }
+
+    private Map<String, Object> report(List<JobResult> results, long elapsedNanos, ResourceSampler sampler) {
+        List<JobResult> snapshot = new ArrayList<>(results);
+        long[] latencies = snapshot.stream()
+                .filter(result -> result.outcome == Outcome.SUCCEEDED)
+                .mapToLong(result -> result.latencyNanos)
+                .sorted()
+                .toArray();
+        double seconds = elapsedNanos / 1e9;
+
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("sessions", SESSIONS);
+        config.put("jobsPerSession", JOBS_PER_SESSION);
+        config.put("sizeBytes", SIZE);
+        config.put("rateBytesPerSecond", RATE);
+        config.put("extractionLatencyMillis", LATENCY_MILLIS);
+        config.put("failureRate", FAILURE_RATE);
+        config.put("failureMode", FAILURE_MODE);
+        config.put("quality", QUALITY);
+        config.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("p50", millis(percentile(latencies, 0.50)));
+        latency.put("p90", millis(percentile(latencies, 0.90)));
+        latency.put("p99", millis(percentile(latencies, 0.99)));
+        latency.put("max", millis(latencies.length == 0 ? 0 : latencies[latencies.length - 1]));
+
+        Map<String, Object> resources = new LinkedHashMap<>();
+        resources.put("peakThreads", sampler.peakThreads.get());
+        resources.put("peakOpenFileDescriptors", sampler.peakFileDescriptors.get());
+        resources.put("peakChildProcesses", sampler.peakChildProcesses.get());
+        resources.put("peakHeapUsedBytes", sampler.peakHeapUsed.get());
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("config", config);
+        report.put("outcomes", countOutcomes(snapshot));
+        report.put("elapsedSeconds", Math.round(seconds * 100) / 100.0);
+        report.put("jobsPerSecond", Math.round(latencies.length / seconds * 100) / 100.0);
+        report.put("progressEventsReceived", snapshot.stream().mapToLong(result -> result.progressEvents).sum());
+        report.put("endToEndLatencyMillis", latency);
+        report.put("resources", resources);
+        return report;
+    }
+
+    private static void writeReport(Map<String, Object> report) throws IOException {
+        Path directory = Paths.get(System.getProperty("load.report-dir", "target"));
+        Files.createDirectories(directory);
+        Path file = directory.resolve("load-test-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json");
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file.toFile(), report);
+        logger.info("Load test report written to {}", file.toAbsolutePath());
+    }
+
+    private static Map<Outcome, Long> countOutcomes(List<JobResult> results) {
+        Map<Outcome, Long> outcomes = new EnumMap<>(Outcome.class);
+        for (JobResult result : results) {
+            outcomes.merge(result.outcome, 1L, Long::sum);
+        }
+        return outcomes;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e5) / 10.0;
+    }
+
+    private static boolean awaitEmpty(Path directory, Duration timeout) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (true) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                // The job journal and the (empty) work and trash directories stay; by now the journal should hold no jobs
+                List<Path> left = files.filter(Files::isRegularFile)
+                        .filter(file -> !file.getFileName().toString().equals("jobs.journal"))
+                        .toList();
+                if (left.isEmpty()) {
+                    return true;
+                }
+                if (System.nanoTime() > deadline) {
+                    logger.warn("Left in {}: {}", directory, left);
+                    return false;
+                }
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static String stub(String name) {
+        try {
+            Path path = Paths.get(DownloadLoadTest.class.getResource("/load-test/" + name).toURI());
+            // Resource copying does not keep the executable bit
+            path.toFile().setExecutable(true);
+            return path.toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + port + path);
+    }
+
+    private enum Outcome {
+        SUCCEEDED, SCRIPTED_FAILURE, FAILED, REJECTED, TIMED_OUT
+    }
+
+    private record JobResult(Outcome outcome, long latencyNanos, int progressEvents) {
+    }
+
+    /** One browser tab: a STOMP connection subscribed to its user progress topic. */
+    private static final class Session extends StompSessionHandlerAdapter implements AutoCloseable {
+        private final String id = UUID.randomUUID().toString();
+        private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        private final AtomicInteger progressEvents = new AtomicInteger();
+        private StompSession stompSession;
+
+        static Session connect(WebSocketStompClient client, int port, SimpUserRegistry userRegistry) throws Exception {
+            Session session = new Session();
+            StompHeaders connectHeaders = new StompHeaders();
+            connectHeaders.add("X-Session-ID", session.id);
+            session.stompSession = client.connectAsync("ws://localhost:" + port + "/ws/websocket", new WebSocketHttpHeaders(),
+                    connectHeaders, session).get(30, TimeUnit.SECONDS);
+
+            // The simple broker sends no receipts; wait until the server has seen the subscription instead, or the
+            // first messages of a job could be missed
+            session.stompSession.subscribe("/user/topic/progress", session);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (!subscribed(userRegistry, session.id)) {
+                if (System.nanoTime() > deadline) {
+                    throw new TimeoutException("Subscription for session " + session.id + " was not registered");
+                }
+                Thread.sleep(10);
+            }
+            return session;
+        }
+
+        private static boolean subscribed(SimpUserRegistry userRegistry, String sessionId) {
+            SimpUser user = userRegistry.getUser(sessionId);
+            return user != null && user.getSessions().stream().anyMatch(session -> !session.getSubscriptions().isEmpty());
+        }
+
+        @Override
+        public Type getPayloadType(StompHeaders headers) {
+            return byte[].class;
+        }
+
+        @Override
+        public void handleFrame(StompHeaders headers, Object payload) {
+            String message = new String((byte[]) payload, StandardCharsets.UTF_8);
+            if (message.startsWith("{")) {
+                progressEvents.incrementAndGet();
+            } else {
+                messages.add(message);
+            }
+        }
+
+        @Override
+        public void handleTransportError(StompSession session, Throwable exception) {
+            logger.warn("STOMP transport error for session {}: {}", id, exception.getMessage());
+        }
+
+        @Override
+        public void close() {
+            if (stompSession != null && stompSession.isConnected()) {
+                stompSession.disconnect();
+            }
+        }
+    }
+
+    /** Samples process-wide resource usage every 100 ms and keeps the peaks. */
+    private static final class ResourceSampler {
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        private final AtomicInteger peakThreads = new AtomicInteger();
+        private final AtomicLong peakFileDescriptors = new AtomicLong(-1);
+        private final AtomicLong peakChildProcesses = new AtomicLong();
+        private final AtomicLong peakHeapUsed = new AtomicLong();
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+        ResourceSampler() {
+            threads.resetPeakThreadCount();
+            executor.scheduleAtFixedRate(this::sample, 0, 100, TimeUnit.MILLISECONDS);
+        }
+
+        private void sample() {
+            peakThreads.set(Math.max(peakThreads.get(), threads.getPeakThreadCount()));
+            peakHeapUsed.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+            peakChildProcesses.accumulateAndGet(ProcessHandle.current().descendants().count(), Math::max);
+            if (os instanceof com.sun.management.UnixOperatingSystemMXBean unix) {
+                peakFileDescriptors.accumulateAndGet(unix.getOpenFileDescriptorCount(), Math::max);
+            }
+        }
+
+        void stop() throws InterruptedException {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+            sample();
+        }
+    }
+}
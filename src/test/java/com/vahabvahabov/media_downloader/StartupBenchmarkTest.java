@@ -0,0 +1,265 @@
+package com.vahabvahabov.media_downloader;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Starts the packaged jar in fresh JVMs and measures, from process launch, the time to the first {@code 200} for
+ * {@code GET /} and to the first STOMP {@code CONNECTED} on {@code /ws}. Each mode is one way of launching the same
+ * jar: {@code jar} (plain {@code java -jar}), {@code aot} ({@code -Dspring.aot.enabled=true}, needs a
+ * {@code -Pprod} build), {@code cds} (extracted jar with a class-data sharing archive from a training run, as in
+ * the Dockerfile) and {@code aot-cds} (both). Medians, minimums and maximums per mode go to
+ * {@code target/startup-<timestamp>.json}.
+ *
+ * <p>Tagged {@code startup} and excluded from the normal build; package first, then run
+ * {@code mvn -Pstartup-benchmark test}, for example after {@code mvn -Pprod package -DskipTests}. Shaped with
+ * {@code -Dstartup.runs}, {@code -Dstartup.warmup-runs}, {@code -Dstartup.modes=jar,aot-cds},
+ * {@code -Dstartup.jvm-args="-Xmx256m"} and {@code -Dstartup.jar}.
+ */
+@Tag("startup")
+class StartupBenchmarkTest {
+    private static final Logger logger = LoggerFactory.getLogger(StartupBenchmarkTest.class);
+
+    private static final int RUNS = Integer.getInteger("startup.runs", 5);
+    private static final int WARMUP_RUNS = Integer.getInteger("startup.warmup-runs", 1);
+    private static final String MODES = System.getProperty("startup.modes", "");
+    private static final String JVM_ARGS = System.getProperty("startup.jvm-args", "");
+    private static final Path JAR = Paths.get(System.getProperty("startup.jar", "target/media-downloader-0.0.1-SNAPSHOT.jar"));
+    private static final long TIMEOUT_SECONDS = Long.getLong("startup.timeout-seconds", 120);
+    private static final String AOT_INITIALIZER =
+            "BOOT-INF/classes/com/vahabvahabov/media_downloader/MediaDownloaderApplication__ApplicationContextInitializer.class";
+    private static final Pattern STARTED = Pattern.compile("Started MediaDownloaderApplication in ([0-9.]+) seconds");
+
+    private static Path workDir;
+
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+
+    @BeforeAll
+    static void createWorkDir() throws IOException {
+        workDir = Files.createTempDirectory("startup-benchmark-");
+    }
+
+    @AfterAll
+    static void deleteWorkDir() throws IOException {
+        try (Stream<Path> paths = Files.walk(workDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void measuresTimeToFirstRequestAndStompConnect() throws Exception {
+        assertTrue(Files.isRegularFile(JAR), JAR + " not found; run mvn package (or mvn -Pprod package) first");
+        boolean aot = hasAotClasses(JAR);
+        List<String> modes = MODES.isBlank()
+                ? (aot ? List.of("jar", "aot", "cds", "aot-cds") : List.of("jar", "cds"))
+                : Arrays.stream(MODES.split(",")).map(String::trim).toList();
+
+        Map<String, Object> results = new LinkedHashMap<>();
+        for (String mode : modes) {
+            if (mode.startsWith("aot") && !aot) {
+                throw new IllegalStateException(JAR + " has no AOT classes for mode: " + mode + "; build it with -Pprod");
+            }
+            results.put(mode, benchmark(mode));
+        }
+
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("jar", JAR.toAbsolutePath().toString());
+        config.put("aotClasses", aot);
+        config.put("runs", RUNS);
+        config.put("warmupRuns", WARMUP_RUNS);
+        config.put("jvmArgs", JVM_ARGS);
+        config.put("javaVersion", System.getProperty("java.version"));
+        config.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("config", config);
+        report.put("modes", results);
+        writeReport(report);
+    }
+
+    private Map<String, Object> benchmark(String mode) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        if (!JVM_ARGS.isBlank()) {
+            command.addAll(List.of(JVM_ARGS.trim().split("\\s+")));
+        }
+        if (mode.startsWith("aot")) {
+            command.add("-Dspring.aot.enabled=true");
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        Path jar = JAR.toAbsolutePath();
+        if (mode.endsWith("cds")) {
+            long trainingStarted = System.nanoTime();
+            jar = extract(mode);
+            Path archive = jar.resolveSibling("app.jsa");
+            List<String> training = new ArrayList<>(command);
+            training.addAll(List.of("-XX:ArchiveClassesAtExit=" + archive, "-Dspring.context.exit=onRefresh",
+                    "-jar", jar.toString()));
+            training.addAll(applicationArgs(mode, freePort()));
+            Process process = new ProcessBuilder(training)
+                    .redirectErrorStream(true)
+                    .redirectOutput(workDir.resolve(mode + "-training.log").toFile())
+                    .start();
+            assertTrue(process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS), "CDS training run did not exit");
+            assertEquals(0, process.exitValue(), "CDS training run failed, see " + workDir.resolve(mode + "-training.log"));
+            result.put("trainingMillis", millis(System.nanoTime() - trainingStarted));
+            result.put("archiveBytes", Files.size(archive));
+            command.add("-XX:SharedArchiveFile=" + archive);
+        }
+        command.addAll(List.of("-jar", jar.toString()));
+
+        List<Run> runs = new ArrayList<>();
+        for (int i = 0; i < WARMUP_RUNS + RUNS; i++) {
+            Run run = launch(command, mode, i);
+            if (i >= WARMUP_RUNS) {
+                runs.add(run);
+            }
+        }
+        result.put("firstRequestMillis", summarize(runs.stream().mapToLong(Run::firstRequestNanos).toArray()));
+        result.put("stompConnectMillis", summarize(runs.stream().mapToLong(Run::stompConnectNanos).toArray()));
+        result.put("reportedStartupSeconds", runs.stream().map(Run::reportedSeconds).toList());
+        logger.info("Startup ({}): first request {} ms, STOMP connect {} ms (medians of {} run(s))", mode,
+                ((Map<?, ?>) result.get("firstRequestMillis")).get("median"),
+                ((Map<?, ?>) result.get("stompConnectMillis")).get("median"), runs.size());
+        return result;
+    }
+
+    private Run launch(List<String> command, String mode, int index) throws Exception {
+        int port = freePort();
+        List<String> full = new ArrayList<>(command);
+        full.addAll(applicationArgs(mode, port));
+        Path log = workDir.resolve(mode + "-" + index + ".log");
+
+        long startedAt = System.nanoTime();
+        Process process = new ProcessBuilder(full)
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+        try {
+            long deadline = startedAt + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            awaitFirstRequest(process, port, deadline, log);
+            long firstRequest = System.nanoTime() - startedAt;
+            awaitStompConnect(port);
+            long stompConnect = System.nanoTime() - startedAt;
+
+            Matcher started = STARTED.matcher(Files.readString(log));
+            return new Run(firstRequest, stompConnect, started.find() ? Double.parseDouble(started.group(1)) : null);
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+    }
+
+    private void awaitFirstRequest(Process process, int port, long deadline, Path log) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/")).build();
+        while (true) {
+            assertTrue(process.isAlive(), "The application exited during startup, see " + log);
+            assertTrue(System.nanoTime() < deadline, "No response within " + TIMEOUT_SECONDS + "s, see " + log);
+            try {
+                if (httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitStompConnect(int port) throws Exception {
+        WebSocketStompClient client = new WebSocketStompClient(new StandardWebSocketClient());
+        StompSession session = client.connectAsync("ws://localhost:" + port + "/ws/websocket",
+                new StompSessionHandlerAdapter() {
+                }).get(30, TimeUnit.SECONDS);
+        session.disconnect();
+    }
+
+    private Path extract(String mode) throws Exception {
+        Path destination = workDir.resolve(mode);
+        Process process = new ProcessBuilder(ProcessHandle.current().info().command().orElse("java"),
+                "-Djarmode=tools", "-jar", JAR.toAbsolutePath().toString(), "extract", "--destination", destination.toString())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        assertTrue(process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS), "Extracting the jar did not finish");
+        assertEquals(0, process.exitValue(), "Extracting the jar failed");
+        return destination.resolve(JAR.getFileName());
+    }
+
+    private List<String> applicationArgs(String mode, int port) throws IOException {
+        return List.of("--server.port=" + port,
+                "--download.dir=" + Files.createDirectories(workDir.resolve(mode + "-downloads")),
+                "--logging.level.com.vahabvahabov=INFO");
+    }
+
+    private static boolean hasAotClasses(Path jar) throws IOException {
+        try (JarFile file = new JarFile(jar.toFile())) {
+            return file.getEntry(AOT_INITIALIZER) != null;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static Map<String, Object> summarize(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("median", millis(sorted[(sorted.length - 1) / 2]));
+        summary.put("min", millis(sorted[0]));
+        summary.put("max", millis(sorted[sorted.length - 1]));
+        return summary;
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e5) / 10.0;
+    }
+
+    private static void writeReport(Map<String, Object> report) throws IOException {
+        Path directory = Paths.get(System.getProperty("startup.report-dir", "target"));
+        Files.createDirectories(directory);
+        Path file = directory.resolve("startup-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json");
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file.toFile(), report);
+        logger.info("Startup benchmark report written to {}", file.toAbsolutePath());
+    }
+
+    private record Run(long firstRequestNanos, long stompConnectNanos, Double reportedSeconds) {
+    }
+}
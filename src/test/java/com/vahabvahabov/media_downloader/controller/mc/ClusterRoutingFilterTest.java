@@ -0,0 +1,71 @@
+package com.vahabvahabov.media_downloader.controller.mc;
+
+import com.vahabvahabov.media_downloader.model.ClusterNode;
+import com.vahabvahabov.media_downloader.service.impl.ClusterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ClusterRoutingFilterTest {
+    private static final String SECRET = "0123456789abcdef";
+
+    private ClusterRoutingFilter filter;
+
+    @BeforeEach
+    void setUp() {
+        // Another node owns the file but is not listening, so a routed request falls back to local handling
+        ClusterNode owner = new ClusterNode();
+        owner.setId("node-b");
+        owner.setUrl("http://127.0.0.1:1");
+        ClusterRegistry registry = mock(ClusterRegistry.class);
+        when(registry.isEnabled()).thenReturn(true);
+        when(registry.getSecret()).thenReturn(SECRET);
+        when(registry.isSecret(anyString())).thenAnswer(invocation -> SECRET.equals(invocation.getArgument(0)));
+        when(registry.remoteOwnerOfFile("movie.mp4")).thenReturn(Optional.of(owner));
+        filter = new ClusterRoutingFilter(registry);
+    }
+
+    @Test
+    void handlesRequestsFromOtherNodesWhereTheyLand() throws Exception {
+        MockHttpServletRequest request = fileRequest();
+        request.addHeader(ClusterRoutingFilter.FORWARDED_HEADER, SECRET);
+        MockFilterChain chain = new MockFilterChain();
+
+        filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+        assertSame(request, chain.getRequest());
+    }
+
+    @Test
+    void stripsTheHeaderWhenTheSecretIsMissingOrWrong() throws Exception {
+        for (String value : new String[]{"node-b", "", SECRET + "x"}) {
+            MockHttpServletRequest request = fileRequest();
+            request.addHeader(ClusterRoutingFilter.FORWARDED_HEADER, value);
+            request.addHeader("X-Session-ID", "session-1");
+            MockFilterChain chain = new MockFilterChain();
+
+            filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+            // Routed to the owner first, so the request reaching this node is the fallback copy without the header
+            HttpServletRequest handled = (HttpServletRequest) chain.getRequest();
+            assertNotSame(request, handled, value);
+            assertNull(handled.getHeader(ClusterRoutingFilter.FORWARDED_HEADER));
+            assertFalse(handled.getHeaders(ClusterRoutingFilter.FORWARDED_HEADER).hasMoreElements());
+            assertFalse(Collections.list(handled.getHeaderNames()).contains(ClusterRoutingFilter.FORWARDED_HEADER));
+            assertEquals("session-1", handled.getHeader("X-Session-ID"));
+        }
+    }
+
+    private static MockHttpServletRequest fileRequest() {
+        return new MockHttpServletRequest("GET", "/api/videos/download/movie.mp4");
+    }
+}
@@ -0,0 +1,146 @@
+package com.vahabvahabov.media_downloader.controller.mc;
+
+import com.vahabvahabov.media_downloader.service.impl.DownloadMetrics;
+import com.vahabvahabov.media_downloader.service.impl.DownloadScheduler;
+import com.vahabvahabov.media_downloader.service.impl.DownloadStorage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MediaFileSenderTest {
+    private static final String CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    @TempDir
+    Path tempDir;
+
+    private Path file;
+    private MediaFileSender sender;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        file = Files.writeString(tempDir.resolve("media.mp4"), CONTENT);
+        sender = new MediaFileSender(new DownloadMetrics(new SimpleMeterRegistry(), new DownloadScheduler(4, 3, 2, 2, 50),
+                new DownloadStorage(tempDir.toString(), 0, 100)));
+    }
+
+    @Test
+    void servesTheWholeFileWithoutARange() throws Exception {
+        MockHttpServletResponse response = send(request());
+
+        assertEquals(200, response.getStatus());
+        assertEquals(CONTENT, response.getContentAsString());
+        assertEquals("bytes", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+        assertNotNull(response.getHeader(HttpHeaders.ETAG));
+    }
+
+    @Test
+    void servesSuffixRanges() throws Exception {
+        MockHttpServletResponse response = send(range("bytes=-6"));
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 30-35/36", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals("uvwxyz", response.getContentAsString());
+
+        // A suffix longer than the file is the whole file
+        MockHttpServletResponse whole = send(range("bytes=-100"));
+        assertEquals(206, whole.getStatus());
+        assertEquals("bytes 0-35/36", whole.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(CONTENT, whole.getContentAsString());
+    }
+
+    @Test
+    void mergesOverlappingRangesIntoOnePart() throws Exception {
+        MockHttpServletResponse response = send(range("bytes=5-9,0-6,8-12"));
+
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 0-12/36", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(CONTENT.substring(0, 13), response.getContentAsString());
+    }
+
+    @Test
+    void servesDisjointRangesAsMultipartInFileOrder() throws Exception {
+        MockHttpServletResponse response = send(range("bytes=30-31,0-1,200-300"));
+
+        assertEquals(206, response.getStatus());
+        assertTrue(response.getContentType().startsWith("multipart/byteranges; boundary="));
+        String body = response.getContentAsString();
+        int first = body.indexOf("Content-Range: bytes 0-1/36\r\n\r\n01");
+        int second = body.indexOf("Content-Range: bytes 30-31/36\r\n\r\nuv");
+        assertTrue(first >= 0 && second > first, body);
+        assertFalse(body.contains("200-"));
+    }
+
+    @Test
+    void rejectsUnsatisfiableRanges() throws Exception {
+        for (String header : new String[]{"bytes=36-", "bytes=100-200,40-50", "bytes=-0", "bytes=9-3", "items=0-1"}) {
+            MockHttpServletResponse response = send(range(header));
+            assertEquals(416, response.getStatus(), header);
+            assertEquals("bytes */36", response.getHeader(HttpHeaders.CONTENT_RANGE), header);
+            assertEquals(0, response.getContentAsByteArray().length, header);
+        }
+    }
+
+    @Test
+    void ignoresTheRangeWhenIfRangeDoesNotMatch() throws Exception {
+        String etag = send(request()).getHeader(HttpHeaders.ETAG);
+
+        MockHttpServletRequest current = range("bytes=0-3");
+        current.addHeader(HttpHeaders.IF_RANGE, etag);
+        MockHttpServletResponse partial = send(current);
+        assertEquals(206, partial.getStatus());
+        assertEquals("0123", partial.getContentAsString());
+
+        MockHttpServletRequest stale = range("bytes=0-3");
+        stale.addHeader(HttpHeaders.IF_RANGE, "\"0-0\"");
+        MockHttpServletResponse whole = send(stale);
+        assertEquals(200, whole.getStatus());
+        assertNull(whole.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(CONTENT, whole.getContentAsString());
+
+        MockHttpServletRequest oldDate = range("bytes=0-3");
+        oldDate.addHeader(HttpHeaders.IF_RANGE, "Thu, 01 Jan 1970 00:00:00 GMT");
+        assertEquals(200, send(oldDate).getStatus());
+    }
+
+    @Test
+    void answersConditionalRequestsWithNotModified() throws Exception {
+        MockHttpServletRequest request = request();
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, send(request()).getHeader(HttpHeaders.ETAG));
+
+        MockHttpServletResponse response = send(request);
+        assertEquals(304, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void encodesNonAsciiDisplayNames() {
+        assertEquals("attachment; filename=\"video.mp4\"", MediaFileSender.attachment("video.mp4").toString());
+        assertTrue(MediaFileSender.attachment("vídeo.mp4").toString().contains("filename*=UTF-8''v%C3%ADdeo.mp4"));
+    }
+
+    private MockHttpServletResponse send(MockHttpServletRequest request) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        response.setCharacterEncoding(StandardCharsets.ISO_8859_1.name());
+        sender.send(file, "media.mp4", request, response);
+        return response;
+    }
+
+    private static MockHttpServletRequest request() {
+        return new MockHttpServletRequest("GET", "/api/videos/files/media.mp4");
+    }
+
+    private static MockHttpServletRequest range(String header) {
+        MockHttpServletRequest request = request();
+        request.addHeader(HttpHeaders.RANGE, header);
+        return request;
+    }
+}
@@ -0,0 +1,128 @@
+package com.vahabvahabov.media_downloader.controller.mc;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * {@code GET /api/videos/stream} against the stub yt-dlp and ffmpeg in {@code src/test/resources/load-test}.
+ */
+@EnabledOnOs({OS.LINUX, OS.MAC})
+@SpringBootTest(properties = {"logging.level.com.vahabvahabov=INFO", "thumbnails.enabled=false"})
+@AutoConfigureMockMvc
+class VideoControllerTest {
+    private static final int SIZE = 300_000;
+
+    private static Path downloadDir;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @DynamicPropertySource
+    static void stubBinaries(DynamicPropertyRegistry registry) throws IOException {
+        downloadDir = Files.createTempDirectory("video-controller-test-");
+        registry.add("yt.dlp.path", () -> stub("yt-dlp"));
+        registry.add("ffmpeg.path", () -> stub("ffmpeg"));
+        registry.add("download.dir", downloadDir::toString);
+    }
+
+    @AfterAll
+    static void deleteDownloadDir() throws IOException {
+        try (Stream<Path> paths = Files.walk(downloadDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void streamsASingleFormatStraightFromYtDlp() throws Exception {
+        MvcResult started = mockMvc.perform(get("/api/videos/stream")
+                        .param("url", url("piped"))
+                        .param("platform", "youtube")
+                        .param("quality", "best")
+                        .header("X-Session-ID", "stream-a"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        MvcResult result = mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("video/mp4"))
+                .andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, containsString("filename=\"Stub media piped.mp4\"")))
+                .andReturn();
+
+        assertEquals(SIZE, result.getResponse().getContentAsByteArray().length);
+        assertNoMediaLeft();
+    }
+
+    @Test
+    void fallsBackToADownloadedFileWhenTheFormatNeedsAMerge() throws Exception {
+        // Separate video and audio cannot be piped; the stub's merge concatenates the two parts back to SIZE bytes
+        MvcResult started = mockMvc.perform(get("/api/videos/stream")
+                        .param("url", url("merged"))
+                        .param("platform", "youtube")
+                        .param("quality", "720p"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        MvcResult result = mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("video/mp4"))
+                .andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, containsString("filename=\"Stub media merged.mp4\"")))
+                .andReturn();
+
+        assertEquals(SIZE, result.getResponse().getContentAsByteArray().length);
+        // The file behind the stream is released as soon as it has been sent
+        assertNoMediaLeft();
+    }
+
+    @Test
+    void rejectsUrlsItCannotOpen() throws Exception {
+        mockMvc.perform(get("/api/videos/stream").param("url", "https://stub.invalid/watch?v=" + "x".repeat(200)))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/api/videos/stream").param("url", url("gone") + "&fail=unavailable").param("quality", "best"))
+                .andExpect(status().isInternalServerError());
+    }
+
+    private void assertNoMediaLeft() throws IOException {
+        try (Stream<Path> files = Files.list(downloadDir)) {
+            assertEquals(0, files.filter(file -> file.toString().endsWith(".mp4")).count());
+        }
+    }
+
+    private static String url(String id) {
+        return "https://stub.invalid/watch?v=" + id + "&latency=50&size=" + SIZE + "&rate=0";
+    }
+
+    private static String stub(String name) {
+        try {
+            Path path = Paths.get(VideoControllerTest.class.getResource("/load-test/" + name).toURI());
+            // Resource copying does not keep the executable bit
+            path.toFile().setExecutable(true);
+            return path.toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class BandwidthManagerTest {
+    private static final long MB = 1024 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    void splitsTheBudgetAndRestartsProcessesWhoseShareChanged() {
+        BandwidthManager manager = manager(12 * MB);
+        BandwidthManager.Lease first = manager.open("job-1", () -> List.of("session-1"), true);
+        assertEquals(12 * MB, first.getRateLimit());
+        Process firstProcess = runningProcess();
+        first.attach(firstProcess);
+        first.observe(progress(null, 100L));
+
+        // A second session halves the first job's share, which takes a restart to apply
+        BandwidthManager.Lease second = manager.open("job-2", () -> List.of("session-2"), true);
+        assertEquals(6 * MB, second.getRateLimit());
+        assertEquals(6 * MB, first.getRateLimit());
+        assertTrue(first.isRestarting());
+        verify(firstProcess).destroy();
+        assertTrue(first.detach());
+
+        // Weights are relative: 2:1 splits the budget 8:4
+        manager.setSessionWeight("session-2", 2);
+        assertEquals(8 * MB, second.getRateLimit());
+        assertEquals(4 * MB, first.getRateLimit());
+        assertEquals(4, first.getConcurrentFragments());
+
+        // A job held back by its source keeps what it uses plus headroom; the rest goes to the other job
+        Process restarted = runningProcess();
+        first.attach(restarted);
+        first.observe(progress(1.0 * MB, 100L));
+        manager.rebalance();
+        assertEquals((long) (1.5 * MB), first.getRateLimit());
+        assertEquals((long) (10.5 * MB), second.getRateLimit());
+        verify(restarted).destroy();
+
+        manager.close(first);
+        manager.close(second);
+        assertEquals(0, manager.getAllocatedRate());
+        assertEquals(2, registry.get("media.bandwidth.restarts").counter().count());
+    }
+
+    @Test
+    void leavesNearlyFinishedAndUnrestartableProcessesAlone() {
+        BandwidthManager manager = manager(8 * MB);
+        BandwidthManager.Lease stream = manager.open("stream-1", () -> List.of("session-1"), false);
+        Process streamProcess = runningProcess();
+        stream.attach(streamProcess);
+        stream.observe(progress(8.0 * MB, 100L));
+        // The stream's limit is fixed, so the job gets what is left of the budget
+        BandwidthManager.Lease job = manager.open("job-1", () -> List.of("session-2"), true);
+        assertEquals(256 * 1024, job.getRateLimit());
+        Process jobProcess = runningProcess();
+        job.attach(jobProcess);
+        job.observe(progress(null, 1L));
+
+        manager.close(stream);
+        manager.rebalance();
+        verify(streamProcess, never()).destroy();
+        verify(jobProcess, never()).destroy();
+        assertFalse(job.detach());
+    }
+
+    @Test
+    void keepsTheFixedLimitWithoutABudget() {
+        BandwidthManager manager = manager(0);
+        BandwidthManager.Lease first = manager.open("job-1", () -> List.of("session-1"), true);
+        first.attach(runningProcess());
+        manager.open("job-2", () -> List.of("session-2"), true);
+        assertEquals(10 * MB, first.getRateLimit());
+        assertEquals(5, first.getConcurrentFragments());
+        assertFalse(first.isRestarting());
+    }
+
+    private BandwidthManager manager(long budget) {
+        DownloadMetrics metrics = new DownloadMetrics(registry, new DownloadScheduler(4, 3, 2, 2, 50), new DownloadStorage(tempDir.toString(), 0, 100));
+        BandwidthManager manager = new BandwidthManager(metrics, budget, 10 * MB, 256 * 1024, MB, 5, 25, 0);
+        manager.init();
+        return manager;
+    }
+
+    private static Process runningProcess() {
+        Process process = mock(Process.class);
+        when(process.isAlive()).thenReturn(true);
+        return process;
+    }
+
+    private static ProgressEvent progress(Double speed, Long eta) {
+        ProgressEvent event = ProgressParser.stageEvent(ProgressParser.STAGE_DOWNLOADING);
+        event.setSpeed(speed);
+        event.setEta(eta);
+        return event;
+    }
+}
@@ -0,0 +1,71 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterRegistryTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void routesToLiveOwnersOnly() throws Exception {
+        ClusterRegistry a = open("node-a");
+        ClusterRegistry b = open("node-b");
+
+        a.claimSession("session-1");
+        a.claimFile("movie.mp4");
+        a.claimJob("job-1");
+        assertEquals("node-a", b.remoteOwnerOfSession("session-1").orElseThrow().getId());
+        assertEquals("node-a", b.remoteOwnerOfJob("job-1").orElseThrow().getId());
+        assertEquals("http://node-a", b.remoteOwnerOfFile("movie.mp4").orElseThrow().getUrl());
+        assertTrue(a.remoteOwnerOfSession("session-1").isEmpty());
+
+        // Names that could escape the registry directory are never looked up
+        assertTrue(b.remoteOwnerOfSession("..").isEmpty());
+        assertTrue(b.remoteOwnerOfFile("../nodes/node-a.json").isEmpty());
+
+        a.releaseSession("session-1");
+        assertTrue(b.remoteOwnerOfSession("session-1").isEmpty());
+
+        // A node that stopped heartbeating is gone, and the next heartbeat drops its records
+        Files.setLastModifiedTime(tempDir.resolve("nodes").resolve("node-a.json"), FileTime.from(Instant.now().minusSeconds(60)));
+        assertTrue(b.remoteOwnerOfFile("movie.mp4").isEmpty());
+        b.heartbeat();
+        assertTrue(Files.notExists(tempDir.resolve("files").resolve("movie.mp4")));
+    }
+
+    @Test
+    void nodesShareOneSecret() {
+        ClusterRegistry a = open("node-a");
+        ClusterRegistry b = open("node-b");
+
+        assertEquals(64, a.getSecret().length());
+        assertEquals(a.getSecret(), b.getSecret());
+        assertTrue(b.isSecret(a.getSecret()));
+        assertFalse(b.isSecret("node-a"));
+        assertFalse(b.isSecret(""));
+        assertFalse(b.isSecret(null));
+
+        ClusterRegistry configured = open("node-c", "configured");
+        assertTrue(configured.isSecret("configured"));
+        assertFalse(configured.isSecret(a.getSecret()));
+    }
+
+    private ClusterRegistry open(String nodeId) {
+        return open(nodeId, "");
+    }
+
+    private ClusterRegistry open(String nodeId, String secret) {
+        ClusterRegistry registry = new ClusterRegistry(new DownloadScheduler(4, 3, 2, 2, 50), new JobStatusRegistry(60), true,
+                tempDir.toString(), nodeId, "http://" + nodeId, 20, secret, 8080, tempDir.resolve(nodeId + "-downloads").toString());
+        registry.init();
+        return registry;
+    }
+}
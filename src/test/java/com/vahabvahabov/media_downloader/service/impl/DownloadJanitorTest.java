@@ -0,0 +1,63 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.service.VideoService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class DownloadJanitorTest {
+    private static final String JOB_ID = "0b5c1f7e-3a41-4c1e-9a55-6f0d2c8e4b21";
+    private static final String BATCH_ID = "batch-7d2e9c40-18b3-4f6a-b0d1-2c9e5a7f3e88";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void reclaimsOnlyWhatThisApplicationCreated() throws Exception {
+        DownloadStorage storage = new DownloadStorage(tempDir.toString(), 0, 100);
+        Path staleWork = Files.write(storage.createWorkDirectory("stale").resolve("stale.mp4.part"), new byte[100]);
+        Files.setLastModifiedTime(staleWork, FileTime.from(Instant.now().minus(Duration.ofHours(4))));
+        Files.setLastModifiedTime(staleWork.getParent(), FileTime.from(Instant.now().minus(Duration.ofHours(4))));
+        Path liveWork = Files.write(storage.createWorkDirectory(JOB_ID).resolve(JOB_ID + ".mp4.part"), new byte[10]);
+        Files.write(tempDir.resolve(JOB_ID + ".mp4"), new byte[50]);
+        Files.createDirectories(tempDir.resolve(BATCH_ID));
+        Files.write(tempDir.resolve(BATCH_ID).resolve("Clip.mp4"), new byte[30]);
+        Files.createDirectories(tempDir.resolve(".trash").resolve("old-1"));
+        Files.write(tempDir.resolve(".trash").resolve("old-1").resolve("x.part"), new byte[20]);
+        Path foreign = Files.write(tempDir.resolve("someone-elses.mp4"), new byte[40]);
+        Path journal = Files.write(tempDir.resolve("jobs.journal"), new byte[5]);
+
+        VideoService videoService = mock(VideoService.class);
+        when(videoService.expireDownloadedVideo(anyString())).thenReturn(true);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        DownloadMetrics metrics = new DownloadMetrics(registry, new DownloadScheduler(4, 3, 2, 2, 50), storage);
+
+        new DownloadJanitor(storage, videoService, metrics, true, 0, 180).sweep();
+
+        assertFalse(Files.exists(staleWork.getParent()));
+        assertTrue(Files.exists(liveWork));
+        assertFalse(Files.exists(tempDir.resolve(".trash").resolve("old-1")));
+        assertTrue(Files.exists(foreign));
+        assertTrue(Files.exists(journal));
+        verify(videoService).expireDownloadedVideo(JOB_ID + ".mp4");
+        verify(videoService).expireDownloadedVideo(BATCH_ID + ".zip");
+        verifyNoMoreInteractions(videoService);
+
+        assertEquals(20, registry.get("media.janitor.reclaimed").tag("reason", "trash").counter().count());
+        assertEquals(100, registry.get("media.janitor.reclaimed").tag("reason", "orphaned").counter().count());
+        assertEquals(80, registry.get("media.janitor.reclaimed").tag("reason", "expired").counter().count());
+        assertEquals(10, storage.getManagedBytes());
+    }
+}
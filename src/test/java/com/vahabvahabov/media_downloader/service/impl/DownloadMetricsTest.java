@@ -0,0 +1,34 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DownloadMetricsTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void platformTagsAreLimitedToKnownPlatforms() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        DownloadMetrics metrics = new DownloadMetrics(registry, new DownloadScheduler(4, 3, 2, 2, 50), new DownloadStorage(tempDir.toString(), 0, 100));
+
+        for (String platform : new String[]{"YouTube", " tiktok ", "instagram", null, "", "x".repeat(200), "random-1", "random-2"}) {
+            metrics.record(DownloadMetrics.STAGE_EXTRACT, platform, "success", 1_000_000);
+        }
+
+        Set<String> tags = registry.find("media.stage.duration").timers().stream()
+                .map(timer -> timer.getId().getTag("platform"))
+                .collect(Collectors.toSet());
+        assertEquals(Set.of("youtube", "tiktok", "instagram", "other"), tags);
+        Timer other = registry.get("media.stage.duration").tag("platform", "other").timer();
+        assertEquals(5, other.count());
+    }
+}
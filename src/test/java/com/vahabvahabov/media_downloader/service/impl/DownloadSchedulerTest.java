@@ -0,0 +1,141 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadSchedulerTest {
+    private final BlockingQueue<String> started = new LinkedBlockingQueue<>();
+    private final Map<String, CountDownLatch> gates = new ConcurrentHashMap<>();
+    private DownloadScheduler scheduler;
+
+    @AfterEach
+    void stop() {
+        gates.values().forEach(CountDownLatch::countDown);
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void runsAtMostMaxConcurrentJobsInSubmissionOrder() throws Exception {
+        scheduler = scheduler(2, 2, 2, 2, 10);
+        CompletableFuture<String> first = submit("a", "youtube");
+        submit("b", "instagram");
+        submit("c", "tiktok");
+        submit("d", "other");
+
+        assertEquals(2, scheduler.getRunningCount());
+        assertEquals(2, scheduler.getQueuedCount());
+        assertEquals(Set.of("a", "b"), Set.of(nextStarted(), nextStarted()));
+
+        release("a");
+        assertEquals("a", first.get(10, TimeUnit.SECONDS));
+        assertEquals("c", nextStarted());
+        assertEquals(2, scheduler.getRunningCount());
+        assertEquals(1, scheduler.getQueuedCount());
+        assertNull(started.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void saturatedPlatformDoesNotBlockOtherPlatforms() throws Exception {
+        scheduler = scheduler(3, 1, 1, 1, 10);
+        CompletableFuture<String> first = submit("yt-1", "youtube");
+        submit("yt-2", "YouTube");
+        submit("tt-1", "tiktok");
+
+        // The second YouTube job waits for its platform slot, the TikTok job behind it does not
+        assertEquals(2, scheduler.getRunningCount());
+        assertEquals(1, scheduler.getQueuedCount());
+        assertEquals(Set.of("yt-1", "tt-1"), Set.of(nextStarted(), nextStarted()));
+
+        release("yt-1");
+        first.get(10, TimeUnit.SECONDS);
+        assertEquals("yt-2", nextStarted());
+        assertEquals(0, scheduler.getQueuedCount());
+    }
+
+    @Test
+    void reportsQueuePositionsAsJobsAreDispatched() throws Exception {
+        scheduler = scheduler(1, 1, 1, 1, 10);
+        Map<String, BlockingQueue<String>> messages = new ConcurrentHashMap<>();
+        CompletableFuture<String> first = submit("a", "youtube", messages);
+        submit("b", "youtube", messages);
+        submit("c", "youtube", messages);
+
+        assertTrue(messages.get("a").isEmpty());
+        assertTrue(messages.get("b").poll().startsWith("Queued: position 1 of 1, estimated wait ~"));
+        assertTrue(messages.get("b").poll().startsWith("Queued: position 1 of 2"));
+        assertTrue(messages.get("c").poll().startsWith("Queued: position 2 of 2"));
+        assertEquals("a", nextStarted());
+
+        release("a");
+        first.get(10, TimeUnit.SECONDS);
+        assertEquals("b", nextStarted());
+        String moved = messages.get("c").poll(10, TimeUnit.SECONDS);
+        assertNotNull(moved);
+        assertTrue(moved.startsWith("Queued: position 1 of 1"), moved);
+        // Jobs that left the queue hear nothing more from the scheduler
+        assertTrue(messages.get("b").isEmpty());
+    }
+
+    @Test
+    void rejectsSubmissionsOnceTheQueueIsFull() throws Exception {
+        scheduler = scheduler(1, 1, 1, 1, 2);
+        submit("a", "youtube");
+        CompletableFuture<String> queued = submit("b", "youtube");
+        submit("c", "youtube");
+
+        RejectedExecutionException rejected = assertThrows(RejectedExecutionException.class, () -> submit("d", "youtube"));
+        assertTrue(rejected.getMessage().contains("queue is full"));
+        assertEquals(1, scheduler.getRunningCount());
+        assertEquals(2, scheduler.getQueuedCount());
+
+        // Canceling a queued job frees its place
+        assertTrue(scheduler.cancel("b"));
+        assertThrows(CancellationException.class, () -> queued.get(10, TimeUnit.SECONDS));
+        submit("d", "youtube");
+        assertEquals(2, scheduler.getQueuedCount());
+    }
+
+    private DownloadScheduler scheduler(int maxConcurrent, int maxYoutube, int maxInstagram, int maxTiktok, int queueCapacity) {
+        DownloadScheduler downloadScheduler = new DownloadScheduler(maxConcurrent, maxYoutube, maxInstagram, maxTiktok, queueCapacity);
+        downloadScheduler.init();
+        return downloadScheduler;
+    }
+
+    private CompletableFuture<String> submit(String jobId, String platform) {
+        return submit(jobId, platform, new ConcurrentHashMap<>());
+    }
+
+    // Each job records that it started, then blocks until the test releases it
+    private CompletableFuture<String> submit(String jobId, String platform, Map<String, BlockingQueue<String>> messages) {
+        CountDownLatch gate = gates.computeIfAbsent(jobId, k -> new CountDownLatch(1));
+        Consumer<String> listener = messages.computeIfAbsent(jobId, k -> new LinkedBlockingQueue<>())::add;
+        return scheduler.submit(jobId, platform, listener, () -> {
+            started.add(jobId);
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new CompletionException(e);
+            }
+            return jobId;
+        });
+    }
+
+    private void release(String jobId) {
+        gates.get(jobId).countDown();
+    }
+
+    private String nextStarted() throws InterruptedException {
+        String jobId = started.poll(10, TimeUnit.SECONDS);
+        assertNotNull(jobId, "no job started");
+        return jobId;
+    }
+}
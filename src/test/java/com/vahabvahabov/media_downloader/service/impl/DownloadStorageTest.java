@@ -0,0 +1,36 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadStorageTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void artifactPathsStayDirectlyUnderTheDownloadDirectory() {
+        DownloadStorage storage = new DownloadStorage(tempDir.toString(), 0, 100);
+        Path root = tempDir.toAbsolutePath().normalize();
+
+        assertEquals(root.resolve("clip.mp4"), storage.artifactPath("clip.mp4"));
+        assertEquals(root.resolve("clip.mp4"), storage.artifactPath("./clip.mp4"));
+        assertNull(storage.artifactPath(".."));
+        assertNull(storage.artifactPath("../etc.zip"));
+        assertNull(storage.artifactPath("."));
+        assertNull(storage.artifactPath(""));
+        assertNull(storage.artifactPath("work/job/clip.mp4"));
+        assertNull(storage.artifactPath("/etc/passwd"));
+    }
+
+    @Test
+    void onlyBatchDirectoryNamesMatchTheBatchPattern() {
+        assertTrue(DownloadStorage.BATCH_DIR.matcher("batch-7d2e9c40-18b3-4f6a-b0d1-2c9e5a7f3e88").matches());
+        assertFalse(DownloadStorage.BATCH_DIR.matcher("..").matches());
+        assertFalse(DownloadStorage.BATCH_DIR.matcher("batch-../..").matches());
+        assertFalse(DownloadStorage.BATCH_DIR.matcher("work").matches());
+    }
+}
@@ -0,0 +1,144 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@EnabledOnOs({OS.LINUX, OS.MAC})
+class ExtractorPoolTest {
+    // Speaks the worker protocol without yt_dlp: "info JSON" is the URL, the options and the worker's PID
+    private static final String WORKER = """
+            import json, os, sys, time
+            if "broken" in sys.argv[1]:
+                print(json.dumps({"ready": False, "error": "ModuleNotFoundError: No module named 'yt_dlp'"}), flush=True)
+                sys.exit(1)
+            print(json.dumps({"ready": True, "version": "test"}), flush=True)
+            for line in sys.stdin:
+                request = json.loads(line)
+                url = request.get("url", "")
+                if "hang" in url:
+                    time.sleep(60)
+                if "slow" in url:
+                    time.sleep(1)
+                rss = 10 ** 7 if "huge" in url else 1000
+                if "unavailable" in url:
+                    print(json.dumps({"ok": False, "error": "ERROR: [youtube] x: Video unavailable", "rss": rss}), flush=True)
+                    continue
+                if request.get("op") == "extract":
+                    with open(request["output"], "w") as out:
+                        json.dump({"url": url, "args": request["args"], "pid": os.getpid()}, out)
+                print(json.dumps({"ok": True, "rss": rss}), flush=True)
+            """;
+
+    @TempDir
+    Path tempDir;
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private ExtractorPool pool;
+
+    @AfterEach
+    void stop() {
+        pool.shutdown();
+    }
+
+    @Test
+    void extractsInWarmWorkersAndRecyclesThemAfterMaxJobs() throws Exception {
+        pool = pool("yt-dlp", 1, 2);
+        awaitCondition(() -> pool.getIdleCount() == 1);
+
+        JsonNode first = extract("https://example.com/a");
+        JsonNode second = extract("https://example.com/b");
+        assertEquals("https://example.com/a", first.path("url").asText());
+        assertEquals(List.of("--no-cache-dir", "-J"), objectMapper.convertValue(first.path("args"), List.class));
+        assertEquals(first.path("pid").asLong(), second.path("pid").asLong());
+
+        // The second request used up the worker; its replacement is a new process
+        awaitCondition(() -> pool.getIdleCount() == 1);
+        assertNotEquals(first.path("pid").asLong(), extract("https://example.com/c").path("pid").asLong());
+        assertEquals(1, registry.get("media.extractor.recycled").tag("reason", "max_jobs").counter().count());
+    }
+
+    @Test
+    void reportsExtractorErrorsAndFallsBackWhenEveryWorkerIsBusy() throws Exception {
+        pool = pool("yt-dlp", 1, 100);
+        awaitCondition(() -> pool.getIdleCount() == 1);
+
+        ProcessRunner.ProcessResult failed = pool.extract(List.of("-J"), "https://example.com/unavailable",
+                tempDir.resolve("failed.json"), Duration.ofSeconds(10));
+        assertEquals(1, failed.getExitCode());
+        assertEquals("ERROR: [youtube] x: Video unavailable", failed.getOutputTail());
+
+        CompletableFuture<ProcessRunner.ProcessResult> slow = CompletableFuture.supplyAsync(() ->
+                pool.extract(List.of("-J"), "https://example.com/slow", tempDir.resolve("slow.json"), Duration.ofSeconds(10)));
+        awaitCondition(() -> pool.getIdleCount() == 0);
+        assertNull(pool.extract(List.of("-J"), "https://example.com/d", tempDir.resolve("d.json"), Duration.ofSeconds(10)));
+        assertEquals(0, slow.get().getExitCode());
+        assertEquals(1, registry.get("media.extractor.fallbacks").tag("reason", "busy").counter().count());
+    }
+
+    @Test
+    void replacesWorkersThatHangOrGrowTooLarge() throws Exception {
+        pool = pool("yt-dlp", 1, 100);
+        awaitCondition(() -> pool.getIdleCount() == 1);
+
+        ProcessRunner.ProcessResult hung = pool.extract(List.of("-J"), "https://example.com/hang",
+                tempDir.resolve("hang.json"), Duration.ofMillis(500));
+        assertTrue(hung.isTimedOut());
+        awaitCondition(() -> pool.getIdleCount() == 1);
+
+        extract("https://example.com/huge");
+        awaitCondition(() -> pool.getIdleCount() == 1);
+        assertEquals(1, registry.get("media.extractor.recycled").tag("reason", "timeout").counter().count());
+        assertEquals(1, registry.get("media.extractor.recycled").tag("reason", "memory").counter().count());
+        assertEquals(1, pool.getWorkerCount());
+    }
+
+    @Test
+    void disablesItselfWhenWorkersCannotStart() throws Exception {
+        pool = pool("broken-yt-dlp", 2, 100);
+
+        awaitCondition(() -> !pool.isEnabled());
+        assertNull(pool.extract(List.of("-J"), "https://example.com/a", tempDir.resolve("a.json"), Duration.ofSeconds(10)));
+        assertEquals(0, pool.getWorkerCount());
+    }
+
+    private JsonNode extract(String url) throws Exception {
+        Path output = tempDir.resolve("info-" + System.nanoTime() + ".json");
+        ProcessRunner.ProcessResult result = pool.extract(List.of("--no-cache-dir", "-J"), url, output, Duration.ofSeconds(10));
+        assertNotNull(result, "No idle worker for " + url);
+        assertEquals(0, result.getExitCode());
+        return objectMapper.readTree(output.toFile());
+    }
+
+    private ExtractorPool pool(String ytDlpPath, int size, int maxJobs) throws Exception {
+        Path script = Files.writeString(tempDir.resolve("worker.py"), WORKER);
+        DownloadMetrics metrics = new DownloadMetrics(registry, new DownloadScheduler(4, 3, 2, 2, 50), new DownloadStorage(tempDir.toString(), 0, 100));
+        ExtractorPool extractorPool = new ExtractorPool(metrics, ytDlpPath, true, "python3", script.toString(), size,
+                maxJobs, 1, 10, 5);
+        extractorPool.init();
+        return extractorPool;
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(20).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for the pool");
+            Thread.sleep(20);
+        }
+    }
+}
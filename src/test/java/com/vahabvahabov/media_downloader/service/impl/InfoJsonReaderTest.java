@@ -0,0 +1,120 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.MediaMetadata;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InfoJsonReaderTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void readsTopLevelFieldsAndSkipsFormatsAndEntries() throws Exception {
+        // Nested objects reuse the same field names; only the top-level ones may be picked up
+        StringBuilder json = new StringBuilder("{\"id\":\"dQw4w9WgXcQ\",\"formats\":[");
+        for (int i = 0; i < 200; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"format_id\":\"").append(100 + i).append("\",\"title\":\"format ").append(i)
+                    .append("\",\"duration\":1,\"http_headers\":{\"User-Agent\":\"Mozilla/5.0\"},\"fragments\":[")
+                    .append("{\"url\":\"https://example.com/sq/0\",\"duration\":5.0},".repeat(20))
+                    .append("{\"url\":\"https://example.com/sq/last\"}]}");
+        }
+        json.append("],\"title\":\"Never Gonna Give You Up\",\"description\":\"Line one\\nLine \\u201ctwo\\u201d\",")
+                .append("\"entries\":[{\"title\":\"entry\",\"uploader\":\"someone else\"}],")
+                .append("\"uploader\":\"Rick Astley\",\"duration\":212.5,\"view_count\":1600000000,")
+                .append("\"upload_date\":\"20091025\",\"thumbnails\":[{\"url\":\"https://i.ytimg.com/vi/x/0.jpg\"}],")
+                .append("\"thumbnail\":\"https://i.ytimg.com/vi/x/maxresdefault.jpg\",\"automatic_captions\":{\"en\":[{\"ext\":\"vtt\"}]}}");
+
+        MediaMetadata metadata = InfoJsonReader.read(write(json));
+
+        assertEquals("Never Gonna Give You Up", metadata.getTitle());
+        assertEquals("Line one\nLine “two”", metadata.getDescription());
+        assertEquals("Rick Astley", metadata.getUploader());
+        assertEquals(212.5, metadata.getDuration().doubleValue());
+        assertEquals(1_600_000_000L, metadata.getViewCount().longValue());
+        assertEquals("20091025", metadata.getUploadDate());
+        assertEquals("https://i.ytimg.com/vi/x/maxresdefault.jpg", metadata.getThumbnail());
+    }
+
+    @Test
+    void leavesFieldsOfTheWrongTypeUnset() throws Exception {
+        MediaMetadata metadata = InfoJsonReader.read(write(
+                "{\"title\":null,\"uploader\":{\"name\":\"Rick\"},\"duration\":\"3:32\",\"view_count\":[1],\"upload_date\":\"20091025\"}"));
+
+        assertNull(metadata.getTitle());
+        assertNull(metadata.getUploader());
+        assertNull(metadata.getDuration());
+        assertNull(metadata.getViewCount());
+        assertEquals("20091025", metadata.getUploadDate());
+    }
+
+    @Test
+    void rejectsTruncatedAndMalformedDocuments() throws Exception {
+        Path truncated = write("{\"title\":\"Cut short\",\"formats\":[{\"format_id\":\"18\",\"url\":\"https://exa");
+        assertThrows(IOException.class, () -> InfoJsonReader.read(truncated));
+        assertThrows(IOException.class, () -> InfoJsonReader.readPlaylist(truncated, 10));
+
+        Path unclosed = write("{\"title\":\"Cut short\"");
+        assertThrows(IOException.class, () -> InfoJsonReader.read(unclosed));
+
+        IOException notAnObject = assertThrows(IOException.class, () -> InfoJsonReader.read(write("[{\"title\":\"x\"}]")));
+        assertEquals("Media information is not a JSON object", notAnObject.getMessage());
+        assertThrows(IOException.class, () -> InfoJsonReader.read(write("")));
+        assertThrows(IOException.class, () -> InfoJsonReader.read(write("{\"title\":\"x\",}")));
+    }
+
+    @Test
+    void readsPlaylistEntriesUpToTheLimit() throws Exception {
+        StringBuilder json = new StringBuilder("{\"_type\":\"playlist\",\"entries\":[");
+        for (int i = 0; i < 5000; i++) {
+            if (i > 0) json.append(',');
+            if (i % 2 == 0) {
+                json.append("{\"_type\":\"url\",\"url\":\"https://www.youtube.com/watch?v=v").append(i)
+                        .append("\",\"title\":\"Video ").append(i).append("\",\"thumbnails\":[{\"url\":\"https://i.ytimg.com/").append(i).append("\"}]}");
+            } else {
+                // Some extractors put only the id in "url"; the page URL is what gets downloaded
+                json.append("{\"url\":\"v").append(i).append("\",\"webpage_url\":\"https://www.youtube.com/watch?v=v").append(i).append("\"}");
+            }
+        }
+        json.append(",null,{\"url\":\"no-scheme\"}],\"title\":\"Big playlist\"}");
+
+        InfoJsonReader.Playlist playlist = InfoJsonReader.readPlaylist(write(json), 3);
+        assertEquals("Big playlist", playlist.getTitle());
+        assertEquals(List.of("https://www.youtube.com/watch?v=v0", "https://www.youtube.com/watch?v=v1",
+                "https://www.youtube.com/watch?v=v2"), playlist.getUrls());
+
+        InfoJsonReader.Playlist all = InfoJsonReader.readPlaylist(write(json), Integer.MAX_VALUE);
+        assertEquals(5000, all.getUrls().size());
+
+        InfoJsonReader.Playlist single = InfoJsonReader.readPlaylist(write("{\"title\":\"Just a video\",\"formats\":[]}"), 10);
+        assertEquals("Just a video", single.getTitle());
+        assertTrue(single.getUrls().isEmpty());
+    }
+
+    @Test
+    void findsDirectMediaOnlyForSingleHttpFormats() throws Exception {
+        InfoJsonReader.DirectMedia media = InfoJsonReader.readDirectMedia(write(
+                "{\"formats\":[{\"url\":\"https://example.com/other\"}],\"url\":\"https://example.com/video.mp4\","
+                        + "\"protocol\":\"https\",\"filesize\":1234,\"http_headers\":{\"User-Agent\":\"yt-dlp\",\"Referer\":\"https://example.com/\"}}"));
+        assertNotNull(media);
+        assertEquals("https://example.com/video.mp4", media.getUrl());
+        assertEquals(1234L, media.getSize());
+        assertEquals("yt-dlp", media.getHeaders().get("User-Agent"));
+
+        assertNull(InfoJsonReader.readDirectMedia(write(
+                "{\"url\":\"https://example.com/master.m3u8\",\"protocol\":\"m3u8_native\"}")));
+        assertNull(InfoJsonReader.readDirectMedia(write(
+                "{\"requested_formats\":[{\"url\":\"https://example.com/v\"},{\"url\":\"https://example.com/a\"}]}")));
+    }
+
+    private Path write(CharSequence json) throws IOException {
+        return Files.writeString(Files.createTempFile(tempDir, "info-", ".json"), json);
+    }
+}
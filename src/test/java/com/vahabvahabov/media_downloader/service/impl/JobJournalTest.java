@@ -0,0 +1,90 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.JobJournalEntry;
+import com.vahabvahabov.media_downloader.model.VideoRequest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JobJournalTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void recoversUnfinishedAndUnclaimedJobsAfterRestart() throws Exception {
+        JobJournal journal = open(1000);
+        journal.started(job("running", "s1"));
+        journal.subscribed("running", "s2");
+        journal.resumed("running", 1);
+        journal.started(job("done", "s3"));
+        journal.finished("done", List.of("s3"), "done.mp4", "Title.mp4", "Title", "https://i/t.jpg");
+        journal.started(job("canceled", "s4"));
+        journal.canceled("canceled");
+        journal.started(job("deleted", "s5"));
+        journal.finished("deleted", List.of("s5"), "deleted.mp4", "Other.mp4", "Other", null);
+        journal.deleted("deleted.mp4");
+        journal.failed("never-started");
+        journal.close();
+
+        List<JobJournalEntry> recovered = open(1000).recover();
+        assertEquals(2, recovered.size());
+
+        JobJournalEntry running = recovered.get(0);
+        assertEquals(JobJournal.STARTED, running.getEvent());
+        assertEquals("https://example.com/watch?v=running", running.getUrl());
+        assertEquals("bestvideo[height<=720]+bestaudio/best", running.getFormat());
+        assertEquals(List.of("s1", "s2"), running.getSessions());
+        assertEquals(1, running.getAttempts());
+
+        JobJournalEntry done = recovered.get(1);
+        assertEquals(JobJournal.FINISHED, done.getEvent());
+        assertEquals("done.mp4", done.getFileName());
+        assertEquals("Title.mp4", done.getDisplayName());
+        assertEquals("key-done", done.getKey());
+    }
+
+    @Test
+    void compactsAndSurvivesATornLastRecord() throws Exception {
+        JobJournal journal = open(5);
+        for (int i = 0; i < 20; i++) {
+            journal.started(job("job-" + i, "s"));
+            journal.failed("job-" + i);
+        }
+        journal.started(job("last", "s"));
+        journal.close();
+
+        Path file = tempDir.resolve(JobJournal.JOURNAL_FILE);
+        assertTrue(Files.readAllLines(file).size() < 10, "journal was not compacted");
+        Files.writeString(file, "{\"event\":\"finished\",\"jobId\":\"la", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        List<JobJournalEntry> recovered = open(5).recover();
+        assertEquals(1, recovered.size());
+        assertEquals("last", recovered.get(0).getJobId());
+        assertEquals(1, Files.readAllLines(file).size());
+    }
+
+    private JobJournal open(int compactAfter) {
+        JobJournal journal = new JobJournal(true, tempDir.toString(), compactAfter);
+        journal.init();
+        return journal;
+    }
+
+    private static DownloadJob job(String id, String sessionId) {
+        VideoRequest request = new VideoRequest();
+        request.setUrl("https://example.com/watch?v=" + id);
+        request.setPlatform("youtube");
+        request.setQuality("720p");
+        DownloadJob job = new DownloadJob(id, "key-" + id, request, "bestvideo[height<=720]+bestaudio/best", true, null,
+                new JobStatusRegistry(60), 4);
+        job.addSubscriber(sessionId);
+        return job;
+    }
+}
@@ -0,0 +1,87 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.JobStatus;
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JobStatusRegistryTest {
+    private final JobStatusRegistry registry = new JobStatusRegistry(60);
+
+    @Test
+    void keepsOnlyTheLatestSnapshot() {
+        registry.queued("job");
+        registry.message("job", "Queued: position 2");
+        registry.progress("job", progress(ProgressParser.STAGE_DOWNLOADING, 10.0));
+        registry.progress("job", progress(ProgressParser.STAGE_DOWNLOADING, 55.5));
+
+        JobStatus status = registry.get("job");
+        assertEquals(JobStatusRegistry.RUNNING, status.getState());
+        assertEquals(55.5, status.getPercent());
+        assertEquals("Queued: position 2", status.getMessage());
+        assertEquals(3, status.getVersion());
+        assertNull(registry.get("unknown"));
+    }
+
+    @Test
+    void aFinishedJobStaysFinished() {
+        registry.queued("job");
+        registry.finished("job", "job.mp4");
+        registry.progress("job", progress(ProgressParser.STAGE_MERGING, null));
+        registry.failed("job", "too late");
+
+        JobStatus status = registry.get("job");
+        assertEquals(JobStatusRegistry.FINISHED, status.getState());
+        assertEquals("job.mp4", status.getFileName());
+        assertEquals(100.0, status.getPercent());
+        assertNull(status.getError());
+
+        // Updates for jobs that were never tracked (batch items) are dropped
+        registry.failed("item", "failed");
+        assertNull(registry.get("item"));
+    }
+
+    @Test
+    void awaitWakesUpOnTheNextVersion() throws Exception {
+        registry.queued("job");
+        long seen = registry.get("job").getVersion();
+
+        CompletableFuture<JobStatus> next = CompletableFuture.supplyAsync(() -> {
+            try {
+                return registry.await("job", seen, Duration.ofSeconds(10));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100);
+        registry.progress("job", progress(ProgressParser.STAGE_DOWNLOADING, 20.0));
+
+        assertEquals(20.0, next.get(5, TimeUnit.SECONDS).getPercent());
+        // Nothing newer: the current snapshot comes back after the timeout
+        assertEquals(seen + 1, registry.await("job", seen + 1, Duration.ofMillis(50)).getVersion());
+    }
+
+    @Test
+    void forgetsJobsThatEndedLongAgo() {
+        JobStatusRegistry shortLived = new JobStatusRegistry(0);
+        shortLived.queued("running");
+        shortLived.queued("canceled");
+        shortLived.canceled("canceled");
+
+        shortLived.prune();
+
+        assertTrue(shortLived.contains("running"));
+        assertFalse(shortLived.contains("canceled"));
+    }
+
+    private static ProgressEvent progress(String stage, Double percent) {
+        ProgressEvent event = ProgressParser.stageEvent(stage);
+        event.setPercent(percent);
+        return event;
+    }
+}
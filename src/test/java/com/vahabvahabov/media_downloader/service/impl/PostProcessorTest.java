@@ -0,0 +1,135 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@EnabledOnOs({OS.LINUX, OS.MAC})
+class PostProcessorTest {
+    // Reports half of a 60 second input done, then "merges" by concatenating the inputs into the last argument
+    private static final String FFMPEG = """
+            #!/bin/sh
+            echo "$@" > "$(dirname "$0")/args"
+            echo out_time_us=N/A
+            echo out_time_us=30000000
+            sleep "${SLEEP:-0}"
+            for last; do :; done
+            inputs=""
+            while [ $# -gt 1 ]; do
+              if [ "$1" = "-i" ]; then inputs="$inputs $2"; shift; fi
+              shift
+            done
+            cat $inputs > "$last"
+            """;
+
+    @TempDir
+    Path tempDir;
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private PostProcessor postProcessor;
+
+    @AfterEach
+    void stop() {
+        postProcessor.shutdown();
+    }
+
+    @Test
+    void mergesStreamsAndReportsProgress() throws Exception {
+        postProcessor = postProcessor(ffmpeg(0), 2, 10);
+        Path video = Files.writeString(tempDir.resolve("job.f137.mp4"), "video");
+        Path audio = Files.writeString(tempDir.resolve("job.f140.m4a"), "audio");
+        Path output = tempDir.resolve("job.mp4");
+        List<ProgressEvent> events = new CopyOnWriteArrayList<>();
+
+        Path merged = postProcessor.submit("job", "youtube", List.of(video, audio), OutputFormat.MP4, output, 60,
+                () -> false, events::add).get(10, TimeUnit.SECONDS);
+
+        assertEquals("videoaudio", Files.readString(merged));
+        assertTrue(Files.readString(tempDir.resolve("args")).contains("-i " + video + " -i " + audio + " -c copy"));
+        assertEquals(ProgressParser.STAGE_MERGING, events.get(0).getStage());
+        assertEquals(50.0, events.get(events.size() - 1).getPercent());
+        assertEquals(1, registry.get("media.stage.duration").tag("stage", DownloadMetrics.STAGE_MERGE)
+                .tag("outcome", "success").timer().count());
+        assertFalse(Files.exists(tempDir.resolve("job.ffmpeg.log")));
+    }
+
+    @Test
+    void queuesBeyondTheWorkersAndRejectsWhenTheQueueIsFull() throws Exception {
+        postProcessor = postProcessor(ffmpeg(1), 1, 1);
+        Path input = Files.writeString(tempDir.resolve("job.f140.m4a"), "audio");
+
+        CompletableFuture<Path> first = postProcessor.submit("job-1", "youtube", List.of(input), OutputFormat.MP3,
+                tempDir.resolve("job-1.mp3"), null, () -> false, event -> { });
+        CompletableFuture<Path> second = postProcessor.submit("job-2", "youtube", List.of(input), OutputFormat.MP3,
+                tempDir.resolve("job-2.mp3"), null, () -> false, event -> { });
+        CompletableFuture<Path> third = postProcessor.submit("job-3", "youtube", List.of(input), OutputFormat.MP3,
+                tempDir.resolve("job-3.mp3"), null, () -> false, event -> { });
+
+        assertEquals(1, postProcessor.getQueuedCount());
+        ExecutionException rejected = assertThrows(ExecutionException.class, () -> third.get(1, TimeUnit.SECONDS));
+        assertInstanceOf(RejectedExecutionException.class, rejected.getCause());
+        assertEquals("audio", Files.readString(first.get(10, TimeUnit.SECONDS)));
+        assertEquals("audio", Files.readString(second.get(10, TimeUnit.SECONDS)));
+        assertTrue(Files.readString(tempDir.resolve("args")).contains("-vn -c:a libmp3lame"));
+    }
+
+    @Test
+    void killsACanceledConversionAndRemovesItsOutput() throws Exception {
+        postProcessor = postProcessor(ffmpeg(30), 1, 1);
+        Path input = Files.writeString(tempDir.resolve("job.f137.mp4"), "video");
+        Path output = tempDir.resolve("job.mkv");
+        long canceledAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+
+        CompletableFuture<Path> future = postProcessor.submit("job", "youtube", List.of(input), OutputFormat.MKV, output,
+                60, () -> System.nanoTime() > canceledAt, event -> { });
+
+        assertThrows(CancellationException.class, () -> future.get(10, TimeUnit.SECONDS));
+        assertFalse(Files.exists(output));
+        assertEquals(1, registry.get("media.stage.duration").tag("stage", DownloadMetrics.STAGE_POSTPROCESS)
+                .tag("outcome", "canceled").timer().count());
+    }
+
+    @Test
+    void failsQueuedConversionsOnShutdown() throws Exception {
+        postProcessor = postProcessor(ffmpeg(30), 1, 2);
+        Path input = Files.writeString(tempDir.resolve("job.f140.m4a"), "audio");
+
+        CompletableFuture<Path> running = postProcessor.submit("job-1", "youtube", List.of(input), OutputFormat.MP3,
+                tempDir.resolve("job-1.mp3"), null, () -> false, event -> { });
+        CompletableFuture<Path> queued = postProcessor.submit("job-2", "youtube", List.of(input), OutputFormat.MP3,
+                tempDir.resolve("job-2.mp3"), null, () -> false, event -> { });
+        assertEquals(1, postProcessor.getQueuedCount());
+
+        postProcessor.shutdown();
+
+        assertThrows(CancellationException.class, () -> queued.get(1, TimeUnit.SECONDS));
+        assertThrows(ExecutionException.class, () -> running.get(10, TimeUnit.SECONDS));
+        assertFalse(Files.exists(tempDir.resolve("job-1.mp3")));
+    }
+
+    private PostProcessor postProcessor(Path ffmpeg, int workers, int queueCapacity) {
+        DownloadMetrics metrics = new DownloadMetrics(registry, new DownloadScheduler(4, 3, 2, 2, 50), new DownloadStorage(tempDir.toString(), 0, 100));
+        PostProcessor processor = new PostProcessor(new ProcessRunner(), metrics, ffmpeg.toString(), workers, queueCapacity, 60);
+        processor.init();
+        return processor;
+    }
+
+    private Path ffmpeg(int sleepSeconds) throws Exception {
+        Path script = tempDir.resolve("ffmpeg");
+        Files.writeString(script, FFMPEG.replace("${SLEEP:-0}", String.valueOf(sleepSeconds)));
+        Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rwxr-xr-x"));
+        return script;
+    }
+}
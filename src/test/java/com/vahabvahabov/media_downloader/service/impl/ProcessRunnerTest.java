@@ -0,0 +1,130 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@EnabledOnOs({OS.LINUX, OS.MAC})
+class ProcessRunnerTest {
+    private static final String SCRIPT = "for i in 1 2 3 4 5; do echo \"[download] $i\"; sleep 0.2; done";
+
+    private final ProcessRunner processRunner = new ProcessRunner();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void followsOutputAndExitCode() throws Exception {
+        Path log = tempDir.resolve("single.log");
+        Process process = processRunner.start(List.of("sh", "-c", SCRIPT + "; exit 3"), log, null);
+        List<String> lines = new ArrayList<>();
+        processRunner.follow(process, log, lines::add, () -> false);
+
+        assertTrue(processRunner.awaitExit(process, 5, TimeUnit.SECONDS));
+        assertEquals(3, process.exitValue());
+        assertEquals(List.of("[download] 1", "[download] 2", "[download] 3", "[download] 4", "[download] 5"), lines);
+    }
+
+    @Test
+    void runKeepsOnlyTheTailOfStderr() throws Exception {
+        Path stdout = tempDir.resolve("run.out");
+        String script = "i=0; while [ $i -lt 5000 ]; do echo \"noise $i\" >&2; i=$((i+1)); done; echo done; echo 'ERROR: boom' >&2; exit 1";
+        ProcessRunner.ProcessResult result = processRunner.run(List.of("sh", "-c", script), stdout, Duration.ofSeconds(10));
+
+        assertEquals(1, result.getExitCode());
+        assertFalse(result.isTimedOut());
+        String[] tail = result.getOutputTail().split("\n");
+        assertEquals(40, tail.length);
+        assertEquals("noise 4961", tail[0]);
+        assertEquals("ERROR: boom", tail[39]);
+        assertEquals("done\n", Files.readString(stdout));
+    }
+
+    @Test
+    void followEnforcesWallClockTimeout() throws Exception {
+        Path log = tempDir.resolve("slow.log");
+        Process process = processRunner.start(List.of("sh", "-c", "while true; do echo tick; sleep 0.1; done"), log, null);
+        ProcessRunner.ProcessResult result = processRunner.follow(process, log, line -> { }, () -> false, Duration.ofMillis(500));
+
+        assertTrue(result.isTimedOut());
+        assertTrue(process.onExit().get(5, TimeUnit.SECONDS) != null);
+    }
+
+    @Test
+    void awaitExitKillsProcessOnTimeout() throws Exception {
+        Process process = processRunner.start(List.of("sleep", "30"), tempDir.resolve("sleep.log"), null);
+
+        assertFalse(processRunner.awaitExit(process, 200, TimeUnit.MILLISECONDS));
+        assertTrue(process.onExit().get(5, TimeUnit.SECONDS) != null);
+    }
+
+    @Test
+    void threadCountStaysFlatAsJobsScale() throws Exception {
+        runJobs(10, "warmup");
+        int small = runJobs(20, "small");
+        int large = runJobs(200, "large");
+
+        // Ten times the jobs should cost no more than a handful of extra platform threads
+        assertTrue(large - small < 20, "platform threads grew from " + small + " to " + large);
+    }
+
+    /**
+     * Runs {@code count} jobs at once, each on its own virtual thread, and returns the peak number of
+     * platform threads seen meanwhile. The JDK's "process reaper" threads are left out: the JDK starts one
+     * per live child process (with a small stack) whatever threading model the caller uses.
+     */
+    private int runJobs(int count, String name) throws Exception {
+        AtomicInteger lines = new AtomicInteger();
+        List<Thread> jobs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Path log = tempDir.resolve(name + "-" + i + ".log");
+            jobs.add(processRunner.startVirtual(name + "-" + i, () -> {
+                try {
+                    Process process = processRunner.start(List.of("sh", "-c", SCRIPT), log, null);
+                    processRunner.follow(process, log, line -> lines.incrementAndGet(), () -> false);
+                    processRunner.awaitExit(process, 30, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+
+        int peak = 0;
+        while (jobs.stream().anyMatch(Thread::isAlive)) {
+            peak = Math.max(peak, platformThreadCount());
+            Thread.sleep(50);
+        }
+        for (Thread job : jobs) {
+            job.join();
+        }
+        assertEquals(count * 5, lines.get());
+        return peak;
+    }
+
+    private int platformThreadCount() {
+        int count = 0;
+        for (ThreadInfo info : threads.dumpAllThreads(false, false)) {
+            if (info != null && !info.getThreadName().startsWith("process reaper")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,75 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProgressCoalescerTest {
+    private final List<ProgressEvent> delivered = new CopyOnWriteArrayList<>();
+
+    @Test
+    void deliversAtMostOneEventPerIntervalAndTheLatestOnFlush() {
+        ProgressCoalescer coalescer = new ProgressCoalescer(1, delivered::add);
+        for (int percent = 1; percent <= 5; percent++) {
+            coalescer.offer(download(percent));
+        }
+        assertEquals(List.of(1.0), percents());
+
+        coalescer.flush();
+        assertEquals(List.of(1.0, 5.0), percents());
+        coalescer.flush();
+        assertEquals(2, delivered.size());
+    }
+
+    @Test
+    void flushesThePendingEventBeforeAStageChange() {
+        ProgressCoalescer coalescer = new ProgressCoalescer(1, delivered::add);
+        coalescer.offer(download(10));
+        coalescer.offer(download(100));
+        coalescer.offer(ProgressParser.stageEvent(ProgressParser.STAGE_MERGING));
+
+        assertEquals(3, delivered.size());
+        assertEquals(100.0, delivered.get(1).getPercent());
+        assertEquals(ProgressParser.STAGE_MERGING, delivered.get(2).getStage());
+    }
+
+    @Test
+    void deliversTheLastSuppressedEventWhenTheIntervalIsOver() throws Exception {
+        ProgressCoalescer coalescer = new ProgressCoalescer(20, delivered::add);
+        coalescer.offer(download(10));
+        coalescer.offer(download(20));
+        coalescer.offer(download(30));
+        assertEquals(List.of(10.0), percents());
+
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (delivered.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(List.of(10.0, 30.0), percents());
+        Thread.sleep(100);
+        assertEquals(2, delivered.size());
+    }
+
+    @Test
+    void deliversEverythingWithoutALimit() {
+        ProgressCoalescer coalescer = new ProgressCoalescer(0, delivered::add);
+        for (int percent = 1; percent <= 5; percent++) {
+            coalescer.offer(download(percent));
+        }
+        assertEquals(5, delivered.size());
+    }
+
+    private List<Double> percents() {
+        return delivered.stream().map(ProgressEvent::getPercent).toList();
+    }
+
+    private static ProgressEvent download(double percent) {
+        ProgressEvent event = ProgressParser.stageEvent(ProgressParser.STAGE_DOWNLOADING);
+        event.setPercent(percent);
+        return event;
+    }
+}
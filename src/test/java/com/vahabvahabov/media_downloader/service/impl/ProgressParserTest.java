@@ -0,0 +1,50 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProgressParserTest {
+
+    @Test
+    void parsesTemplateLines() {
+        ProgressEvent event = ProgressParser.parse("[progress]|downloading|1048576|4194304|NA|524288.5|6");
+
+        assertEquals(ProgressParser.STAGE_DOWNLOADING, event.getStage());
+        assertEquals(1048576L, event.getDownloadedBytes());
+        assertEquals(4194304L, event.getTotalBytes());
+        assertEquals(524288.5, event.getSpeed());
+        assertEquals(6L, event.getEta());
+        assertEquals(25.0, event.getPercent());
+    }
+
+    @Test
+    void fallsBackToTheEstimateAndToleratesMissingFields() {
+        ProgressEvent estimated = ProgressParser.parse("[progress]|downloading|300|None|1000.0|NA|NA");
+        assertEquals(1000L, estimated.getTotalBytes());
+        assertEquals(30.0, estimated.getPercent());
+        assertNull(estimated.getSpeed());
+        assertNull(estimated.getEta());
+
+        ProgressEvent unknown = ProgressParser.parse("[progress]|downloading|300|NA|NA");
+        assertEquals(300L, unknown.getDownloadedBytes());
+        assertNull(unknown.getTotalBytes());
+        assertNull(unknown.getPercent());
+
+        assertEquals(100.0, ProgressParser.parse("[progress]|finished|10|NA|NA|NA|NA").getPercent());
+        assertNull(ProgressParser.parse("[progress]|downloading|garbage|12|x|y|z").getDownloadedBytes());
+    }
+
+    @Test
+    void mapsPostProcessorLinesToStagesAndIgnoresTheRest() {
+        assertTrue(ProgressParser.isRelevant("[Merger] Merging formats into \"job.mp4\""));
+        assertEquals(ProgressParser.STAGE_MERGING, ProgressParser.parse("[Merger] Merging formats into \"job.mp4\"").getStage());
+        assertEquals(ProgressParser.STAGE_POSTPROCESSING, ProgressParser.parse("[ExtractAudio] Destination: job.mp3").getStage());
+        assertEquals(ProgressParser.STAGE_POSTPROCESSING, ProgressParser.parse("[VideoRemuxer] Remuxing video").getStage());
+
+        assertFalse(ProgressParser.isRelevant("[download] Destination: job.f137.mp4"));
+        assertNull(ProgressParser.parse("[download] Destination: job.f137.mp4"));
+        assertNull(ProgressParser.parse("WARNING: something"));
+    }
+}
@@ -0,0 +1,150 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.vahabvahabov.media_downloader.model.ProgressEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RangeDownloaderTest {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final byte[] CONTENT = new byte[6 * 1024 * 1024 + 12345];
+
+    static {
+        new Random(42).nextBytes(CONTENT);
+    }
+
+    @TempDir
+    Path tempDir;
+
+    private final RangeDownloader downloader = new RangeDownloader(4, 1024 * 1024, 2, 10);
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private final AtomicInteger dropsLeft = new AtomicInteger();
+    private final List<String> userAgents = new CopyOnWriteArrayList<>();
+    private volatile boolean rangesSupported = true;
+    private HttpServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // Platform threads: the JDK server writes responses under a monitor, which would pin a virtual thread
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/media", this::serve);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void downloadsRangesInParallelAndRetriesADroppedSegment() throws Exception {
+        dropsLeft.set(1);
+        Path target = tempDir.resolve("ranged.mp4");
+        List<ProgressEvent> events = new CopyOnWriteArrayList<>();
+
+        long bytes = downloader.download(media(), target, events::add, () -> 0, () -> false, Duration.ofSeconds(30));
+
+        assertEquals(CONTENT.length, bytes);
+        assertArrayEquals(CONTENT, Files.readAllBytes(target));
+        // Four segments plus the retry of the dropped one
+        assertTrue(rangeRequests.get() >= 5, "Only " + rangeRequests.get() + " range requests");
+        assertEquals(0, dropsLeft.get());
+        assertTrue(userAgents.stream().allMatch("test-agent"::equals));
+        ProgressEvent last = events.get(events.size() - 1);
+        assertEquals(100.0, last.getPercent());
+        assertEquals(CONTENT.length, last.getTotalBytes());
+    }
+
+    @Test
+    void readsTheWholeFileWhenRangesAreNotSupported() throws Exception {
+        rangesSupported = false;
+        Path target = tempDir.resolve("whole.mp4");
+
+        downloader.download(media(), target, event -> { }, () -> 0, () -> false, Duration.ofSeconds(30));
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(target));
+        assertEquals(0, rangeRequests.get());
+    }
+
+    @Test
+    void stopsWhenCanceled() {
+        Path target = tempDir.resolve("canceled.mp4");
+        // Throttled to 1 MiB/s, so the file is far from done when the job is canceled after half a second
+        long canceledAt = System.nanoTime() + Duration.ofMillis(500).toNanos();
+
+        assertThrows(CancellationException.class, () -> downloader.download(media(), target, event -> { },
+                () -> 1024 * 1024, () -> System.nanoTime() > canceledAt, Duration.ofSeconds(30)));
+    }
+
+    @Test
+    void failsOnHttpErrors() {
+        InfoJsonReader.DirectMedia missing = new InfoJsonReader.DirectMedia(url() + "-missing", Map.of(), null);
+
+        assertThrows(IOException.class, () -> downloader.download(missing, tempDir.resolve("missing.mp4"), event -> { },
+                () -> 0, () -> false, Duration.ofSeconds(30)));
+    }
+
+    private InfoJsonReader.DirectMedia media() {
+        return new InfoJsonReader.DirectMedia(url(), Map.of("User-Agent", "test-agent", "Accept-Encoding", "gzip"), null);
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/media";
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestURI().getPath().equals("/media")) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            userAgents.add(exchange.getRequestHeaders().getFirst("User-Agent"));
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            Matcher matcher = range != null ? RANGE.matcher(range) : null;
+            if (!rangesSupported || matcher == null || !matcher.matches()) {
+                exchange.sendResponseHeaders(200, CONTENT.length);
+                exchange.getResponseBody().write(CONTENT);
+                return;
+            }
+
+            rangeRequests.incrementAndGet();
+            int from = Integer.parseInt(matcher.group(1));
+            int to = matcher.group(2).isEmpty() ? CONTENT.length - 1 : Math.min(CONTENT.length - 1, Integer.parseInt(matcher.group(2)));
+            int length = to - from + 1;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + CONTENT.length);
+            exchange.sendResponseHeaders(206, length);
+            OutputStream body = exchange.getResponseBody();
+            if (from > 0 && dropsLeft.getAndUpdate(left -> Math.max(0, left - 1)) > 0) {
+                // The connection drops halfway through this segment
+                body.write(CONTENT, from, length / 2);
+                body.flush();
+                return;
+            }
+            body.write(CONTENT, from, length);
+        } catch (IOException e) {
+            // The client closed a range it no longer needs
+        }
+    }
+}
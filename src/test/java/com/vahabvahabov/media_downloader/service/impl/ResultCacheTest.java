@@ -0,0 +1,164 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.model.CachedResult;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResultCacheTest {
+    private static final String KEY = "https://www.youtube.com/watch?v=abc|best|mp4";
+
+    @TempDir
+    Path tempDir;
+
+    private final List<ResultCache> caches = new ArrayList<>();
+
+    @AfterEach
+    void stop() {
+        caches.forEach(ResultCache::shutdown);
+    }
+
+    @Test
+    void servesStoredResultsAndVerifiesThemOffTheRequestPathAfterARestart() throws Exception {
+        ResultCache cache = cache();
+        Path download = Files.writeString(tempDir.resolve("download.mp4"), "media bytes");
+        cache.store(KEY, download, "Title.mp4", "Title", null);
+        awaitIndexed(cache);
+
+        CachedResult hit = cache.lookup(KEY);
+        assertNotNull(hit);
+        assertEquals("Title.mp4", hit.getDisplayName());
+        Path served = tempDir.resolve("served.mp4");
+        cache.materialize(hit, served);
+        assertEquals("media bytes", Files.readString(served));
+        // Storing the file the cache served is a no-op
+        cache.store(KEY, served, "Title.mp4", "Title", null);
+
+        // After a restart the checksum has not been verified yet: a miss for the request thread, a hit for the job
+        ResultCache restarted = cache();
+        assertEquals(1, entries(restarted));
+        assertNull(restarted.lookup(KEY));
+        assertNotNull(restarted.verifyAndLookup(KEY));
+        assertNotNull(restarted.lookup(KEY));
+    }
+
+    @Test
+    void dropsAnEntryWhoseFileWasCorrupted() throws Exception {
+        ResultCache cache = cache();
+        cache.store(KEY, Files.writeString(tempDir.resolve("download.mp4"), "media bytes"), "Title.mp4", "Title", null);
+        awaitIndexed(cache);
+        Path cached = tempDir.resolve("cache").resolve(cache.lookup(KEY).getFileName());
+        cache.shutdown();
+        Files.delete(cached);
+        Files.writeString(cached, "MEDIA BYTES");
+
+        ResultCache restarted = cache();
+        assertNull(restarted.verifyAndLookup(KEY));
+        assertEquals(0, entries(restarted));
+        await(() -> !Files.exists(cached));
+    }
+
+    @Test
+    void hitsAreFlushedToTheIndexInTheBackgroundAndSurviveShutdown() throws Exception {
+        ResultCache cache = cache();
+        cache.store(KEY, Files.writeString(tempDir.resolve("download.mp4"), "media bytes"), "Title.mp4", "Title", null);
+        awaitIndexed(cache);
+        Path index = tempDir.resolve("cache").resolve("index.json");
+
+        for (int i = 0; i < 50; i++) {
+            assertNotNull(cache.lookup(KEY));
+        }
+        // Reads do not rewrite the index each time; shutdown writes what is still pending
+        assertTrue(Files.readString(index).contains("\"hits\":0"));
+        cache.shutdown();
+        assertTrue(Files.readString(index).contains("\"hits\":50"));
+
+        // Download threads still finishing after shutdown must not fail on the stopped writer
+        assertNotNull(cache.lookup(KEY));
+        cache.store(KEY, Files.writeString(tempDir.resolve("late.mp4"), "late bytes"), "Late.mp4", "Late", null);
+        try (var files = Files.list(tempDir.resolve("cache"))) {
+            assertTrue(files.noneMatch(file -> file.toString().endsWith(".tmp")));
+        }
+    }
+
+    @Test
+    void concurrentStoresOfTheSameKeyLeaveOneConsistentEntry() throws Exception {
+        ResultCache cache = cache();
+        int writers = 8;
+        List<Path> downloads = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            downloads.add(Files.writeString(tempDir.resolve("download-" + i + ".mp4"), "media bytes " + i));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(writers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (Path download : downloads) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                for (int round = 0; round < 20; round++) {
+                    cache.store(KEY, download, "Title.mp4", "Title", null);
+                    cache.lookup(KEY);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        cache.shutdown();
+        await(() -> {
+            try (var files = Files.list(tempDir.resolve("cache"))) {
+                return files.noneMatch(file -> file.toString().endsWith(".tmp"));
+            } catch (Exception e) {
+                return false;
+            }
+        });
+
+        ResultCache restarted = cache();
+        assertEquals(1, entries(restarted));
+        CachedResult entry = restarted.verifyAndLookup(KEY);
+        assertNotNull(entry);
+        assertTrue(Files.readString(tempDir.resolve("cache").resolve(entry.getFileName())).startsWith("media bytes "));
+    }
+
+    private ResultCache cache() {
+        ResultCache cache = new ResultCache(true, tempDir.toString(), 1 << 20, "lru");
+        cache.init();
+        caches.add(cache);
+        return cache;
+    }
+
+    private static int entries(ResultCache cache) {
+        return (int) cache.getStats().get("entries");
+    }
+
+    private void awaitIndexed(ResultCache cache) throws InterruptedException {
+        Path index = tempDir.resolve("cache").resolve("index.json");
+        await(() -> {
+            try {
+                return entries(cache) == 1 && Files.readString(index).contains("Title.mp4");
+            } catch (Exception e) {
+                return false;
+            }
+        });
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+}
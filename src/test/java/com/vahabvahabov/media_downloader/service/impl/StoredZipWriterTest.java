@@ -0,0 +1,72 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class StoredZipWriterTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void writesStoredEntriesReadableByZipFileAndStreamingReaders() throws Exception {
+        byte[] first = randomBytes(300_000);
+        byte[] second = randomBytes(17);
+        Path firstFile = Files.write(tempDir.resolve("a.mp4"), first);
+        Path secondFile = Files.write(tempDir.resolve("b.m4a"), second);
+
+        Path archive = tempDir.resolve("out.zip");
+        try (OutputStream out = Files.newOutputStream(archive)) {
+            StoredZipWriter zip = new StoredZipWriter(out);
+            zip.addEntry("Vidéo 1.mp4", firstFile, first.length, StoredZipWriter.crc32(firstFile));
+            zip.addEntry("audio.m4a", secondFile, second.length, StoredZipWriter.crc32(secondFile));
+            zip.finish();
+        }
+
+        try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+            ZipEntry entry = zipFile.getEntry("Vidéo 1.mp4");
+            assertEquals(ZipEntry.STORED, entry.getMethod());
+            assertEquals(first.length, entry.getCompressedSize());
+            assertArrayEquals(first, zipFile.getInputStream(entry).readAllBytes());
+            assertArrayEquals(second, zipFile.getInputStream(zipFile.getEntry("audio.m4a")).readAllBytes());
+        }
+
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(Files.readAllBytes(archive)))) {
+            assertEquals("Vidéo 1.mp4", in.getNextEntry().getName());
+            assertArrayEquals(first, in.readAllBytes());
+            assertEquals("audio.m4a", in.getNextEntry().getName());
+            assertArrayEquals(second, in.readAllBytes());
+            assertNull(in.getNextEntry());
+        }
+    }
+
+    @Test
+    void emptyArchiveIsValid() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new StoredZipWriter(out).finish();
+
+        Path archive = Files.write(tempDir.resolve("empty.zip"), out.toByteArray());
+        try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+            assertEquals(0, zipFile.size());
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
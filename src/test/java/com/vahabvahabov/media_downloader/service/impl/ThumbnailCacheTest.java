@@ -0,0 +1,151 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@EnabledOnOs({OS.LINUX, OS.MAC})
+class ThumbnailCacheTest {
+    // Copies the input to every output, prefixed with the output's name so variants can be told apart
+    private static final String FFMPEG = """
+            #!/bin/sh
+            prev=""
+            for arg in "$@"; do
+              [ "$prev" = "-i" ] && input="$arg"
+              case "$arg" in
+                *.part.webp) [ -n "%s" ] && { echo "Unknown encoder 'libwebp'" >&2; exit 1; }
+                             { basename "$arg"; cat "$input"; } > "$arg" ;;
+                *.part.jpg) { basename "$arg"; cat "$input"; } > "$arg" ;;
+              esac
+              prev="$arg"
+            done
+            """;
+
+    @TempDir
+    Path tempDir;
+
+    private HttpServer server;
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private ThumbnailCache cache;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            requests.computeIfAbsent(path, k -> new AtomicInteger()).incrementAndGet();
+            byte[] body = ("image " + path + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(path.contains("missing") ? 404 : 200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+        if (cache != null) {
+            cache.shutdown();
+        }
+    }
+
+    @Test
+    void fetchesOnceAndServesTheClosestWidth() throws Exception {
+        cache = cache(false, 1 << 20);
+        String source = url("/a.jpg");
+        String local = cache.localUrl(source);
+        String key = ThumbnailCache.keyOf(source);
+        assertEquals("/api/thumbnails/" + key, local);
+
+        ThumbnailCache.Variant small = cache.get(key, 100, ThumbnailCache.WEBP);
+        assertNotNull(small);
+        assertEquals("w320.webp", small.name());
+        assertTrue(new String(small.bytes(), StandardCharsets.UTF_8).contains("image /a.jpg"));
+        assertEquals("w640.jpg", cache.get(key, null, ThumbnailCache.JPEG).name());
+        assertEquals("w640.jpg", cache.get(key, 5000, ThumbnailCache.JPEG).name());
+        assertEquals("\"" + key + "-w320.webp\"", small.etag());
+
+        // Repeated views and lookups never go upstream again
+        cache.localUrl(source);
+        cache.prefetch(source);
+        cache.get(key, 100, ThumbnailCache.WEBP);
+        assertEquals(1, requests.get("/a.jpg").get());
+        assertEquals(2L, cache.getStats().get("memoryHits"));
+    }
+
+    @Test
+    void servesJpegWhenWebpCannotBeEncodedAndRedirectsWhenNothingWasCached() throws Exception {
+        cache = cache(true, 1 << 20);
+        String source = url("/b.jpg");
+        cache.prefetch(source);
+
+        ThumbnailCache.Variant variant = cache.get(ThumbnailCache.keyOf(source), 320, ThumbnailCache.WEBP);
+        assertEquals(ThumbnailCache.JPEG, variant.format());
+        assertEquals("w320.jpg", variant.name());
+
+        String missing = url("/missing.jpg");
+        String key = ThumbnailCache.keyOf(missing);
+        cache.localUrl(missing);
+        assertNull(cache.get(key, null, ThumbnailCache.WEBP));
+        assertEquals(missing, cache.sourceOf(key));
+        assertFalse(Files.exists(tempDir.resolve("thumbnails").resolve(key)));
+        assertNull(cache.sourceOf("0".repeat(32)));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyServedAndReloadsFromDisk() throws Exception {
+        // Each thumbnail is four variants of ~30 bytes plus its source URL: two fit, three do not
+        cache = cache(false, 400);
+        String first = url("/first.jpg");
+        String second = url("/second.jpg");
+        String third = url("/third.jpg");
+        for (String source : List.of(first, second)) {
+            cache.prefetch(source);
+            assertNotNull(cache.get(ThumbnailCache.keyOf(source), null, ThumbnailCache.WEBP));
+            Thread.sleep(5);
+        }
+        // Serving the first one makes the second the least recently used
+        assertNotNull(cache.get(ThumbnailCache.keyOf(first), null, ThumbnailCache.JPEG));
+        cache.prefetch(third);
+        assertNotNull(cache.get(ThumbnailCache.keyOf(third), null, ThumbnailCache.WEBP));
+
+        Path root = tempDir.resolve("thumbnails");
+        assertFalse(Files.exists(root.resolve(ThumbnailCache.keyOf(second))));
+        assertTrue(Files.exists(root.resolve(ThumbnailCache.keyOf(first))));
+
+        ThumbnailCache reloaded = cache(false, 400);
+        assertEquals(2, reloaded.getStats().get("entries"));
+        assertNotNull(reloaded.get(ThumbnailCache.keyOf(third), null, ThumbnailCache.WEBP));
+        assertNull(reloaded.get(ThumbnailCache.keyOf(second), null, ThumbnailCache.WEBP));
+    }
+
+    private ThumbnailCache cache(boolean withoutWebp, long maxBytes) throws Exception {
+        Path ffmpeg = tempDir.resolve(withoutWebp ? "ffmpeg-no-webp" : "ffmpeg");
+        Files.writeString(ffmpeg, FFMPEG.formatted(withoutWebp ? "no" : ""));
+        ffmpeg.toFile().setExecutable(true);
+        ThumbnailCache thumbnailCache = new ThumbnailCache(new ProcessRunner(), ffmpeg.toString(), tempDir.toString(), true,
+                List.of(640, 320), maxBytes, 1 << 20, 1 << 20, 2, 10);
+        thumbnailCache.init();
+        return thumbnailCache;
+    }
+
+    private String url(String path) {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+}
@@ -0,0 +1,70 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UrlCanonicalizerTest {
+    private static final String WATCH = "https://youtube.com/watch?v=dQw4w9WgXcQ";
+
+    @Test
+    void youtubeShortLinksAndWatchLinksAgree() {
+        assertEquals(WATCH, UrlCanonicalizer.canonicalize("https://youtu.be/dQw4w9WgXcQ"));
+        assertEquals(WATCH, UrlCanonicalizer.canonicalize("https://youtu.be/dQw4w9WgXcQ?si=abc123&t=42"));
+        assertEquals(WATCH, UrlCanonicalizer.canonicalize("https://www.youtube.com/watch?v=dQw4w9WgXcQ"));
+        assertEquals(WATCH, UrlCanonicalizer.canonicalize("http://m.youtube.com/watch?feature=share&v=dQw4w9WgXcQ"));
+        assertEquals(WATCH, UrlCanonicalizer.canonicalize("  youtube.com/watch?v=dQw4w9WgXcQ&pp=ygU&list=RD  "));
+        assertEquals(WATCH, UrlCanonicalizer.canonicalize("https://music.youtube.com/watch?v=dQw4w9WgXcQ"));
+        assertEquals(WATCH, UrlCanonicalizer.canonicalize("https://WWW.YouTube.com/watch?v=dQw4w9WgXcQ"));
+    }
+
+    @Test
+    void youtubeShortsEmbedsAndLiveMapToTheWatchPage() {
+        assertEquals(WATCH, UrlCanonicalizer.canonicalize("https://www.youtube.com/shorts/dQw4w9WgXcQ"));
+        assertEquals(WATCH, UrlCanonicalizer.canonicalize("https://youtube.com/shorts/dQw4w9WgXcQ?feature=share"));
+        assertEquals(WATCH, UrlCanonicalizer.canonicalize("https://www.youtube.com/embed/dQw4w9WgXcQ"));
+        assertEquals(WATCH, UrlCanonicalizer.canonicalize("https://www.youtube.com/live/dQw4w9WgXcQ?si=x"));
+        // IDs are case-sensitive
+        assertNotEquals(WATCH, UrlCanonicalizer.canonicalize("https://youtu.be/DQW4W9WGXCQ"));
+    }
+
+    @Test
+    void youtubePlaylistsKeepOnlyTheirList() {
+        assertEquals("https://youtube.com/playlist?list=PL123",
+                UrlCanonicalizer.canonicalize("https://www.youtube.com/playlist?si=abc&list=PL123"));
+    }
+
+    @Test
+    void stripsTrackingParametersAndSortsTheRest() {
+        assertEquals("https://example.com/video?a=1&b=2", UrlCanonicalizer.canonicalize(
+                "https://www.example.com/video/?utm_source=x&b=2&fbclid=y&a=1&gclid=z&utm_campaign=w"));
+        assertEquals("https://example.com/video", UrlCanonicalizer.canonicalize("https://example.com/video?ref=home"));
+    }
+
+    @Test
+    void instagramVariantsAgree() {
+        String post = "https://instagram.com/p/C1a2B3c4D5e";
+        assertEquals(post, UrlCanonicalizer.canonicalize("https://www.instagram.com/p/C1a2B3c4D5e/"));
+        assertEquals(post, UrlCanonicalizer.canonicalize("https://www.instagram.com/p/C1a2B3c4D5e/?igsh=MWZ4&img_index=1"));
+        assertEquals(post, UrlCanonicalizer.canonicalize("https://instagr.am/p/C1a2B3c4D5e"));
+        assertEquals("https://instagram.com/reel/C9x8Y7z6W5v",
+                UrlCanonicalizer.canonicalize("https://m.instagram.com/reel/C9x8Y7z6W5v/?utm_source=ig_web_copy_link"));
+    }
+
+    @Test
+    void tiktokVariantsAgree() {
+        String video = "https://tiktok.com/@someone/video/7234567890123456789";
+        assertEquals(video, UrlCanonicalizer.canonicalize("https://www.tiktok.com/@someone/video/7234567890123456789"));
+        assertEquals(video, UrlCanonicalizer.canonicalize(
+                "https://www.tiktok.com/@someone/video/7234567890123456789?is_from_webapp=1&sender_device=pc&lang=en"));
+        assertEquals(video, UrlCanonicalizer.canonicalize("https://m.tiktok.com/@someone/video/7234567890123456789/"));
+        // Short links need a redirect to resolve, so they stay as they are apart from tracking data
+        assertEquals("https://vm.tiktok.com/ZMabc123", UrlCanonicalizer.canonicalize("https://vm.tiktok.com/ZMabc123/?_r=1"));
+    }
+
+    @Test
+    void leavesWhatItCannotParseAlone() {
+        assertNull(UrlCanonicalizer.canonicalize(null));
+        assertEquals("not a url", UrlCanonicalizer.canonicalize(" not a url "));
+    }
+}
@@ -0,0 +1,242 @@
+package com.vahabvahabov.media_downloader.service.impl;
+
+import com.vahabvahabov.media_downloader.controller.mc.DownloadProgressController;
+import com.vahabvahabov.media_downloader.model.BatchRequest;
+import com.vahabvahabov.media_downloader.model.VideoRequest;
+import com.vahabvahabov.media_downloader.service.DownloadHandle;
+import com.vahabvahabov.media_downloader.service.MediaStream;
+import com.vahabvahabov.media_downloader.service.VideoService;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.bean.override.mockito.MockitoSpyBean;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Single-flight sharing of downloads and batches, run against the stub yt-dlp and ffmpeg in
+ * {@code src/test/resources/load-test}.
+ */
+@EnabledOnOs({OS.LINUX, OS.MAC})
+@SpringBootTest(properties = {"logging.level.com.vahabvahabov=INFO", "thumbnails.enabled=false",
+        "batch.max-items=4", "batch.max-parallel=2"})
+class VideoServiceImplTest {
+    private static final int SIZE = 400_000;
+
+    private static Path downloadDir;
+
+    @Autowired
+    private VideoService videoService;
+
+    @Autowired
+    private DownloadScheduler downloadScheduler;
+
+    @MockitoSpyBean
+    private DownloadProgressController progressController;
+
+    @DynamicPropertySource
+    static void stubBinaries(DynamicPropertyRegistry registry) throws IOException {
+        downloadDir = Files.createTempDirectory("video-service-test-");
+        registry.add("yt.dlp.path", () -> stub("yt-dlp"));
+        registry.add("ffmpeg.path", () -> stub("ffmpeg"));
+        registry.add("download.dir", downloadDir::toString);
+    }
+
+    @AfterAll
+    static void deleteDownloadDir() throws IOException {
+        try (Stream<Path> paths = Files.walk(downloadDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void sessionsAskingForTheSameMediaShareOneDownload() throws Exception {
+        // Slow enough for the second session to arrive while the first download runs
+        DownloadHandle first = videoService.downloadVideoAsync(request(url("shared", 200_000)), "session-a");
+        DownloadHandle second = videoService.downloadVideoAsync(request(url("shared", 200_000) + "&utm_source=share"), "session-b");
+
+        assertEquals(first.getJobId(), second.getJobId());
+        assertSame(first.getFuture(), second.getFuture());
+        assertThrows(IllegalStateException.class,
+                () -> videoService.downloadVideoAsync(request(url("other", 0)), "session-a"));
+
+        String fileName = second.getFuture().get(30, TimeUnit.SECONDS);
+        assertEquals(SIZE, Files.size(downloadDir.resolve(fileName)));
+        assertEquals("Stub media shared.mp4", videoService.getDisplayName(fileName));
+    }
+
+    @Test
+    void cancelingOneSessionLeavesTheDownloadRunningForTheOther() throws Exception {
+        DownloadHandle first = videoService.downloadVideoAsync(request(url("detach", 200_000)), "session-c");
+        DownloadHandle second = videoService.downloadVideoAsync(request(url("detach", 200_000)), "session-d");
+        assertEquals(first.getJobId(), second.getJobId());
+
+        videoService.cancelDownload("session-c");
+
+        String fileName = second.getFuture().get(30, TimeUnit.SECONDS);
+        assertEquals(SIZE, Files.size(downloadDir.resolve(fileName)));
+        // The canceled session no longer holds the file, so its cleanup changes nothing
+        videoService.deleteDownloadedVideo(fileName, "session-c");
+        assertTrue(Files.exists(downloadDir.resolve(fileName)));
+        // It is free to start something else
+        videoService.downloadVideoAsync(request(url("after-detach", 0)), "session-c").getFuture().get(30, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void sharedFileIsDeletedOnlyWhenTheLastHolderReleasesIt() throws Exception {
+        DownloadHandle first = videoService.downloadVideoAsync(request(url("release", 200_000)), "session-e");
+        DownloadHandle second = videoService.downloadVideoAsync(request(url("release", 200_000)), "session-f");
+        String fileName = first.getFuture().get(30, TimeUnit.SECONDS);
+        assertEquals(fileName, second.getFuture().get(30, TimeUnit.SECONDS));
+        Path file = downloadDir.resolve(fileName);
+
+        assertThrows(IllegalArgumentException.class, () -> videoService.deleteDownloadedVideo(fileName, null));
+        videoService.deleteDownloadedVideo(fileName, "not-a-holder");
+        assertTrue(Files.exists(file));
+
+        videoService.deleteDownloadedVideo(fileName, "session-e");
+        assertTrue(Files.exists(file));
+        // A repeated cleanup from the same session does not count twice
+        videoService.deleteDownloadedVideo(fileName, "session-e");
+        assertTrue(Files.exists(file));
+
+        videoService.deleteDownloadedVideo(fileName, "session-f");
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    void expandsAPlaylistUpToTheItemCapAndDownloadsAtMostMaxParallelItemsAtOnce() throws Exception {
+        BatchRequest request = batchRequest();
+        request.setUrl("https://stub.invalid/playlist?list=pl&entries=6&latency=50&size=100000&rate=200000");
+        String archiveName = videoService.startBatch(request, "batch-a");
+
+        AtomicInteger peak = new AtomicInteger();
+        Thread sampler = Thread.ofVirtual().start(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peak.accumulateAndGet(downloadScheduler.getRunningCount(), Math::max);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+        });
+        Map<String, Long> entries;
+        try {
+            entries = readArchive(archiveName);
+        } finally {
+            sampler.interrupt();
+            sampler.join();
+        }
+
+        // Six entries in the playlist, four of them allowed in a batch
+        assertEquals(Map.of("Stub media pl-0.mp4", 100_000L, "Stub media pl-1.mp4", 100_000L,
+                "Stub media pl-2.mp4", 100_000L, "Stub media pl-3.mp4", 100_000L), entries);
+        assertEquals(2, peak.get());
+        verify(progressController).sendMessage("batch-a", "Progress: Downloading 4 item(s), up to 2 at a time");
+        verify(progressController, timeout(10_000)).sendMessage("batch-a", "Download finished: " + archiveName);
+        assertEquals("Stub playlist pl.zip", videoService.getDisplayName(archiveName));
+
+        videoService.deleteDownloadedVideo(archiveName, "batch-a");
+        assertFalse(Files.exists(downloadDir.resolve(archiveName)));
+    }
+
+    @Test
+    void rejectsBatchesOverTheItemCap() {
+        BatchRequest request = batchRequest();
+        request.setUrls(List.of(url("cap-1", 0), url("cap-2", 0), url("cap-3", 0), url("cap-4", 0), url("cap-5", 0)));
+
+        IllegalArgumentException rejected = assertThrows(IllegalArgumentException.class,
+                () -> videoService.startBatch(request, "batch-b"));
+        assertEquals("A batch can contain at most 4 URLs.", rejected.getMessage());
+    }
+
+    @Test
+    void archivesTheItemsThatSucceedWhenOthersFail() throws Exception {
+        BatchRequest request = batchRequest();
+        request.setUrls(List.of(url("ok-1", 0), url("broken", 0) + "&fail=unavailable",
+                url("cut-off", 0) + "&fail=download", url("ok-2", 0)));
+        String archiveName = videoService.startBatch(request, "batch-c");
+
+        assertEquals(Set.of("Stub media ok-1.mp4", "Stub media ok-2.mp4"), readArchive(archiveName).keySet());
+        verify(progressController).sendMessage("batch-c", "Progress: Item 2/4 failed: "
+                + "The media is unavailable or the URL is invalid. Please check and try again.");
+        verify(progressController).sendMessage(eq("batch-c"), startsWith("Progress: Item 3/4 failed: "));
+        verify(progressController, timeout(10_000)).sendMessage("batch-c", "Download finished: " + archiveName);
+        videoService.deleteDownloadedVideo(archiveName, "batch-c");
+
+        // Nothing to archive fails the whole batch
+        BatchRequest failing = batchRequest();
+        failing.setUrls(List.of(url("gone-1", 0) + "&fail=unavailable", url("gone-2", 0) + "&fail=private"));
+        String emptyArchive = videoService.startBatch(failing, "batch-d");
+        verify(progressController, timeout(10_000)).sendMessage("batch-d", "Error: None of the 2 item(s) could be downloaded.");
+        assertNull(videoService.openArchive(emptyArchive));
+    }
+
+    private Map<String, Long> readArchive(String archiveName) throws IOException {
+        MediaStream archive = videoService.openArchive(archiveName);
+        assertNotNull(archive);
+        // Blocks until the last item finished, like a client that started downloading right away
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        archive.writeTo(out);
+        Map<String, Long> entries = new HashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.put(entry.getName(), zip.transferTo(OutputStream.nullOutputStream()));
+            }
+        }
+        return entries;
+    }
+
+    private static BatchRequest batchRequest() {
+        BatchRequest request = new BatchRequest();
+        request.setPlatform("youtube");
+        request.setQuality("best");
+        return request;
+    }
+
+    private static VideoRequest request(String url) {
+        VideoRequest request = new VideoRequest();
+        request.setUrl(url);
+        request.setPlatform("youtube");
+        request.setQuality("best");
+        return request;
+    }
+
+    private static String url(String id, int rate) {
+        return "https://stub.invalid/watch?v=" + id + "&latency=50&size=" + SIZE + "&rate=" + rate;
+    }
+
+    static String stub(String name) {
+        try {
+            Path path = Paths.get(VideoServiceImplTest.class.getResource("/load-test/" + name).toURI());
+            // Resource copying does not keep the executable bit
+            path.toFile().setExecutable(true);
+            return path.toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}